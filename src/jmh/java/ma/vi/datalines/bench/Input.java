@@ -0,0 +1,294 @@
+package ma.vi.datalines.bench;
+
+import ma.vi.datalines.Format;
+import ma.vi.datalines.LineReader;
+import ma.vi.datalines.html.HtmlTableLineReader;
+import ma.vi.datalines.text.DelimitedTextLineReader;
+import ma.vi.datalines.text.FixedLengthTextLineReader;
+import ma.vi.datalines.xl.XlsLineReader;
+import ma.vi.datalines.xl.XlsxLineReader;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.SplittableRandom;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The types of input benchmarked, with the reader and format to read each and
+ * a generator of their files. Files are generated deterministically from the
+ * shape and number of rows (the same file is generated for the same shape and
+ * rows on every run), with a header line followed by the rows, and are kept in
+ * a directory (`build/jmh-data` by default, or the `datalines.bench.dir` system
+ * property) to be reused by later runs.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+public enum Input {
+  CSV("csv", DelimitedTextLineReader::new) {
+    @Override
+    void write(Shape shape, int rows, Path file) throws IOException {
+      try (Writer out = Files.newBufferedWriter(file, UTF_8)) {
+        writeText(shape, rows, out, null);
+      }
+    }
+  },
+
+  FIXED("txt", FixedLengthTextLineReader::new) {
+    @Override
+    void write(Shape shape, int rows, Path file) throws IOException {
+      try (Writer out = Files.newBufferedWriter(file, UTF_8)) {
+        writeText(shape, rows, out, widths(shape));
+      }
+    }
+
+    @Override
+    public Format format(Shape shape) {
+      Format.Build format = Format.newBuilder().headerLines(1);
+      shape.columns(widths(shape)).forEach(format::column);
+      return format.build();
+    }
+  },
+
+  XLS("xls", XlsLineReader::new) {
+    @Override
+    void write(Shape shape, int rows, Path file) throws IOException {
+      if (rows >= 65536) {
+        throw new IllegalArgumentException("xls files are limited to 65535 rows after the header: " + rows);
+      }
+      try (Workbook workbook = new HSSFWorkbook();
+           OutputStream out = Files.newOutputStream(file)) {
+        writeSheet(shape, rows, workbook);
+        workbook.write(out);
+      }
+    }
+  },
+
+  XLSX("xlsx", XlsxLineReader::new) {
+    @Override
+    void write(Shape shape, int rows, Path file) throws IOException {
+      SXSSFWorkbook workbook = new SXSSFWorkbook(null, 100, true, true);
+      try (OutputStream out = Files.newOutputStream(file)) {
+        writeSheet(shape, rows, workbook);
+        workbook.write(out);
+      } finally {
+        workbook.dispose();
+        workbook.close();
+      }
+    }
+  },
+
+  HTML("html", HtmlTableLineReader::new) {
+    @Override
+    void write(Shape shape, int rows, Path file) throws IOException {
+      try (BufferedWriter out = Files.newBufferedWriter(file, UTF_8)) {
+        out.write("<html><body><table>\n<tr>");
+        String[] types = shape.types();
+        for (int i = 0; i < types.length; i++) {
+          out.write("<th>c" + (i + 1) + "</th>");
+        }
+        out.write("</tr>\n");
+        Values values = new Values();
+        for (int row = 1; row <= rows; row++) {
+          out.write("<tr>");
+          for (int i = 0; i < types.length; i++) {
+            out.write("<td>");
+            out.write(values.text(types[i], row, i));
+            out.write("</td>");
+          }
+          out.write("</tr>\n");
+        }
+        out.write("</table></body></html>\n");
+      }
+    }
+  };
+
+  Input(String extension, Supplier<LineReader> reader) {
+    this.extension = extension;
+    this.reader = reader;
+  }
+
+  /**
+   * Returns a new reader for this type of input.
+   */
+  public LineReader reader() {
+    return reader.get();
+  }
+
+  /**
+   * Returns the format of the files of this type of input generated with the
+   * shape.
+   */
+  public Format format(Shape shape) {
+    Format.Build format = Format.newBuilder().headerLines(1);
+    shape.columns(null).forEach(format::column);
+    return format.build();
+  }
+
+  /**
+   * Returns the file of this type of input with the shape and number of rows,
+   * generating it if it was not generated before.
+   */
+  public File file(Shape shape, int rows) throws IOException {
+    Path dir = Path.of(System.getProperty("datalines.bench.dir", "build/jmh-data"));
+    Path file = dir.resolve(shape.name().toLowerCase() + '-' + rows + '.' + extension);
+    if (!Files.exists(file)) {
+      Files.createDirectories(dir);
+      Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+      try {
+        write(shape, rows, temp);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    }
+    return file.toFile();
+  }
+
+  /**
+   * Writes a file of this type of input with the shape and number of rows.
+   */
+  abstract void write(Shape shape, int rows, Path file) throws IOException;
+
+  /**
+   * Writes the header and rows as text, separated by commas if `widths` is null
+   * or, otherwise, padded to these widths.
+   */
+  static void writeText(Shape shape, int rows, Writer out, int[] widths) throws IOException {
+    String[] types = shape.types();
+    StringBuilder line = new StringBuilder();
+    Values values = new Values();
+    for (int row = 0; row <= rows; row++) {
+      line.setLength(0);
+      for (int i = 0; i < types.length; i++) {
+        String value = row == 0 ? "c" + (i + 1) : values.text(types[i], row, i);
+        if (widths == null) {
+          if (i > 0) {
+            line.append(',');
+          }
+          line.append(value);
+        } else {
+          line.append(value);
+          for (int pad = value.length(); pad < widths[i]; pad++) {
+            line.append(' ');
+          }
+        }
+      }
+      out.write(line.append('\n').toString());
+    }
+  }
+
+  /**
+   * Writes the header and rows in the first sheet of the workbook.
+   */
+  static void writeSheet(Shape shape, int rows, Workbook workbook) {
+    Sheet sheet = workbook.createSheet("data");
+    CellStyle dates = workbook.createCellStyle();
+    dates.setDataFormat(workbook.createDataFormat().getFormat("yyyy-mm-dd"));
+
+    String[] types = shape.types();
+    Row header = sheet.createRow(0);
+    for (int i = 0; i < types.length; i++) {
+      header.createCell(i).setCellValue("c" + (i + 1));
+    }
+    Values values = new Values();
+    for (int row = 1; row <= rows; row++) {
+      Row r = sheet.createRow(row);
+      for (int i = 0; i < types.length; i++) {
+        Object value = values.value(types[i], row, i);
+        Cell cell = r.createCell(i);
+        if (value instanceof Long l) {
+          cell.setCellValue(l);
+        } else if (value instanceof Double d) {
+          cell.setCellValue(d);
+        } else if (value instanceof LocalDate d) {
+          cell.setCellValue(d);
+          cell.setCellStyle(dates);
+        } else {
+          cell.setCellValue(value.toString());
+        }
+      }
+    }
+  }
+
+  /**
+   * The widths of the columns of the shape in fixed-length files.
+   */
+  static int[] widths(Shape shape) {
+    String[] types = shape.types();
+    int[] widths = new int[types.length];
+    for (int i = 0; i < types.length; i++) {
+      widths[i] = switch (types[i]) {
+        case "string" -> Values.MAX_STRING + 1;
+        case "date"   -> 11;
+        default       -> 13;
+      };
+    }
+    return widths;
+  }
+
+  /**
+   * Generates the values of the rows of a file, in sequence, from a fixed seed.
+   */
+  static final class Values {
+    /**
+     * Returns the next value of the column of the specified type.
+     */
+    Object value(String type, int row, int column) {
+      if (column == 0) {
+        return (long)row;
+      }
+      return switch (type) {
+        case "long"   -> random.nextLong(1_000_000_000L);
+        case "double" -> random.nextInt(100_000_000) / 100.0;
+        case "date"   -> LocalDate.ofEpochDay(random.nextInt(20_000));
+        default       -> {
+          StringBuilder text = new StringBuilder();
+          for (int words = 2 + random.nextInt(5); words > 0; words--) {
+            if (!text.isEmpty()) {
+              text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+          }
+          yield text.length() > MAX_STRING ? text.substring(0, MAX_STRING) : text.toString();
+        }
+      };
+    }
+
+    /**
+     * Returns the next value of the column as text.
+     */
+    String text(String type, int row, int column) {
+      return value(type, row, column).toString();
+    }
+
+    private final SplittableRandom random = new SplittableRandom(20230101L);
+
+    static final int MAX_STRING = 40;
+
+    private static final String[] WORDS = {
+        "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel",
+        "india", "juliet", "kilo", "lima", "mike", "november", "oscar", "papa",
+        "quebec", "romeo", "sierra", "tango", "uniform", "victor", "whiskey",
+        "xray", "yankee", "zulu", "Port Louis", "Quatre Bornes", "Curepipe"
+    };
+  }
+
+  private final String extension;
+  private final Supplier<LineReader> reader;
+}
\ No newline at end of file
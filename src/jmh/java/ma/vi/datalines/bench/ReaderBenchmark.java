@@ -0,0 +1,135 @@
+package ma.vi.datalines.bench;
+
+import ma.vi.datalines.Format;
+import ma.vi.datalines.LineReader;
+import ma.vi.datalines.RowBatch;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the line readers over generated files (see {@link Input}) of
+ * every shape (see {@link Shape}) and several sizes:
+ * <ul>
+ *   <li>{@link #read}: reads all the lines of a file through the iterator
+ *       interface, as maps.</li>
+ *   <li>{@link #readBatches}: reads all the lines of a file as batches.</li>
+ *   <li>{@link #open}: the latency of opening a file and reading its first line.</li>
+ * </ul>
+ * The throughput of reading is reported in rows and bytes per second by the
+ * `rows` and `bytes` secondary results; the allocation per row is the
+ * `gc.alloc.rate.norm` secondary result of the gc profiler (bytes per operation)
+ * divided by the number of rows of the file.
+ * <p>
+ * Run with `gradlew jmh`, which writes the results as JSON to
+ * `build/reports/jmh/results.json`; JMH options can be passed in the `jmh`
+ * property, such as `gradlew jmh -Pjmh="-p input=CSV,XLSX -p rows=1000"`.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReaderBenchmark {
+  @Param({"CSV", "FIXED", "XLS", "XLSX", "HTML"})
+  public Input input;
+
+  @Param({"NARROW", "WIDE", "NUMERIC", "STRING", "DATE"})
+  public Shape shape;
+
+  /**
+   * The rows in the file after its header line; xls files are limited to
+   * 65535 rows.
+   */
+  @Param({"1000", "10000", "60000"})
+  public int rows;
+
+  @Setup(Level.Trial)
+  public void generate() throws IOException {
+    file = input.file(shape, rows);
+    format = input.format(shape);
+  }
+
+  /**
+   * Counts the rows and bytes read, reported as rates.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Counters {
+    public long rows;
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      rows = 0;
+      bytes = 0;
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void read(Counters counters, Blackhole blackhole) {
+    long rows = 0;
+    try (LineReader reader = input.reader()) {
+      reader.open(file, file.getName(), format);
+      while (reader.hasNext()) {
+        Map<String, Object> line = reader.next();
+        blackhole.consume(line);
+        rows++;
+      }
+    }
+    counters.rows += rows;
+    counters.bytes += file.length();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void readBatches(Counters counters, Blackhole blackhole) {
+    long rows = 0;
+    try (LineReader reader = input.reader()) {
+      reader.open(file, file.getName(), format);
+      for (RowBatch batch = reader.nextBatch(BATCH_SIZE);
+           batch != null;
+           batch = reader.nextBatch(BATCH_SIZE)) {
+        blackhole.consume(batch);
+        rows += batch.size();
+      }
+    }
+    counters.rows += rows;
+    counters.bytes += file.length();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Map<String, Object> open() {
+    try (LineReader reader = input.reader()) {
+      reader.open(file, file.getName(), format);
+      return reader.hasNext() ? reader.next() : null;
+    }
+  }
+
+  private File file;
+  private Format format;
+
+  private static final int BATCH_SIZE = 1024;
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package ma.vi.datalines.bench;
+
+import ma.vi.datalines.Column;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The shapes of the data generated for benchmarks, as the types of their
+ * columns. The first column of every shape is a row number.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+public enum Shape {
+  /**
+   * A few columns of mixed types.
+   */
+  NARROW("long", "string", "double", "date"),
+
+  /**
+   * Many columns of mixed types.
+   */
+  WIDE(repeat(12, "long", "string", "double", "date")),
+
+  /**
+   * Integer and decimal columns only.
+   */
+  NUMERIC(repeat(6, "long", "double")),
+
+  /**
+   * Mostly long text columns.
+   */
+  STRING(repeat(10, "string")),
+
+  /**
+   * Mostly date columns.
+   */
+  DATE(repeat(10, "date"));
+
+  Shape(String... types) {
+    List<String> all = new ArrayList<>();
+    all.add("long");
+    all.addAll(Arrays.asList(types));
+    this.types = all.toArray(new String[0]);
+  }
+
+  /**
+   * The types of the columns of the shape.
+   */
+  public String[] types() {
+    return types;
+  }
+
+  /**
+   * The columns of the shape, named `c1`, `c2`, etc. and positioned by their
+   * order if `widths` is null or, otherwise, at the character positions of
+   * these widths.
+   */
+  public List<Column> columns(int[] widths) {
+    List<Column> columns = new ArrayList<>();
+    int start = 1;
+    for (int i = 0; i < types.length; i++) {
+      String location = null;
+      if (widths != null) {
+        location = "[" + start + '-' + (start + widths[i] - 1) + ']';
+        start += widths[i];
+      }
+      columns.add(new Column("c" + (i + 1), types[i], location, null, Collections.emptyMap()));
+    }
+    return columns;
+  }
+
+  private static String[] repeat(int times, String... types) {
+    String[] repeated = new String[times * types.length];
+    for (int i = 0; i < times; i++) {
+      System.arraycopy(types, 0, repeated, i * types.length, types.length);
+    }
+    return repeated;
+  }
+
+  private final String[] types;
+}
\ No newline at end of file
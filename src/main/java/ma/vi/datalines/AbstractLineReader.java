@@ -1,15 +1,35 @@
 package ma.vi.datalines;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import static java.util.Collections.emptyMap;
-import static java.util.Collections.singletonMap;
 
 /**
  * An abstract implementation of {@link LineReader} simplifying concrete
  * implementations by taking care of discarding header and footer lines
  * and skipping blank lines, as defined by the import definition.
+ * <p>
+ * Concrete implementations read lines directly into {@link RowBatch}es; this
+ * class assembles those into batches of lines, or individual lines through
+ * the iterator interface, removing header and footer lines and applying
+ * default values along the way.
+ * <p>
+ * When the format specifies a {@link Format#prefetch()} depth, batches of lines
+ * are read ahead on a separate thread into a queue of that depth, from which
+ * both interfaces take their lines; errors raised while reading ahead are
+ * rethrown to the consumer, and closing the reader stops the thread.
+ * <p>
+ * Readers keep {@link ReaderMetrics} when their format enables them, and emit
+ * the JDK Flight Recorder events in {@link ReaderEvents} when these are enabled
+ * in a recording.
  *
  * @author vikash.madhow@gmail.com
  */
@@ -19,35 +39,149 @@ public abstract class AbstractLineReader implements LineReader {
                          String filename,
                          Format format) {
     this.fileName = filename;
-    buffer = new ArrayDeque<>();
+    this.columnByLocations = emptyMap();
+    this.metrics = format != null && format.metrics() ? new ReaderMetrics() : null;
 
+    ReaderEvents.Open event = new ReaderEvents.Open();
+    event.begin();
+    long start = System.nanoTime();
     openFile(file, filename, format);
+    initialise(format);
+    opened(event, start);
+  }
+
+  @Override
+  public final void open(InputStream input,
+                         String      filename,
+                         Format      format) {
+    this.fileName = filename;
+    this.columnByLocations = emptyMap();
+    this.metrics = format != null && format.metrics() ? new ReaderMetrics() : null;
+
+    ReaderEvents.Open event = new ReaderEvents.Open();
+    event.begin();
+    long start = System.nanoTime();
+    openStream(measured(input), filename, format);
+    initialise(format);
+    opened(event, start);
+  }
+
+  private void opened(ReaderEvents.Open event, long start) {
+    if (metrics != null) {
+      metrics.openNanos.add(System.nanoTime() - start);
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      event.fileName = fileName;
+      event.reader = getClass().getName();
+      event.commit();
+    }
+  }
+
+  /**
+   * Completes the opening of the reader once its input has been opened, deriving
+   * the format from the header line if one was not provided: columns are named
+   * after their headers and typed from the first lines after the header (see
+   * {@link TypeInference}), which are then returned as the first lines read.
+   * Inputs without a header line (see {@link #hasHeaderLine()}) have their
+   * columns named after their positions and typed from their first lines.
+   */
+  private void initialise(Format format) {
     if (format == null) {
       /*
        * Derive structure from header.
        */
-      Map<String, Object> line = readNextLine(true, false);
-      if (line != null && line != SEPARATOR) {
+      schema = RowSchema.positional(null);
+      RowBatch header = newBatch(1);
+      boolean hasHeader = hasHeaderLine();
+      if (!hasHeader || readNextLine(header, true, false) == LineType.LINE) {
+        header.size(1);
+        sample = newBatch(TypeInference.SAMPLE);
+        sampleEnd = sample(sample);
+        TypeInference inference = new TypeInference();
+        for (int i = 0; i < sample.size(); i++) {
+          inference.add(sample, i);
+        }
+
         List<Column> cols = new ArrayList<>();
-        for (Map.Entry<String, Object> e: line.entrySet()) {
-          String key = e.getKey();
-          String colName = key.trim().toLowerCase()
-                              .replaceAll("\\W", "_");
-          cols.add(new Column(colName, "string", key, null, emptyMap()));
+        Set<String> names = new HashSet<>();
+        RowBatch titles = hasHeader ? header : sample;
+        for (int i = 0; i < titles.columnCount(); i++) {
+          if (!hasHeader || header.isPresent(0, i)) {
+            String key = titles.key(i);
+            Object title = hasHeader ? header.get(0, i) : null;
+            String colName = (title == null || title.toString().isBlank() ? key : title.toString())
+                                .trim().toLowerCase()
+                                .replaceAll("\\W", "_");
+            if (!names.add(colName)) {
+              colName = colName + '_' + key;
+              names.add(colName);
+            }
+            cols.add(inference.column(i, colName, key));
+          }
         }
-        format = new Format(1, 0, true,
+        format = new Format(hasHeader ? 1 : 0, 0, true,
                             new char[]{'\t', ','}, '"', false, 1, cols);
-        buffer.add(line);
+
+        /*
+         * The header line has been consumed in deriving the structure.
+         */
+        headerLinesRead = format.headerLines();
       }
     }
-    this.format = format == null ? new Format() : format;
-    this.maxBufferedLines = Math.max(this.format.footerLines() * 2 + 1, 10);
+    this.format = resolve(format == null ? new Format() : format);
+    this.maxBufferedLines = Math.max(this.format.footerLines() * 2 + 1, 128);
     columnByLocations = new HashMap<>();
     for (Column column: this.format.columns()) {
       if (column.location() != null) {
         columnByLocations.put(column.location(), column);
       }
     }
+    schema = createSchema(this.format);
+    if (metrics != null) {
+      schema.measure(metrics);
+    }
+  }
+
+  /**
+   * Returns true if the input starts with a header line, from which columns
+   * are named when the reader is opened without a format. This is assumed by
+   * default; readers which can tell otherwise override this method.
+   */
+  protected boolean hasHeaderLine() {
+    return true;
+  }
+
+  /**
+   * Returns the format with which the input is read, given the format with
+   * which the reader was opened or the one derived from the header line. This
+   * returns the format as is by default; readers override this method to
+   * complete the format with what they learned from the input when opening it.
+   */
+  protected Format resolve(Format format) {
+    return format;
+  }
+
+  /**
+   * Reads lines into the batch for inferring the types of columns, until the
+   * batch is full or the end of the page, skipping blank lines. Returns the
+   * separator or end of input at which reading stopped, or null if the batch
+   * was filled.
+   */
+  private LineType sample(RowBatch sample) {
+    while (sample.size() < sample.capacity()) {
+      int row = sample.size();
+      sample.clear(row);
+      LineType line = nextLine(sample, row, false);
+      if (line != LineType.LINE) {
+        return line;
+      } else if (!sample.isBlank(row)) {
+        sample.size(row + 1);
+      } else if (metrics != null) {
+        metrics.blankLines.increment();
+      }
+    }
+    return null;
   }
 
   /**
@@ -57,6 +191,27 @@ public abstract class AbstractLineReader implements LineReader {
                                    String fileName,
                                    Format format);
 
+  /**
+   * Opens the stream for reading. Subclasses which can read directly from the
+   * stream should override this method; by default, the stream is copied to a
+   * temporary file which is opened with {@link #openFile(File, String, Format)}
+   * and deleted when the reader is closed.
+   */
+  protected void openStream(InputStream input,
+                            String      fileName,
+                            Format      format) {
+    try (InputStream in = input) {
+      int pos = fileName.lastIndexOf('.');
+      String prefix = pos == -1 ? fileName : fileName.substring(0, pos);
+      String suffix = pos == -1 ? ".tmp" : fileName.substring(pos);
+      tempFile = File.createTempFile(prefix.length() < 3 ? prefix + "___" : prefix, suffix);
+      Files.copy(in, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+    openFile(tempFile, fileName, format);
+  }
+
   @Override
   public Iterator<Map<String, Object>> iterator() {
     return this;
@@ -66,103 +221,339 @@ public abstract class AbstractLineReader implements LineReader {
   public boolean hasNext() {
     if (closed) {
       return false;
+    } else if (batch != null && cursor < batch.size()) {
+      return true;
     } else {
-      boolean reset;
-      reset: do {
-        reset = false;
-
+      cursor = 0;
+      if (format.prefetch() > 0) {
         /*
-         * Read and discard header lines: if skipBlankLines is true; blank lines
-         * do not count towards the header lines count.
+         * The previous batch is dropped first so that, if reading ahead failed,
+         * the error is raised again by later calls.
          */
-        while (headerLinesRead < format.headerLines()) {
-          Map<String, Object> line = readNextLine(format.ignoreBlankLines(), false);
-          if (line == SEPARATOR) {
-            headerLinesRead = 0;
-          } else {
-            headerLinesRead++;
-          }
-        }
-
+        batch = null;
+        batch = prefetched();
+      } else {
         /*
-         * If number of lines in buffer cannot be used to determine whether we
-         * have reached the end of input, read more up to the maxBufferedLines
-         * threshold.
+         * Lines are returned as copies of the lines in the batch, which can thus
+         * be reused.
          */
-        if (buffer.isEmpty()) {
-          Map<String, Object> line;
-          while (buffer.size() < maxBufferedLines) {
-            line = readNextLine(format.ignoreBlankLines(), true);
-            if (line == null || line == SEPARATOR) {
-              /*
-               * End-of-input or end-of-sheet: eliminate at most footerLines rows.
-               */
-              for (int i = 0; i < format.footerLines() && !buffer.isEmpty(); i++) {
-                buffer.removeLast();
-              }
-              if (line == SEPARATOR) {
-                /*
-                 * End of sheet: if buffer is empty, read from next sheet, otherwise,
-                 * continue with this sheet until it ends and ensure that next sheet
-                 * is read properly (skipping header lines as required.
-                 */
-                headerLinesRead = 0;
-                if (buffer.isEmpty()) {
-                  reset = true;
-                  continue reset;
-                } else {
-                  break;
-                }
-              } else {
-                break;
-              }
-            } else {
-              buffer.add(line);
-            }
-          }
+        if (batch == null) {
+          batch = newBatch(maxBufferedLines + format.footerLines());
         }
-      } while (reset);
-
-      if (!buffer.isEmpty()) {
-        return true;
-      } else {
+        if (!fill(batch, maxBufferedLines)) {
+          batch = null;
+        }
+      }
+      if (batch == null) {
         close();
         return false;
       }
+      return true;
     }
   }
 
+  /**
+   * Returns the next line as a {@link Row} copied from the batch being read, with
+   * its values boxed: the row is detached from the batch, which is reused for the
+   * following lines. {@link #nextBatch(int)} returns lines without this copy.
+   */
   @Override
   public Map<String, Object> next() {
-    if (buffer.isEmpty()) {
-      if (!hasNext()) {
-        throw new NoSuchElementException("No more lines to read.");
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more lines to read.");
+    }
+    return batch.row(cursor++);
+  }
+
+  @Override
+  public RowBatch nextBatch(int maxRows) {
+    if (maxRows <= 0) {
+      throw new IllegalArgumentException("Number of lines in batch must be positive: " + maxRows);
+    }
+    /*
+     * The vectors of batches are allocated for their full capacity.
+     */
+    maxRows = Math.min(maxRows, MAX_BATCH_ROWS);
+    if (closed) {
+      return null;
+    }
+    if (batch == null || cursor >= batch.size()) {
+      RowBatch lines;
+      if (format.prefetch() > 0) {
+        /*
+         * Batches read ahead are returned as-is if they fit, or in parts.
+         */
+        lines = prefetched();
+        if (lines != null && lines.size() > maxRows) {
+          batch = lines;
+          cursor = 0;
+          lines = null;
+        }
+      } else {
+        /*
+         * The batch is big enough to hold the last footerLines lines read in
+         * anticipation: when the end of the sheet or input is reached, these are
+         * the lines that will be eliminated as footer lines; otherwise they are
+         * carried to the next batch.
+         */
+        lines = newBatch(maxRows + format.footerLines());
+        if (!fill(lines, maxRows)) {
+          close();
+          return null;
+        }
+      }
+      if (lines != null) {
+        return lines;
+      } else if (batch == null || cursor >= batch.size()) {
+        close();
+        return null;
+      }
+    }
+
+    /*
+     * Return lines already read for the iterator interface first.
+     */
+    int size = Math.min(maxRows, batch.size() - cursor);
+    RowBatch lines = newBatch(size);
+    for (int i = 0; i < size; i++) {
+      lines.copy(batch, cursor++, i);
+    }
+    lines.size(size);
+    return lines;
+  }
+
+  /**
+   * Returns the next batch of lines read ahead by the prefetch thread, starting
+   * the thread on the first call, or null if there are no more lines. Errors
+   * raised while reading ahead are rethrown here, on the consumer's thread.
+   */
+  private RowBatch prefetched() {
+    if (prefetchEnd == null) {
+      if (prefetcher == null) {
+        prefetched = new ArrayBlockingQueue<>(format.prefetch());
+        prefetcher = new Thread(this::prefetch, "datalines-prefetch-" + fileName);
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+      }
+      try {
+        Object next = prefetched.take();
+        if (next instanceof RowBatch lines) {
+          return lines;
+        }
+        prefetchEnd = next;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for lines read ahead from " + fileName, e);
+      }
+    }
+    if (prefetchEnd instanceof Throwable t) {
+      if (t instanceof RuntimeException re) throw re;
+      if (t instanceof Error err) throw err;
+      throw new RuntimeException(t);
+    }
+    return null;
+  }
+
+  /**
+   * Reads batches of lines ahead into the prefetch queue until the end of the
+   * input, an error (which is put in the queue) or the reader is closed.
+   */
+  private void prefetch() {
+    try {
+      Object end = END_OF_LINES;
+      try {
+        while (!closed) {
+          RowBatch lines = newBatch(maxBufferedLines + format.footerLines());
+          if (!fill(lines, maxBufferedLines)) {
+            break;
+          }
+          prefetched.put(lines);
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (Throwable t) {
+        end = t;
+      }
+      if (!closed) {
+        prefetched.put(end);
+      }
+    } catch (InterruptedException e) {
+      /*
+       * Closed while waiting for space in the queue.
+       */
+    }
+  }
+
+  /**
+   * Fills the batch with up to `maxRows` lines, returning false if there were no
+   * more lines to read. The capacity of the batch must be at least `maxRows` plus
+   * the number of footer lines.
+   */
+  private boolean fill(RowBatch lines, int maxRows) {
+    long start = metrics == null ? 0 : System.nanoTime();
+    int footerLines = format.footerLines();
+
+    /*
+     * Index of the first line of the current sheet in the batch; lines before
+     * it belong to previous sheets whose footers have already been removed.
+     */
+    int sheetStart = 0;
+    lines.size(0);
+    if (carried != null) {
+      for (int i = 0; i < carried.size(); i++) {
+        lines.copy(carried, i, i);
+      }
+      lines.size(carried.size());
+      carried.size(0);
+    }
+
+    while (!exhausted && releasable(lines, sheetStart) < maxRows) {
+      /*
+       * Read and discard header lines: if skipBlankLines is true; blank lines
+       * do not count towards the header lines count.
+       */
+      while (!exhausted && headerLinesRead < format.headerLines()) {
+        LineType line = readNextLine(lines, format.ignoreBlankLines(), false);
+        if (line == LineType.SEPARATOR) {
+          headerLinesRead = 0;
+          endPage(line);
+        } else {
+          exhausted = line == LineType.END;
+          headerLinesRead++;
+          if (exhausted) {
+            endPage(line);
+          } else if (metrics != null) {
+            metrics.headerLines.increment();
+          }
+        }
+      }
+
+      if (!exhausted) {
+        LineType line = readNextLine(lines, format.ignoreBlankLines(), true);
+        if (line == LineType.LINE) {
+          lines.size(lines.size() + 1);
+
+        } else {
+          /*
+           * End-of-input or end-of-sheet: eliminate at most footerLines rows.
+           */
+          int size = Math.max(sheetStart, lines.size() - footerLines);
+          if (metrics != null) {
+            metrics.footerLines.add(lines.size() - size);
+          }
+          lines.size(size);
+          endPage(line);
+          if (line == LineType.SEPARATOR) {
+            /*
+             * End of sheet: ensure that next sheet is read properly (skipping
+             * header lines as required).
+             */
+            sheetStart = lines.size();
+            headerLinesRead = 0;
+          } else {
+            exhausted = true;
+          }
+        }
+      }
+    }
+
+    if (!exhausted) {
+      /*
+       * Carry the lines that could still be footer lines to the next batch.
+       */
+      int release = releasable(lines, sheetStart);
+      if (release < lines.size()) {
+        if (carried == null) {
+          carried = newBatch(footerLines);
+        }
+        for (int i = release; i < lines.size(); i++) {
+          carried.copy(lines, i, i - release);
+        }
+        carried.size(lines.size() - release);
+        lines.size(release);
+      }
+    }
+
+    linesRead += lines.size();
+    if (metrics != null) {
+      metrics.linesRead.add(lines.size());
+      metrics.batchLatency.record(System.nanoTime() - start);
+    }
+    return lines.size() > 0;
+  }
+
+  /**
+   * Ends the page being read at the separator or end of input, emitting its
+   * event. The end of input after the separator of the last page does not end
+   * another page.
+   */
+  private void endPage(LineType line) {
+    if (page != null && (line == LineType.SEPARATOR || pageLines > 0)) {
+      pageNumber++;
+      if (metrics != null) {
+        metrics.pages.increment();
+      }
+      page.end();
+      if (page.shouldCommit()) {
+        page.fileName = fileName;
+        page.page = pageNumber;
+        page.lines = pageLines;
+        page.commit();
       }
     }
-    return buffer.remove();
+    page = null;
+  }
+
+  /**
+   * The number of lines in the batch which cannot be footer lines of the current
+   * sheet and can thus be released to the caller.
+   */
+  private int releasable(RowBatch lines, int sheetStart) {
+    return sheetStart + Math.max(0, lines.size() - sheetStart - format.footerLines());
   }
 
   /**
-   * Reads the next line, skipping blank lines if import definition requires so.
+   * Reads the next line into the line at the end of the batch (whose index is
+   * the size of the batch), skipping blank lines if import definition requires
+   * so. The line is not added to the batch; it is up to the caller to include
+   * it by increasing the size of the batch.
    */
-  private Map<String, Object> readNextLine(boolean ignoreBlankLines, boolean convertToColumnType) {
-    Map<String, Object> line;
+  private LineType readNextLine(RowBatch lines, boolean ignoreBlankLines, boolean convertToColumnType) {
+    int row = lines.size();
+    if (page == null) {
+      page = new ReaderEvents.Page();
+      page.begin();
+      pageLines = 0;
+    }
+    LineType line;
+    boolean blank;
     do {
-      line = nextLine(convertToColumnType);
-    } while (ignoreBlankLines && line != null && isEmpty(line));
+      lines.clear(row);
+      if (metrics == null) {
+        line = sampledOrNextLine(lines, row, convertToColumnType);
+      } else {
+        long start = System.nanoTime();
+        line = sampledOrNextLine(lines, row, convertToColumnType);
+        metrics.lineLatency.record(System.nanoTime() - start);
+      }
+      blank = ignoreBlankLines && line == LineType.LINE && lines.isBlank(row);
+      if (blank && metrics != null) {
+        metrics.blankLines.increment();
+      }
+    } while (blank);
 
     /*
      * Apply default value.
      */
-    if (line != null) {
-      for (Map.Entry<String, Column> e: columnByLocations.entrySet()) {
-        String loc = e.getKey();
-        Column col = e.getValue();
-        if (col.defaultValue() != null) {
-          Object val = line.get(loc);
-          if (val == null || val.toString().trim().length() == 0) {
-            line.put(loc, col.defaultValue());
-          }
+    if (line == LineType.LINE) {
+      pageLines++;
+      int[] defaultColumns = schema.defaultColumns();
+      String[] defaults = schema.defaultValues();
+      for (int i = 0; i < defaultColumns.length; i++) {
+        int col = defaultColumns[i];
+        Object val = lines.get(row, col);
+        if (val == null || val.toString().trim().length() == 0) {
+          lines.set(row, col, defaults[i]);
         }
       }
     }
@@ -170,25 +561,131 @@ public abstract class AbstractLineReader implements LineReader {
   }
 
   /**
-   * Returns true if the line is empty. A line is empty if the list is empty
-   * or every element is null or empty.
+   * Returns the next line sampled for inferring the types of columns, converted
+   * to these types, followed by the separator or end of input at which sampling
+   * stopped, if any; then reads the next line from the input.
    */
-  private boolean isEmpty(Map<String, Object> line) {
-    if (!line.isEmpty()) {
-      for (Object column: line.values()) {
-        if (column != null && column.toString().trim().length() > 0) {
-          return false;
+  private LineType sampledOrNextLine(RowBatch lines, int row, boolean convertToColumnType) {
+    if (sample != null) {
+      if (sampled < sample.size()) {
+        for (int i = 0; i < sample.columnCount(); i++) {
+          if (sample.isPresent(sampled, i)) {
+            Object value = sample.get(sampled, i);
+            lines.set(row, i, convertToColumnType ? schema.convert(i, value) : value);
+          }
         }
+        sampled++;
+        return LineType.LINE;
+      }
+      LineType end = sampleEnd;
+      sample = null;
+      sampleEnd = null;
+      if (end != null) {
+        return end;
       }
     }
-    return true;
+    return nextLine(lines, row, convertToColumnType);
+  }
+
+  /**
+   * Discards up to `n` lines read ahead of the ones returned so far, starting
+   * with the next one to return, and returns the number of lines discarded.
+   * This does not include lines read ahead by the prefetch thread.
+   */
+  protected long discardReadAhead(long n) {
+    long discarded = 0;
+    if (batch != null && cursor < batch.size()) {
+      int skip = (int)Math.min(n, batch.size() - cursor);
+      cursor += skip;
+      discarded += skip;
+    }
+    if (carried != null && carried.size() > 0 && discarded < n) {
+      int skip = (int)Math.min(n - discarded, carried.size());
+      for (int i = skip; i < carried.size(); i++) {
+        carried.copy(carried, i, i - skip);
+      }
+      carried.size(carried.size() - skip);
+      discarded += skip;
+    }
+    if (sample != null && sampled < sample.size() && discarded < n) {
+      int skip = (int)Math.min(n - discarded, sample.size() - sampled);
+      sampled += skip;
+      discarded += skip;
+    }
+    return discarded;
+  }
+
+  /**
+   * Restarts reading after the underlying input has been moved to another line,
+   * discarding all lines read ahead and skipping the specified number of header
+   * lines before the next line returned.
+   */
+  protected void restart(int headerLinesToSkip) {
+    if (batch != null) {
+      cursor = batch.size();
+    }
+    if (carried != null) {
+      carried.size(0);
+    }
+    sample = null;
+    sampleEnd = null;
+    exhausted = false;
+    headerLinesRead = Math.max(0, format.headerLines() - headerLinesToSkip);
+  }
+
+  /**
+   * The number of header lines of the current page which are still to be read
+   * and discarded before the next line is returned.
+   */
+  protected int headerLinesPending() {
+    return Math.max(0, format.headerLines() - headerLinesRead);
+  }
+
+  @Override
+  public ReaderMetrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * Returns a stream recording the bytes read from the input stream and the time
+   * taken to read them in the metrics of the reader, if kept, or the input stream
+   * itself otherwise. Readers call this for the streams of data they read
+   * directly (such as the sheets of a workbook).
+   */
+  protected InputStream measured(InputStream input) {
+    return metrics == null ? input : metrics.measure(input);
+  }
+
+  /**
+   * Creates a new batch holding the lines read by this reader.
+   */
+  protected RowBatch newBatch(int capacity) {
+    return new RowBatch(schema, capacity);
+  }
+
+  /**
+   * Creates the schema of the lines read by this reader, once the reader has been
+   * opened and the format is known. By default, columns are keyed by their
+   * position starting from 1.
+   */
+  protected RowSchema createSchema(Format format) {
+    return RowSchema.positional(format);
   }
 
   /**
-   * Returns the next line from the underlying input or null if none. This method
-   * should continue to return after the final line was read even if called several times.
+   * Reads the next line from the underlying input into the specified line of
+   * the batch. This method should continue to return {@link LineType#END} after
+   * the final line was read even if called several times.
+   *
+   * @param lines The batch to read the line into.
+   * @param row The index of the line in the batch to set the columns of.
+   * @param convertToColumnType Whether to convert the values read to the type
+   *                            of their columns.
+   * @return The type of line read: {@link LineType#LINE} if a line was read into
+   *         the batch, {@link LineType#SEPARATOR} at the end of a page or
+   *         {@link LineType#END} at the end of the input.
    */
-  protected abstract Map<String, Object> nextLine(boolean convertToColumnType);
+  protected abstract LineType nextLine(RowBatch lines, int row, boolean convertToColumnType);
 
   @Override
   public void remove() {
@@ -199,7 +696,66 @@ public abstract class AbstractLineReader implements LineReader {
    * Reading is complete; close any resources.
    */
   public void close() {
+    ReaderEvents.Close event = closed ? null : new ReaderEvents.Close();
     closed = true;
+    if (event != null) {
+      event.begin();
+    }
+    if (prefetcher != null && Thread.currentThread() != prefetcher) {
+      /*
+       * Stop the prefetch thread, waiting for it to finish reading the current
+       * batch, before the input is closed.
+       */
+      prefetcher.interrupt();
+      prefetched.clear();
+      boolean interrupted = false;
+      while (prefetcher.isAlive()) {
+        try {
+          prefetcher.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      prefetched.clear();
+    }
+    if (tempFile != null && !tempFile.delete()) {
+      tempFile.deleteOnExit();
+    }
+    if (event != null) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.fileName = fileName;
+        event.lines = linesRead;
+        event.bytesRead = metrics == null ? -1 : metrics.bytesRead();
+        event.commit();
+      }
+    }
+  }
+
+  /**
+   * The type of line read by {@link #nextLine(RowBatch, int, boolean)}.
+   */
+  protected enum LineType {
+    /**
+     * A line was read.
+     */
+    LINE,
+
+    /**
+     * Separates multiple pages of rows (for files supporting those such as Excel).
+     * This is returned after all rows of one sheet and before any rows from the
+     * next. When the reader encounters this separator, it reset the `headerLinesRead`
+     * variable to 0 so that header lines are read for this new sheet.
+     */
+    SEPARATOR,
+
+    /**
+     * The end of the input was reached.
+     */
+    END
   }
 
   /**
@@ -218,14 +774,39 @@ public abstract class AbstractLineReader implements LineReader {
   protected Map<String, Column> columnByLocations;
 
   /**
-   * A look-ahead buffer big enough to ensure that footer lines are ignored.
+   * The schema of the lines read, shared by all batches and rows produced.
+   */
+  protected RowSchema schema;
+
+  /**
+   * The batch of lines returned one by one by the iterator interface, reused
+   * for every batch of lines read for the iterator.
+   */
+  private RowBatch batch;
+
+  /**
+   * The position of the next line to return from the current batch.
+   */
+  private int cursor;
+
+  /**
+   * Lines read in anticipation which could be footer lines of the current sheet,
+   * carried from one batch to the next. Created when first needed.
+   */
+  private RowBatch carried;
+
+  /**
+   * When the format is derived from the input, the lines sampled for inferring
+   * the types of columns, which are returned first (from `sampled`), followed by
+   * the separator or end of input at which sampling stopped, if any.
    */
-  private Deque<Map<String, Object>> buffer;
+  private RowBatch sample;
+  private int sampled;
+  private LineType sampleEnd;
 
   /**
-   * The look-ahead buffer is also used as a performance buffer with up to this
-   * number of lines read in anticipation. This is always greater than the number
-   * of footerLines + 1.
+   * The iterator interface reads batches of up to this number of lines. This is
+   * always greater than the number of footerLines + 1.
    */
   private int maxBufferedLines;
 
@@ -236,17 +817,57 @@ public abstract class AbstractLineReader implements LineReader {
   private int headerLinesRead;
 
   /**
-   * Set to true when the reader is closed. Used to prevent any further attempt
-   * to read lines after the underlying inputs have been closed.
+   * Set to true once the underlying input has been read completely.
+   */
+  private boolean exhausted;
+
+  /**
+   * The temporary file holding the stream read, when the reader cannot read
+   * directly from the stream.
+   */
+  private File tempFile;
+
+  /**
+   * When reading ahead (see {@link Format#prefetch()}), the thread reading lines
+   * and the queue of batches read ahead, which ends with {@link #END_OF_LINES}
+   * or the error raised while reading.
+   */
+  private Thread prefetcher;
+  private BlockingQueue<Object> prefetched;
+
+  /**
+   * The last element taken from the prefetch queue, once it is not a batch.
    */
-  protected boolean closed;
+  private Object prefetchEnd;
+
+  private static final Object END_OF_LINES = new Object();
+
+  /**
+   * The maximum number of lines in the batches returned by {@link #nextBatch(int)}.
+   */
+  public static final int MAX_BATCH_ROWS = 64 * 1024;
 
   /**
-   * Separates multiple pages of rows (for files supporting those such as Excel).
-   * This special row is returned after all rows of one sheet and before any rows
-   * from the next. When the reader encounters this separator, it reset the
-   * `headerLinesRead` variable to 0 so that header lines are read for this new
-   * sheet.
+   * The metrics of the reader, null if they are not kept.
+   */
+  private ReaderMetrics metrics;
+
+  /**
+   * The event of the page being read, started on its first line, the number of
+   * lines read in it and the number of pages read before it.
+   */
+  private ReaderEvents.Page page;
+  private long pageLines;
+  private int pageNumber;
+
+  /**
+   * The number of lines read for the caller.
+   */
+  private long linesRead;
+
+  /**
+   * Set to true when the reader is closed. Used to prevent any further attempt
+   * to read lines after the underlying inputs have been closed.
    */
-  protected static final Map<String, Object> SEPARATOR = singletonMap("X", "SEPARATOR");
+  protected volatile boolean closed;
 }
\ No newline at end of file
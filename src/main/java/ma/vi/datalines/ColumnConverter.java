@@ -0,0 +1,517 @@
+package ma.vi.datalines;
+
+import ma.vi.base.util.Convert;
+
+import java.math.BigDecimal;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts the values of a column to the type of the column. A converter is
+ * compiled once for a {@link Column} when a reader is opened, instead of
+ * resolving the type of the column by name for every value: `long`, `int`,
+ * `double`, `decimal` and `boolean` values are parsed directly from the range
+ * of characters holding them (without first extracting them as strings), and
+ * written to the primitive vectors of a {@link RowBatch} without boxing, while
+ * the pattern of `date` values is learnt from the first values of the column
+ * (see {@link DateConverter}).
+ * <p>
+ * Values which cannot be parsed this way (such as numbers with grouping
+ * separators, or columns of other types such as dates) are converted with
+ * {@link Convert#toType(Object, String)} as before. A value which cannot be
+ * converted at all is kept as-is; only the first such failure in a column is
+ * logged as a warning.
+ * <p>
+ * Converters are not thread-safe: they keep state (the pattern learnt by date
+ * converters and their cache, the logging of failures and the metrics they are
+ * measured in), so each reader, and each thread of a reader working in
+ * parallel, compiles its own (see {@link RowSchema#withOwnConverters()}).
+ *
+ * @author vikash.madhow@gmail.com
+ */
+public abstract class ColumnConverter {
+  /**
+   * Compiles the converter for the column, or returns null if the values of the
+   * column are not converted (the column has no type).
+   */
+  public static ColumnConverter of(Column column) {
+    if (column == null || column.type() == null) {
+      return null;
+    } else if (column.isText()) {
+      return new TextConverter(column);
+    } else {
+      return switch (column.type()) {
+        case "long"    -> new LongConverter(column);
+        case "int"     -> new IntConverter(column);
+        case "double"  -> new DoubleConverter(column);
+        case "decimal" -> new DecimalConverter(column);
+        case "boolean" -> new BooleanConverter(column);
+        case "date"    -> new DateConverter(column);
+        default        -> new ColumnConverter(column) {};
+      };
+    }
+  }
+
+  ColumnConverter(Column column) {
+    this.column = column;
+  }
+
+  /**
+   * The column whose values are converted.
+   */
+  public Column column() {
+    return column;
+  }
+
+  /**
+   * Returns true if values of the column are kept as text (this converter does
+   * not parse them).
+   */
+  public boolean isText() {
+    return false;
+  }
+
+  /**
+   * Converts the value to the type of the column, returning it unchanged if it
+   * cannot be converted.
+   */
+  public Object convert(Object value) {
+    if (value instanceof CharSequence chars) {
+      Object converted = parse(chars, 0, chars.length());
+      if (converted != null) {
+        return converted;
+      }
+    }
+    return fallback(value);
+  }
+
+  /**
+   * Converts the characters from `from` (inclusive) to `to` (exclusive) in the
+   * text to the type of the column and sets the result as the value of the
+   * column in the line of the batch.
+   */
+  public void set(RowBatch lines, int row, int column, CharSequence text, int from, int to) {
+    Object value = parse(text, from, to);
+    lines.set(row, column, value != null ? value : fallback(text.subSequence(from, to).toString()));
+  }
+
+  /**
+   * Parses the value in the range of characters, returning null if it could
+   * not be parsed by this converter.
+   */
+  Object parse(CharSequence text, int from, int to) {
+    return null;
+  }
+
+  /**
+   * Converts the value with {@link Convert#toType(Object, String)}, returning
+   * it unchanged if it cannot be converted.
+   */
+  Object fallback(Object value) {
+    try {
+      return Convert.toType(value, column.type());
+    } catch (Exception e) {
+      return failed(value);
+    }
+  }
+
+  /**
+   * Records that the value could not be converted, returning it unchanged.
+   */
+  Object failed(Object value) {
+    if (metrics != null) {
+      metrics.conversionFailed();
+    }
+    if (!failed) {
+      failed = true;
+      log.warning("Could not convert " + value + " to " + column.type() + " in column " + column.name()
+                + " (further failures in this column are logged at level FINE)");
+    } else if (log.isLoggable(Level.FINE)) {
+      log.fine("Could not convert " + value + " to " + column.type() + " in column " + column.name());
+    }
+    return value;
+  }
+
+  /**
+   * Returns a converter delegating to this one, recording the time taken by
+   * conversions and the values which could not be converted in the metrics.
+   * This converter then records its failures in the metrics.
+   */
+  public ColumnConverter measured(ReaderMetrics metrics) {
+    this.metrics = metrics;
+    return new MeasuredConverter(this);
+  }
+
+  private static final class MeasuredConverter extends ColumnConverter {
+    MeasuredConverter(ColumnConverter converter) {
+      super(converter.column());
+      this.converter = converter;
+    }
+
+    @Override
+    public boolean isText() {
+      return converter.isText();
+    }
+
+    @Override
+    public Object convert(Object value) {
+      long start = System.nanoTime();
+      Object converted = converter.convert(value);
+      converter.metrics.converted(System.nanoTime() - start);
+      return converted;
+    }
+
+    @Override
+    public void set(RowBatch lines, int row, int column, CharSequence text, int from, int to) {
+      long start = System.nanoTime();
+      converter.set(lines, row, column, text, from, to);
+      converter.metrics.converted(System.nanoTime() - start);
+    }
+
+    @Override
+    Object parse(CharSequence text, int from, int to) {
+      return converter.parse(text, from, to);
+    }
+
+    private final ColumnConverter converter;
+  }
+
+  /**
+   * Keeps values as text.
+   */
+  private static final class TextConverter extends ColumnConverter {
+    TextConverter(Column column) {
+      super(column);
+    }
+
+    @Override
+    public boolean isText() {
+      return true;
+    }
+
+    @Override
+    public Object convert(Object value) {
+      return value instanceof String ? value : fallback(value);
+    }
+
+    @Override
+    public void set(RowBatch lines, int row, int column, CharSequence text, int from, int to) {
+      lines.set(row, column, text.subSequence(from, to).toString());
+    }
+  }
+
+  private static final class LongConverter extends ColumnConverter {
+    LongConverter(Column column) {
+      super(column);
+    }
+
+    @Override
+    public void set(RowBatch lines, int row, int column, CharSequence text, int from, int to) {
+      int start = skipBlanks(text, from, to);
+      int end = trimBlanks(text, start, to);
+      long value = parseLong(text, start, end);
+      if (value != NOT_A_LONG || isLong(text, start, end)) {
+        lines.setLong(row, column, value);
+      } else {
+        lines.set(row, column, fallback(text.subSequence(from, to).toString()));
+      }
+    }
+
+    @Override
+    Object parse(CharSequence text, int from, int to) {
+      from = skipBlanks(text, from, to);
+      to = trimBlanks(text, from, to);
+      long value = parseLong(text, from, to);
+      return value != NOT_A_LONG || isLong(text, from, to) ? value : null;
+    }
+
+    /**
+     * Returns true if the range holds {@link #NOT_A_LONG} itself.
+     */
+    private static boolean isLong(CharSequence text, int from, int to) {
+      return to - from == MIN_LONG.length() && MIN_LONG.contentEquals(text.subSequence(from, to));
+    }
+
+    private static final String MIN_LONG = String.valueOf(Long.MIN_VALUE);
+  }
+
+  private static final class IntConverter extends ColumnConverter {
+    IntConverter(Column column) {
+      super(column);
+    }
+
+    @Override
+    Object parse(CharSequence text, int from, int to) {
+      from = skipBlanks(text, from, to);
+      to = trimBlanks(text, from, to);
+      long value = parseLong(text, from, to);
+      return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ? (int)value : null;
+    }
+  }
+
+  private static final class DoubleConverter extends ColumnConverter {
+    DoubleConverter(Column column) {
+      super(column);
+    }
+
+    @Override
+    public void set(RowBatch lines, int row, int column, CharSequence text, int from, int to) {
+      int start = skipBlanks(text, from, to);
+      int end = trimBlanks(text, start, to);
+      double value = parseDouble(text, start, end);
+      if (!Double.isNaN(value)) {
+        lines.setDouble(row, column, value);
+      } else {
+        lines.set(row, column, fallback(text.subSequence(from, to).toString()));
+      }
+    }
+
+    @Override
+    Object parse(CharSequence text, int from, int to) {
+      from = skipBlanks(text, from, to);
+      to = trimBlanks(text, from, to);
+      double value = parseDouble(text, from, to);
+      return Double.isNaN(value) ? null : value;
+    }
+  }
+
+  private static final class DecimalConverter extends ColumnConverter {
+    DecimalConverter(Column column) {
+      super(column);
+    }
+
+    /**
+     * Decimals with up to 18 digits and no exponent are built from their unscaled
+     * value and scale.
+     */
+    @Override
+    Object parse(CharSequence text, int from, int to) {
+      from = skipBlanks(text, from, to);
+      to = trimBlanks(text, from, to);
+      boolean negative = false;
+      int i = from;
+      if (i < to && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+        negative = text.charAt(i++) == '-';
+      }
+      long unscaled = 0;
+      int digits = 0;
+      int scale = -1;
+      for (; i < to; i++) {
+        char c = text.charAt(i);
+        if (c >= '0' && c <= '9') {
+          if (++digits > 18) {
+            return null;
+          }
+          unscaled = unscaled * 10 + (c - '0');
+          if (scale != -1) {
+            scale++;
+          }
+        } else if (c == '.' && scale == -1) {
+          scale = 0;
+        } else {
+          return null;
+        }
+      }
+      return digits == 0 ? null : BigDecimal.valueOf(negative ? -unscaled : unscaled, Math.max(scale, 0));
+    }
+  }
+
+  private static final class BooleanConverter extends ColumnConverter {
+    BooleanConverter(Column column) {
+      super(column);
+    }
+
+    @Override
+    public void set(RowBatch lines, int row, int column, CharSequence text, int from, int to) {
+      Object value = parse(text, from, to);
+      if (value != null) {
+        lines.setBoolean(row, column, (Boolean)value);
+      } else {
+        lines.set(row, column, fallback(text.subSequence(from, to).toString()));
+      }
+    }
+
+    @Override
+    Object parse(CharSequence text, int from, int to) {
+      from = skipBlanks(text, from, to);
+      to = trimBlanks(text, from, to);
+      return matches(text, from, to, "true")  ? Boolean.TRUE
+           : matches(text, from, to, "false") ? Boolean.FALSE
+           : null;
+    }
+
+    private static boolean matches(CharSequence text, int from, int to, String word) {
+      if (to - from != word.length()) {
+        return false;
+      }
+      for (int i = 0; i < word.length(); i++) {
+        if (Character.toLowerCase(text.charAt(from + i)) != word.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Returns the position of the first non-blank character in the range.
+   */
+  private static int skipBlanks(CharSequence text, int from, int to) {
+    while (from < to && text.charAt(from) <= ' ') from++;
+    return from;
+  }
+
+  /**
+   * Returns the end of the range without its trailing blank characters.
+   */
+  private static int trimBlanks(CharSequence text, int from, int to) {
+    while (to > from && text.charAt(to - 1) <= ' ') to--;
+    return to;
+  }
+
+  /**
+   * Parses an optionally signed sequence of decimal digits, returning
+   * {@link #NOT_A_LONG} if the range is not such a sequence or its value
+   * overflows a long.
+   */
+  public static long parseLong(CharSequence text, int from, int to) {
+    if (from >= to) {
+      return NOT_A_LONG;
+    }
+    boolean negative = false;
+    int i = from;
+    char first = text.charAt(i);
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      if (++i == to) {
+        return NOT_A_LONG;
+      }
+    }
+
+    /*
+     * Accumulate negatively, as the range of negative longs is larger.
+     */
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long value = 0;
+    for (; i < to; i++) {
+      int digit = text.charAt(i) - '0';
+      if (digit < 0 || digit > 9 || value < limit / 10) {
+        return NOT_A_LONG;
+      }
+      value *= 10;
+      if (value < limit + digit) {
+        return NOT_A_LONG;
+      }
+      value -= digit;
+    }
+    return negative ? value : -value;
+  }
+
+  /**
+   * Parses a decimal number with an optional sign, fraction and exponent,
+   * returning NaN if the range is not such a number. Numbers with at most 15
+   * significant digits and a decimal exponent within 22 are computed exactly
+   * from their digits with a single multiplication or division (which is then
+   * correctly rounded); others are parsed with {@link Double#parseDouble(String)}.
+   */
+  public static double parseDouble(CharSequence text, int from, int to) {
+    int i = from;
+    boolean negative = false;
+    if (i < to && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+      negative = text.charAt(i++) == '-';
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int significant = 0;
+    int exponent = 0;
+    boolean point = false;
+    for (; i < to; i++) {
+      char c = text.charAt(i);
+      if (c >= '0' && c <= '9') {
+        digits++;
+        if (mantissa != 0 || c != '0') {
+          significant++;
+          if (significant > 18) {
+            return slowParseDouble(text, from, to);
+          }
+          mantissa = mantissa * 10 + (c - '0');
+        }
+        if (point) {
+          exponent--;
+        }
+      } else if (c == '.' && !point) {
+        point = true;
+      } else {
+        break;
+      }
+    }
+    if (digits == 0) {
+      return Double.NaN;
+    }
+    if (i < to) {
+      char c = text.charAt(i);
+      if (c != 'e' && c != 'E') {
+        return Double.NaN;
+      }
+      long exp = parseLong(text, i + 1, to);
+      if (exp == NOT_A_LONG) {
+        return Double.NaN;
+      }
+      if (exp > 1000 || exp < -1000) {
+        return slowParseDouble(text, from, to);
+      }
+      exponent += (int)exp;
+    }
+
+    double value;
+    if (mantissa == 0) {
+      value = 0;
+    } else if (significant <= 15 && exponent >= -22 && exponent <= 22) {
+      value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent]
+                            : mantissa / POWERS_OF_TEN[-exponent];
+    } else {
+      return slowParseDouble(text, from, to);
+    }
+    return negative ? -value : value;
+  }
+
+  private static double slowParseDouble(CharSequence text, int from, int to) {
+    try {
+      return Double.parseDouble(text.subSequence(from, to).toString());
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * Returned by {@link #parseLong(CharSequence, int, int)} when the range is not
+   * a long; Long.MIN_VALUE itself is distinguished by checking the range.
+   */
+  public static final long NOT_A_LONG = Long.MIN_VALUE;
+
+  /**
+   * Powers of ten which are exactly representable as doubles.
+   */
+  private static final double[] POWERS_OF_TEN = {
+      1e0,  1e1,  1e2,  1e3,  1e4,  1e5,  1e6,  1e7,  1e8,  1e9,  1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  /**
+   * The column whose values are converted.
+   */
+  private final Column column;
+
+  /**
+   * Set once a value could not be converted, after which failures are no longer
+   * logged as warnings.
+   */
+  private boolean failed;
+
+  /**
+   * Where failures are recorded, when measured.
+   */
+  private ReaderMetrics metrics;
+
+  private static final Logger log = Logger.getLogger(ColumnConverter.class.getName());
+}
\ No newline at end of file
@@ -0,0 +1,367 @@
+package ma.vi.datalines;
+
+import ma.vi.base.util.Convert;
+
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.ResolverStyle;
+import java.util.*;
+
+/**
+ * Converts the values of `date` columns, learning the pattern of the dates in
+ * the column from its first values instead of detecting it for every value.
+ * <p>
+ * The first values are converted with {@link Convert#toType(Object, String)}
+ * (the generic path), and each of them is also parsed with the candidate
+ * patterns matching its shape: day, month and year numbers in any order
+ * separated by the same character (such as `17 05 1977` or `1977-05-17`),
+ * parsed by hand, and a few patterns with month names, parsed with precompiled
+ * {@link DateTimeFormatter}s. Candidates giving a different date than the
+ * generic path are discarded; once a single candidate remains after a few
+ * values, it is used for converting the rest of the column. Values not matching
+ * the learned pattern are converted with the generic path. Learning is
+ * abandoned if no candidate matches, or if the values never distinguish
+ * between the remaining candidates (e.g. when all days are 12 or less).
+ * <p>
+ * The pattern of a column can be given in its `pattern` attribute, using the
+ * names returned by {@link #patterns()} (such as `d/M/uuuu`, as inferred by
+ * {@link TypeInference}); it is then the only candidate and is learnt from the
+ * first value agreeing with the generic path.
+ * <p>
+ * Values converted with the generic path or a formatter are kept in a small
+ * LRU cache, as dates tend to repeat in a column, and so are the values which
+ * the generic path could not convert, which are thus converted only once. As
+ * all converters, a date converter is confined to the thread reading the
+ * column, so neither learning nor the cache are synchronized.
+ * <p>
+ * Dates are returned in the same type as the one returned by the generic path.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class DateConverter extends ColumnConverter {
+  DateConverter(Column column) {
+    super(column);
+    DatePattern given = column.attributes() == null ? null : BY_NAME.get(column.attributes().get("pattern"));
+    this.given = given == null ? null : List.of(given);
+  }
+
+  /**
+   * The names of the candidate patterns, in order of preference: numeric
+   * patterns are named as {@link DateTimeFormatter} patterns (such as `d/M/uuuu`)
+   * and day-month-year orders are preferred over month-day-year orders.
+   */
+  static List<String> patterns() {
+    return List.copyOf(BY_NAME.keySet());
+  }
+
+  /**
+   * Returns true if the value is a date with the named pattern.
+   */
+  static boolean parses(String pattern, CharSequence text) {
+    DatePattern p = BY_NAME.get(pattern);
+    return p != null && p.parse(text, 0, text.length()) != null;
+  }
+
+  @Override
+  public Object convert(Object value) {
+    if (value instanceof CharSequence chars) {
+      Object date = date(chars, 0, chars.length());
+      return date == FAILED ? failed(value) : date;
+    }
+    return fallback(value);
+  }
+
+  @Override
+  public void set(RowBatch lines, int row, int column, CharSequence text, int from, int to) {
+    Object date = date(text, from, to);
+    lines.set(row, column, date == FAILED ? failed(text.subSequence(from, to).toString()) : date);
+  }
+
+  @Override
+  Object parse(CharSequence text, int from, int to) {
+    Object date = date(text, from, to);
+    return date == FAILED ? null : date;
+  }
+
+  /**
+   * Converts the date in the range, returning {@link #FAILED} if it could not
+   * be converted: values not parsed by the pattern learnt are converted once,
+   * with the generic path, and not again by {@link #fallback(Object)}.
+   */
+  private Object date(CharSequence text, int from, int to) {
+    DatePattern learnt = pattern;
+    if (learnt instanceof NumericPattern numeric) {
+      /*
+       * Parsed by hand without going through the cache.
+       */
+      LocalDate date = numeric.parse(text, from, to);
+      if (date != null) {
+        return adapt(date, type);
+      }
+    }
+
+    String value = text.subSequence(from, to).toString();
+    Object date = cache.get(value);
+    if (date == null) {
+      if (learnt instanceof FormatterPattern) {
+        LocalDate parsed = learnt.parse(value, 0, value.length());
+        if (parsed != null) {
+          date = adapt(parsed, type);
+        }
+      }
+      if (date == null) {
+        date = generic(value);
+        if (date != null && date != FAILED && learning) {
+          learn(value, date);
+        }
+      }
+      if (date != null) {
+        cache.put(value, date);
+      }
+    }
+    return copy(date);
+  }
+
+  /**
+   * Converts the value with the generic path, returning {@link #FAILED} if it
+   * could not be converted.
+   */
+  private Object generic(String value) {
+    try {
+      return Convert.toType(value, column().type());
+    } catch (Exception e) {
+      return FAILED;
+    }
+  }
+
+  /**
+   * Narrows the candidate patterns to the ones parsing the value to the date
+   * returned by the generic path.
+   */
+  private void learn(String value, Object date) {
+    if (!learning) {
+      return;
+    }
+    if (candidates == null) {
+      type = date.getClass();
+      if (adapt(LocalDate.EPOCH, type) == null) {
+        /*
+         * Dates of this type cannot be produced from the patterns.
+         */
+        learning = false;
+        return;
+      }
+      candidates = new ArrayList<>(given != null ? given : CANDIDATES);
+    }
+    samples++;
+    String trimmed = value.trim();
+    candidates.removeIf(p -> !date.equals(adapt(p.parse(trimmed, 0, trimmed.length()), type)));
+    if (candidates.isEmpty() || samples > MAX_SAMPLES) {
+      learning = false;
+      candidates = null;
+    } else if (candidates.size() == 1 && (samples >= MIN_SAMPLES || given != null)) {
+      pattern = candidates.get(0);
+      learning = false;
+      candidates = null;
+    }
+  }
+
+  /**
+   * Returns the date as an instance of the type, or null if the type is not
+   * supported or the date is null.
+   */
+  private static Object adapt(LocalDate date, Class<?> type) {
+    if (date == null) {
+      return null;
+    } else if (type == LocalDate.class) {
+      return date;
+    } else if (type == LocalDateTime.class) {
+      return date.atStartOfDay();
+    } else if (type == java.sql.Date.class) {
+      return java.sql.Date.valueOf(date);
+    } else if (type == Date.class) {
+      return Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Copies mutable dates taken from the cache.
+   */
+  private static Object copy(Object date) {
+    return date instanceof Date d ? d.clone() : date;
+  }
+
+  /**
+   * A pattern parsing dates from a range of characters.
+   */
+  private interface DatePattern {
+    /**
+     * Parses the date in the range, returning null if it does not match the pattern.
+     */
+    LocalDate parse(CharSequence text, int from, int to);
+
+    /**
+     * The name of the pattern.
+     */
+    String name();
+  }
+
+  /**
+   * Day, month and year numbers separated by the same character, in the specified
+   * order; the year has 4 digits and the day and month 1 or 2 digits.
+   *
+   * @param order The order of the numbers, as a combination of 'd', 'm' and 'y'.
+   */
+  private record NumericPattern(String order, char separator) implements DatePattern {
+    @Override
+    public String name() {
+      StringBuilder name = new StringBuilder();
+      for (int i = 0; i < 3; i++) {
+        if (i > 0) {
+          name.append(separator);
+        }
+        char c = order.charAt(i);
+        name.append(c == 'd' ? "d" : c == 'm' ? "M" : "uuuu");
+      }
+      return name.toString();
+    }
+
+    @Override
+    public LocalDate parse(CharSequence text, int from, int to) {
+      while (from < to && text.charAt(from) <= ' ') from++;
+      while (to > from && text.charAt(to - 1) <= ' ') to--;
+      int day = 0, month = 0, year = 0;
+      int pos = from;
+      for (int i = 0; i < 3; i++) {
+        if (i > 0) {
+          if (pos >= to || text.charAt(pos) != separator) {
+            return null;
+          }
+          pos++;
+        }
+        int start = pos;
+        int number = 0;
+        while (pos < to && pos - start < 4) {
+          char c = text.charAt(pos);
+          if (c < '0' || c > '9') break;
+          number = number * 10 + (c - '0');
+          pos++;
+        }
+        int digits = pos - start;
+        switch (order.charAt(i)) {
+          case 'd' -> { if (digits < 1 || digits > 2) return null; day = number; }
+          case 'm' -> { if (digits < 1 || digits > 2) return null; month = number; }
+          default  -> { if (digits != 4) return null; year = number; }
+        }
+      }
+      if (pos != to || month < 1 || month > 12 || day < 1
+       || day > Month.of(month).length(Year.isLeap(year))) {
+        return null;
+      }
+      return LocalDate.of(year, month, day);
+    }
+  }
+
+  /**
+   * A pattern parsed with a precompiled formatter.
+   */
+  private record FormatterPattern(String name, DateTimeFormatter formatter) implements DatePattern {
+    FormatterPattern(String pattern) {
+      this(pattern, new DateTimeFormatterBuilder().parseCaseInsensitive()
+                                                  .appendPattern(pattern)
+                                                  .toFormatter(Locale.ENGLISH)
+                                                  .withResolverStyle(ResolverStyle.STRICT));
+    }
+
+    @Override
+    public LocalDate parse(CharSequence text, int from, int to) {
+      try {
+        return LocalDate.from(formatter.parse(text.subSequence(from, to).toString().trim()));
+      } catch (Exception e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * The candidate patterns.
+   */
+  private static final List<DatePattern> CANDIDATES;
+  static {
+    List<DatePattern> candidates = new ArrayList<>();
+    for (char separator: new char[]{' ', '/', '-', '.'}) {
+      for (String order: new String[]{"dmy", "mdy", "ymd"}) {
+        candidates.add(new NumericPattern(order, separator));
+      }
+    }
+    for (String pattern: new String[]{"d MMM uuuu", "d-MMM-uuuu", "d MMMM uuuu",
+                                      "MMM d, uuuu", "MMMM d, uuuu"}) {
+      candidates.add(new FormatterPattern(pattern));
+    }
+    CANDIDATES = List.copyOf(candidates);
+
+    Map<String, DatePattern> byName = new LinkedHashMap<>();
+    for (DatePattern candidate: CANDIDATES) {
+      byName.put(candidate.name(), candidate);
+    }
+    BY_NAME = Collections.unmodifiableMap(byName);
+  }
+
+  /**
+   * The candidate patterns by name, in the order of the candidates.
+   */
+  private static final Map<String, DatePattern> BY_NAME;
+
+  /**
+   * The number of values agreeing with a single remaining candidate needed to
+   * learn it, and the number of values after which learning is abandoned.
+   */
+  static final int MIN_SAMPLES = 4;
+  static final int MAX_SAMPLES = 64;
+
+  /**
+   * Returned and cached for the values which could not be converted.
+   */
+  private static final Object FAILED = new Object();
+
+  /**
+   * The capacity of the cache of converted values.
+   */
+  static final int CACHE_SIZE = 256;
+
+  /**
+   * The pattern given for the column, as the only candidate, or null if none.
+   */
+  private final List<DatePattern> given;
+
+  /**
+   * The pattern learnt, or null if it has not been learnt (yet).
+   */
+  private DatePattern pattern;
+
+  /**
+   * The type of dates returned by the generic path, set from the first value.
+   */
+  private Class<?> type;
+
+  /**
+   * Set while the pattern is being learnt, with the remaining candidate patterns
+   * and the number of values used so far.
+   */
+  private boolean learning = true;
+  private List<DatePattern> candidates;
+  private int samples;
+
+  /**
+   * Recently converted values.
+   */
+  private final Map<String, Object> cache = new LinkedHashMap<>(CACHE_SIZE * 2, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+}
\ No newline at end of file
@@ -1,9 +1,12 @@
 package ma.vi.datalines;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
@@ -28,11 +31,50 @@ import static java.util.stream.Collectors.toMap;
  *                        it is easier for programs to work with and the default
  *                       is thus set to false.
  * @param page For files supporting multiple pages (or, equivalently, sheets such
- *             as Excel), only data from the specified page number is loaded, or
- *             if the page number is set to 0 or -1, all pages are loaded in order.
+ *             as Excel, or tables in HTML), only data from the specified page
+ *             number is loaded, or if the page number is set to 0 or -1, all
+ *             pages are loaded in order.
  *             The default is to only load the first page (page 1).
  * @param columns The columns in the loaded data. If empty or null, the columns
  *                will be derived from the structure of the data, where possible.
+ * @param parallelism The number of threads to use for reading, for readers which
+ *                    can read parts of their input in parallel (such as large
+ *                    delimited text files). The input is read sequentially on the
+ *                    calling thread when this is 1 or less, which is the default.
+ * @param ordered When reading in parallel, whether lines are returned in the order
+ *                in which they appear in the input (true), or as soon as they are
+ *                available (false). Header lines are always taken from the start
+ *                of the input and footer lines from its end. Default is true.
+ * @param prefetch The number of batches of lines to read ahead of the consumer
+ *                 of a reader on a separate thread, so that reading the input
+ *                 overlaps with processing the lines read. Lines are read on the
+ *                 calling thread when this is 0 or less, which is the default.
+ * @param formulas For files with formulas, such as Excel, whether the values of
+ *                 formula cells are the results cached in the file when it was
+ *                 saved or are evaluated when reading (see {@link Formulas}).
+ *                 Default is to evaluate formulas where the reader can.
+ * @param lineIndex For text files, the number of lines between the entries of
+ *                  an index of the positions of lines in the file, which is built
+ *                  while reading the file and saved next to it for seeking to
+ *                  lines directly (see {@link ma.vi.datalines.text.TextLineReader#seek(long)}).
+ *                  No index is kept when this is 0 or less, which is the default.
+ * @param metrics Whether readers keep {@link ReaderMetrics} while reading, which
+ *                costs a few tens of nanoseconds per line and value converted.
+ *                Default is false.
+ * @param projection The columns to read, by the names of columns in the format
+ *                   or by their locations (such as `3` for the third column,
+ *                   or `[1-5]` in fixed-length files); the cells of other columns
+ *                   are skipped by readers as early as they can, and lines only
+ *                   hold the projected columns. Default values and blank lines
+ *                   then only consider the projected columns. All columns are
+ *                   read when this is null or empty, which is the default.
+ * @param maxRecordLength For delimited text files, the maximum length of a record,
+ *                        in bytes or, for text read through a reader, characters.
+ *                        Reading fails with the position of the record when one is
+ *                        longer, such as when a quote is never closed and the
+ *                        quoted value would extend to the end of the file.
+ *                        Default is 64 MB ({@link #DEFAULT_MAX_RECORD_LENGTH}),
+ *                        which is also used when this is 0 or less.
  *
  * @author vikash.madhow@gmail.com
  */
@@ -43,12 +85,33 @@ public record Format(int     headerLines,
                      char    columnQuoteChar,
                      boolean applyFormatting,
                      int     page,
-                     List<Column> columns) {
+                     List<Column> columns,
+                     int     parallelism,
+                     boolean ordered,
+                     int     prefetch,
+                     Formulas formulas,
+                     int     lineIndex,
+                     boolean metrics,
+                     Set<String> projection,
+                     int     maxRecordLength) {
   public Format() {
     this(1, 0, true, DEFAULT_COLUMN_SEP,
          DEFAULT_COLUMN_QUOTE, false, 1, emptyList());
   }
 
+  public Format(int     headerLines,
+                int     footerLines,
+                boolean ignoreBlankLines,
+                char[]  columnSeparatorChars,
+                char    columnQuoteChar,
+                boolean applyFormatting,
+                int     page,
+                List<Column> columns) {
+    this(headerLines, footerLines, ignoreBlankLines, columnSeparatorChars,
+         columnQuoteChar, applyFormatting, page, columns, 1, true, 0, Formulas.EVALUATE, 0, false, null,
+         DEFAULT_MAX_RECORD_LENGTH);
+  }
+
   public static Format TabSeparated() {
     return newBuilder().columnSeparatorChars('\t', ',').build();
   }
@@ -69,6 +132,26 @@ public record Format(int     headerLines,
          : columns.stream().map(Column::name).toList();
   }
 
+  /**
+   * The maximum length of records in delimited text files, which is the default
+   * when this is set to 0 or less.
+   */
+  @Override
+  public int maxRecordLength() {
+    return maxRecordLength > 0 ? maxRecordLength : DEFAULT_MAX_RECORD_LENGTH;
+  }
+
+  /**
+   * Returns a copy of this format separating columns with the separator only
+   * and quoting them with the quote, such as detected in a file (see
+   * {@link ma.vi.datalines.text.Dialect}).
+   */
+  public Format withDialect(char separator, char quote) {
+    return new Format(headerLines, footerLines, ignoreBlankLines, new char[]{separator},
+                      quote, applyFormatting, page, columns, parallelism, ordered,
+                      prefetch, formulas, lineIndex, metrics, projection, maxRecordLength);
+  }
+
   public static class Build {
     public Build headerLines(int headerLines) {
       this.headerLines = headerLines;
@@ -110,9 +193,51 @@ public record Format(int     headerLines,
       return this;
     }
 
+    public Build parallelism(int parallelism) {
+      this.parallelism = parallelism;
+      return this;
+    }
+
+    public Build ordered(boolean ordered) {
+      this.ordered = ordered;
+      return this;
+    }
+
+    public Build prefetch(int prefetch) {
+      this.prefetch = prefetch;
+      return this;
+    }
+
+    public Build formulas(Formulas formulas) {
+      this.formulas = formulas;
+      return this;
+    }
+
+    public Build lineIndex(int lineIndex) {
+      this.lineIndex = lineIndex;
+      return this;
+    }
+
+    public Build metrics(boolean metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    public Build projection(String... columns) {
+      this.projection = new LinkedHashSet<>(Arrays.asList(columns));
+      return this;
+    }
+
+    public Build maxRecordLength(int maxRecordLength) {
+      this.maxRecordLength = maxRecordLength;
+      return this;
+    }
+
     public Format build() {
       return new Format(headerLines, footerLines, ignoreBlankLines, columnSeparatorChars,
-                        columnQuoteChar, applyFormatting, page, columns);
+                        columnQuoteChar, applyFormatting, page, columns,
+                        parallelism, ordered, prefetch, formulas, lineIndex, metrics,
+                        projection, maxRecordLength);
     }
 
     private int     headerLines = 1;
@@ -123,9 +248,45 @@ public record Format(int     headerLines,
     private boolean applyFormatting = false;
     private int     page = 1;
     private final List<Column> columns = new ArrayList<>();
+    private int     parallelism = 1;
+    private boolean ordered = true;
+    private int     prefetch = 0;
+    private Formulas formulas = Formulas.EVALUATE;
+    private int     lineIndex = 0;
+    private boolean metrics = false;
+    private Set<String> projection = null;
+    private int     maxRecordLength = DEFAULT_MAX_RECORD_LENGTH;
+  }
+
+  /**
+   * The values read for formula cells.
+   */
+  public enum Formulas {
+    /**
+     * The results of formulas cached in the file when it was last saved, which
+     * are read without evaluating any formula.
+     */
+    CACHED,
+
+    /**
+     * Cached results where the file holds one, evaluating the formulas without.
+     * Excel 97 (xls) files always hold a result for every formula cell.
+     */
+    EVALUATE_MISSING,
+
+    /**
+     * Formulas are evaluated, with the results of the cells they refer to
+     * cached for the rest of the sheet. Readers streaming their input (such as
+     * the xlsx reader) cannot evaluate formulas and treat this as
+     * {@link #EVALUATE_MISSING}; where a formula cannot be evaluated, its value
+     * is the text of the formula.
+     */
+    EVALUATE
   }
 
   public static char[] DEFAULT_COLUMN_SEP = new char[] {'\t', ','};
 
   public static char DEFAULT_COLUMN_QUOTE = '"';
+
+  public static final int DEFAULT_MAX_RECORD_LENGTH = 64 * 1024 * 1024;
 }
\ No newline at end of file
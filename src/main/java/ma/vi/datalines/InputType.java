@@ -0,0 +1,149 @@
+package ma.vi.datalines;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The type of content of an input, detected from its first few bytes without
+ * parsing it: zip packages (xlsx) and OLE2 compound documents (xls) are
+ * recognised by their signatures, HTML by its prologue, and the rest is text
+ * unless it contains NUL bytes and does not start with a UTF-16 or UTF-32
+ * byte-order mark.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+public enum InputType {
+  /**
+   * A zip package, such as an Excel 2007 (xlsx) workbook.
+   */
+  XLSX,
+
+  /**
+   * An OLE2 compound document, such as an Excel 97 (xls) workbook.
+   */
+  XLS,
+
+  /**
+   * An HTML document.
+   */
+  HTML,
+
+  /**
+   * Text, such as delimited or fixed-length text.
+   */
+  TEXT,
+
+  /**
+   * Binary content of an unknown type.
+   */
+  BINARY;
+
+  /**
+   * Detects the type of the file from its first {@link #HEAD_LENGTH} bytes.
+   */
+  public static InputType of(File file) {
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] head = in.readNBytes(HEAD_LENGTH);
+      return of(head, head.length);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Detects the type of the stream from its first {@link #HEAD_LENGTH} bytes,
+   * which are read and then pushed back: the stream must support mark and reset.
+   */
+  public static InputType of(InputStream input) {
+    if (!input.markSupported()) {
+      throw new IllegalArgumentException("Input type can only be detected on streams supporting mark and reset");
+    }
+    try {
+      input.mark(HEAD_LENGTH);
+      byte[] head = input.readNBytes(HEAD_LENGTH);
+      input.reset();
+      return of(head, head.length);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Detects the type of an input from its first bytes.
+   *
+   * @param head The first bytes of the input.
+   * @param length The number of bytes in head.
+   */
+  public static InputType of(byte[] head, int length) {
+    if (startsWith(head, length, ZIP)) {
+      return XLSX;
+    } else if (startsWith(head, length, OLE2)) {
+      return XLS;
+    } else if (startsWith(head, length, UTF16_BE)
+            || startsWith(head, length, UTF16_LE)
+            || startsWith(head, length, UTF32_BE)) {
+      /*
+       * UTF-16 and UTF-32 text, which contain NUL bytes (the UTF-32 little-endian
+       * mark starts with the UTF-16 one).
+       */
+      return TEXT;
+    }
+
+    int start = startsWith(head, length, UTF8) ? UTF8.length : 0;
+    for (int i = start; i < length; i++) {
+      if (head[i] == 0) {
+        return BINARY;
+      }
+    }
+
+    /*
+     * HTML if the first non-blank line starts with the HTML prologue.
+     */
+    String text = new String(head, start, length - start, StandardCharsets.ISO_8859_1);
+    try (BufferedReader in = new BufferedReader(new StringReader(text))) {
+      String line;
+      while ((line = in.readLine()) != null && line.trim().length() == 0);
+      if (line != null) {
+        line = line.trim().toLowerCase().replace(" ", "");
+        if (line.startsWith("<!doctypehtml>") || line.startsWith("<html")) {
+          return HTML;
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return TEXT;
+  }
+
+  private static boolean startsWith(byte[] head, int length, byte[] prefix) {
+    if (length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (head[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The number of bytes at the start of an input used to detect its type.
+   */
+  public static final int HEAD_LENGTH = 8 * 1024;
+
+  /**
+   * Signatures of zip files (local file header) and OLE2 compound documents.
+   */
+  private static final byte[] ZIP  = {'P', 'K', 3, 4};
+  private static final byte[] OLE2 = {(byte)0xD0, (byte)0xCF, 0x11, (byte)0xE0,
+                                      (byte)0xA1, (byte)0xB1, 0x1A, (byte)0xE1};
+
+  /**
+   * Byte-order marks.
+   */
+  private static final byte[] UTF8     = {(byte)0xEF, (byte)0xBB, (byte)0xBF};
+  private static final byte[] UTF16_BE = {(byte)0xFE, (byte)0xFF};
+  private static final byte[] UTF16_LE = {(byte)0xFF, (byte)0xFE};
+  private static final byte[] UTF32_BE = {0, 0, (byte)0xFE, (byte)0xFF};
+}
\ No newline at end of file
@@ -4,7 +4,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -55,18 +58,62 @@ public interface LineReader extends Iterable<Map<String, Object>>,
     }
   }
 
+  /**
+   * Opens the stream for reading. Readers extending {@link AbstractLineReader}
+   * read directly from the stream where the format of the input allows it,
+   * without first copying the stream to a file. The stream is closed when the
+   * reader is closed.
+   * <p>
+   * By default, the stream is copied to a temporary file which is then opened
+   * with {@link #open(File, String, Format)}; implementations must override at
+   * least one of these two methods.
+   *
+   * @param input The stream to read.
+   * @param filename File name.
+   * @param format The structure describing the content of the input.
+   */
   default void open(InputStream input, String filename, Format format) {
-    try {
+    try (InputStream in = input) {
       int pos = filename.lastIndexOf('.');
       String prefix = pos == -1 ? filename : filename.substring(0, pos);
-      String suffix = pos == -1 ? "tmp" : filename.substring(pos + 1);
-      File file = File.createTempFile(prefix, suffix);
-      Files.copy(input, file.toPath());
+      String suffix = pos == -1 ? ".tmp" : filename.substring(pos);
+      File file = File.createTempFile(prefix.length() < 3 ? prefix + "___" : prefix, suffix);
+      file.deleteOnExit();
+      Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      open(file, filename, format);
     } catch(IOException ioe) {
       throw new RuntimeException(ioe);
     }
   }
 
+  /**
+   * Opens the channel for reading, as a stream.
+   *
+   * @param input The channel to read.
+   * @param filename File name.
+   * @param format The structure describing the content of the input.
+   */
+  default void open(ReadableByteChannel input, String filename, Format format) {
+    open(Channels.newInputStream(input), filename, format);
+  }
+
+  /**
+   * Reads up to `maxRows` lines into a new batch holding the values of the lines
+   * column-wise. Header, footer and blank lines are skipped and default values
+   * applied as for lines returned by the iterator interface, with which this
+   * method can be freely interleaved. The batch returned belongs to the caller
+   * and is not reused by the reader.
+   * <p>
+   * Batches can hold fewer lines than requested even when more are available:
+   * readers bound the lines of a batch (see {@link AbstractLineReader#MAX_BATCH_ROWS}),
+   * so that a large `maxRows` (such as `Integer.MAX_VALUE`) reads as many lines
+   * as a batch can hold.
+   *
+   * @param maxRows The maximum number of lines to read into the batch.
+   * @return A batch of at least one line, or null if there are no more lines.
+   */
+  RowBatch nextBatch(int maxRows);
+
   /**
    * Returns an estimate of the total lines available from the reader, if available.
    * Otherwise returns -1. This is an estimate and may be inaccurate; it should not
@@ -77,6 +124,29 @@ public interface LineReader extends Iterable<Map<String, Object>>,
    */
   long estimateTotalLines();
 
+  /**
+   * Counts the lines of the input, over all pages read, without reading them
+   * into lines (and independently of the lines read so far), returning -1 if
+   * the reader cannot count them so. The count includes header, footer and
+   * blank lines; once counted, it is returned by {@link #estimateTotalLines()}.
+   * <p>
+   * This requires a pass over the input (such as counting the line terminators
+   * of a text file, or the rows in the XML of an xlsx sheet) and is only
+   * possible for inputs opened from files. By default, lines cannot be counted.
+   */
+  default long countLines() {
+    return -1;
+  }
+
+  /**
+   * Returns the metrics kept by the reader while reading, or null if the reader
+   * does not keep metrics or its format does not enable them (see
+   * {@link Format#metrics()}).
+   */
+  default ReaderMetrics metrics() {
+    return null;
+  }
+
   /**
    * Closes the reader.
    */
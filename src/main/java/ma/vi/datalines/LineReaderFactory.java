@@ -8,10 +8,23 @@ import ma.vi.datalines.text.FixedLengthTextLineReader;
 import ma.vi.datalines.xl.XlsLineReader;
 import ma.vi.datalines.xl.XlsxLineReader;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Collections.emptyList;
 
 /**
  * Factory for obtaining line readers to read data from input files.
+ * <p>
+ * The reader is chosen from the {@link InputType} of the input, detected once
+ * from its first bytes, instead of by asking every known reader whether it
+ * supports the input (which, for Excel files, would mean parsing the workbook
+ * before parsing it again to read it). Text inputs are read by the first text
+ * reader supporting the format.
  *
  * @author vikash.madhow@gmail.com
  */
@@ -25,11 +38,47 @@ public class LineReaderFactory {
    * @param format Import definition for reading the file.
    */
   public static LineReader get(File inputFile, String fileName, Format format) {
+    LineReader reader = select(InputType.of(inputFile), inputFile, fileName, format);
+    try {
+      reader.open(inputFile, fileName, format);
+      return reader;
+    } catch (Exception e) {
+      throw Errors.unchecked(e);
+    }
+  }
+
+  /**
+   * Returns a line reader initialised to read directly from the stream if one
+   * could be found, or throws NotFoundException otherwise. The first bytes of
+   * the stream, read to detect its type, are buffered and read again by the reader.
+   *
+   * @param input The stream to read.
+   * @param fileName File name.
+   * @param format Import definition for reading the stream.
+   */
+  public static LineReader get(InputStream input, String fileName, Format format) {
+    InputStream in = input.markSupported()
+                   ? input
+                   : new BufferedInputStream(input, InputType.HEAD_LENGTH);
+    LineReader reader = select(InputType.of(in), null, fileName, format);
+    try {
+      reader.open(in, fileName, format);
+      return reader;
+    } catch (Exception e) {
+      throw Errors.unchecked(e);
+    }
+  }
+
+  /**
+   * Returns a new reader for the type of input. Readers of binary inputs are
+   * chosen from the input type alone; text readers must also support the format
+   * (text readers do not look at the file, which is null for streams).
+   */
+  private static LineReader select(InputType type, File inputFile, String fileName, Format format) {
     try {
-      for (Class<? extends LineReader> readerClass: readers) {
+      for (Class<? extends LineReader> readerClass: readers.getOrDefault(type, emptyList())) {
         LineReader reader = readerClass.getDeclaredConstructor().newInstance();
-        if (reader.supports(inputFile, fileName, format)) {
-          reader.open(inputFile, fileName, format);
+        if (type != InputType.TEXT || reader.supports(inputFile, fileName, format)) {
           return reader;
         }
       }
@@ -37,20 +86,20 @@ public class LineReaderFactory {
       throw Errors.unchecked(e);
     }
     throw new NotFoundException("A line reader which knows how to read '" + fileName
-                              + "' (" + inputFile + ") could not be found.");
+                              + "' (" + (inputFile == null ? type : inputFile) + ") could not be found.");
   }
 
   /**
-   * A list of classes of known line readers.
+   * The classes of known line readers, by the type of input they read.
    */
-  @SuppressWarnings("unchecked")
-  private static final Class<? extends LineReader>[] readers = new Class[] {
-    XlsxLineReader.class,
-    XlsLineReader.class,
-    HtmlTableLineReader.class,
-    FixedLengthTextLineReader.class,
-    DelimitedTextLineReader.class,
-  };
+  private static final Map<InputType, List<Class<? extends LineReader>>> readers = new EnumMap<>(InputType.class);
+  static {
+    readers.put(InputType.XLSX, List.of(XlsxLineReader.class));
+    readers.put(InputType.XLS,  List.of(XlsLineReader.class));
+    readers.put(InputType.HTML, List.of(HtmlTableLineReader.class));
+    readers.put(InputType.TEXT, List.of(FixedLengthTextLineReader.class,
+                                        DelimitedTextLineReader.class));
+  }
 
   private LineReaderFactory() {}
 }
\ No newline at end of file
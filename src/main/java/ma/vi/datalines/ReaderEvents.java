@@ -0,0 +1,69 @@
+package ma.vi.datalines;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JDK Flight Recorder events emitted by line readers extending
+ * {@link AbstractLineReader}, when they are enabled in a recording: the opening
+ * of a reader, the reading of each of its pages (such as sheets or tables, or
+ * the whole input for inputs without pages) and its closing. These cost an
+ * object per event when recordings are disabled, and are independent of the
+ * {@link ReaderMetrics} kept by the reader.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class ReaderEvents {
+  private ReaderEvents() {}
+
+  @Name("ma.vi.datalines.Open")
+  @Label("Line Reader Open")
+  @Category("Datalines")
+  @Description("Opening of a line reader")
+  static final class Open extends Event {
+    @Label("File")
+    String fileName;
+
+    @Label("Reader")
+    String reader;
+  }
+
+  @Name("ma.vi.datalines.Page")
+  @Label("Line Reader Page")
+  @Category("Datalines")
+  @Description("Reading of a page (sheet or table) by a line reader")
+  static final class Page extends Event {
+    @Label("File")
+    String fileName;
+
+    @Label("Page")
+    @Description("Position of the page among the pages read, starting from 1")
+    int page;
+
+    @Label("Lines")
+    @Description("Lines read in the page, including header and footer lines")
+    long lines;
+  }
+
+  @Name("ma.vi.datalines.Close")
+  @Label("Line Reader Close")
+  @Category("Datalines")
+  @Description("Closing of a line reader")
+  static final class Close extends Event {
+    @Label("File")
+    String fileName;
+
+    @Label("Lines")
+    @Description("Lines returned by the reader")
+    long lines;
+
+    @Label("Bytes Read")
+    @DataAmount
+    @Description("Bytes read by the reader, or -1 if metrics were not kept")
+    long bytesRead;
+  }
+}
\ No newline at end of file
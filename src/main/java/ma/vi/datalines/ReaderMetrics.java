@@ -0,0 +1,328 @@
+package ma.vi.datalines;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a {@link LineReader}, kept when the format of the reader enables
+ * them (see {@link Format#metrics()}) and returned by {@link LineReader#metrics()}.
+ * These count the bytes read, the lines returned, the header, footer and blank
+ * lines skipped, the pages read and the values which could not be converted to
+ * the type of their columns, and measure where the time spent reading lines goes:
+ * <ul>
+ *   <li>I/O: time spent reading the input, for inputs read as streams or with
+ *       explicit reads. For xlsx files, this is the time spent reading the sheets
+ *       as they are inflated from the package; for text files mapped in memory,
+ *       which are read through page faults, this is part of the parsing time.</li>
+ *   <li>Conversion: time spent converting values to the types of their columns
+ *       (see {@link ColumnConverter}), including {@link ma.vi.base.util.Convert#toType(Object, String)}.</li>
+ *   <li>Parsing: the rest of the time spent reading lines.</li>
+ * </ul>
+ * The latencies of reading each line and each batch of lines are kept in
+ * {@link Histogram}s. Times are in nanoseconds and, as lines can be read on
+ * several threads (see {@link Format#prefetch()} and {@link Format#parallelism()}),
+ * are the sum of the times of all threads.
+ * <p>
+ * Metrics can be read while lines are being read; measuring times costs a few
+ * tens of nanoseconds per line and value converted, which is why metrics are not
+ * kept by default.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+public final class ReaderMetrics {
+  /**
+   * The number of bytes read from the input, where known.
+   */
+  public long bytesRead() {
+    return bytesRead.sum();
+  }
+
+  /**
+   * The number of lines read and returned (or to be returned) by the reader,
+   * excluding header, footer and blank lines.
+   */
+  public long linesRead() {
+    return linesRead.sum();
+  }
+
+  /**
+   * The number of header lines skipped.
+   */
+  public long headerLines() {
+    return headerLines.sum();
+  }
+
+  /**
+   * The number of footer lines removed.
+   */
+  public long footerLines() {
+    return footerLines.sum();
+  }
+
+  /**
+   * The number of blank lines skipped.
+   */
+  public long blankLines() {
+    return blankLines.sum();
+  }
+
+  /**
+   * The number of pages (such as sheets or tables) read.
+   */
+  public long pages() {
+    return pages.sum();
+  }
+
+  /**
+   * The number of values which could not be converted to the type of their
+   * column and were kept as-is.
+   */
+  public long conversionFailures() {
+    return conversionFailures.sum();
+  }
+
+  /**
+   * The time taken to open the reader.
+   */
+  public long openNanos() {
+    return openNanos.sum();
+  }
+
+  /**
+   * The time spent reading lines, including I/O, parsing and conversion.
+   */
+  public long readNanos() {
+    return lineLatency.total();
+  }
+
+  /**
+   * The time spent reading the input.
+   */
+  public long ioNanos() {
+    return ioNanos.sum();
+  }
+
+  /**
+   * The time spent converting values to the type of their columns.
+   */
+  public long conversionNanos() {
+    return conversionNanos.sum();
+  }
+
+  /**
+   * The time spent reading lines other than for I/O and conversion.
+   */
+  public long parseNanos() {
+    return Math.max(0, readNanos() - ioNanos() - conversionNanos());
+  }
+
+  /**
+   * The latencies of reading each line, including blank lines.
+   */
+  public Histogram lineLatency() {
+    return lineLatency;
+  }
+
+  /**
+   * The latencies of reading each batch of lines.
+   */
+  public Histogram batchLatency() {
+    return batchLatency;
+  }
+
+  /**
+   * Records bytes read from the input, and the time taken to read them (0 if
+   * not measured).
+   */
+  public void read(long bytes, long nanos) {
+    bytesRead.add(bytes);
+    if (nanos > 0) {
+      ioNanos.add(nanos);
+    }
+  }
+
+  /**
+   * Records the time taken to convert a value.
+   */
+  public void converted(long nanos) {
+    conversionNanos.add(nanos);
+  }
+
+  /**
+   * Records a value which could not be converted.
+   */
+  public void conversionFailed() {
+    conversionFailures.increment();
+  }
+
+  /**
+   * Records the conversions measured in the other metrics, such as the metrics of
+   * lines parsed in advance which are only counted once they are known to be
+   * returned.
+   */
+  public void converted(ReaderMetrics other) {
+    conversionNanos.add(other.conversionNanos());
+    conversionFailures.add(other.conversionFailures());
+  }
+
+  /**
+   * Returns a stream recording the bytes read from the input stream and the time
+   * taken to read them.
+   */
+  public InputStream measure(InputStream input) {
+    return new FilterInputStream(input) {
+      @Override
+      public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = in.read();
+        ReaderMetrics.this.read(b == -1 ? 0 : 1, System.nanoTime() - start);
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int n = in.read(b, off, len);
+        ReaderMetrics.this.read(Math.max(n, 0), System.nanoTime() - start);
+        return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        long start = System.nanoTime();
+        long skipped = in.skip(n);
+        ReaderMetrics.this.read(skipped, System.nanoTime() - start);
+        return skipped;
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return "ReaderMetrics{"
+         + "bytesRead=" + bytesRead()
+         + ", linesRead=" + linesRead()
+         + ", headerLines=" + headerLines()
+         + ", footerLines=" + footerLines()
+         + ", blankLines=" + blankLines()
+         + ", pages=" + pages()
+         + ", conversionFailures=" + conversionFailures()
+         + ", openNanos=" + openNanos()
+         + ", ioNanos=" + ioNanos()
+         + ", parseNanos=" + parseNanos()
+         + ", conversionNanos=" + conversionNanos()
+         + ", lineLatency=" + lineLatency
+         + ", batchLatency=" + batchLatency
+         + '}';
+  }
+
+  /**
+   * A histogram of latencies, in buckets of powers of 2 nanoseconds.
+   */
+  public static final class Histogram {
+    /**
+     * The number of latencies recorded.
+     */
+    public long count() {
+      return count.sum();
+    }
+
+    /**
+     * The sum of the latencies recorded.
+     */
+    public long total() {
+      return total.sum();
+    }
+
+    /**
+     * The mean latency, or 0 if none was recorded.
+     */
+    public long mean() {
+      long count = count();
+      return count == 0 ? 0 : total() / count;
+    }
+
+    /**
+     * The maximum latency recorded.
+     */
+    public long max() {
+      return max.get();
+    }
+
+    /**
+     * Returns the latency under which the fraction `p` (between 0 and 1) of the
+     * latencies recorded are, to within a factor of 2 (the upper bound of its
+     * bucket, or the maximum latency if lower).
+     */
+    public long percentile(double p) {
+      if (p < 0 || p > 1) {
+        throw new IllegalArgumentException("Percentile must be between 0 and 1: " + p);
+      }
+      long count = count();
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long)Math.ceil(p * count));
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return Math.min(max(), (1L << i) - 1);
+        }
+      }
+      return max();
+    }
+
+    /**
+     * Records a latency.
+     */
+    void record(long nanos) {
+      if (nanos < 0) {
+        nanos = 0;
+      }
+      buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+      count.increment();
+      total.add(nanos);
+      if (nanos > max.get()) {
+        max.accumulateAndGet(nanos, Math::max);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "{count=" + count()
+           + ", mean=" + mean()
+           + ", p50=" + percentile(0.5)
+           + ", p99=" + percentile(0.99)
+           + ", max=" + max() + '}';
+    }
+
+    /**
+     * Latencies are counted in bucket i when they are less than 2^i (and at
+     * least 2^(i-1)).
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+  }
+
+  final LongAdder bytesRead = new LongAdder();
+  final LongAdder linesRead = new LongAdder();
+  final LongAdder headerLines = new LongAdder();
+  final LongAdder footerLines = new LongAdder();
+  final LongAdder blankLines = new LongAdder();
+  final LongAdder pages = new LongAdder();
+  final LongAdder conversionFailures = new LongAdder();
+
+  final LongAdder openNanos = new LongAdder();
+  final LongAdder ioNanos = new LongAdder();
+  final LongAdder conversionNanos = new LongAdder();
+
+  final Histogram lineLatency = new Histogram();
+  final Histogram batchLatency = new Histogram();
+}
\ No newline at end of file
@@ -0,0 +1,242 @@
+package ma.vi.datalines;
+
+import java.util.*;
+
+/**
+ * A line read by a line reader, holding its values in an array indexed by the
+ * position of the columns in the {@link RowSchema} shared by all lines of the
+ * reader. For compatibility, a row is also a map from the keys (locations) of
+ * the columns to their values; keys which are not columns of the schema can
+ * also be added to the map.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+public final class Row extends AbstractMap<String, Object> {
+  /**
+   * Creates a row over the values, which may contain {@link #ABSENT} for columns
+   * not present in the line. The array is used as-is, without copying.
+   */
+  Row(RowSchema schema, Object[] values) {
+    this.schema = schema;
+    this.values = values;
+  }
+
+  /**
+   * The schema of this row.
+   */
+  public RowSchema schema() {
+    return schema;
+  }
+
+  /**
+   * The number of column positions in this row (some of which may not be present).
+   */
+  public int width() {
+    return values.length;
+  }
+
+  /**
+   * Returns true if the line has a value (possibly null) for the column at the
+   * specified index.
+   */
+  public boolean isPresent(int index) {
+    return index < values.length && values[index] != ABSENT;
+  }
+
+  /**
+   * Returns the value of the column at the specified index, or null if the value
+   * is null or not present.
+   */
+  public Object get(int index) {
+    return isPresent(index) ? values[index] : null;
+  }
+
+  /**
+   * Sets the value of the column at the specified index, returning the previous
+   * value.
+   */
+  public Object set(int index, Object value) {
+    Object previous = get(index);
+    if (index >= values.length) {
+      int width = values.length;
+      values = Arrays.copyOf(values, index + 1);
+      Arrays.fill(values, width, index, ABSENT);
+    }
+    values[index] = value;
+    return previous;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    if (key instanceof String k) {
+      int index = schema.indexOf(k);
+      if (index != -1) {
+        return isPresent(index);
+      }
+    }
+    return extra != null && extra.containsKey(key);
+  }
+
+  @Override
+  public Object get(Object key) {
+    if (key instanceof String k) {
+      int index = schema.indexOf(k);
+      if (index != -1) {
+        return get(index);
+      }
+    }
+    return extra == null ? null : extra.get(key);
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    int index = schema.indexOf(key);
+    if (index != -1) {
+      return set(index, value);
+    } else {
+      if (extra == null) {
+        extra = new LinkedHashMap<>();
+      }
+      return extra.put(key, value);
+    }
+  }
+
+  @Override
+  public Object remove(Object key) {
+    if (key instanceof String k) {
+      int index = schema.indexOf(k);
+      if (index != -1) {
+        Object previous = get(index);
+        if (index < values.length) {
+          values[index] = ABSENT;
+        }
+        return previous;
+      }
+    }
+    return extra == null ? null : extra.remove(key);
+  }
+
+  @Override
+  public int size() {
+    int size = extra == null ? 0 : extra.size();
+    for (Object value: values) {
+      if (value != ABSENT) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Entry<String, Object>> iterator() {
+        return new Iterator<>() {
+          @Override
+          public boolean hasNext() {
+            while (index < values.length && values[index] == ABSENT) {
+              index++;
+            }
+            return index < values.length
+                || (extras != null && extras.hasNext());
+          }
+
+          @Override
+          public Entry<String, Object> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            if (index < values.length) {
+              last = index++;
+              return new ColumnEntry(last);
+            } else {
+              last = -1;
+              return extras.next();
+            }
+          }
+
+          @Override
+          public void remove() {
+            if (last != -1) values[last] = ABSENT;
+            else            extras.remove();
+          }
+
+          private int index = 0;
+          private int last = -1;
+          private final Iterator<Entry<String, Object>> extras =
+              extra == null ? null : extra.entrySet().iterator();
+        };
+      }
+
+      @Override
+      public int size() {
+        return Row.this.size();
+      }
+    };
+  }
+
+  /**
+   * An entry of the map reading and writing a column of the row.
+   */
+  private class ColumnEntry implements Entry<String, Object> {
+    ColumnEntry(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public String getKey() {
+      return schema.key(index);
+    }
+
+    @Override
+    public Object getValue() {
+      return get(index);
+    }
+
+    @Override
+    public Object setValue(Object value) {
+      return set(index, value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Entry<?, ?> e
+          && Objects.equals(getKey(), e.getKey())
+          && Objects.equals(getValue(), e.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+    }
+
+    @Override
+    public String toString() {
+      return getKey() + "=" + getValue();
+    }
+
+    private final int index;
+  }
+
+  /**
+   * Marks a column which is not present in the line.
+   */
+  static final Object ABSENT = new Object();
+
+  /**
+   * The schema of the row.
+   */
+  private final RowSchema schema;
+
+  /**
+   * The values of the columns by index.
+   */
+  private Object[] values;
+
+  /**
+   * Entries with keys that are not columns of the schema, created when first
+   * needed.
+   */
+  private Map<String, Object> extra;
+}
\ No newline at end of file
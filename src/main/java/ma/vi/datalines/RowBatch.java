@@ -0,0 +1,431 @@
+package ma.vi.datalines;
+
+import java.util.Arrays;
+
+/**
+ * A batch of lines stored column-wise. Each column is kept in a vector of the
+ * primitive type corresponding to the type of the {@link Column} at that position
+ * (a long[] for `long` columns, a double[] for `double` columns, a boolean[] for
+ * `boolean` columns, a String[] for text columns and an Object[] for any other
+ * type), along with a bitmap marking null values and another marking the cells
+ * which are present in each line (lines may have different number of columns).
+ * <p>
+ * A value which does not fit the vector of its column (for instance, a text value
+ * which could not be converted to the `long` type of its column) is kept as-is
+ * in a secondary object array for that column, so that no information is lost
+ * when reading data containing errors.
+ * <p>
+ * Batches are filled directly by line readers and returned by
+ * {@link LineReader#nextBatch(int)}; {@link #row(int)} returns a line in the
+ * batch as a {@link Row} for code working with individual lines.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+public class RowBatch {
+  /**
+   * Creates a batch which can hold up to `capacity` lines.
+   *
+   * @param schema The schema of the lines in the batch, providing the keys of
+   *               columns and their types, which determine the type of vector
+   *               used for each column.
+   * @param capacity The maximum number of lines in the batch.
+   */
+  public RowBatch(RowSchema schema, int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity of a row batch must be positive: " + capacity);
+    }
+    this.schema = schema;
+    this.capacity = capacity;
+  }
+
+  /**
+   * The schema of the lines in this batch.
+   */
+  public RowSchema schema() {
+    return schema;
+  }
+
+  /**
+   * The maximum number of lines that this batch can hold.
+   */
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * The number of lines in this batch.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The number of columns in this batch; this is the number of columns of the
+   * widest line in the batch.
+   */
+  public int columnCount() {
+    return columnCount;
+  }
+
+  /**
+   * The key (location) of the column at the specified index.
+   */
+  public String key(int column) {
+    return schema.key(column);
+  }
+
+  /**
+   * Returns the index of the column with the specified key, or -1 if there is
+   * no such column in the schema of the batch.
+   */
+  public int indexOf(String key) {
+    return schema.indexOf(key);
+  }
+
+  /**
+   * The kind of vector holding the values of the column.
+   */
+  public Kind kind(int column) {
+    return column < columnCount && vectors[column] != null ? vectors[column].kind : Kind.OBJECT;
+  }
+
+  /**
+   * Returns true if the line has a value (possibly null) for the column.
+   */
+  public boolean isPresent(int row, int column) {
+    return column < columnCount
+        && vectors[column] != null
+        && isSet(vectors[column].present, row);
+  }
+
+  /**
+   * Returns true if the value of the column in the line is null, or is not present.
+   */
+  public boolean isNull(int row, int column) {
+    return !isPresent(row, column) || isSet(vectors[column].nulls, row);
+  }
+
+  /**
+   * Returns the value of the column in the line, boxing it if it is stored in a
+   * primitive vector, or null if the value is null or not present.
+   */
+  public Object get(int row, int column) {
+    if (isNull(row, column)) {
+      return null;
+    } else {
+      Vector v = vectors[column];
+      if (v.others != null && v.others[row] != null) {
+        return v.others[row];
+      }
+      return switch (v.kind) {
+        case LONG    -> v.longs[row];
+        case DOUBLE  -> v.doubles[row];
+        case BOOLEAN -> v.booleans[row];
+        case STRING  -> v.strings[row];
+        case OBJECT  -> v.objects[row];
+      };
+    }
+  }
+
+  /**
+   * Returns the value of a column in a long vector without boxing. The value
+   * must not be null.
+   */
+  public long getLong(int row, int column) {
+    Vector v = vectors[column];
+    return v.kind == Kind.LONG && (v.others == null || v.others[row] == null)
+         ? v.longs[row]
+         : ((Number)get(row, column)).longValue();
+  }
+
+  /**
+   * Returns the value of a column in a double vector without boxing. The value
+   * must not be null.
+   */
+  public double getDouble(int row, int column) {
+    Vector v = vectors[column];
+    return v.kind == Kind.DOUBLE && (v.others == null || v.others[row] == null)
+         ? v.doubles[row]
+         : ((Number)get(row, column)).doubleValue();
+  }
+
+  /**
+   * Returns the value of a column in a boolean vector without boxing. The value
+   * must not be null.
+   */
+  public boolean getBoolean(int row, int column) {
+    Vector v = vectors[column];
+    return v.kind == Kind.BOOLEAN && (v.others == null || v.others[row] == null)
+         ? v.booleans[row]
+         : (Boolean)get(row, column);
+  }
+
+  /**
+   * Returns the value of the column in the line as a string, or null if the value
+   * is null or not present.
+   */
+  public String getString(int row, int column) {
+    Object value = get(row, column);
+    return value == null ? null : value.toString();
+  }
+
+  /**
+   * Sets the value of the column in the line, storing it in the primitive vector
+   * of the column if it is of the corresponding type.
+   */
+  public void set(int row, int column, Object value) {
+    if (value == null) {
+      setNull(row, column);
+    } else {
+      Vector v = vector(row, column);
+      if      (v.kind == Kind.LONG    && value instanceof Long    l) v.longs[row]    = l;
+      else if (v.kind == Kind.DOUBLE  && value instanceof Double  d) v.doubles[row]  = d;
+      else if (v.kind == Kind.BOOLEAN && value instanceof Boolean b) v.booleans[row] = b;
+      else if (v.kind == Kind.STRING  && value instanceof String  s) v.strings[row]  = s;
+      else if (v.kind == Kind.OBJECT)                                v.objects[row]  = value;
+      else {
+        if (v.others == null) {
+          v.others = new Object[capacity];
+        }
+        v.others[row] = value;
+      }
+    }
+  }
+
+  public void setLong(int row, int column, long value) {
+    Vector v = vector(row, column);
+    if (v.kind == Kind.LONG) v.longs[row] = value;
+    else                     set(row, column, value);
+  }
+
+  public void setDouble(int row, int column, double value) {
+    Vector v = vector(row, column);
+    if (v.kind == Kind.DOUBLE) v.doubles[row] = value;
+    else                       set(row, column, value);
+  }
+
+  public void setBoolean(int row, int column, boolean value) {
+    Vector v = vector(row, column);
+    if (v.kind == Kind.BOOLEAN) v.booleans[row] = value;
+    else                        set(row, column, value);
+  }
+
+  public void setString(int row, int column, String value) {
+    set(row, column, value);
+  }
+
+  /**
+   * Sets the value of the column in the line to null. The column is present in
+   * the line with a null value.
+   */
+  public void setNull(int row, int column) {
+    Vector v = vector(row, column);
+    set(v.nulls, row);
+    if (v.others != null) v.others[row] = null;
+    if (v.kind == Kind.STRING) v.strings[row] = null;
+    if (v.kind == Kind.OBJECT) v.objects[row] = null;
+  }
+
+  /**
+   * Removes the column from the line.
+   */
+  public void remove(int row, int column) {
+    if (column < columnCount && vectors[column] != null) {
+      Vector v = vectors[column];
+      clear(v.present, row);
+      clear(v.nulls, row);
+      if (v.others != null) v.others[row] = null;
+      if (v.kind == Kind.STRING) v.strings[row] = null;
+      if (v.kind == Kind.OBJECT) v.objects[row] = null;
+    }
+  }
+
+  /**
+   * Returns true if the line is empty. A line is empty if it has no columns or
+   * every column is null or blank.
+   */
+  public boolean isBlank(int row) {
+    for (int i = 0; i < columnCount; i++) {
+      if (!isNull(row, i)) {
+        Vector v = vectors[i];
+        if (v.others != null && v.others[row] != null) {
+          if (v.others[row].toString().trim().length() > 0) return false;
+        } else if (v.kind == Kind.STRING) {
+          if (v.strings[row].trim().length() > 0) return false;
+        } else if (v.kind == Kind.OBJECT) {
+          if (v.objects[row].toString().trim().length() > 0) return false;
+        } else {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the line at the specified index as a {@link Row}, which is also a map
+   * from the keys of the columns to their values. The row is a copy of the line
+   * and is not affected by later changes to the batch.
+   */
+  public Row row(int row) {
+    if (row < 0 || row >= size) {
+      throw new IndexOutOfBoundsException("Row " + row + " not in batch of size " + size);
+    }
+    Object[] values = new Object[columnCount];
+    for (int i = 0; i < columnCount; i++) {
+      values[i] = isPresent(row, i) ? get(row, i) : Row.ABSENT;
+    }
+    return new Row(schema, values);
+  }
+
+  /**
+   * Removes all columns from the line.
+   */
+  void clear(int row) {
+    for (int i = 0; i < columnCount; i++) {
+      remove(row, i);
+    }
+  }
+
+  /**
+   * Sets the number of lines in the batch.
+   */
+  void size(int size) {
+    if (size < 0 || size > capacity) {
+      throw new IndexOutOfBoundsException("Size " + size + " outside of batch capacity " + capacity);
+    }
+    this.size = size;
+  }
+
+  /**
+   * Copies a line from another batch (with the same schema) into this batch,
+   * replacing the line at `toRow`.
+   */
+  public void copy(RowBatch from, int fromRow, int toRow) {
+    clear(toRow);
+    for (int i = 0; i < from.columnCount; i++) {
+      if (from.isPresent(fromRow, i)) {
+        set(toRow, i, from.get(fromRow, i));
+      }
+    }
+  }
+
+  /**
+   * Returns the vector of the column, creating it if necessary, and marks the
+   * value in the line as present and not null.
+   */
+  private Vector vector(int row, int column) {
+    if (row < 0 || row >= capacity) {
+      throw new IndexOutOfBoundsException("Row " + row + " outside of batch capacity " + capacity);
+    }
+    if (column >= vectors.length) {
+      vectors = Arrays.copyOf(vectors, Math.max(column + 1, vectors.length * 2));
+    }
+    if (column >= columnCount) {
+      columnCount = column + 1;
+    }
+    Vector v = vectors[column];
+    if (v == null) {
+      v = vectors[column] = new Vector(schema.kind(column), capacity);
+    }
+    set(v.present, row);
+    clear(v.nulls, row);
+    if (v.others != null) v.others[row] = null;
+    return v;
+  }
+
+  private static boolean isSet(long[] bits, int i) {
+    return (bits[i >>> 6] & (1L << i)) != 0;
+  }
+
+  private static void set(long[] bits, int i) {
+    bits[i >>> 6] |= 1L << i;
+  }
+
+  private static void clear(long[] bits, int i) {
+    bits[i >>> 6] &= ~(1L << i);
+  }
+
+  /**
+   * The kind of vector used to store the values of a column.
+   */
+  public enum Kind {
+    LONG, DOUBLE, BOOLEAN, STRING, OBJECT;
+
+    /**
+     * The kind of vector for storing the values of the column.
+     */
+    public static Kind of(Column column) {
+      if (column == null || column.type() == null) {
+        return OBJECT;
+      } else if (column.isText()) {
+        return STRING;
+      } else {
+        return switch (column.type()) {
+          case "long"    -> LONG;
+          case "double"  -> DOUBLE;
+          case "boolean" -> BOOLEAN;
+          default        -> OBJECT;
+        };
+      }
+    }
+  }
+
+  /**
+   * The values of a single column.
+   */
+  private static class Vector {
+    Vector(Kind kind, int capacity) {
+      this.kind = kind;
+      switch (kind) {
+        case LONG    -> longs    = new long[capacity];
+        case DOUBLE  -> doubles  = new double[capacity];
+        case BOOLEAN -> booleans = new boolean[capacity];
+        case STRING  -> strings  = new String[capacity];
+        case OBJECT  -> objects  = new Object[capacity];
+      }
+      present = new long[(capacity + 63) >>> 6];
+      nulls   = new long[(capacity + 63) >>> 6];
+    }
+
+    final Kind kind;
+    long[]    longs;
+    double[]  doubles;
+    boolean[] booleans;
+    String[]  strings;
+    Object[]  objects;
+
+    /**
+     * Values not fitting the kind of this vector, allocated when first needed.
+     */
+    Object[] others;
+
+    final long[] present;
+    final long[] nulls;
+  }
+
+  /**
+   * The maximum number of lines in the batch.
+   */
+  private final int capacity;
+
+  /**
+   * The number of lines in the batch.
+   */
+  private int size;
+
+  /**
+   * The number of columns in the batch.
+   */
+  private int columnCount;
+
+  /**
+   * Column vectors by position.
+   */
+  private Vector[] vectors = new Vector[8];
+
+  /**
+   * The schema of the lines in the batch.
+   */
+  private final RowSchema schema;
+}
\ No newline at end of file
@@ -0,0 +1,368 @@
+package ma.vi.datalines;
+
+import java.util.*;
+
+/**
+ * The compiled structure of the lines read by a line reader, built once when
+ * the reader is opened and shared by all the {@link RowBatch}es and {@link Row}s
+ * it produces. A schema maps column indices to the keys (locations) of the
+ * columns in the lines read and to their definitions in the {@link Format},
+ * so that key strings, column lookups and default values are resolved once
+ * instead of for every cell.
+ * <p>
+ * Columns beyond those with explicit keys are keyed by their position starting
+ * from 1, as are the columns in most readers (e.g. Excel and delimited text).
+ * <p>
+ * The {@link Format#projection()} is resolved to the indices of the projected
+ * columns, which readers test with {@link #projects(int)} to skip the cells of
+ * other columns.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+public final class RowSchema {
+  /**
+   * Creates a schema where columns are keyed by their position, starting from 1.
+   *
+   * @param format The format of the lines read; may be null.
+   */
+  public static RowSchema positional(Format format) {
+    return new RowSchema(format, Collections.emptyList(), Collections.emptyMap());
+  }
+
+  /**
+   * Creates a schema with the specified keys for the first columns.
+   *
+   * @param format The format of the lines read; may be null.
+   * @param keys The keys of the columns, in order.
+   * @param aliases Other names by which columns can be referred to in the format
+   *                (such as alternative forms of their locations), mapped to the
+   *                indices of those columns.
+   */
+  public RowSchema(Format               format,
+                   List<String>         keys,
+                   Map<String, Integer> aliases) {
+    this.format = format;
+    this.keys = keys.toArray(new String[Math.max(keys.size(), 16)]);
+    this.explicitKeys = keys.size();
+    this.indices = new HashMap<>(aliases);
+    for (int i = 0; i < keys.size(); i++) {
+      indices.put(keys.get(i), i);
+    }
+
+    this.projected = projection(format);
+
+    /*
+     * Resolve columns by location and the columns to which default values must
+     * be applied.
+     */
+    Column[] located = new Column[0];
+    List<Integer> defaultIndices = new ArrayList<>();
+    List<String>  defaultValues  = new ArrayList<>();
+    if (format != null && format.columns() != null) {
+      for (Column column: format.columns()) {
+        int index = column.location() == null ? -1 : indexOf(column.location());
+        if (index != -1) {
+          if (index >= located.length) {
+            located = Arrays.copyOf(located, index + 1);
+          }
+          if (located[index] == null) {
+            located[index] = column;
+          }
+          if (column.defaultValue() != null && projects(index)) {
+            defaultIndices.add(index);
+            defaultValues.add(column.defaultValue());
+          }
+        }
+      }
+    }
+    this.located = located;
+    this.converters = new ColumnConverter[located.length];
+    this.dates = new boolean[located.length];
+    for (int i = 0; i < located.length; i++) {
+      converters[i] = ColumnConverter.of(located[i]);
+      dates[i] = located[i] != null
+              && located[i].type() != null
+              && located[i].type().contains("date");
+    }
+    this.defaultColumns = defaultIndices.stream().mapToInt(Integer::intValue).toArray();
+    this.defaultValues = defaultValues.toArray(new String[0]);
+  }
+
+  /**
+   * Resolves the projection of the format to a flag for each column index
+   * (see {@link Format#projection()}), or null if all columns are read. A column
+   * is projected by its name in the format, resolved to its location or, if it
+   * has none, to its position in the format, or by its key or alias.
+   *
+   * @throws IllegalArgumentException if a projected column is neither.
+   */
+  private boolean[] projection(Format format) {
+    if (format == null || format.projection() == null || format.projection().isEmpty()) {
+      return null;
+    }
+    boolean[] projected = new boolean[0];
+    List<Column> columns = format.columns() == null ? Collections.emptyList() : format.columns();
+    for (String name: format.projection()) {
+      int index = -1;
+      for (int i = 0; i < columns.size() && index == -1; i++) {
+        Column column = columns.get(i);
+        if (name.equals(column.name())) {
+          index = column.location() == null ? i : indexOf(column.location());
+        }
+      }
+      if (index == -1) {
+        index = indexOf(name);
+      }
+      if (index == -1) {
+        throw new IllegalArgumentException("Projected column '" + name + "' is not a column or location of the format");
+      }
+      if (index >= projected.length) {
+        projected = Arrays.copyOf(projected, index + 1);
+      }
+      projected[index] = true;
+    }
+    return projected;
+  }
+
+  /**
+   * The format from which this schema was built; may be null.
+   */
+  public Format format() {
+    return format;
+  }
+
+  /**
+   * Returns true if the column at the specified index is read, i.e. there is no
+   * projection or the column is projected.
+   */
+  public boolean projects(int index) {
+    boolean[] p = projected;
+    return p == null || (index < p.length && p[index]);
+  }
+
+  /**
+   * Returns true if only some columns are read (see {@link Format#projection()}).
+   */
+  public boolean isProjected() {
+    return projected != null;
+  }
+
+  /**
+   * Returns the key of the column at the specified index (0-based).
+   */
+  public String key(int index) {
+    String[] k = keys;
+    if (index < k.length && k[index] != null) {
+      return k[index];
+    }
+    return positionalKey(index);
+  }
+
+  /**
+   * Returns the index of the column with the specified key (or alias), or -1
+   * if there is no such column.
+   */
+  public int indexOf(String key) {
+    Integer index = indices.get(key);
+    if (index != null) {
+      return index;
+    } else {
+      try {
+        int position = Integer.parseInt(key.trim());
+        return position > explicitKeys ? position - 1 : -1;
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Returns the column definition for the column at the specified index, if
+   * any: this is the column with the same location or, if there is none, the
+   * column without a location at that position in the format.
+   */
+  public Column column(int index) {
+    Column col = located(index);
+    if (col == null
+     && format != null
+     && format.columns() != null
+     && index < format.columns().size()
+     && format.columns().get(index).location() == null) {
+      col = format.columns().get(index);
+    }
+    return col;
+  }
+
+  /**
+   * Returns the column whose location refers to the column at the specified
+   * index, or null if there is none.
+   */
+  public Column located(int index) {
+    return index < located.length ? located[index] : null;
+  }
+
+  /**
+   * Measures the conversions of the values of the lines of this schema in the
+   * metrics (see {@link ColumnConverter#measured(ReaderMetrics)}).
+   */
+  void measure(ReaderMetrics metrics) {
+    this.metrics = metrics;
+    for (int i = 0; i < converters.length; i++) {
+      if (converters[i] != null) {
+        converters[i] = converters[i].measured(metrics);
+      }
+    }
+  }
+
+  /**
+   * Returns a copy of this schema with its own converters, compiled again from
+   * the columns and measured in the same metrics, for a thread converting values
+   * in parallel with the reader (converters are not thread-safe). Keys, columns
+   * and projection are the same as this schema's.
+   */
+  public RowSchema withOwnConverters() {
+    return new RowSchema(this);
+  }
+
+  private RowSchema(RowSchema schema) {
+    this.format = schema.format;
+    this.keys = schema.keys.clone();
+    this.explicitKeys = schema.explicitKeys;
+    this.indices = schema.indices;
+    this.projected = schema.projected;
+    this.located = schema.located;
+    this.dates = schema.dates;
+    this.defaultColumns = schema.defaultColumns;
+    this.defaultValues = schema.defaultValues;
+    this.converters = new ColumnConverter[located.length];
+    for (int i = 0; i < located.length; i++) {
+      converters[i] = ColumnConverter.of(located[i]);
+    }
+    if (schema.metrics != null) {
+      measure(schema.metrics);
+    }
+  }
+
+  /**
+   * Returns the converter compiled for the column whose location refers to the
+   * column at the specified index, or null if there is none or its values are
+   * not converted.
+   */
+  public ColumnConverter converter(int index) {
+    return index < converters.length ? converters[index] : null;
+  }
+
+  /**
+   * Whether the column whose location refers to the column at the specified
+   * index has a date type; numbers read for such columns from spreadsheets are
+   * dates, whatever their format.
+   */
+  public boolean isDate(int index) {
+    return index < dates.length && dates[index];
+  }
+
+  /**
+   * Converts a value read as text (such as the text of an Excel cell) to the type
+   * of the column at the specified index with its {@link #converter(int)}. Values
+   * of other types, and values of columns without converters, are returned
+   * unchanged.
+   */
+  public Object convert(int index, Object value) {
+    if (value instanceof String) {
+      ColumnConverter converter = converter(index);
+      if (converter != null) {
+        return converter.convert(value);
+      }
+    }
+    return value;
+  }
+
+  /**
+   * The kind of vector to use for storing the values of the column at the
+   * specified index.
+   */
+  public RowBatch.Kind kind(int index) {
+    return RowBatch.Kind.of(column(index));
+  }
+
+  /**
+   * Indices of columns with a default value.
+   */
+  int[] defaultColumns() {
+    return defaultColumns;
+  }
+
+  /**
+   * Default values of the columns in {@link #defaultColumns()}.
+   */
+  String[] defaultValues() {
+    return defaultValues;
+  }
+
+  /**
+   * Creates (once) the positional key of the column at the index. Schemas can
+   * be shared by readers working in parallel and this is thus synchronized.
+   */
+  private synchronized String positionalKey(int index) {
+    if (index >= keys.length) {
+      keys = Arrays.copyOf(keys, Math.max(index + 1, keys.length * 2));
+    }
+    if (keys[index] == null) {
+      keys[index] = String.valueOf(index + 1);
+    }
+    return keys[index];
+  }
+
+  /**
+   * The format from which this schema was built; may be null.
+   */
+  private final Format format;
+
+  /**
+   * Keys of columns by index; the ones beyond the explicit keys are created
+   * when first needed.
+   */
+  private volatile String[] keys;
+
+  /**
+   * Number of columns with explicitly provided keys.
+   */
+  private final int explicitKeys;
+
+  /**
+   * Indices of columns by explicit keys and aliases.
+   */
+  private final Map<String, Integer> indices;
+
+  /**
+   * Whether the column at each index is projected, or null if all columns are
+   * read.
+   */
+  private final boolean[] projected;
+
+  /**
+   * Columns of the format by the index of the column their location refers to.
+   */
+  private final Column[] located;
+
+  /**
+   * Converters of the columns in `located`.
+   */
+  private final ColumnConverter[] converters;
+
+  /**
+   * Whether the columns in `located` have a date type.
+   */
+  private final boolean[] dates;
+
+  /**
+   * Indices of columns with a default value, and their default values.
+   */
+  private final int[] defaultColumns;
+  private final String[] defaultValues;
+
+  /**
+   * The metrics in which conversions are measured, if any.
+   */
+  private ReaderMetrics metrics;
+}
\ No newline at end of file
@@ -0,0 +1,180 @@
+package ma.vi.datalines;
+
+import java.math.BigDecimal;
+import java.time.temporal.Temporal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Infers the types of columns from a sample of their values, for readers opened
+ * without a format (see {@link AbstractLineReader}). A column is typed as the
+ * first of `long`, `decimal`, `double`, `boolean` and `date` which all of its
+ * non-blank values in the sample can be converted to by the {@link ColumnConverter}
+ * of that type, or as `string` otherwise. Date columns also get the pattern of
+ * their dates, in their `pattern` attribute (see {@link DateConverter}), with
+ * day-month-year orders preferred when values do not tell them apart from
+ * month-day-year ones.
+ * <p>
+ * Numbers with leading zeros (such as `007`) are kept as strings, as these are
+ * usually codes where the zeros matter. Values already typed by the reader
+ * (such as the numbers and dates of Excel cells) are typed as they are.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class TypeInference {
+  /**
+   * Adds the values of the line to the sample.
+   */
+  void add(RowBatch lines, int row) {
+    for (int i = 0; i < lines.columnCount(); i++) {
+      if (lines.isPresent(row, i)) {
+        add(i, lines.get(row, i));
+      }
+    }
+  }
+
+  /**
+   * Adds a value of the column at the index to the sample.
+   */
+  void add(int column, Object value) {
+    if (value == null) {
+      return;
+    }
+    if (column >= types.length) {
+      int length = types.length;
+      types = Arrays.copyOf(types, Math.max(column + 1, length * 2));
+      Arrays.fill(types, length, types.length, ALL);
+      patterns.addAll(Collections.nCopies(types.length - length, null));
+      seen = Arrays.copyOf(seen, types.length);
+    }
+    int possible;
+    if (value instanceof CharSequence text) {
+      String trimmed = text.toString().trim();
+      if (trimmed.isEmpty()) {
+        return;
+      }
+      possible = possible(column, trimmed);
+    } else if (value instanceof Long || value instanceof Integer
+            || value instanceof Short || value instanceof Byte) {
+      possible = LONG | DECIMAL | DOUBLE;
+    } else if (value instanceof BigDecimal) {
+      possible = DECIMAL | DOUBLE;
+    } else if (value instanceof Double || value instanceof Float) {
+      possible = DOUBLE;
+    } else if (value instanceof Boolean) {
+      possible = BOOLEAN;
+    } else if (value instanceof Date || value instanceof Temporal) {
+      possible = DATE;
+    } else {
+      possible = 0;
+    }
+    types[column] &= possible;
+    seen[column] = true;
+  }
+
+  /**
+   * The types to which the text can be converted, also narrowing the date
+   * patterns of the column to the ones parsing it.
+   */
+  private int possible(int column, String text) {
+    int possible = 0;
+    int type = types[column];
+    boolean leadingZero = hasLeadingZero(text);
+    if ((type & LONG) != 0 && !leadingZero && LONG_CONVERTER.parse(text, 0, text.length()) != null) {
+      possible |= LONG;
+    }
+    if ((type & DECIMAL) != 0 && !leadingZero && DECIMAL_CONVERTER.parse(text, 0, text.length()) != null) {
+      possible |= DECIMAL;
+    }
+    if ((type & DOUBLE) != 0 && !leadingZero && DOUBLE_CONVERTER.parse(text, 0, text.length()) != null) {
+      possible |= DOUBLE;
+    }
+    if ((type & BOOLEAN) != 0 && BOOLEAN_CONVERTER.parse(text, 0, text.length()) != null) {
+      possible |= BOOLEAN;
+    }
+    if ((type & DATE) != 0) {
+      List<String> remaining = patterns.get(column);
+      if (remaining == null) {
+        remaining = new ArrayList<>(DateConverter.patterns());
+        patterns.set(column, remaining);
+      }
+      remaining.removeIf(p -> !DateConverter.parses(p, text));
+      if (!remaining.isEmpty()) {
+        possible |= DATE;
+      }
+    }
+    return possible;
+  }
+
+  /**
+   * Returns true if the text is a number starting with a 0 followed by another
+   * digit, ignoring its sign.
+   */
+  private static boolean hasLeadingZero(String text) {
+    int i = text.charAt(0) == '-' || text.charAt(0) == '+' ? 1 : 0;
+    return text.length() > i + 1
+        && text.charAt(i) == '0'
+        && Character.isDigit(text.charAt(i + 1));
+  }
+
+  /**
+   * The type inferred for the column at the index: `string` if none of its
+   * values were in the sample.
+   */
+  String type(int column) {
+    if (column >= types.length || !seen[column]) {
+      return "string";
+    }
+    int type = types[column];
+    return (type & LONG)    != 0 ? "long"
+         : (type & DECIMAL) != 0 ? "decimal"
+         : (type & DOUBLE)  != 0 ? "double"
+         : (type & BOOLEAN) != 0 ? "boolean"
+         : (type & DATE)    != 0 ? "date"
+         :                         "string";
+  }
+
+  /**
+   * Returns the column at the index with its inferred type and, for dates with
+   * a known pattern, the `pattern` attribute.
+   */
+  Column column(int column, String name, String location) {
+    String type = type(column);
+    List<String> remaining = column < patterns.size() ? patterns.get(column) : null;
+    Map<String, String> attributes = type.equals("date") && remaining != null && !remaining.isEmpty()
+                                   ? Map.of("pattern", remaining.get(0))
+                                   : Map.of();
+    return new Column(name, type, location, null, attributes);
+  }
+
+  /**
+   * The number of lines sampled by readers to infer the types of columns.
+   */
+  static final int SAMPLE = 1000;
+
+  private static final int LONG    = 1;
+  private static final int DECIMAL = 2;
+  private static final int DOUBLE  = 4;
+  private static final int BOOLEAN = 8;
+  private static final int DATE    = 16;
+  private static final int ALL     = LONG | DECIMAL | DOUBLE | BOOLEAN | DATE;
+
+  private static final ColumnConverter LONG_CONVERTER    = ColumnConverter.of(new Column("long",    "long"));
+  private static final ColumnConverter DECIMAL_CONVERTER = ColumnConverter.of(new Column("decimal", "decimal"));
+  private static final ColumnConverter DOUBLE_CONVERTER  = ColumnConverter.of(new Column("double",  "double"));
+  private static final ColumnConverter BOOLEAN_CONVERTER = ColumnConverter.of(new Column("boolean", "boolean"));
+
+  /**
+   * The types possible for each column so far, as a combination of the flags
+   * above, whether a value of the column was seen, and the date patterns which
+   * parsed all the values of the column so far (null until a value is tried
+   * as a date).
+   */
+  private int[] types = new int[0];
+  private boolean[] seen = new boolean[0];
+  private final List<List<String>> patterns = new ArrayList<>();
+}
\ No newline at end of file
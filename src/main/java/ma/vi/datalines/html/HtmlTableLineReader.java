@@ -2,92 +2,565 @@ package ma.vi.datalines.html;
 
 import ma.vi.datalines.AbstractLineReader;
 import ma.vi.datalines.Format;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import ma.vi.datalines.InputType;
+import ma.vi.datalines.RowBatch;
+import org.jsoup.parser.Tag;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import static ma.vi.datalines.html.HtmlTokenizer.*;
 
 /**
  * A line reader which can read data from an HTML table.
+ * <p>
+ * The HTML is tokenized as it is read (see {@link HtmlTokenizer}), without
+ * building a document tree: each row of a table is returned as soon as it is
+ * closed, explicitly or by the start of the next row or the end of the table,
+ * and only the cells of the current row are kept in memory. The value of a
+ * cell is the link (`href`) of its first child element if it has one, or its
+ * text otherwise, with whitespace normalised; empty cells are null. Tables
+ * nested in cells are part of the text of those cells.
+ * <p>
+ * Each table is a page of the document, as a sheet is for Excel files: only
+ * the table at {@link Format#page()} is read, and reading stops at its end,
+ * or all tables are read when the page is 0 or less, separated as pages are
+ * (so that header and footer lines are removed from each table). Tables not
+ * read are tokenized without building their cells, as are the cells of
+ * columns which are not projected (see {@link Format#projection()}).
  *
  * @author vikash.madhow@gmail.com
  */
 public class HtmlTableLineReader extends AbstractLineReader {
   @Override
   public boolean supports(File file, String name, Format format) {
-    try (BufferedReader in = new BufferedReader(new FileReader(file))) {
-      String line;
-      while ((line = in.readLine()) != null && line.trim().length() == 0);
-      if (line != null) {
-        line = line.trim().toLowerCase().replace(" ", "");
-        return line.startsWith("<!doctypehtml>") || line.startsWith("<html");
-      } else {
-        return false;
-      }
-    } catch (IOException e) {
-      return false;
-    }
+    return InputType.of(file) == InputType.HTML;
   }
 
   @Override
   public void openFile(File inputFile, String fileName, Format format) {
     try {
-      Document doc = Jsoup.parse(inputFile, "UTF-8");
-      Elements tableRows = doc.select("tr");
-      numberOfRows = tableRows.size();
-      rows = tableRows.iterator();
+      open(measured(new FileInputStream(inputFile)), inputFile.getAbsolutePath(), inputFile.length(), format);
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Could not parse HTML file '" + fileName + "'. Reason: " + e, e);
+    }
+  }
+
+  /**
+   * Reads the HTML directly from the stream. Relative links are resolved
+   * against the file name.
+   */
+  @Override
+  protected void openStream(InputStream input, String fileName, Format format) {
+    try {
+      open(input, fileName, -1, format);
     } catch (Exception e) {
       throw new IllegalArgumentException("Could not parse HTML file '" + fileName + "'. Reason: " + e, e);
     }
   }
 
+  /**
+   * Opens the input in UTF-8 or, if it starts with a byte order mark, in the
+   * charset of the mark.
+   */
+  private void open(InputStream input, String baseUri, long length, Format format) throws IOException {
+    PushbackInputStream in = new PushbackInputStream(input, 3);
+    byte[] bom = new byte[3];
+    int read = in.readNBytes(bom, 0, 3);
+    Charset charset = StandardCharsets.UTF_8;
+    int skip = 0;
+    if (read == 3 && (bom[0] & 0xFF) == 0xEF && (bom[1] & 0xFF) == 0xBB && (bom[2] & 0xFF) == 0xBF) {
+      skip = 3;
+    } else if (read >= 2 && (bom[0] & 0xFF) == 0xFE && (bom[1] & 0xFF) == 0xFF) {
+      charset = StandardCharsets.UTF_16BE;
+      skip = 2;
+    } else if (read >= 2 && (bom[0] & 0xFF) == 0xFF && (bom[1] & 0xFF) == 0xFE) {
+      charset = StandardCharsets.UTF_16LE;
+      skip = 2;
+    }
+    if (read > skip) {
+      in.unread(bom, skip, read - skip);
+    }
+    this.tokens = new HtmlTokenizer(new InputStreamReader(in, charset));
+    this.length = length;
+    this.page = format == null ? 1 : format.page();
+    base(baseUri);
+  }
+
+  /**
+   * Sets the URI against which links are resolved.
+   */
+  private void base(String uri) {
+    try {
+      baseUrl = new URL(stripControlChars(uri));
+    } catch (MalformedURLException e) {
+      baseUrl = null;
+    }
+  }
+
+  /**
+   * Resolves a link against the base URI, as jsoup's `absUrl` does: control
+   * characters are removed, relative links are resolved to empty strings when
+   * the base is not a URL (such as the path of a file), and links which are not
+   * valid URLs are kept if they have a scheme. The base URL is parsed once
+   * instead of for every link.
+   */
+  private String resolve(String href) {
+    href = stripControlChars(href);
+    try {
+      if (baseUrl != null) {
+        return resolve(baseUrl, href).toExternalForm();
+      } else if (SCHEME.matcher(href).find()) {
+        return new URL(href).toExternalForm();
+      } else {
+        return "";
+      }
+    } catch (MalformedURLException e) {
+      return SCHEME.matcher(href).find() ? href : "";
+    }
+  }
+
+  /**
+   * Resolves the link against the base URL as browsers do: a link to a query
+   * replaces the query of the base instead of its last path segment, and `.`
+   * and `..` segments going above the root of the host are dropped.
+   */
+  private static URL resolve(URL base, String href) throws MalformedURLException {
+    if (href.startsWith("?")) {
+      href = base.getPath() + href;
+    }
+    URL url = new URL(base, href);
+    String file = EXTRA_DOT_SEGMENTS.matcher(url.getFile()).replaceFirst("/");
+    if (url.getRef() != null) {
+      file += "#" + url.getRef();
+    }
+    return new URL(url.getProtocol(), url.getHost(), url.getPort(), file);
+  }
+
+  /**
+   * Removes the control characters (below space) in the link, which browsers ignore.
+   */
+  private static String stripControlChars(String href) {
+    for (int i = 0; i < href.length(); i++) {
+      if (href.charAt(i) < ' ') {
+        return CONTROL_CHARS.matcher(href).replaceAll("");
+      }
+    }
+    return href;
+  }
+
   @Override
-  protected Map<String, Object> nextLine(boolean convertToColumnType) {
-    if (rows.hasNext()) {
-      int i = 1;
-      Map<String, Object> row = new LinkedHashMap<>();
-      Elements cells = rows.next().children();
-      for (Element cell : cells) {
-        Elements children = cell.children();
-        if (children.size() > 0) {
-          Element first = children.first();
-          if (first.hasAttr("href")) {
-            row.put(String.valueOf(i++), first.absUrl("href"));
-          } else {
-            row.put(String.valueOf(i++), cell.text());
+  protected LineType nextLine(RowBatch lines, int row, boolean convertToColumnType) {
+    if (tokens == null) {
+      return LineType.END;
+    }
+    try {
+      if (finished) {
+        finish();
+        return LineType.END;
+      }
+      if (pendingTable) {
+        pendingTable = false;
+        LineType line = startTable();
+        if (line != null) {
+          return line;
+        }
+      }
+      while (true) {
+        tokens.capture(inCell && projected);
+        int token = tokens.next();
+        LineType line = null;
+        if (token == END) {
+          line = inRow ? endRow(lines, row) : null;
+          finish();
+          return line != null ? line : LineType.END;
+
+        } else if (inCell && nestedTables > 0) {
+          /*
+           * Rows and cells of tables nested in a cell are part of its content.
+           */
+          if (token == START_TAG && tokens.name().equals("table")) {
+            nestedTables++;
+          } else if (token == END_TAG && tokens.name().equals("table")) {
+            nestedTables--;
+          }
+          cellContent(token);
+
+        } else if (token == START_TAG) {
+          String name = tokens.name();
+          switch (name) {
+            case "table" -> {
+              if (inCell) {
+                nestedTables++;
+                cellContent(token);
+              } else {
+                /*
+                 * A table started outside the cells of another ends it; the
+                 * new table is started once the last row of the other one has
+                 * been returned.
+                 */
+                if (inTable) {
+                  endTable();
+                }
+                line = inRow ? endRow(lines, row) : null;
+                if (line != null) {
+                  pendingTable = true;
+                } else {
+                  line = startTable();
+                }
+              }
+            }
+            case "tr" -> {
+              if (inTable) {
+                line = inRow ? endRow(lines, row) : null;
+                inRow = true;
+              }
+            }
+            case "td", "th" -> {
+              if (inTable) {
+                if (inCell) {
+                  endCell(lines, row);
+                }
+                inRow = true;
+                startCell(name);
+              }
+            }
+            case "tbody", "thead", "tfoot" -> {
+              if (inRow) {
+                line = endRow(lines, row);
+              }
+            }
+            default -> {
+              if (name.equals("base") && !baseUriSet) {
+                String href = tokens.attribute("href");
+                if (href != null) {
+                  href = resolve(href);
+                  if (href.length() != 0) {
+                    base(href);
+                    baseUriSet = true;
+                  }
+                }
+              }
+              if (inCell) {
+                cellContent(token);
+              }
+            }
           }
-        } else if (cell.childNodes().size() > 0) {
-          row.put(String.valueOf(i++), cell.text());
-        } else {
-          row.put(String.valueOf(i++), null);
+        } else if (token == END_TAG) {
+          switch (tokens.name()) {
+            case "table" -> {
+              if (inTable) {
+                line = inRow ? endRow(lines, row) : null;
+                endTable();
+                if (line == null && finished) {
+                  finish();
+                  line = LineType.END;
+                }
+              }
+            }
+            case "tr", "tbody", "thead", "tfoot" -> {
+              if (inRow) {
+                line = endRow(lines, row);
+              }
+            }
+            case "td", "th" -> {
+              /*
+               * An end tag not matching the start of the cell is ignored, as
+               * in browsers.
+               */
+              if (inCell && tokens.name().equals(cellName)) {
+                endCell(lines, row);
+              }
+            }
+            default -> {
+              if (inCell) {
+                cellContent(token);
+              }
+            }
+          }
+        } else if (inCell) {
+          cellContent(token);
+        }
+
+        if (line != null) {
+          return line;
         }
       }
-      return row;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read HTML file '" + fileName + "'", e);
+    }
+  }
+
+  /**
+   * Starts a table, which is read if it is the page to read or if all pages
+   * are read. Returns {@link LineType#SEPARATOR} if the table follows a table
+   * that was read, {@link LineType#END} if the page to read has already been
+   * read, or null.
+   */
+  private LineType startTable() throws IOException {
+    if (finished) {
+      finish();
+      return LineType.END;
+    }
+    tables++;
+    inTable = true;
+    selected = page <= 0 || tables == page;
+    if (selected && tableStart == -1) {
+      tableStart = tokens.position();
+    }
+    return page <= 0 && tables > 1 ? LineType.SEPARATOR : null;
+  }
+
+  /**
+   * Ends the current table; once the page to read has been read, reading
+   * ends without tokenizing the rest of the input.
+   */
+  private void endTable() {
+    inTable = false;
+    finished = selected && page > 0;
+  }
+
+  /**
+   * Closes the input at its end or once the page to read has been read, when
+   * the number of lines read is known.
+   */
+  private void finish() throws IOException {
+    tokens.close();
+    tokens = null;
+    estimateTotalLines = rowsRead;
+  }
+
+  private void startCell(String name) {
+    inCell = true;
+    projected = selected && schema.projects(column);
+    cellName = name;
+    hasContent = false;
+    firstChild = true;
+    href = null;
+    blockEnded = false;
+    paragraph = false;
+    preserveWhitespace = 0;
+    cellText.setLength(0);
+  }
+
+  /**
+   * Adds a token in the current cell to the content of the cell, building its
+   * text as jsoup's `Element.text()` does.
+   */
+  private void cellContent(int token) {
+    if (!projected) {
+      return;
+    }
+    hasContent = true;
+    if (token == START_TAG) {
+      if (firstChild) {
+        firstChild = false;
+        href = tokens.attribute("href");
+      }
+      Tag tag = Tag.valueOf(tokens.name());
+      if ((tag.isBlock() || tag.normalName().equals("br")) && !endsWithSpace()) {
+        cellText.append(' ');
+      }
+      if (tag.preserveWhitespace() && !tokens.selfClosing()) {
+        preserveWhitespace++;
+      }
+      paragraph |= tag.normalName().equals("p");
+      blockEnded = false;
+
+    } else if (token == END_TAG) {
+      Tag tag = Tag.valueOf(tokens.name());
+      if (tag.preserveWhitespace() && preserveWhitespace > 0) {
+        preserveWhitespace--;
+      }
+      if (tag.normalName().equals("p")) {
+        /*
+         * A `</p>` without an open paragraph is an empty paragraph.
+         */
+        if (!paragraph && !endsWithSpace()) {
+          cellText.append(' ');
+        }
+        paragraph = false;
+      }
+      blockEnded = tag.isBlock();
+
+    } else if (token == TEXT) {
+      if (blockEnded && !endsWithSpace()) {
+        cellText.append(' ');
+      }
+      if (preserveWhitespace > 0) {
+        cellText.append(tokens.text());
+      } else {
+        appendNormalisedWhitespace(cellText, tokens.text(), endsWithSpace());
+      }
+      blockEnded = false;
+
     } else {
+      blockEnded = false;
+    }
+  }
+
+  /**
+   * Appends the text with each run of whitespace (including non-breaking
+   * spaces) replaced by a single space, and without zero-width spaces and soft
+   * hyphens, as jsoup normalises the text of elements. Leading whitespace is
+   * dropped when `stripLeading` is true.
+   */
+  private static void appendNormalisedWhitespace(StringBuilder text, String value, boolean stripLeading) {
+    boolean lastWasWhite = false;
+    boolean reachedNonWhite = false;
+    for (int i = 0, c; i < value.length(); i += Character.charCount(c)) {
+      c = value.codePointAt(i);
+      if (c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r' || c == '\u00a0') {
+        if ((stripLeading && !reachedNonWhite) || lastWasWhite) {
+          continue;
+        }
+        text.append(' ');
+        lastWasWhite = true;
+      } else if (c != '\u200b' && c != '\u00ad') {
+        text.appendCodePoint(c);
+        lastWasWhite = false;
+        reachedNonWhite = true;
+      }
+    }
+  }
+
+  /**
+   * Whether the text of the cell is empty or ends with a space, in which case
+   * no space is added before more text.
+   */
+  private boolean endsWithSpace() {
+    int length = cellText.length();
+    return length == 0 || cellText.charAt(length - 1) == ' ';
+  }
+
+  private void endCell(RowBatch lines, int row) {
+    if (!selected) {
+      /*
+       * Cells of tables which are not read are only delimited.
+       */
+    } else if (!projected) {
+      column++;
+    } else if (href != null) {
+      lines.set(row, column++, resolve(href));
+    } else if (hasContent) {
+      lines.set(row, column++, cellText.toString().trim());
+    } else {
+      lines.setNull(row, column++);
+    }
+    inCell = false;
+    nestedTables = 0;
+  }
+
+  /**
+   * Ends the current row, returning {@link LineType#LINE} if it was read, or
+   * null if its table is not read.
+   */
+  private LineType endRow(RowBatch lines, int row) {
+    if (inCell) {
+      endCell(lines, row);
+    }
+    inRow = false;
+    column = 0;
+    if (!selected) {
       return null;
     }
+    rowsRead++;
+    if (length != -1) {
+      long read = tokens.position() - tableStart;
+      estimateTotalLines = (length - tableStart) * rowsRead / Math.max(1, read);
+    }
+    return LineType.LINE;
   }
 
   @Override
   public long estimateTotalLines() {
-    return numberOfRows;
+    return estimateTotalLines;
   }
 
   @Override
   public void close() {
     super.close();
-    rows = null;
+    if (tokens != null) {
+      try {
+        tokens.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      tokens = null;
+    }
   }
 
-  private Iterator<Element> rows;
+  private HtmlTokenizer tokens;
+
+  /**
+   * The URL against which relative links are resolved: the file or, once read,
+   * the `href` of the first `base` element; null if that URI is not a URL.
+   */
+  private URL baseUrl;
+  private boolean baseUriSet;
+
+  private static final Pattern SCHEME = Pattern.compile("^[a-zA-Z][a-zA-Z0-9+-.]*:");
+  private static final Pattern CONTROL_CHARS = Pattern.compile("[\\x00-\\x1f]");
+  private static final Pattern EXTRA_DOT_SEGMENTS = Pattern.compile("^/((\\.{1,2}/)+)");
+
+  /**
+   * The page (table) to read, starting from 1, or 0 or less to read all tables;
+   * the number of tables started, whether the current one is read, and the
+   * position of the first table read. Reading is finished once the page to
+   * read has been read, and a table can be pending, to be started once the
+   * last row of the previous one has been returned.
+   */
+  private int page;
+  private int tables;
+  private boolean selected;
+  private long tableStart = -1;
+  private boolean finished;
+  private boolean pendingTable;
+
+  /**
+   * Position in the tables read: whether in a table, a row and a cell (and the
+   * name of its tag, and whether its column is projected), the index of the
+   * current cell in its row, and the depth of the tables nested in the current
+   * cell.
+   */
+  private boolean inTable;
+  private boolean inRow;
+  private boolean inCell;
+  private boolean projected;
+  private String cellName;
+  private int column;
+  private int nestedTables;
+
+  /**
+   * The current cell: whether it has any content, whether its first child
+   * element is still to be read and the link of that element, and its text.
+   * The text is built with whitespace normalised except inside elements
+   * preserving whitespace (such as `pre`), with a space separating the text
+   * of block elements (including paragraphs, which can be implicitly opened).
+   */
+  private boolean hasContent;
+  private boolean firstChild;
+  private String href;
+  private int preserveWhitespace;
+  private boolean blockEnded;
+  private boolean paragraph;
+  private final StringBuilder cellText = new StringBuilder();
 
-  private long numberOfRows;
+  /**
+   * The length of the file read (-1 for streams), the number of rows read, and
+   * the total number of rows estimated from these and the part of the file read.
+   */
+  private long length;
+  private long rowsRead;
+  private long estimateTotalLines = -1;
 }
\ No newline at end of file
@@ -0,0 +1,625 @@
+package ma.vi.datalines.html;
+
+import org.jsoup.nodes.Entities;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Splits an HTML document read from a character stream into tokens (start and
+ * end tags, text and comments), one at a time, without building a document
+ * tree: the tokenizer holds the current token and a fixed buffer of the input,
+ * and nothing else, whatever the size of the document.
+ * <p>
+ * Tokenization follows the lenient rules of browsers where they matter for
+ * reading tables: a `<` which does not start markup is text, the content of
+ * raw text elements (such as `script` and `style`) is not tokenized, and
+ * entities in text and attribute values are decoded. Text is only copied and
+ * decoded when captured (see {@link #capture(boolean)}); otherwise, it is
+ * skipped over.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class HtmlTokenizer implements Closeable {
+  HtmlTokenizer(Reader in) {
+    this.in = in;
+  }
+
+  /**
+   * Whether the text of the next tokens is captured and returned by {@link #text()};
+   * when it is not, text tokens are returned with no text.
+   */
+  void capture(boolean capture) {
+    this.capture = capture;
+  }
+
+  /**
+   * Reads the next token, returning its type: {@link #START_TAG}, {@link #END_TAG},
+   * {@link #TEXT}, {@link #DATA} (the content of `script` and `style` elements),
+   * {@link #COMMENT} or {@link #END} at the end of the input.
+   */
+  int next() throws IOException {
+    text.setLength(0);
+    attributes = 0;
+    selfClosing = false;
+    if (rawText != null) {
+      String element = rawText;
+      rawText = null;
+      int token = rawText(element);
+      if (token != END) {
+        return token;
+      }
+    }
+    while (ensure(1)) {
+      if (buf[pos] != '<' || !markup()) {
+        return readText();
+      }
+      char c = buf[pos + 1];
+      if (c == '/') {
+        pos += 2;
+        if (ensure(1) && isLetter(buf[pos])) {
+          if (tag(true)) {
+            return END_TAG;
+          }
+        } else if (ensure(1) && buf[pos] == '>') {
+          pos++;
+        } else {
+          skipPast('>');
+          return COMMENT;
+        }
+      } else if (c == '!') {
+        pos += 2;
+        if (ensure(2) && buf[pos] == '-' && buf[pos + 1] == '-') {
+          pos += 2;
+          comment();
+          return COMMENT;
+        }
+        boolean doctype = startsWithIgnoreCase("doctype");
+        skipPast('>');
+        if (!doctype) {
+          return COMMENT;
+        }
+      } else if (c == '?') {
+        pos += 2;
+        skipPast('>');
+        return COMMENT;
+      } else {
+        pos++;
+        if (tag(false)) {
+          if (!selfClosing && rawTextElement(name)) {
+            rawText = name;
+          }
+          return START_TAG;
+        }
+      }
+    }
+    return END;
+  }
+
+  /**
+   * The lower-case name of the current tag.
+   */
+  String name() {
+    return name;
+  }
+
+  /**
+   * Whether the current start tag is self-closing (such as `<br/>`).
+   */
+  boolean selfClosing() {
+    return selfClosing;
+  }
+
+  /**
+   * The value of the attribute of the current start tag with the lower-case
+   * name, with entities decoded, or null if the tag has no such attribute.
+   */
+  String attribute(String name) {
+    for (int i = 0; i < attributes; i++) {
+      if (attributeNames[i].equals(name)) {
+        String value = values.substring(valueStart[i], valueEnd[i]);
+        if (value.indexOf('&') == -1) {
+          return value;
+        }
+        StringBuilder decoded = new StringBuilder(value.length());
+        unescape(value, true, decoded);
+        return decoded.toString();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The text of the current text token, with entities decoded, if text was
+   * captured when it was read.
+   */
+  String text() {
+    return text.toString();
+  }
+
+  /**
+   * The number of characters read from the input so far.
+   */
+  long position() {
+    return offset + pos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Reads text up to the next markup.
+   */
+  private int readText() throws IOException {
+    while (true) {
+      int start = pos;
+      while (pos < limit && buf[pos] != '<') {
+        pos++;
+      }
+      if (capture) {
+        text.append(buf, start, pos - start);
+      }
+      if (pos < limit) {
+        if (markup()) {
+          break;
+        }
+        if (capture) {
+          text.append('<');
+        }
+        pos++;
+      } else if (!ensure(1)) {
+        break;
+      }
+    }
+    if (capture) {
+      unescape(text);
+    }
+    return TEXT;
+  }
+
+  /**
+   * Reads the content of a raw text element up to its end tag, returning it as
+   * a token, or returns {@link #END} if it is empty.
+   */
+  private int rawText(String element) throws IOException {
+    boolean data = element.equals("script") || element.equals("style");
+    boolean keep = capture && !data;
+    boolean read = false;
+    while (ensure(1)) {
+      int start = pos;
+      while (pos < limit && buf[pos] != '<') {
+        pos++;
+      }
+      if (keep) {
+        text.append(buf, start, pos - start);
+      }
+      read |= pos > start;
+      if (pos < limit) {
+        if (!element.equals("plaintext") && endTagAt(element)) {
+          break;
+        }
+        if (keep) {
+          text.append('<');
+        }
+        pos++;
+        read = true;
+      }
+    }
+    if (keep && escapableRawText(element)) {
+      unescape(text);
+    }
+    return !read ? END : data ? DATA : TEXT;
+  }
+
+  /**
+   * Reads a tag after its `<` (or `</`), returning false if the input ended
+   * before the tag did. Attributes of end tags are ignored.
+   */
+  private boolean tag(boolean end) throws IOException {
+    nameBuffer.setLength(0);
+    int c;
+    while ((c = read()) != -1 && !isWhitespace(c) && c != '/' && c != '>') {
+      nameBuffer.append(lowerCase((char)c));
+    }
+    if (c == -1) {
+      return false;
+    }
+    name = intern(nameBuffer);
+    if (end) {
+      return c == '>' || skipPast('>');
+    }
+    values.setLength(0);
+    while (true) {
+      if (c == -1) {
+        return false;
+      } else if (c == '>') {
+        return true;
+      } else if (c == '/') {
+        selfClosing = ensure(1) && buf[pos] == '>';
+        c = read();
+      } else if (isWhitespace(c)) {
+        c = read();
+      } else {
+        /*
+         * Attribute name, starting with the character read, and optional value.
+         */
+        nameBuffer.setLength(0);
+        do {
+          nameBuffer.append(lowerCase((char)c));
+        } while ((c = read()) != -1 && !isWhitespace(c) && c != '/' && c != '>' && c != '=');
+        String attribute = intern(nameBuffer);
+        while (c != -1 && isWhitespace(c)) {
+          c = read();
+        }
+        int start = values.length();
+        if (c == '=') {
+          while ((c = read()) != -1 && isWhitespace(c));
+          if (c == '"' || c == '\'') {
+            int quote = c;
+            while ((c = read()) != -1 && c != quote) {
+              values.append((char)c);
+            }
+            c = c == -1 ? -1 : read();
+          } else {
+            while (c != -1 && !isWhitespace(c) && c != '>') {
+              values.append((char)c);
+              c = read();
+            }
+          }
+        }
+        addAttribute(attribute, start, values.length());
+      }
+    }
+  }
+
+  /**
+   * Adds an attribute to the current tag, unless it already has one with the
+   * same name (the first one is kept).
+   */
+  private void addAttribute(String attribute, int start, int end) {
+    for (int i = 0; i < attributes; i++) {
+      if (attributeNames[i].equals(attribute)) {
+        return;
+      }
+    }
+    if (attributes == attributeNames.length) {
+      attributeNames = Arrays.copyOf(attributeNames, attributes * 2);
+      valueStart = Arrays.copyOf(valueStart, attributes * 2);
+      valueEnd = Arrays.copyOf(valueEnd, attributes * 2);
+    }
+    attributeNames[attributes] = attribute;
+    valueStart[attributes] = start;
+    valueEnd[attributes] = end;
+    attributes++;
+  }
+
+  /**
+   * Skips a comment after its `<!--`, up to and including the `-->` closing it.
+   */
+  private void comment() throws IOException {
+    if (ensure(1) && buf[pos] == '>') {
+      pos++;
+      return;
+    }
+    if (ensure(2) && buf[pos] == '-' && buf[pos + 1] == '>') {
+      pos += 2;
+      return;
+    }
+    while (ensure(1)) {
+      if (buf[pos] == '-' && ensure(3) && buf[pos + 1] == '-') {
+        if (buf[pos + 2] == '>') {
+          pos += 3;
+          return;
+        }
+        if (buf[pos + 2] == '!' && ensure(4) && buf[pos + 3] == '>') {
+          pos += 4;
+          return;
+        }
+      }
+      pos++;
+    }
+  }
+
+  /**
+   * Whether the `<` at the current position starts markup (a tag, comment or
+   * similar), instead of being text.
+   */
+  private boolean markup() throws IOException {
+    if (!ensure(2)) {
+      return false;
+    }
+    char c = buf[pos + 1];
+    return isLetter(c) || c == '/' || c == '!' || c == '?';
+  }
+
+  /**
+   * Whether the input at the current position is the end tag of the element.
+   */
+  private boolean endTagAt(String element) throws IOException {
+    int length = element.length();
+    boolean complete = ensure(length + 3);
+    if (limit - pos < length + 2 || buf[pos + 1] != '/') {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (lowerCase(buf[pos + 2 + i]) != element.charAt(i)) {
+        return false;
+      }
+    }
+    if (!complete) {
+      return true;
+    }
+    char c = buf[pos + 2 + length];
+    return isWhitespace(c) || c == '/' || c == '>';
+  }
+
+  /**
+   * Whether the input at the current position starts with the lower-case
+   * string, ignoring case.
+   */
+  private boolean startsWithIgnoreCase(String s) throws IOException {
+    if (!ensure(s.length())) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      if (lowerCase(buf[pos + i]) != s.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Skips past the next occurrence of the character, returning false if the
+   * input ended before it.
+   */
+  private boolean skipPast(char c) throws IOException {
+    while (ensure(1)) {
+      while (pos < limit) {
+        if (buf[pos++] == c) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private int read() throws IOException {
+    return ensure(1) ? buf[pos++] : -1;
+  }
+
+  /**
+   * Ensures that at least n characters are available in the buffer from the
+   * current position, reading more from the input as needed, and returns
+   * false if the input ended before.
+   */
+  private boolean ensure(int n) throws IOException {
+    if (limit - pos >= n) {
+      return true;
+    }
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, limit - pos);
+      offset += pos;
+      limit -= pos;
+      pos = 0;
+    }
+    while (limit < n && !eof) {
+      int read = in.read(buf, limit, buf.length - limit);
+      if (read == -1) {
+        eof = true;
+      } else {
+        limit += read;
+      }
+    }
+    return limit >= n;
+  }
+
+  /**
+   * Returns the name in the buffer as a string, reusing the same string for
+   * names that keep recurring (such as the names of tags).
+   */
+  private String intern(StringBuilder b) {
+    int h = 0;
+    for (int i = 0; i < b.length(); i++) {
+      h = 31 * h + b.charAt(i);
+    }
+    int slot = (h ^ (h >>> 16)) & (names.length - 1);
+    String s = names[slot];
+    if (s == null || !s.contentEquals(b)) {
+      names[slot] = s = b.toString();
+    }
+    return s;
+  }
+
+  /**
+   * Decodes the character references (such as `&amp;` and `&#38;`) in text or
+   * in an attribute value, following the rules of jsoup's parser: named
+   * references must end with `;` unless they are among the legacy ones which
+   * browsers recognise without it (outside of attribute values followed by
+   * letters, digits, `=`, `-` or `_`).
+   */
+  static void unescape(CharSequence s, boolean inAttribute, StringBuilder out) {
+    int length = s.length();
+    int i = 0;
+    while (i < length) {
+      char c = s.charAt(i);
+      if (c != '&') {
+        out.append(c);
+        i++;
+      } else if (i + 1 < length && s.charAt(i + 1) == '#') {
+        /*
+         * Numeric reference, in decimal or hexadecimal.
+         */
+        int j = i + 2;
+        boolean hex = j < length && (s.charAt(j) == 'x' || s.charAt(j) == 'X');
+        if (hex) {
+          j++;
+        }
+        int start = j;
+        long value = 0;
+        while (j < length && Character.digit(s.charAt(j), hex ? 16 : 10) != -1) {
+          if (value <= Character.MAX_CODE_POINT) {
+            value = value * (hex ? 16 : 10) + Character.digit(s.charAt(j), hex ? 16 : 10);
+          }
+          j++;
+        }
+        if (j == start) {
+          out.append('&');
+          i++;
+          continue;
+        }
+        if (j < length && s.charAt(j) == ';') {
+          j++;
+        }
+        if (value >= 0x80 && value < 0x80 + WINDOWS_1252.length) {
+          out.append(WINDOWS_1252[(int)value - 0x80]);
+        } else if (value > Character.MAX_CODE_POINT || (value >= 0xD800 && value <= 0xDFFF)) {
+          out.append('\uFFFD');
+        } else {
+          out.appendCodePoint((int)value);
+        }
+        i = j;
+      } else {
+        /*
+         * Named reference: letters followed by digits.
+         */
+        int j = i + 1;
+        while (j < length && isLetter(s.charAt(j))) {
+          j++;
+        }
+        while (j < length && s.charAt(j) >= '0' && s.charAt(j) <= '9') {
+          j++;
+        }
+        String name = s.subSequence(i + 1, j).toString();
+        boolean semicolon = j < length && s.charAt(j) == ';';
+        String common = switch (name) {
+          case "amp"  -> "&";
+          case "lt"   -> "<";
+          case "gt"   -> ">";
+          case "quot" -> "\"";
+          case "nbsp" -> "\u00A0";
+          default     -> null;
+        };
+        boolean found = common != null
+                     || (name.length() > 0
+                      && (Entities.isBaseNamedEntity(name) || (semicolon && Entities.isNamedEntity(name))));
+        if (found && inAttribute && !semicolon && j < length) {
+          char next = s.charAt(j);
+          found = !(isLetter(next) || (next >= '0' && next <= '9') || next == '=' || next == '-' || next == '_');
+        }
+        if (found) {
+          out.append(common != null ? common : Entities.getByName(name));
+          i = semicolon ? j + 1 : j;
+        } else {
+          out.append('&');
+          i++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Decodes the character references in the text read, in place.
+   */
+  private void unescape(StringBuilder text) {
+    int amp = text.indexOf("&");
+    if (amp != -1) {
+      String escaped = text.substring(amp);
+      text.setLength(amp);
+      unescape(escaped, false, text);
+    }
+  }
+
+  private static boolean rawTextElement(String name) {
+    return switch (name) {
+      case "script", "style", "xmp", "iframe", "noembed", "noframes",
+           "textarea", "title", "plaintext" -> true;
+      default -> false;
+    };
+  }
+
+  /**
+   * Raw text elements whose content can contain entities.
+   */
+  private static boolean escapableRawText(String name) {
+    return name.equals("textarea") || name.equals("title");
+  }
+
+  private static boolean isLetter(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static boolean isWhitespace(int c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+  }
+
+  private static char lowerCase(char c) {
+    return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+  }
+
+  /**
+   * The characters of the numeric references from 128 to 159, which refer to
+   * the characters of windows-1252 (as in browsers).
+   */
+  private static final char[] WINDOWS_1252 = {
+      '\u20AC', '\u0081', '\u201A', '\u0192', '\u201E', '\u2026', '\u2020', '\u2021',
+      '\u02C6', '\u2030', '\u0160', '\u2039', '\u0152', '\u008D', '\u017D', '\u008F',
+      '\u0090', '\u2018', '\u2019', '\u201C', '\u201D', '\u2022', '\u2013', '\u2014',
+      '\u02DC', '\u2122', '\u0161', '\u203A', '\u0153', '\u009D', '\u017E', '\u0178'
+  };
+
+  /**
+   * Token types.
+   */
+  static final int END       = 0;
+  static final int START_TAG = 1;
+  static final int END_TAG   = 2;
+  static final int TEXT      = 3;
+  static final int DATA      = 4;
+  static final int COMMENT   = 5;
+
+  private final Reader in;
+
+  /**
+   * The input buffer, holding characters from `pos` to `limit`; `offset` is the
+   * position of the start of the buffer in the input.
+   */
+  private final char[] buf = new char[1 << 16];
+  private int pos;
+  private int limit;
+  private long offset;
+  private boolean eof;
+
+  /**
+   * Whether text is captured.
+   */
+  private boolean capture;
+
+  /**
+   * The current token: the name of the tag, its attributes (names and the
+   * positions of their values in `values`) and the text read.
+   */
+  private String name;
+  private boolean selfClosing;
+  private int attributes;
+  private String[] attributeNames = new String[8];
+  private int[] valueStart = new int[8];
+  private int[] valueEnd = new int[8];
+  private final StringBuilder values = new StringBuilder();
+  private final StringBuilder text = new StringBuilder();
+  private final StringBuilder nameBuffer = new StringBuilder();
+
+  /**
+   * The raw text element whose content is to be read next, if any.
+   */
+  private String rawText;
+
+  /**
+   * Names recently read.
+   */
+  private final String[] names = new String[256];
+}
\ No newline at end of file
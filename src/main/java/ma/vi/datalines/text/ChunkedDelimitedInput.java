@@ -0,0 +1,504 @@
+package ma.vi.datalines.text;
+
+import ma.vi.datalines.Format;
+import ma.vi.datalines.ReaderMetrics;
+import ma.vi.datalines.RowBatch;
+import ma.vi.datalines.RowSchema;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Reads the lines of a delimited text file in parallel. The file is split into
+ * chunks of bytes which are parsed into batches of lines on a fork-join pool.
+ * A chunk contains all records starting in its byte range, and its last record
+ * can extend past its range. Chunks are parsed a few at a time ahead of the
+ * lines returned, and at most {@link #MAX_BYTES_AHEAD} bytes of the file are
+ * parsed in advance whatever the parallelism.
+ * <p>
+ * Chunks are split into records and fields by a {@link DelimitedTokenizer} and
+ * the charset of the file must thus be supported by the tokenizer. Line
+ * terminators are the same as for {@link java.io.BufferedReader#readLine()}
+ * (`\n`, `\r` or `\r\n`). As quoted values can span lines, where the first
+ * record of a chunk starts is only known for certain once the previous chunk
+ * is parsed: its last record ends there. Chunks are thus parsed speculatively,
+ * from the first line terminator found just before the start of their range
+ * (or from the start of their first record if it is already known), and each
+ * chunk is checked against the end of the previous one before its lines are
+ * returned. A chunk which started in the middle of a quoted value is parsed
+ * again from the start of its first record, so that chunks are always split
+ * exactly as if the file was read sequentially; only the conversions of the
+ * lines returned are counted in the metrics of the reader.
+ * <p>
+ * Chunks are returned in file order when reading in order. Otherwise, they are
+ * returned as soon as they are parsed and the start of their first record is
+ * known: once the previous chunk is checked or, when no quote character occurs
+ * in the file before the chunk, as soon as the chunk is parsed. The first chunk
+ * and the chunks reaching the end of the file are always returned first and
+ * last respectively, so that header and footer lines are removed from the start
+ * and end of the file. The header lines at the start of the first chunk are not
+ * converted to the types of their columns, as when the file is read
+ * sequentially.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class ChunkedDelimitedInput implements AutoCloseable {
+  ChunkedDelimitedInput(File          file,
+                        Charset       charset,
+                        char          separator,
+                        char          quote,
+                        Format        format,
+                        RowSchema     schema,
+                        int           parallelism,
+                        boolean       ordered,
+                        boolean       quoted,
+                        ReaderMetrics metrics) {
+    this(file, charset, separator, quote, format, schema, parallelism,
+         ordered, quoted, metrics, MAX_BYTES_AHEAD);
+  }
+
+  /**
+   * Reads the file keeping at most about `bytesAhead` bytes of the file parsed
+   * in advance: chunks are made smaller when needed so that the window of chunks
+   * parsed in advance covers no more than that.
+   */
+  ChunkedDelimitedInput(File          file,
+                        Charset       charset,
+                        char          separator,
+                        char          quote,
+                        Format        format,
+                        RowSchema     schema,
+                        int           parallelism,
+                        boolean       ordered,
+                        boolean       quoted,
+                        ReaderMetrics metrics,
+                        long          bytesAhead) {
+    try {
+      this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      this.fileLength = channel.size();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    this.charset = charset;
+    this.separator = separator;
+    this.quote = quote;
+    this.format = format;
+    this.schema = schema;
+    this.metrics = metrics;
+    this.ordered = ordered;
+    this.quoted = quoted;
+    this.window = parallelism * 2;
+    this.chunkSize = Math.max(1, Math.min(Math.min(MAX_CHUNK_SIZE, bytesAhead / window),
+                                          Math.max(MIN_CHUNK_SIZE, fileLength / (parallelism * 4L))));
+    this.chunkCount = (int)Math.max(1, (fileLength + chunkSize - 1) / chunkSize);
+    this.pool = new ForkJoinPool(parallelism);
+    this.tasks = new ArrayList<>(Collections.nCopies(chunkCount, null));
+    this.starts = new AtomicLongArray(chunkCount);
+    for (int i = 1; i < chunkCount; i++) {
+      starts.set(i, -1);
+    }
+    this.scans = new AtomicIntegerArray(chunkCount);
+    this.taken = new boolean[chunkCount];
+    this.finished = new boolean[chunkCount];
+  }
+
+  /**
+   * Reads the next line of the file into the specified line of the batch,
+   * returning false if there are no more lines.
+   */
+  boolean next(RowBatch lines, int row) {
+    while (current == null || cursor >= current.lines) {
+      if (delivered == chunkCount) {
+        current = null;
+        return false;
+      }
+      current = nextChunk();
+      cursor = 0;
+      linesRead += current.lines;
+      bytesRead += current.bytes;
+    }
+    lines.copy(current.batches.get(cursor / BATCH_SIZE), cursor % BATCH_SIZE, row);
+    cursor++;
+    return true;
+  }
+
+  /**
+   * The number of bytes in the chunks read so far.
+   */
+  long bytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * Estimates the number of lines in the file from the average length of the
+   * lines in the chunks read so far.
+   */
+  long estimateTotalLines() {
+    return bytesRead == 0 ? -1 : fileLength * linesRead / bytesRead;
+  }
+
+  @Override
+  public void close() {
+    pool.shutdownNow();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Waits for and returns the next chunk to return, submitting further chunks for
+   * parsing to keep up to `window` chunks parsed in advance, while waiting too.
+   */
+  private Chunk nextChunk() {
+    try {
+      while (true) {
+        /*
+         * Chunks held back because they reach the end of the file are not
+         * counted in the window: all of them but one are empty, and they could
+         * otherwise fill the window, leaving no chunk to wait for.
+         */
+        while (submitted < chunkCount && submitted - delivered - deferred.size() < window) {
+          submit(submitted++);
+        }
+        if (ordered || delivered == 0) {
+          return deliver(resolve(delivered, true));
+        } else if (delivered + deferred.size() == chunkCount) {
+          delivered++;
+          return deferred.poll();
+        }
+
+        /*
+         * Return any chunk parsed whose first record is known, apart from the
+         * first which has already been returned and the chunks reaching the end
+         * of the file, which are returned last, in order. The last line of the
+         * file is not always in the last chunk: it can start in an earlier chunk
+         * and span the range of the following chunks, which are then empty.
+         */
+        for (Integer chunk; (chunk = completed.poll()) != null; ) {
+          finished[chunk] = true;
+        }
+        boolean resolved = false;
+        for (int chunk = first; chunk < submitted; chunk++) {
+          if (!taken[chunk]) {
+            Chunk parsed = resolve(chunk, false);
+            if (parsed != null) {
+              if (!parsed.end) {
+                return deliver(parsed);
+              }
+              taken[chunk] = true;
+              deferred.add(parsed);
+              resolved = true;
+            }
+          }
+        }
+        if (!resolved) {
+          finished[completed.take()] = true;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Marks the chunk as returned, and returns it.
+   */
+  private Chunk deliver(Chunk parsed) {
+    taken[parsed.index] = true;
+    while (first < chunkCount && taken[first]) {
+      first++;
+    }
+    delivered++;
+    return parsed;
+  }
+
+  /**
+   * Returns the lines of the chunk once its parsing is complete and the start of
+   * its first record is known, parsing it again if it was parsed from another
+   * position; returns null if this is not the case yet and `wait` is false
+   * (parsing is then known to be complete from {@link #finished}).
+   */
+  private Chunk resolve(int chunk, boolean wait) {
+    if (!wait && !finished[chunk]) {
+      return null;
+    }
+    Chunk parsed = tasks.get(chunk).join();
+    long start = starts.get(chunk);
+    if (start == -1) {
+      if (!certain(parsed)) {
+        return null;
+      }
+      start = parsed.start;
+    }
+    tasks.set(chunk, null);
+    if (parsed.start != start) {
+      /*
+       * The chunk was parsed from a line terminator inside a quoted value.
+       */
+      parsed = parse(chunk, start);
+    }
+    if (parsed.error != null) {
+      throw parsed.error;
+    }
+    if (metrics != null) {
+      metrics.converted(parsed.metrics);
+    }
+    if (chunk + 1 < chunkCount) {
+      starts.set(chunk + 1, parsed.next);
+    }
+    return parsed;
+  }
+
+  /**
+   * Whether the chunk was parsed from the start of its first record because no
+   * quote character occurs in the file before that start, making every line
+   * terminator before it the end of a record.
+   */
+  private boolean certain(Chunk parsed) {
+    while (quoteFree < chunkCount && scans.get(quoteFree) == NO_QUOTE) {
+      quoteFree++;
+    }
+    return parsed.start != -1
+        && parsed.index < quoteFree
+        && parsed.start <= Math.min((parsed.index + 1) * chunkSize, fileLength);
+  }
+
+  /**
+   * Submits the chunk for parsing. When not reading in order, its range is also
+   * searched for quote characters beforehand (see {@link #certain(Chunk)}).
+   */
+  private void submit(int chunk) {
+    tasks.set(chunk, pool.submit(() -> {
+      try {
+        if (!ordered) {
+          scan(chunk);
+        }
+        return parse(chunk, starts.get(chunk));
+      } finally {
+        completed.add(chunk);
+      }
+    }));
+  }
+
+  /**
+   * Records whether a quote character occurs in the byte range of the chunk.
+   */
+  private void scan(int chunk) {
+    long start = chunk * chunkSize;
+    long end = Math.min(start + chunkSize, fileLength);
+    boolean quotes;
+    try {
+      quotes = DelimitedTokenizer.contains(channel, start, end, quote);
+    } catch (IOException e) {
+      quotes = true;
+    }
+    scans.set(chunk, quotes ? QUOTES : NO_QUOTE);
+  }
+
+  /**
+   * Parses the records starting in the byte range of the chunk, from the
+   * specified start of its first record or, if it is -1, from the end of the
+   * line containing the byte before its range. Errors are kept in the chunk
+   * returned, as they only matter if the chunk was parsed from the right start.
+   */
+  private Chunk parse(int chunk, long start) {
+    long end = Math.min((chunk + 1) * chunkSize, fileLength);
+    Chunk parsed = new Chunk(chunk, metrics != null);
+    try {
+      DelimitedTokenizer in;
+      if (start == -1) {
+        in = new DelimitedTokenizer(channel, chunk * chunkSize - 1, charset, separator, quote, quoted,
+                                    format.maxRecordLength());
+        in.next();
+      } else {
+        in = new DelimitedTokenizer(channel, start, charset, separator, quote, quoted,
+                                    format.maxRecordLength());
+      }
+      parsed.start = in.position();
+      DelimitedLineParser parser = new DelimitedLineParser(format, schema, parsed.metrics);
+
+      /*
+       * Header lines, at the start of the first chunk, are not converted; blank
+       * lines are not counted as header lines when they are skipped.
+       */
+      int headerLines = chunk == 0 ? format.headerLines() : 0;
+      while (in.position() < end && in.next()) {
+        int row = parsed.lines % BATCH_SIZE;
+        if (row == 0) {
+          parsed.batches.add(new RowBatch(schema, BATCH_SIZE));
+        }
+        RowBatch lines = parsed.batches.get(parsed.batches.size() - 1);
+        parser.parse(in, lines, row, headerLines == 0);
+        if (headerLines > 0 && !(format.ignoreBlankLines() && lines.isBlank(row))) {
+          headerLines--;
+        }
+        parsed.lines++;
+      }
+      parsed.next = in.position();
+      parsed.bytes = parsed.next - parsed.start;
+      parsed.end = parsed.next >= fileLength;
+    } catch (IOException e) {
+      parsed.error = new UncheckedIOException(e);
+    } catch (RuntimeException e) {
+      parsed.error = e;
+    }
+    return parsed;
+  }
+
+  /**
+   * The lines parsed from a chunk, in batches of {@link #BATCH_SIZE} lines.
+   */
+  private static class Chunk {
+    Chunk(int index, boolean measured) {
+      this.index = index;
+      this.metrics = measured ? new ReaderMetrics() : null;
+    }
+
+    final int index;
+    final List<RowBatch> batches = new ArrayList<>();
+    int lines;
+    long bytes;
+
+    /**
+     * The positions of the first record of the chunk (-1 if it could not be
+     * found), and of the record following its last record.
+     */
+    long start = -1, next;
+
+    /**
+     * Whether the last line of the chunk reaches the end of the file.
+     */
+    boolean end;
+
+    /**
+     * The error which stopped the parsing of the chunk, if any.
+     */
+    RuntimeException error;
+
+    /**
+     * The conversions of the values of the chunk, added to the metrics of the
+     * reader when the chunk is returned; null if metrics are not kept.
+     */
+    final ReaderMetrics metrics;
+  }
+
+  /**
+   * The number of lines in the batches holding the lines of a chunk.
+   */
+  static final int BATCH_SIZE = 1024;
+
+  /**
+   * Bounds of the size of chunks: the file is split into about 4 chunks per
+   * thread, within these bounds, and chunks are made smaller if needed to keep
+   * the bytes of the chunks in the window within {@link #MAX_BYTES_AHEAD}.
+   */
+  static final long MIN_CHUNK_SIZE = 64 * 1024;
+  static final long MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * The maximum number of bytes of the file parsed in advance, whatever the
+   * parallelism: the lines of a chunk take several times its size in memory.
+   */
+  static final long MAX_BYTES_AHEAD = 64 * 1024 * 1024;
+
+  /**
+   * Whether the range of a chunk has not been searched for quotes yet, has no
+   * quotes, or has some.
+   */
+  private static final int NOT_SCANNED = 0, NO_QUOTE = 1, QUOTES = 2;
+
+  private final FileChannel channel;
+  private final long fileLength;
+  private final Charset charset;
+  private final char separator;
+  private final char quote;
+  private final Format format;
+  private final RowSchema schema;
+  private final ReaderMetrics metrics;
+  private final boolean ordered;
+
+  /**
+   * Whether values are expected to be quoted (see {@link DelimitedTokenizer}).
+   */
+  private final boolean quoted;
+
+  /**
+   * The maximum number of chunks submitted for parsing and not yet returned.
+   */
+  private final int window;
+
+  private final long chunkSize;
+  private final int chunkCount;
+  private final ForkJoinPool pool;
+
+  /**
+   * Parsing tasks by chunk; a task is removed when its chunk is returned.
+   */
+  private final List<ForkJoinTask<Chunk>> tasks;
+
+  /**
+   * The start of the first record of each chunk, once known (-1 before): the
+   * position following the last record of the previous chunk.
+   */
+  private final AtomicLongArray starts;
+
+  /**
+   * Whether the range of each chunk has quotes (see {@link #NOT_SCANNED}), and
+   * the number of chunks at the start of the file known to have none.
+   */
+  private final AtomicIntegerArray scans;
+  private int quoteFree;
+
+  /**
+   * Chunks whose parsing is complete, in order of completion, and the chunks
+   * taken from this queue.
+   */
+  private final LinkedBlockingQueue<Integer> completed = new LinkedBlockingQueue<>();
+  private final boolean[] finished;
+
+  /**
+   * Chunks reaching the end of the file, held back until all other chunks have
+   * been returned when not reading in order.
+   */
+  private final PriorityQueue<Chunk> deferred = new PriorityQueue<>(Comparator.comparingInt(c -> c.index));
+
+  /**
+   * Whether each chunk has been returned or held back, and the first chunk which
+   * has not.
+   */
+  private final boolean[] taken;
+  private int first;
+
+  /**
+   * Number of chunks submitted for parsing and returned.
+   */
+  private int submitted, delivered;
+
+  /**
+   * The chunk whose lines are being returned, and the next line to return in it.
+   */
+  private Chunk current;
+  private int cursor;
+
+  /**
+   * Lines and bytes in the chunks returned so far.
+   */
+  private long linesRead, bytesRead;
+}
@@ -0,0 +1,342 @@
+package ma.vi.datalines.text;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Splits the records of a delimited text read through a reader into fields, for
+ * texts which cannot be tokenized from their bytes by {@link DelimitedTokenizer}
+ * (streams, and files in other charsets). Records are split following the same
+ * rules (RFC 4180): quoted values can contain separators, line terminators and
+ * quotes doubled as escapes, so that records can span several lines.
+ * <p>
+ * Characters are read in a buffer which is reused from record to record and is
+ * only grown for records longer than it; fields are positions in the buffer,
+ * or in a scratch array for the fields which had quotes removed, until their
+ * values are requested. Records longer than a maximum length fail with their
+ * position, instead of growing the buffer up to the end of the text when a
+ * quote is never closed.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class DelimitedCharTokenizer implements DelimitedFields {
+  /**
+   * Creates a tokenizer reading records from the reader, which are split into
+   * fields at the separator or, if it is 0, not split, and are at most
+   * `maxRecordLength` characters long.
+   */
+  DelimitedCharTokenizer(Reader reader, char separator, char quote, int maxRecordLength) {
+    this.reader = reader;
+    this.maxRecordLength = maxRecordLength;
+    /*
+     * Line feeds end records before they are tested as separators.
+     */
+    this.separator = separator == 0 ? '\n' : separator;
+    this.quote = quote;
+  }
+
+  /**
+   * The number of characters of the text before the start of the next record.
+   */
+  long position() {
+    return base + pos;
+  }
+
+  /**
+   * Splits the next record into fields, returning false if there are no more
+   * records.
+   */
+  boolean next() throws IOException {
+    if (pos >= limit) {
+      fill();
+      if (pos >= limit) {
+        count = 0;
+        return false;
+      }
+    }
+
+    record:
+    while (true) {
+      count = 0;
+      scratchLength = 0;
+      char[] buffer = this.buffer;
+      int p = pos;
+      int fieldStart = p;
+      boolean quoted = false;
+
+      /*
+       * Fields with opening and closing quotes, which are removed from their
+       * values, are built in the scratch array starting at scratchFrom; `run` is
+       * the start of the characters not yet copied to the scratch array.
+       */
+      boolean inScratch = false;
+      int scratchFrom = 0;
+      int run = p;
+      while (true) {
+        int q = p;
+        if (quoted) {
+          while (q < limit && buffer[q] != quote) q++;
+        } else {
+          for (; q < limit; q++) {
+            char c = buffer[q];
+            if (c == separator || c == quote || c == '\n' || c == '\r') break;
+          }
+        }
+        if (q - pos > maxRecordLength) {
+          throw new IOException("Record longer than " + maxRecordLength + " characters at position " + position());
+        } else if (q + 1 >= limit && !eof) {
+          /*
+           * The record continues past the characters read, or the character
+           * after a quote or carriage return is needed: read more and tokenize
+           * the record again.
+           */
+          fill();
+          continue record;
+        } else if (q >= limit) {
+          /*
+           * Last record of the text, without a line terminator.
+           */
+          endField(fieldStart, limit, inScratch, scratchFrom, run, true);
+          pos = limit;
+          return true;
+        }
+
+        char c = buffer[q];
+        if (quoted) {
+          if (q + 1 < limit && buffer[q + 1] == quote) {
+            /*
+             * Escaped quote: keep the first one as part of the value.
+             */
+            append(run, q + 1);
+            run = p = q + 2;
+            continue;
+          }
+          /*
+           * End quote.
+           */
+          append(run, q);
+          run = q + 1;
+          quoted = false;
+
+        } else if (c == '\n' || c == '\r') {
+          endField(fieldStart, q, inScratch, scratchFrom, run, true);
+          pos = c == '\r' && q + 1 < limit && buffer[q + 1] == '\n' ? q + 2 : q + 1;
+          return true;
+
+        } else if (c == separator && c != quote) {
+          endField(fieldStart, q, inScratch, scratchFrom, run, false);
+          fieldStart = run = q + 1;
+          inScratch = false;
+
+        } else if (isBlank(fieldStart, q, inScratch, scratchFrom, run)) {
+          /*
+           * Start quote.
+           */
+          if (!inScratch) {
+            inScratch = true;
+            scratchFrom = scratchLength;
+            append(fieldStart, q);
+          } else {
+            append(run, q);
+          }
+          run = q + 1;
+          quoted = true;
+        }
+        /*
+         * Otherwise, a quote character in the middle of a field is part of its value.
+         */
+        p = q + 1;
+      }
+    }
+  }
+
+  @Override
+  public int fieldCount() {
+    return count;
+  }
+
+  @Override
+  public String field(int index) {
+    int start = starts[index];
+    return new String(scratched[index] ? scratch : buffer, start, ends[index] - start);
+  }
+
+  /**
+   * Returns the characters of the field at the specified index (0-based) in the
+   * current record, as a view over the buffer holding them which is only valid
+   * until the next call to this method.
+   */
+  @Override
+  public CharSequence chars(int index) {
+    int start = starts[index];
+    chars.set(scratched[index] ? scratch : buffer, start, ends[index] - start);
+    return chars;
+  }
+
+  /**
+   * A view over a range of characters of an array.
+   */
+  private static final class Chars implements CharSequence {
+    void set(char[] chars, int offset, int length) {
+      this.chars = chars;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return chars[offset + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return new String(chars, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+      return new String(chars, offset, length);
+    }
+
+    private char[] chars;
+    private int offset;
+    private int length;
+  }
+
+  /**
+   * Records the field ending at the specified position. A last empty field is
+   * not included in the record.
+   */
+  private void endField(int     fieldStart,
+                        int     end,
+                        boolean inScratch,
+                        int     scratchFrom,
+                        int     run,
+                        boolean last) {
+    int start;
+    if (inScratch) {
+      append(run, end);
+      start = scratchFrom;
+      end = scratchLength;
+    } else {
+      start = fieldStart;
+    }
+    if (!last || end > start) {
+      if (count == starts.length) {
+        starts    = Arrays.copyOf(starts, count * 2);
+        ends      = Arrays.copyOf(ends, count * 2);
+        scratched = Arrays.copyOf(scratched, count * 2);
+      }
+      starts[count] = start;
+      ends[count] = end;
+      scratched[count] = inScratch;
+      count++;
+    }
+  }
+
+  /**
+   * Returns true if the current field is blank up to the specified position,
+   * i.e. all of its characters so far are whitespace or control characters.
+   */
+  private boolean isBlank(int fieldStart, int end, boolean inScratch, int scratchFrom, int run) {
+    if (inScratch) {
+      for (int i = scratchFrom; i < scratchLength; i++) {
+        if (scratch[i] > ' ') return false;
+      }
+      fieldStart = run;
+    }
+    for (int i = fieldStart; i < end; i++) {
+      if (buffer[i] > ' ') return false;
+    }
+    return true;
+  }
+
+  /**
+   * Appends the characters of the buffer in the range to the scratch array.
+   */
+  private void append(int from, int to) {
+    int length = to - from;
+    if (scratchLength + length > scratch.length) {
+      scratch = Arrays.copyOf(scratch, Math.max(scratchLength + length, scratch.length * 2));
+    }
+    System.arraycopy(buffer, from, scratch, scratchLength, length);
+    scratchLength += length;
+  }
+
+  /**
+   * Reads more characters after the ones in the buffer, first moving the current
+   * record to the start of the buffer, and doubling the size of the buffer if
+   * the record fills it.
+   */
+  private void fill() throws IOException {
+    if (pos > 0) {
+      System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+      base += pos;
+      limit -= pos;
+      pos = 0;
+    }
+    if (limit == buffer.length) {
+      if (buffer.length == MAX_BUFFER) {
+        throw new IOException("Record longer than " + MAX_BUFFER + " characters at position " + base);
+      }
+      buffer = Arrays.copyOf(buffer, (int)Math.min((long)buffer.length * 2, MAX_BUFFER));
+    }
+    int read = reader.read(buffer, limit, buffer.length - limit);
+    if (read == -1) {
+      eof = true;
+    } else {
+      limit += read;
+    }
+  }
+
+  /**
+   * Default and maximum size of the buffer.
+   */
+  static final int BUFFER = 64 * 1024;
+  static final int MAX_BUFFER = Integer.MAX_VALUE - 8;
+
+  private final Reader reader;
+  private final char separator;
+  private final char quote;
+  private final int maxRecordLength;
+
+  /**
+   * The characters read, of which the ones in [pos, limit) are not tokenized
+   * yet; `base` is the number of characters of the text before the buffer.
+   */
+  private char[] buffer = new char[BUFFER];
+  private long base;
+  private int pos;
+  private int limit;
+
+  /**
+   * Whether the end of the text was reached.
+   */
+  private boolean eof;
+
+  /**
+   * Start and end of the fields of the current record, in the buffer or, if
+   * they had quotes removed, in the scratch array.
+   */
+  private int count;
+  private int[] starts = new int[16];
+  private int[] ends = new int[16];
+  private boolean[] scratched = new boolean[16];
+
+  /**
+   * Holds the values of the fields with quotes removed in the current record.
+   */
+  private char[] scratch = new char[256];
+  private int scratchLength;
+
+  /**
+   * The view returned by {@link #chars(int)}.
+   */
+  private final Chars chars = new Chars();
+}
\ No newline at end of file
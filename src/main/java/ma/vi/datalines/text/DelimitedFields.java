@@ -0,0 +1,29 @@
+package ma.vi.datalines.text;
+
+/**
+ * The fields of the current record of a delimited text, as split by a
+ * {@link DelimitedTokenizer} from the bytes of a file or by a
+ * {@link DelimitedCharTokenizer} from the characters of a reader.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+interface DelimitedFields {
+  /**
+   * The number of fields in the current record.
+   */
+  int fieldCount();
+
+  /**
+   * Returns the value of the field at the specified index (0-based) in the
+   * current record.
+   */
+  String field(int index);
+
+  /**
+   * Returns the characters of the field at the specified index (0-based) in the
+   * current record, for parsing it without creating a string: the sequence
+   * returned may be a view which is only valid until the next call to this
+   * method.
+   */
+  CharSequence chars(int index);
+}
\ No newline at end of file
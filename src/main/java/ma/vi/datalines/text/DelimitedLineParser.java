@@ -0,0 +1,78 @@
+package ma.vi.datalines.text;
+
+import ma.vi.datalines.ColumnConverter;
+import ma.vi.datalines.ReaderMetrics;
+import ma.vi.datalines.Format;
+import ma.vi.datalines.RowBatch;
+import ma.vi.datalines.RowSchema;
+
+/**
+ * Writes the fields of the records of a delimited text, split by a
+ * {@link DelimitedTokenizer} or a {@link DelimitedCharTokenizer}, into lines of a
+ * {@link RowBatch}. Values are converted with the {@link ColumnConverter}s of the
+ * columns of the format, at the same position. Fields of columns which are not
+ * projected (see {@link RowSchema#projects(int)}) are skipped without being
+ * decoded. A parser must not be shared
+ * between threads: when a file is read in parallel, each chunk of the file is
+ * parsed with its own parser. Conversions are measured
+ * in the metrics of the reader, when it keeps them.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class DelimitedLineParser {
+  DelimitedLineParser(Format format, RowSchema schema, ReaderMetrics metrics) {
+    this.format = format;
+    this.schema = schema;
+    this.converters = format == null
+                    ? new ColumnConverter[0]
+                    : format.columns().stream()
+                            .map(ColumnConverter::of)
+                            .map(c -> c == null || metrics == null ? c : c.measured(metrics))
+                            .toArray(ColumnConverter[]::new);
+  }
+
+  /**
+   * Writes the fields of the current record of the tokenizer into the specified
+   * line of the batch.
+   */
+  void parse(DelimitedFields tokens,
+             RowBatch        lines,
+             int             row,
+             boolean         convertToColumnType) {
+    for (int i = 0; i < tokens.fieldCount(); i++) {
+      if (!schema.projects(i)) {
+        continue;
+      }
+      ColumnConverter converter = converter(i, convertToColumnType);
+      if (converter == null || converter.isText()) {
+        lines.set(row, i, tokens.field(i));
+      } else {
+        CharSequence value = tokens.chars(i);
+        converter.set(lines, row, i, value, 0, value.length());
+      }
+    }
+  }
+
+  /**
+   * The converter of the column at the position, or null if its values are not
+   * to be converted.
+   */
+  private ColumnConverter converter(int pos, boolean convertToColumnType) {
+    return convertToColumnType && pos < converters.length ? converters[pos] : null;
+  }
+
+  /**
+   * The format of the file parsed, providing the columns to convert values to.
+   */
+  final Format format;
+
+  /**
+   * The schema of the lines, providing the columns projected.
+   */
+  private final RowSchema schema;
+
+  /**
+   * Converters compiled for the columns of the format, by position.
+   */
+  private final ColumnConverter[] converters;
+}
\ No newline at end of file
@@ -1,19 +1,43 @@
 package ma.vi.datalines.text;
 
-import ma.vi.base.util.Convert;
 import ma.vi.datalines.Column;
+import ma.vi.datalines.ColumnConverter;
 import ma.vi.datalines.Format;
+import ma.vi.datalines.ReaderMetrics;
+import ma.vi.datalines.RowBatch;
 
 import java.io.File;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.logging.Logger;
 
 import static ma.vi.datalines.Format.DEFAULT_COLUMN_QUOTE;
 import static ma.vi.datalines.Format.DEFAULT_COLUMN_SEP;
 
 /**
- * A line reader for reading character-delimited text files.
+ * A line reader for reading character-delimited text files. Files in UTF-8 or
+ * single-byte charsets are tokenized directly from their bytes mapped in memory
+ * (see {@link DelimitedTokenizer}); others, and streams, are tokenized from their
+ * characters (see {@link DelimitedCharTokenizer}). Both split records following
+ * RFC 4180, where quoted values can span several lines and contain quotes
+ * escaped by doubling them; each record is returned as one line. When the format
+ * specifies a {@link Format#parallelism()} greater than 1, the file is split
+ * into chunks which are parsed in parallel, returning lines in file order or,
+ * if the format is not {@link Format#ordered()}, as soon as they are parsed.
+ * <p>
+ * The separator and quote characters used, among the ones of the format, and
+ * whether the file has a header line when it is read without a format, are
+ * detected from the first lines of the file (see {@link Dialect}); files with no
+ * quoted values in these lines are tokenized without looking for quotes except
+ * at the start of fields. When reading in parallel, chunks starting in the
+ * middle of quoted values spanning lines are detected and parsed again from the
+ * start of their first record (see {@link ChunkedDelimitedInput}).
  *
  * @author vikash.madhow@gmail.com
  */
@@ -29,99 +53,292 @@ public class DelimitedTextLineReader extends TextLineReader {
   }
 
   @Override
-  protected Map<String, Object> nextLine(boolean convertToColumnType) {
+  public void openFile(File inputFile, String fileName, Format format) {
+    /*
+     * Files in charsets where the separator, quote and line terminators are
+     * single bytes are tokenized directly from the bytes of the file mapped in
+     * memory, instead of through the reader (see records(Charset)), and are
+     * thus not opened line by line. The dialect of the file is detected from
+     * its first lines beforehand.
+     */
+    Charset charset = Charset.defaultCharset();
+    boolean mapped;
+    try (Reader in = new FileReader(inputFile)) {
+      sniff(in, format);
+      mapped = prepare(inputFile, format, charset);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Could not open text file '" + fileName + "'. Reason: " + e, e);
+    }
+
+    parallelism = format != null ? format.parallelism() : 1;
+    if (mapped) {
+      this.file = inputFile;
+      this.charset = charset;
+    } else {
+      super.openFile(inputFile, fileName, format);
+      if (parallelism > 1) {
+        log.warning("Cannot split '" + fileName + "' in " + charset + " for parallel reading; reading sequentially");
+      }
+    }
+  }
+
+  /**
+   * Detects the dialect of the text from the start of the stream, which is
+   * then read from the start.
+   */
+  @Override
+  protected void openStream(InputStream input, String fileName, Format format) {
+    super.openStream(input, fileName, format);
+    try {
+      reader.mark(Dialect.SAMPLE_CHARS);
+      sniff(reader, format);
+      reader.reset();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Could not read text stream '" + fileName + "'. Reason: " + e, e);
+    }
+  }
+
+  /**
+   * Detects the dialect of the text among the separators and quote of the
+   * format, or the default separators and the double and single quotes if
+   * there is no format.
+   */
+  private void sniff(Reader in, Format format) throws IOException {
+    dialect = Dialect.sniff(in,
+                            format != null ? format.columnSeparatorChars() : DEFAULT_COLUMN_SEP,
+                            format != null ? new char[]{format.columnQuoteChar()} : new char[]{'"', '\''});
+    if (dialect != null) {
+      separator = dialect.separator();
+      log.info("Using " + separator + " as column separator and " + dialect.quote() + " as quote");
+    }
+    quote = dialect != null ? dialect.quote()
+          : format != null  ? format.columnQuoteChar()
+          :                   DEFAULT_COLUMN_QUOTE;
+  }
+
+  /**
+   * Records are split from the bytes of the file by {@link DelimitedTokenizer},
+   * when its charset, separator and quote allow it, and indexed by these.
+   */
+  @Override
+  protected String records(Charset charset) {
+    return separator != 0 && DelimitedTokenizer.supports(charset, separator, quote)
+         ? "delimited " + charset.name() + ' ' + (int)separator + ' ' + (int)quote
+         : null;
+  }
+
+  /**
+   * The dialect detected from the first lines of the input, or null if the input
+   * is empty.
+   */
+  public Dialect dialect() {
+    return dialect;
+  }
+
+  @Override
+  protected boolean hasHeaderLine() {
+    return dialect == null || dialect.header();
+  }
+
+  /**
+   * Restricts the format to the separator and quote detected in the input.
+   */
+  @Override
+  protected Format resolve(Format format) {
+    return dialect == null || dialect.separator() == 0
+         ? format
+         : format.withDialect(dialect.separator(), dialect.quote());
+  }
+
+  @Override
+  protected LineType nextLine(RowBatch lines, int row, boolean convertToColumnType) {
     try {
-      String line = reader.readLine();
-      linesRead++;
-      if (line == null) {
-        return null;
-      } else {
-        if (separator == 0) {
-          /*
-           * Using more than one character as a separator can lead to errors in
-           * parsing the file. Instead, use the first one appearing in the first
-           * line for the file.
-           */
-          int closestSeparator = Integer.MAX_VALUE;
-          char[] separators = format != null ? format.columnSeparatorChars() : DEFAULT_COLUMN_SEP;
-          for (char c: separators) {
-            int pos = line.indexOf(c);
-            if (pos != -1 && pos < closestSeparator) {
-              closestSeparator = pos;
-              separator = c;
-            }
+      if (file != null && parallelism > 1) {
+        /*
+         * Reading in parallel: lines are parsed and converted to their column
+         * types in advance, except for header lines.
+         */
+        if (chunks == null) {
+          chunks = new ChunkedDelimitedInput(file, charset, separator, quote, format,
+                                             schema, parallelism, format.ordered(), quoted(), metrics());
+        }
+        if (chunks.next(lines, row)) {
+          ReaderMetrics metrics = metrics();
+          if (metrics != null && chunks.bytesRead() > chunkBytes) {
+            metrics.read(chunks.bytesRead() - chunkBytes, 0);
+            chunkBytes = chunks.bytesRead();
+          }
+          long estimate = chunks.estimateTotalLines();
+          if (estimate != -1) {
+            estimateTotalLines = estimate;
           }
-          log.info("Using " + separator + " as column separator");
+          return LineType.LINE;
         }
+        return LineType.END;
+      }
 
-        totalCharactersRead += line.length();
-        if (totalCharactersRead > 0) {
-          long averageLineLength = totalCharactersRead / linesRead;
-          estimateTotalLines = fileLength / averageLineLength;
-        }
+      if (parser == null || parser.format != format) {
+        parser = new DelimitedLineParser(format, schema, metrics());
+      }
 
-        int i = 1;
-        boolean quoted = false;
-        Map<String, Object> row = new LinkedHashMap<>();
-        StringBuilder column = new StringBuilder();
-        for (char c: line.toCharArray()) {
-          if (c == (format != null ? format.columnQuoteChar() : DEFAULT_COLUMN_QUOTE)) {
-            if (quoted) {
-              /*
-               * End quote.
-               */
-              quoted = false;
-            } else if (column.toString().trim().length() == 0) {
-              /*
-               * Start quote.
-               */
-              quoted = true;
-            } else {
-              /*
-               * A quote character has been found in the middle of a column. Just
-               * add to the column, without changing the quote status.
-               */
-              column.append(c);
-            }
-          } else if (c == separator) {
-            if (quoted) {
-              /*
-               * Separator char found inside a quoted string, append.
-               */
-              column.append(c);
-            } else {
-              row.put(String.valueOf(i++),
-                      convertValue(column.toString(), row.size(), convertToColumnType));
-              column.delete(0, column.length());
-            }
-          } else {
-            column.append(c);
-          }
+      if (file != null) {
+        DelimitedTokenizer tokens = tokens();
+        long position = tokens.position();
+        if (!tokens.next()) {
+          return LineType.END;
         }
-        if (column.length() > 0) {
-          row.put(String.valueOf(i),
-                  convertValue(column.toString(), row.size(), convertToColumnType));
+        recordAt(position);
+        estimate(tokens.position());
+        ReaderMetrics metrics = metrics();
+        if (metrics != null) {
+          metrics.read(tokens.position() - position, 0);
         }
-        return row;
+        parser.parse(tokens, lines, row, convertToColumnType);
+        return LineType.LINE;
       }
+
+      DelimitedCharTokenizer chars = chars();
+      long position = chars.position();
+      if (!chars.next()) {
+        return LineType.END;
+      }
+      recordRead(chars.position() - position);
+      parser.parse(chars, lines, row, convertToColumnType);
+      return LineType.LINE;
     } catch (Exception e) {
       throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
     }
   }
 
-  private Object convertValue(Object value, int pos, boolean convertToColumnType) {
-    if (convertToColumnType && format != null && format.columns().size() > pos) {
-      value = convertValue(value, format.columns().get(pos));
+  /**
+   * Returns the tokenizer over the file, opening it on the first call.
+   */
+  private DelimitedTokenizer tokens() throws IOException {
+    if (tokens == null) {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      tokens = new DelimitedTokenizer(channel, 0, charset, separator, quote, quoted(), maxRecordLength());
+    }
+    return tokens;
+  }
+
+  /**
+   * Whether quotes must be looked for everywhere in lines.
+   */
+  private boolean quoted() {
+    return dialect == null || dialect.quoted();
+  }
+
+  /**
+   * The maximum length of records, from the format once set (lines are read to
+   * derive the format when none is given).
+   */
+  private int maxRecordLength() {
+    return format == null ? Format.DEFAULT_MAX_RECORD_LENGTH : format.maxRecordLength();
+  }
+
+  /**
+   * Returns the tokenizer over the reader, created on the first call.
+   */
+  private DelimitedCharTokenizer chars() {
+    if (chars == null) {
+      chars = new DelimitedCharTokenizer(reader, separator, quote, maxRecordLength());
     }
-    return value;
+    return chars;
   }
 
-  protected static Object convertValue(Object value, Column col) {
-    if (col != null && col.type() != null) {
-      try                 { value = Convert.toType(value, col.type()); }
-      catch (Exception e) { log.warning("Could not convert " + value + " to " + col.type()); }
+  @Override
+  protected boolean skipRecord() throws IOException {
+    if (file != null) {
+      DelimitedTokenizer tokens = tokens();
+      long position = tokens.position();
+      if (tokens.next()) {
+        recordAt(position);
+        return true;
+      }
+      return false;
+    }
+    DelimitedCharTokenizer chars = chars();
+    long position = chars.position();
+    if (chars.next()) {
+      recordRead(chars.position() - position);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  protected void reposition(long position) throws IOException {
+    if (file != null) {
+      tokens();
+      tokens = new DelimitedTokenizer(channel, position, charset, separator, quote, quoted(), maxRecordLength());
+    } else {
+      super.reposition(position);
+      chars = null;
+    }
+  }
+
+  /**
+   * Counts the records of the file when quoted values, which may span lines,
+   * were found in its first lines, by tokenizing it without parsing its values;
+   * other files are counted as lines (see {@link TextLineReader#countLines()}).
+   */
+  @Override
+  public long countLines() {
+    if (file == null || !quoted()) {
+      return super.countLines();
+    }
+    if (recordCount == -1) {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        DelimitedTokenizer tokens = new DelimitedTokenizer(channel, 0, charset, separator, quote, true,
+                                                           maxRecordLength());
+        long count = 0;
+        while (tokens.next()) {
+          count++;
+        }
+        recordCount = count;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return recordCount;
+  }
+
+  @Override
+  public long estimateTotalLines() {
+    return recordCount != -1 ? recordCount : super.estimateTotalLines();
+  }
+
+  /**
+   * Files read in parallel cannot be moved.
+   */
+  @Override
+  protected boolean seekable() {
+    return super.seekable() && (file == null || parallelism <= 1);
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    if (chunks != null) {
+      chunks.close();
+    }
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
     }
-    return value;
+  }
+
+  /**
+   * Converts the value to the type of the column. This compiles the converter of
+   * the column on every call: readers convert values with the converters
+   * compiled once for their columns instead (see {@link ColumnConverter}).
+   */
+  protected static Object convertValue(Object value, Column col) {
+    ColumnConverter converter = ColumnConverter.of(col);
+    return converter == null ? value : converter.convert(value);
   }
 
   /**
@@ -131,16 +348,61 @@ public class DelimitedTextLineReader extends TextLineReader {
   private char separator = 0;
 
   /**
-   * The total number of characters read up to the current line, used to estimate
-   * the number of lines in the file.
+   * The dialect detected from the first lines of the input.
+   */
+  private Dialect dialect;
+
+  /**
+   * Parses records read sequentially, recreated if the format changes (when it
+   * is derived from the header line).
+   */
+  private DelimitedLineParser parser;
+
+  /**
+   * The quote character used for the current file.
+   */
+  private char quote;
+
+  /**
+   * The file being read and its charset, when it is tokenized from its bytes;
+   * null if it is read through the reader.
+   */
+  private File file;
+  private Charset charset;
+
+  /**
+   * The tokenizer over the reader, when the file is not tokenized from its
+   * bytes, created when the first line is read.
+   */
+  private DelimitedCharTokenizer chars;
+
+  /**
+   * The number of records in the file, once counted with {@link #countLines()}.
+   */
+  private long recordCount = -1;
+
+  /**
+   * The number of threads reading the file.
+   */
+  private int parallelism;
+
+  /**
+   * The tokenizer over the file mapped in memory and its channel, created when
+   * the first line is read.
+   */
+  private FileChannel channel;
+  private DelimitedTokenizer tokens;
+
+  /**
+   * The chunks of the file being read in parallel, created when the first line
+   * is read.
    */
-  private long totalCharactersRead = 0;
+  private ChunkedDelimitedInput chunks;
 
   /**
-   * The number of lines read up to that point, used to estimate the number of
-   * lines in the file.
+   * The bytes of the chunks read recorded in the metrics of the reader.
    */
-  private long linesRead = 0;
+  private long chunkBytes;
 
   private static final Logger log = Logger.getLogger(DelimitedTextLineReader.class.getName());
 }
\ No newline at end of file
@@ -0,0 +1,566 @@
+package ma.vi.datalines.text;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Splits the records of a delimited text file into fields, working directly on
+ * the bytes of the file mapped in memory. Separators, quotes and line terminators
+ * are located 8 bytes at a time by testing every byte of a long word against
+ * each of them at once (SWAR); the bytes between them are only decoded when
+ * the value of a field is requested with {@link #field(int)}.
+ * <p>
+ * Records are split into fields following RFC 4180, as {@link DelimitedCharTokenizer}
+ * does: records end at `\n`, `\r` or `\r\n` outside quoted values, a quote
+ * starts a quoted value only when the field so far is blank, a quoted value ends
+ * at the next single quote (or at the end of the file) and can thus contain
+ * separators and line terminators, two quotes in a quoted value stand for one
+ * quote, quotes elsewhere are part of the value and a last empty field is not
+ * included in the record. This requires a charset where the separator, the quote
+ * and the line terminators are single bytes which are not part of the encoding
+ * of any other character (see {@link #supports(Charset, char, char)}).
+ * <p>
+ * Files whose values are not expected to be quoted (see {@link Dialect#quoted()})
+ * are tokenized looking only for separators and line terminators: quotes then
+ * only need to be looked for at the start of each field, since a quote anywhere
+ * else is part of the value, and the rest of a record is tokenized looking for
+ * quotes from the first field starting with one.
+ * <p>
+ * The file is mapped in windows which are moved forward as records are read.
+ * Records longer than a maximum length fail with their position in the file,
+ * so that a quote which is never closed does not extend a record to the end of
+ * a large file.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class DelimitedTokenizer implements DelimitedFields {
+  /**
+   * Creates a tokenizer reading records starting at the specified position of the
+   * file.
+   *
+   * @param quoted Whether values are expected to be quoted in the file.
+   * @param maxRecordLength The maximum length of a record, in bytes.
+   */
+  DelimitedTokenizer(FileChannel channel,
+                     long        position,
+                     Charset     charset,
+                     char        separator,
+                     char        quote,
+                     boolean     quoted,
+                     int         maxRecordLength) throws IOException {
+    this.channel = channel;
+    this.quoted = quoted;
+    this.maxRecordLength = maxRecordLength;
+    this.fileLength = channel.size();
+    this.base = position;
+    this.charset = charset;
+    this.separator = (byte)separator;
+    this.quote = (byte)quote;
+    this.separators = pattern(separator);
+    this.quotes = pattern(quote);
+    this.asciiCompatible = charset.equals(UTF_8) || Arrays.equals(PRINTABLE_ASCII.getBytes(charset),
+                                                                  PRINTABLE_ASCII.getBytes(ISO_8859_1));
+  }
+
+  /**
+   * Returns true if files in the charset can be tokenized at the byte level
+   * with the separator and quote characters: this is the case when these and the
+   * line terminators are ASCII characters encoded as themselves, in UTF-8 or a
+   * single-byte charset (such as the ISO-8859 and Windows charsets).
+   */
+  static boolean supports(Charset charset, char separator, char quote) {
+    return (charset.equals(UTF_8) || charset.newEncoder().maxBytesPerChar() == 1)
+        && encodedAsIs('\r', charset)
+        && encodedAsIs('\n', charset)
+        && encodedAsIs(separator, charset)
+        && encodedAsIs(quote, charset)
+        && separator != '\r' && separator != '\n'
+        && quote != '\r' && quote != '\n';
+  }
+
+  private static boolean encodedAsIs(char c, Charset charset) {
+    return c > 0 && c < 0x80
+        && Arrays.equals(String.valueOf(c).getBytes(charset), new byte[]{(byte)c});
+  }
+
+  /**
+   * The position in the file of the start of the next record.
+   */
+  long position() {
+    return base + pos;
+  }
+
+  /**
+   * Splits the next record into fields, returning false if there are no more
+   * records.
+   */
+  boolean next() throws IOException {
+    if (buffer == null || (pos >= limit && base + limit < fileLength)) {
+      map(pos);
+    }
+    if (base + pos >= fileLength) {
+      count = 0;
+      return false;
+    }
+
+    /*
+     * Whether quotes are looked for in the rest of the record.
+     */
+    boolean quotes = this.quoted;
+
+    line:
+    while (true) {
+      count = 0;
+      scratchLength = 0;
+      int p = pos;
+      int fieldStart = p;
+      boolean quoted = false;
+      if (!quotes) {
+        quotes = quoteAt(p);
+      }
+
+      /*
+       * Fields with opening and closing quotes, which are removed from their
+       * values, are built in the scratch array starting at scratchFrom; `run` is
+       * the start of the bytes not yet copied to the scratch array.
+       */
+      boolean inScratch = false;
+      int scratchFrom = 0;
+      int run = p;
+      while (true) {
+        int q = quotes ? find(p) : findUnquoted(p);
+        if (q - pos > maxRecordLength) {
+          throw new IOException("Record longer than " + maxRecordLength + " bytes at position " + position());
+        } else if (q + 1 >= limit && base + limit < fileLength) {
+          /*
+           * The record continues past the mapped window, or the byte after a
+           * quote or carriage return is needed: remap from the start of the
+           * record and tokenize the record again.
+           */
+          map(pos);
+          continue line;
+        } else if (q >= limit) {
+          /*
+           * Last record of the file, without a line terminator.
+           */
+          endField(fieldStart, limit, inScratch, scratchFrom, run, true);
+          pos = limit;
+          return true;
+        }
+
+        byte b = buffer.get(q);
+        if (quoted) {
+          if (b == quote) {
+            if (q + 1 < limit && buffer.get(q + 1) == quote) {
+              /*
+               * Escaped quote: keep the first one as part of the value.
+               */
+              append(run, q + 1);
+              run = p = q + 2;
+              continue;
+            }
+            /*
+             * End quote.
+             */
+            append(run, q);
+            run = q + 1;
+            quoted = false;
+          }
+          /*
+           * Otherwise, separators and line terminators are part of the quoted value.
+           */
+
+        } else if (b == '\n' || b == '\r') {
+          endField(fieldStart, q, inScratch, scratchFrom, run, true);
+          pos = b == '\r' && q + 1 < limit && buffer.get(q + 1) == '\n' ? q + 2 : q + 1;
+          return true;
+
+        } else if (b == separator && b != quote) {
+          endField(fieldStart, q, inScratch, scratchFrom, run, false);
+          fieldStart = run = q + 1;
+          inScratch = false;
+          if (!quotes) {
+            quotes = quoteAt(fieldStart);
+          }
+
+        } else if (isBlank(fieldStart, q, inScratch, scratchFrom, run)) {
+          /*
+           * Start quote.
+           */
+          if (!inScratch) {
+            inScratch = true;
+            scratchFrom = scratchLength;
+            append(fieldStart, q);
+          } else {
+            append(run, q);
+          }
+          run = q + 1;
+          quoted = true;
+        }
+        /*
+         * Otherwise, a quote character in the middle of a field is part of its value.
+         */
+        p = q + 1;
+      }
+    }
+  }
+
+  @Override
+  public int fieldCount() {
+    return count;
+  }
+
+  /**
+   * Decodes and returns the value of the field at the specified index (0-based)
+   * in the current record.
+   */
+  @Override
+  public String field(int index) {
+    int start = starts[index];
+    int length = ends[index] - start;
+    if (scratched[index]) {
+      return new String(scratch, start, length, charset);
+    } else {
+      if (decode.length < length) {
+        decode = new byte[Math.max(length, decode.length * 2)];
+      }
+      buffer.get(start, decode, 0, length);
+      return new String(decode, 0, length, charset);
+    }
+  }
+
+  /**
+   * Returns the characters of the field at the specified index (0-based) in the
+   * current record, for parsing it without creating a string: the sequence
+   * returned is a view over the bytes of the field when they are all ASCII
+   * characters, which is only valid until the next call to this method.
+   */
+  @Override
+  public CharSequence chars(int index) {
+    int start = starts[index];
+    int length = ends[index] - start;
+    byte[] bytes;
+    if (scratched[index]) {
+      bytes = scratch;
+    } else {
+      if (decode.length < length) {
+        decode = new byte[Math.max(length, decode.length * 2)];
+      }
+      buffer.get(start, decode, 0, length);
+      bytes = decode;
+      start = 0;
+    }
+    if (!asciiCompatible) {
+      return new String(bytes, start, length, charset);
+    }
+    for (int i = start; i < start + length; i++) {
+      if (bytes[i] < 0) {
+        return new String(bytes, start, length, charset);
+      }
+    }
+    ascii.set(bytes, start, length);
+    return ascii;
+  }
+
+  /**
+   * A view over a range of ASCII bytes as characters.
+   */
+  private static final class AsciiChars implements CharSequence {
+    void set(byte[] bytes, int offset, int length) {
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char)bytes[offset + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return new String(bytes, offset + start, end - start, ISO_8859_1);
+    }
+
+    @Override
+    public String toString() {
+      return new String(bytes, offset, length, ISO_8859_1);
+    }
+
+    private byte[] bytes;
+    private int offset;
+    private int length;
+  }
+
+  /**
+   * Records the field ending at the specified position. A last empty field is
+   * not included in the record.
+   */
+  private void endField(int     fieldStart,
+                        int     end,
+                        boolean inScratch,
+                        int     scratchFrom,
+                        int     run,
+                        boolean last) {
+    int start;
+    if (inScratch) {
+      append(run, end);
+      start = scratchFrom;
+      end = scratchLength;
+    } else {
+      start = fieldStart;
+    }
+    if (!last || end > start) {
+      if (count == starts.length) {
+        starts    = Arrays.copyOf(starts, count * 2);
+        ends      = Arrays.copyOf(ends, count * 2);
+        scratched = Arrays.copyOf(scratched, count * 2);
+      }
+      starts[count] = start;
+      ends[count] = end;
+      scratched[count] = inScratch;
+      count++;
+    }
+  }
+
+  /**
+   * Returns true if the current field is blank up to the specified position,
+   * i.e. all of its bytes so far are whitespace or control characters.
+   */
+  private boolean isBlank(int fieldStart, int end, boolean inScratch, int scratchFrom, int run) {
+    if (inScratch) {
+      for (int i = scratchFrom; i < scratchLength; i++) {
+        if ((scratch[i] & 0xff) > ' ') return false;
+      }
+      fieldStart = run;
+    }
+    for (int i = fieldStart; i < end; i++) {
+      if ((buffer.get(i) & 0xff) > ' ') return false;
+    }
+    return true;
+  }
+
+  /**
+   * Appends the bytes of the mapped window in the range to the scratch array.
+   */
+  private void append(int from, int to) {
+    int length = to - from;
+    if (scratchLength + length > scratch.length) {
+      scratch = Arrays.copyOf(scratch, Math.max(scratchLength + length, scratch.length * 2));
+    }
+    buffer.get(from, scratch, scratchLength, length);
+    scratchLength += length;
+  }
+
+  /**
+   * Returns the position of the first separator, quote or line terminator
+   * at or after `p` in the mapped window, or the end of the window if there are
+   * none.
+   */
+  private int find(int p) {
+    ByteBuffer buffer = this.buffer;
+    while (p + 8 <= limit) {
+      long word = buffer.getLong(p);
+      long found = matches(word, separators)
+                 | matches(word, quotes)
+                 | matches(word, LINE_FEEDS)
+                 | matches(word, CARRIAGE_RETURNS);
+      if (found != 0) {
+        return p + (Long.numberOfTrailingZeros(found) >>> 3);
+      }
+      p += 8;
+    }
+    for (; p < limit; p++) {
+      byte b = buffer.get(p);
+      if (b == separator || b == quote || b == '\n' || b == '\r') {
+        return p;
+      }
+    }
+    return limit;
+  }
+
+  /**
+   * Returns the position of the first separator or line terminator at or after
+   * `p` in the mapped window, or the end of the window if there are none.
+   */
+  private int findUnquoted(int p) {
+    ByteBuffer buffer = this.buffer;
+    while (p + 8 <= limit) {
+      long word = buffer.getLong(p);
+      long found = matches(word, separators)
+                 | matches(word, LINE_FEEDS)
+                 | matches(word, CARRIAGE_RETURNS);
+      if (found != 0) {
+        return p + (Long.numberOfTrailingZeros(found) >>> 3);
+      }
+      p += 8;
+    }
+    for (; p < limit; p++) {
+      byte b = buffer.get(p);
+      if (b == separator || b == '\n' || b == '\r') {
+        return p;
+      }
+    }
+    return limit;
+  }
+
+  /**
+   * Returns true if the field starting at `p` starts with a quote, after blanks,
+   * or if this cannot be known before the end of the mapped window.
+   */
+  private boolean quoteAt(int p) {
+    for (; p < limit; p++) {
+      byte b = buffer.get(p);
+      if (b == quote) {
+        return true;
+      } else if (b == separator || b == '\n' || b == '\r' || (b & 0xff) > ' ') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the character, encoded as a single byte, occurs in the byte
+   * range of the file.
+   */
+  static boolean contains(FileChannel channel, long from, long to, char c) throws IOException {
+    ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from)
+                              .order(ByteOrder.LITTLE_ENDIAN);
+    long pattern = pattern(c);
+    int length = bytes.limit();
+    int i = 0;
+    for (; i + 8 <= length; i += 8) {
+      if (matches(bytes.getLong(i), pattern) != 0) {
+        return true;
+      }
+    }
+    for (; i < length; i++) {
+      if (bytes.get(i) == (byte)c) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sets the high bit of the bytes of the word equal to the byte repeated in the
+   * pattern. The lowest byte marked is always a match, while higher bytes may be
+   * falsely marked; this is sufficient for finding the first match in the word.
+   */
+  private static long matches(long word, long pattern) {
+    long x = word ^ pattern;
+    return (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+  }
+
+  private static long pattern(char c) {
+    return (c & 0xffL) * 0x0101010101010101L;
+  }
+
+  /**
+   * Maps the window of the file starting at the specified position in the
+   * current window. The size of the window is doubled when a single record does
+   * not fit in it.
+   */
+  private void map(int from) throws IOException {
+    if (buffer != null && from == 0) {
+      if (window == MAX_WINDOW) {
+        throw new IOException("Record longer than " + MAX_WINDOW + " bytes at position " + base);
+      }
+      window = (int)Math.min((long)window * 2, MAX_WINDOW);
+    }
+    base += from;
+    limit = (int)Math.min(window, fileLength - base);
+    buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, limit)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+    pos = 0;
+  }
+
+  private static final long LINE_FEEDS = pattern('\n');
+  private static final String PRINTABLE_ASCII =
+      " !\"#$%&'()*+,-./0123456789:;<=>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[\\]^_`abcdefghijklmnopqrstuvwxyz{|}~";
+  private static final long CARRIAGE_RETURNS = pattern('\r');
+
+  /**
+   * Default and maximum size of the mapped windows over the file.
+   */
+  static final int WINDOW = 64 * 1024 * 1024;
+  static final int MAX_WINDOW = Integer.MAX_VALUE - 8;
+
+  private final FileChannel channel;
+  private final long fileLength;
+  private final Charset charset;
+  private final byte separator;
+  private final byte quote;
+
+  /**
+   * Whether values are expected to be quoted, in which case quotes are looked
+   * for everywhere in records.
+   */
+  private final boolean quoted;
+
+  private final int maxRecordLength;
+
+  /**
+   * Whether printable ASCII characters are encoded as themselves in the charset,
+   * so that fields of such characters can be viewed without decoding them.
+   */
+  private final boolean asciiCompatible;
+
+  /**
+   * The separator and quote repeated in every byte of a long.
+   */
+  private final long separators;
+  private final long quotes;
+
+  /**
+   * The mapped window over the file, starting at position `base` in the file,
+   * with `limit` bytes.
+   */
+  private ByteBuffer buffer;
+  private long base;
+  private int limit;
+  private int window = WINDOW;
+
+  /**
+   * The start of the next record in the window.
+   */
+  private int pos;
+
+  /**
+   * Start and end of the fields of the current record, in the mapped window or, if
+   * they had quotes removed, in the scratch array.
+   */
+  private int count;
+  private int[] starts = new int[16];
+  private int[] ends = new int[16];
+  private boolean[] scratched = new boolean[16];
+
+  /**
+   * Holds the values of the fields with quotes removed in the current record.
+   */
+  private byte[] scratch = new byte[256];
+  private int scratchLength;
+
+  /**
+   * Holds the bytes of fields being decoded.
+   */
+  private byte[] decode = new byte[256];
+
+  /**
+   * The view returned by {@link #chars(int)} for ASCII fields.
+   */
+  private final AsciiChars ascii = new AsciiChars();
+}
\ No newline at end of file
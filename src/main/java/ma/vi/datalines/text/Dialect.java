@@ -0,0 +1,245 @@
+package ma.vi.datalines.text;
+
+import ma.vi.datalines.ColumnConverter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The dialect of a delimited text file, detected from its first lines by
+ * {@link #sniff(Reader, char[], char[])}.
+ *
+ * @param separator The character separating columns.
+ * @param quote The character quoting columns.
+ * @param header Whether the first line of the file appears to be a header line.
+ * @param quoted Whether values in the lines sampled are quoted; when they are
+ *               not, files are tokenized without looking for quotes, except at
+ *               the start of fields (see {@link DelimitedTokenizer}).
+ *
+ * @author vikash.madhow@gmail.com
+ */
+public record Dialect(char separator, char quote, boolean header, boolean quoted) {
+  /**
+   * Detects the dialect of the text from its first {@link #SAMPLE_LINES} lines,
+   * read from the reader (which is not closed), returning null if the text is
+   * empty.
+   * <p>
+   * Each pair of candidate separator and quote is scored by the number of lines
+   * split into the most common number of fields with that pair, which must be
+   * more than one; between equal scores, a quote starting some fields of the
+   * lines is preferred, and then the first separator and quote in the order of
+   * the candidates. When no separator splits the lines, the
+   * first candidate appearing in the first line is used (or 0 if none do), as
+   * this is the separator used for single-line files.
+   * <p>
+   * Whether the first line is a header is voted by its columns: a column votes
+   * for a header when all other lines hold numbers in that column and the first
+   * line does not, or when they all hold values of the same length and the first
+   * line holds a value of another length, and against it when the first line
+   * holds a value like the others. The first line is a header unless there are
+   * more votes against it, as is assumed for files read without a format.
+   */
+  public static Dialect sniff(Reader reader, char[] separators, char[] quotes) throws IOException {
+    List<String> lines = sample(reader);
+    if (lines.isEmpty()) {
+      return null;
+    }
+
+    char separator = 0;
+    char quote = quotes[0];
+    int best = 0;
+    for (char s: separators) {
+      for (char q: quotes) {
+        int score = score(lines, s, q);
+        if (score > 0) {
+          score = score * 2 + (quotesFields(lines, s, q) ? 1 : 0);
+        }
+        if (score > best) {
+          best = score;
+          separator = s;
+          quote = q;
+        }
+      }
+    }
+    if (separator == 0) {
+      int closest = Integer.MAX_VALUE;
+      for (char s: separators) {
+        int pos = lines.get(0).indexOf(s);
+        if (pos != -1 && pos < closest) {
+          closest = pos;
+          separator = s;
+        }
+      }
+    }
+
+    List<List<String>> rows = new ArrayList<>();
+    for (String line: lines) {
+      rows.add(split(line, separator, quote));
+    }
+    return new Dialect(separator, quote, header(rows), quotesFields(lines, separator, quote));
+  }
+
+  /**
+   * Reads the non-blank lines in the first {@link #SAMPLE_CHARS} characters of
+   * the text, up to {@link #SAMPLE_LINES}. A last line which may not have been
+   * read completely is dropped, unless it is the only one.
+   */
+  private static List<String> sample(Reader reader) throws IOException {
+    char[] text = new char[SAMPLE_CHARS];
+    int length = 0;
+    for (int n; length < text.length && (n = reader.read(text, length, text.length - length)) != -1; ) {
+      length += n;
+    }
+    List<String> lines = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < length && lines.size() < SAMPLE_LINES; i++) {
+      char c = text[i];
+      if (c == '\n' || c == '\r') {
+        addLine(lines, text, start, i);
+        if (c == '\r' && i + 1 < length && text[i + 1] == '\n') {
+          i++;
+        }
+        start = i + 1;
+      }
+    }
+    if (start < length && lines.size() < SAMPLE_LINES && (length < text.length || lines.isEmpty())) {
+      addLine(lines, text, start, length);
+    }
+    return lines;
+  }
+
+  private static void addLine(List<String> lines, char[] text, int from, int to) {
+    String line = new String(text, from, to - from);
+    if (!line.isBlank()) {
+      lines.add(line);
+    }
+  }
+
+  /**
+   * The number of lines split into the most common number of fields with the
+   * separator and quote, or 0 if that number is 1.
+   */
+  private static int score(List<String> lines, char separator, char quote) {
+    Map<Integer, Integer> counts = new HashMap<>();
+    for (String line: lines) {
+      counts.merge(split(line, separator, quote).size(), 1, Integer::sum);
+    }
+    int score = 0;
+    for (Map.Entry<Integer, Integer> e: counts.entrySet()) {
+      if (e.getKey() > 1 && e.getValue() > score) {
+        score = e.getValue();
+      }
+    }
+    return score;
+  }
+
+  /**
+   * Splits the line into fields following the same rules as
+   * {@link DelimitedTokenizer}, within the line.
+   */
+  static List<String> split(String line, char separator, char quote) {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == quote && quoted) {
+        if (i + 1 < line.length() && line.charAt(i + 1) == quote) {
+          field.append(c);
+          i++;
+        } else {
+          quoted = false;
+        }
+      } else if (c == quote && field.toString().isBlank()) {
+        quoted = true;
+      } else if (c == separator && !quoted) {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    if (field.length() > 0) {
+      fields.add(field.toString());
+    }
+    return fields;
+  }
+
+  /**
+   * Returns true if a field of any of the lines starts with the quote.
+   */
+  private static boolean quotesFields(List<String> lines, char separator, char quote) {
+    for (String line: lines) {
+      if (hasQuotedField(line, separator, quote)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if a field of the line starts with the quote, after blanks.
+   */
+  private static boolean hasQuotedField(String line, char separator, char quote) {
+    boolean start = true;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == quote && start) {
+        return true;
+      } else if (c == separator) {
+        start = true;
+      } else if (c > ' ') {
+        start = false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Whether the first row is a header, from the votes of its columns.
+   */
+  private static boolean header(List<List<String>> rows) {
+    if (rows.size() < 2) {
+      return true;
+    }
+    int votes = 0;
+    List<String> first = rows.get(0);
+    for (int col = 0; col < first.size(); col++) {
+      String title = first.get(col).trim();
+      boolean numbers = true;
+      int length = -1;
+      int values = 0;
+      for (List<String> row: rows.subList(1, rows.size())) {
+        if (col < row.size() && !row.get(col).isBlank()) {
+          String value = row.get(col).trim();
+          numbers &= isNumber(value);
+          length = values == 0 || length == value.length() ? value.length() : -2;
+          values++;
+        }
+      }
+      if (values == 0) {
+        continue;
+      }
+      if (numbers) {
+        votes += isNumber(title) ? -1 : 1;
+      } else if (length >= 0) {
+        votes += title.length() == length ? -1 : 1;
+      }
+    }
+    return votes >= 0;
+  }
+
+  private static boolean isNumber(String value) {
+    return !value.isEmpty() && !Double.isNaN(ColumnConverter.parseDouble(value, 0, value.length()));
+  }
+
+  /**
+   * The maximum number of characters and lines sampled.
+   */
+  static final int SAMPLE_CHARS = 64 * 1024;
+  static final int SAMPLE_LINES = 100;
+}
\ No newline at end of file
@@ -1,10 +1,14 @@
 package ma.vi.datalines.text;
 
 import ma.vi.datalines.Column;
+import ma.vi.datalines.ColumnConverter;
 import ma.vi.datalines.Format;
+import ma.vi.datalines.RowBatch;
+import ma.vi.datalines.RowSchema;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,7 +16,8 @@ import java.util.Map;
 import static java.lang.Integer.parseInt;
 
 /**
- * A line reader for reading fixed-length text files.
+ * A line reader for reading fixed-length text files. Only the text of the
+ * columns projected by the format is extracted from lines.
  *
  * @author vikash.madhow@gmail.com
  */
@@ -28,49 +33,71 @@ public class FixedLengthTextLineReader extends TextLineReader {
   @Override
   public void openFile(File inputFile, String fileName, Format format) {
     super.openFile(inputFile, fileName, format);
+    locateColumns(format);
+  }
+
+  @Override
+  protected void openStream(InputStream input, String fileName, Format format) {
+    super.openStream(input, fileName, format);
+    locateColumns(format);
+  }
+
+  private void locateColumns(Format format) {
     columnLocations = format.columns().stream()
                             .filter(c -> c.location().startsWith("["))
-                            .map   (c -> c.location().substring(1, c.location().length()- 1).split("-"))
-                            .map   (l -> l.length >= 2
-                                       ? new ColumnLocation(parseInt(l[0].trim()), parseInt(l[1].trim()))
-                                       : new ColumnLocation(parseInt(l[0].trim()), -1))
+                            .map   (c -> ColumnLocation.parse(c.location()))
                             .sorted()
                             .toList();
   }
 
   @Override
-  protected Map<String, Object> nextLine(boolean convertToColumnType) {
+  protected LineType nextLine(RowBatch lines, int row, boolean convertToColumnType) {
     try {
-      String line = reader.readLine();
+      String line = readLine();
       if (line == null) {
-        return null;
+        return LineType.END;
       } else {
-        if (estimateTotalLines == -1) {
-          estimateTotalLines = fileLength / line.length();
-        }
         /*
          * Read columns.
          */
-        Map<String, Object> row = new HashMap<>();
-        for (ColumnLocation loc: columnLocations) {
-          if (loc.start <= line.length()) {
-            Object value = loc.end == -1 || loc.end > line.length()
-                         ? line.substring(loc.start - 1)
-                         : line.substring(loc.start - 1, loc.end);
-            if (convertToColumnType) {
-              Column col = columnByLocations.get(loc.toString());
-              value = DelimitedTextLineReader.convertValue(value, col);
+        for (int i = 0; i < columnLocations.size(); i++) {
+          ColumnLocation loc = columnLocations.get(i);
+          if (loc.start <= line.length() && schema.projects(i)) {
+            int end = loc.end == -1 || loc.end > line.length() ? line.length() : loc.end;
+            ColumnConverter converter = convertToColumnType ? schema.converter(i) : null;
+            if (converter != null) {
+              converter.set(lines, row, i, line, loc.start - 1, end);
+            } else {
+              lines.set(row, i, line.substring(loc.start - 1, end));
             }
-            row.put(loc.toString(), value);
           }
         }
-        return row;
+        return LineType.LINE;
       }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * The key of a column in a fixed-length file is its location, in the form
+   * [start,end]; the locations of the columns in the format are aliases of these.
+   */
+  @Override
+  protected RowSchema createSchema(Format format) {
+    List<String> keys = columnLocations.stream()
+                                       .map(ColumnLocation::toString)
+                                       .toList();
+    Map<String, Integer> aliases = new HashMap<>();
+    for (Column column: format.columns()) {
+      int index = columnLocations.indexOf(ColumnLocation.parse(column.location()));
+      if (index != -1) {
+        aliases.put(column.location(), index);
+      }
+    }
+    return new RowSchema(format, keys, aliases);
+  }
+
   /**
    * A location in a line of text.
    *
@@ -79,6 +106,24 @@ public class FixedLengthTextLineReader extends TextLineReader {
    *            to the end of the line.
    */
   record ColumnLocation(int start, int end) implements Comparable<ColumnLocation> {
+    /**
+     * Parses a location of the form [start-end] or [start], returning null
+     * if the location is not in that form.
+     */
+    static ColumnLocation parse(String location) {
+      if (location == null || !location.startsWith("[") || !location.endsWith("]")) {
+        return null;
+      }
+      try {
+        String[] l = location.substring(1, location.length() - 1).split("-");
+        return l.length >= 2
+             ? new ColumnLocation(parseInt(l[0].trim()), parseInt(l[1].trim()))
+             : new ColumnLocation(parseInt(l[0].trim()), -1);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
     @Override
     public int compareTo(ColumnLocation o) {
       return start - o.start;
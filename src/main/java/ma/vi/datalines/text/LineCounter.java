@@ -0,0 +1,159 @@
+package ma.vi.datalines.text;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Counts the lines of a text file without decoding them, from the bytes of the
+ * file mapped in memory, for charsets where line terminators are single bytes
+ * encoded as themselves (see {@link LineInput#supports(java.nio.charset.Charset)}).
+ * Lines end at `\n`, `\r` or `\r\n`, as for {@link LineInput}, and a last line
+ * without a terminator is counted. Terminators are counted 8 bytes at a time by
+ * marking the bytes of a long word equal to each of them (SWAR), as in
+ * {@link DelimitedTokenizer}.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class LineCounter {
+  /**
+   * Returns the number of lines in the file.
+   */
+  static long count(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long length = channel.size();
+      LineCounter counter = new LineCounter();
+      for (long base = 0; base < length; base += DelimitedTokenizer.WINDOW) {
+        int limit = (int)Math.min(DelimitedTokenizer.WINDOW, length - base);
+        counter.add(channel.map(FileChannel.MapMode.READ_ONLY, base, limit), limit);
+      }
+      return counter.lines();
+    }
+  }
+
+  /**
+   * Returns the number of lines in the text read from the reader, which is
+   * closed. This is used for files in charsets which cannot be counted from
+   * their bytes.
+   */
+  static long count(Reader reader) throws IOException {
+    try (Reader in = reader) {
+      char[] buffer = new char[64 * 1024];
+      long lines = 0;
+      boolean cr = false;
+      boolean ended = true;
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        for (int i = 0; i < n; i++) {
+          char c = buffer[i];
+          if (c == '\r' || (c == '\n' && !cr)) {
+            lines++;
+          }
+          cr = c == '\r';
+        }
+        if (n > 0) {
+          ended = buffer[n - 1] == '\n' || buffer[n - 1] == '\r';
+        }
+      }
+      return ended ? lines : lines + 1;
+    }
+  }
+
+  /**
+   * Estimates the number of lines in the file from the lines in its first
+   * {@link #SAMPLE} bytes; this is the exact number of lines for files no longer
+   * than that. Returns -1 if the sample holds no complete line.
+   */
+  static long estimate(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long length = channel.size();
+      ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(length, SAMPLE));
+      while (buffer.hasRemaining() && channel.read(buffer) != -1);
+      LineCounter counter = new LineCounter();
+      counter.add(buffer, buffer.position());
+      if (buffer.position() == length) {
+        return counter.lines();
+      }
+      return counter.ends == 0 ? -1 : length * counter.ends / buffer.position();
+    }
+  }
+
+  /**
+   * Counts the line terminators in the first `limit` bytes of the buffer,
+   * following the bytes counted before.
+   */
+  private void add(ByteBuffer buffer, int limit) {
+    if (limit == 0) {
+      return;
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    long ends = this.ends;
+    boolean cr = this.cr;
+    int p = 0;
+    for (; p + 8 <= limit; p += 8) {
+      long word = buffer.getLong(p);
+      long lf = equal(word, LINE_FEEDS);
+      long crs = equal(word, CARRIAGE_RETURNS);
+
+      /*
+       * Every \r ends a line, and every \n not following a \r, in this word or
+       * at the end of the previous one.
+       */
+      ends += Long.bitCount(lf) + Long.bitCount(crs) - Long.bitCount((crs << 8) & lf);
+      if (cr && (lf & 0x80) != 0) {
+        ends--;
+      }
+      cr = crs < 0;
+    }
+    for (; p < limit; p++) {
+      byte b = buffer.get(p);
+      if (b == '\r' || (b == '\n' && !cr)) {
+        ends++;
+      }
+      cr = b == '\r';
+    }
+    this.ends = ends;
+    this.cr = cr;
+    this.last = buffer.get(limit - 1);
+    this.empty = false;
+  }
+
+  /**
+   * The number of lines in the bytes counted.
+   */
+  private long lines() {
+    return !empty && last != '\n' && last != '\r' ? ends + 1 : ends;
+  }
+
+  /**
+   * Sets the high bit of exactly the bytes of the word equal to the byte repeated
+   * in the pattern.
+   */
+  private static long equal(long word, long pattern) {
+    long x = word ^ pattern;
+    return ~(((x & 0x7F7F7F7F7F7F7F7FL) + 0x7F7F7F7F7F7F7F7FL) | x | 0x7F7F7F7F7F7F7F7FL);
+  }
+
+  /**
+   * The number of line terminators counted, whether the last byte counted is
+   * a `\r` (which may be followed by a `\n` in the next bytes), the last byte
+   * counted and whether no bytes were counted yet.
+   */
+  private long ends;
+  private boolean cr;
+  private byte last;
+  private boolean empty = true;
+
+  /**
+   * The number of bytes at the start of files from which the number of lines
+   * is estimated.
+   */
+  static final int SAMPLE = 64 * 1024;
+
+  private static final long LINE_FEEDS = '\n' * 0x0101010101010101L;
+  private static final long CARRIAGE_RETURNS = '\r' * 0x0101010101010101L;
+}
\ No newline at end of file
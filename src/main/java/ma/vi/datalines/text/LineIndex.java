@@ -0,0 +1,194 @@
+package ma.vi.datalines.text;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * A sparse index of the positions of the lines (records) of a text file: the
+ * position in bytes of every `interval`th line, starting with the first one.
+ * Entries are added as the file is read, in any order (lines can be skipped
+ * by seeking), and unknown entries are found from the closest known entry
+ * before them.
+ * <p>
+ * The index is saved in a sidecar file next to the text file, keyed by the
+ * length and last modification time of the file, the interval and the rules
+ * splitting the file into lines (the dialect): an index saved for a file which
+ * has since changed, or built with other rules, is ignored and rebuilt. Indices
+ * which cannot be saved (e.g. in read-only directories) are kept in memory only.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class LineIndex {
+  private LineIndex(File file, int interval, String dialect) {
+    this.file = file;
+    this.interval = interval;
+    this.dialect = dialect;
+    this.length = file.length();
+    this.modified = file.lastModified();
+    this.offsets = new long[16];
+    Arrays.fill(offsets, -1);
+    offsets[0] = 0;
+    this.size = 1;
+  }
+
+  /**
+   * Returns the index of the file, loaded from its sidecar file if there is a
+   * valid one, or empty otherwise.
+   *
+   * @param interval The number of lines between entries of the index.
+   * @param dialect Identifies how the file is split into lines; indices built
+   *                with different dialects are not interchangeable.
+   */
+  static LineIndex of(File file, int interval, String dialect) {
+    LineIndex index = new LineIndex(file, interval, dialect);
+    File sidecar = sidecar(file);
+    if (sidecar.isFile()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+        if (in.readInt() == MAGIC
+         && in.readInt() == VERSION
+         && in.readLong() == index.length
+         && in.readLong() == index.modified
+         && in.readInt() == interval
+         && in.readUTF().equals(dialect)) {
+          int size = in.readInt();
+          long[] offsets = new long[Math.max(size, 16)];
+          Arrays.fill(offsets, -1);
+          for (int i = 0; i < size; i++) {
+            offsets[i] = in.readLong();
+          }
+          index.offsets = offsets;
+          index.size = size;
+        }
+      } catch (IOException e) {
+        log.fine("Ignoring unreadable line index " + sidecar + ": " + e);
+      }
+    }
+    return index;
+  }
+
+  /**
+   * The sidecar file holding the index of the file.
+   */
+  static File sidecar(File file) {
+    return new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".lidx");
+  }
+
+  /**
+   * The number of lines between entries of the index.
+   */
+  int interval() {
+    return interval;
+  }
+
+  /**
+   * Records the position of the line at the index (0-based), if it is one of
+   * the lines indexed.
+   */
+  void add(long line, long position) {
+    if (line % interval == 0) {
+      long entry = line / interval;
+      if (entry >= Integer.MAX_VALUE - 8) {
+        return;
+      }
+      int i = (int)entry;
+      if (i >= offsets.length) {
+        int length = offsets.length;
+        offsets = Arrays.copyOf(offsets, Math.max(i + 1, length * 2));
+        Arrays.fill(offsets, length, offsets.length, -1);
+      }
+      if (offsets[i] != position) {
+        offsets[i] = position;
+        size = Math.max(size, i + 1);
+        changed = true;
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the closest line at or before the line specified
+   * whose position is known; this is 0 (the first line) if no other one is.
+   */
+  long floor(long line) {
+    int i = (int)Math.min(line / interval, size - 1);
+    while (i > 0 && offsets[i] == -1) {
+      i--;
+    }
+    return (long)i * interval;
+  }
+
+  /**
+   * The position of the line returned by {@link #floor(long)}.
+   */
+  long position(long line) {
+    return offsets[(int)(line / interval)];
+  }
+
+  /**
+   * Saves the index in its sidecar file if it has changed since it was loaded,
+   * and if the file has not changed since the index was created. The index is
+   * written to a temporary file first, which replaces the sidecar file.
+   */
+  void save() {
+    if (!changed || file.length() != length || file.lastModified() != modified) {
+      return;
+    }
+    File sidecar = sidecar(file);
+    File temp = new File(sidecar.getParentFile(), sidecar.getName() + ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(length);
+        out.writeLong(modified);
+        out.writeInt(interval);
+        out.writeUTF(dialect);
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+          out.writeLong(offsets[i]);
+        }
+      }
+      Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      changed = false;
+    } catch (IOException e) {
+      log.fine("Could not save line index " + sidecar + ": " + e);
+      if (!temp.delete()) {
+        temp.deleteOnExit();
+      }
+    }
+  }
+
+  /**
+   * The indexed file and the key of the index.
+   */
+  private final File file;
+  private final long length;
+  private final long modified;
+  private final int interval;
+  private final String dialect;
+
+  /**
+   * The positions of the indexed lines, -1 where unknown, up to `size`.
+   */
+  private long[] offsets;
+  private int size;
+
+  /**
+   * Whether entries were added since the index was loaded.
+   */
+  private boolean changed;
+
+  private static final int MAGIC = 0x444c4958;  // DLIX
+  private static final int VERSION = 1;
+
+  private static final Logger log = Logger.getLogger(LineIndex.class.getName());
+}
\ No newline at end of file
@@ -0,0 +1,177 @@
+package ma.vi.datalines.text;
+
+import ma.vi.datalines.ReaderMetrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads the lines of a text file from its bytes, keeping track of the position
+ * in bytes of each line so that reading can later resume from any of them (see
+ * {@link LineIndex}). Lines end at `\n`, `\r` or `\r\n`, as with
+ * {@link java.io.BufferedReader#readLine()}; this requires a charset where the
+ * line terminators are single bytes which are not part of the encoding of any
+ * other character (see {@link #supports(Charset)}).
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class LineInput implements Closeable {
+  /**
+   * @param metrics Where the bytes read and the time taken to read them are
+   *                recorded; null if they are not.
+   */
+  LineInput(File file, Charset charset, ReaderMetrics metrics) throws IOException {
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.charset = charset;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Returns true if lines of text in the charset can be split from its bytes:
+   * this is the case for UTF-8 and single-byte charsets (such as the ISO-8859
+   * and Windows charsets) where the line terminators are encoded as themselves.
+   */
+  static boolean supports(Charset charset) {
+    return (charset.equals(UTF_8) || charset.newEncoder().maxBytesPerChar() == 1)
+        && Arrays.equals("\r\n".getBytes(charset), new byte[]{'\r', '\n'});
+  }
+
+  /**
+   * The position in the file of the start of the next line.
+   */
+  long position() {
+    return base + pos;
+  }
+
+  /**
+   * Moves to the specified position in the file, which should be the start
+   * of a line.
+   */
+  void seek(long position) {
+    if (position >= base && position <= base + limit) {
+      pos = (int)(position - base);
+    } else {
+      base = position;
+      pos = limit = 0;
+      eof = false;
+    }
+  }
+
+  /**
+   * Reads the next line, returning null at the end of the file.
+   */
+  String readLine() throws IOException {
+    int end = end();
+    if (end == -1) {
+      return null;
+    }
+    String line = new String(buffer, pos, end - pos, charset);
+    pos = next;
+    return line;
+  }
+
+  /**
+   * Skips the next line, returning false at the end of the file.
+   */
+  boolean skipLine() throws IOException {
+    if (end() == -1) {
+      return false;
+    }
+    pos = next;
+    return true;
+  }
+
+  /**
+   * Finds the end of the line starting at `pos`, filling the buffer as required,
+   * and sets `next` to the start of the following line. Returns -1 if there are
+   * no more lines.
+   */
+  private int end() throws IOException {
+    int i = pos;
+    while (true) {
+      for (; i < limit; i++) {
+        byte b = buffer[i];
+        if (b == '\n' || b == '\r') {
+          if (b == '\r' && i + 1 == limit && !eof) {
+            /*
+             * Read more to find whether the line ends with \r\n.
+             */
+            break;
+          }
+          next = b == '\r' && i + 1 < limit && buffer[i + 1] == '\n' ? i + 2 : i + 1;
+          return i;
+        }
+      }
+      if (eof) {
+        if (pos == limit) {
+          return -1;
+        }
+        next = limit;
+        return limit;
+      }
+      i -= fill();
+    }
+  }
+
+  /**
+   * Moves the current line to the start of the buffer, growing it if the line
+   * fills it, and reads more bytes after it. Returns the distance by which the
+   * content of the buffer was moved.
+   */
+  private int fill() throws IOException {
+    int shift = pos;
+    if (shift > 0) {
+      System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+      base += pos;
+      limit -= pos;
+      pos = 0;
+    }
+    if (limit == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+    long start = metrics == null ? 0 : System.nanoTime();
+    int read = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit), base + limit);
+    if (metrics != null) {
+      metrics.read(Math.max(read, 0), System.nanoTime() - start);
+    }
+    if (read == -1) {
+      eof = true;
+    } else {
+      limit += read;
+    }
+    return shift;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private final FileChannel channel;
+  private final Charset charset;
+  private final ReaderMetrics metrics;
+
+  /**
+   * The bytes read from the file starting at position `base`, up to `limit`;
+   * `pos` is the start of the next line and `next`, the start of the line after
+   * it once found.
+   */
+  private byte[] buffer = new byte[64 * 1024];
+  private long base;
+  private int pos;
+  private int limit;
+  private int next;
+
+  /**
+   * Set once the end of the file has been reached.
+   */
+  private boolean eof;
+}
\ No newline at end of file
@@ -5,11 +5,23 @@ import ma.vi.datalines.Format;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
 
 /**
  * An abstract line reader for reading text files.
+ * <p>
+ * Text files can be read from any line with {@link #seek(long)} and
+ * {@link #skip(long)}. When the format specifies a {@link Format#lineIndex()}
+ * interval, the position of every interval-th line of the file is kept in a
+ * {@link LineIndex} saved next to the file, from which later seeks, by this
+ * reader or the next ones opening the same file, start instead of reading from
+ * the start of the file.
  *
  * @author vikash.madhow@gmail.com
  */
@@ -26,34 +38,284 @@ public abstract class TextLineReader extends AbstractLineReader {
 //    }
 //  }
 
+  /**
+   * Files in UTF-8 or single-byte charsets are read from their bytes so that
+   * the position of each line is known; others, and files which {@link #records(Charset)}
+   * does not split from their bytes, are read through a reader. The number of
+   * lines in the file is first estimated from its first lines (see
+   * {@link LineCounter#estimate(File)}).
+   */
   @Override
   public void openFile(File inputFile, String fileName, Format format) {
     try {
-      fileLength = inputFile.length();
-      reader = new BufferedReader(new FileReader(inputFile));
+      Charset charset = Charset.defaultCharset();
+      if (prepare(inputFile, format, charset)) {
+        lines = new LineInput(inputFile, charset, metrics());
+      } else {
+        reader = new BufferedReader(new InputStreamReader(measured(new FileInputStream(inputFile))));
+      }
     } catch (Exception e) {
       throw new IllegalArgumentException("Could not open text file '" + fileName + "'. Reason: " + e, e);
     }
   }
 
   /**
-   * Close reader.
+   * Prepares reading the file and returns true if it can be read from its bytes
+   * in the charset, in which case the number of its lines is estimated and its
+   * index loaded or created, or false if it must be read through a reader.
+   * Subclasses reading the bytes of the file by other means than line by line
+   * call this instead of {@link #openFile(File, String, Format)}.
+   */
+  protected final boolean prepare(File inputFile, Format format, Charset charset) throws IOException {
+    fileLength = inputFile.length();
+    textFile = inputFile;
+    String records = LineInput.supports(charset) ? records(charset) : null;
+    if (records == null) {
+      return false;
+    }
+    estimateTotalLines = LineCounter.estimate(inputFile);
+    if (format != null && format.lineIndex() > 0) {
+      index = LineIndex.of(inputFile, format.lineIndex(), records);
+    }
+    return true;
+  }
+
+  /**
+   * Identifies how the file is split into records when it is read from its
+   * bytes in the charset, which keys its index (see {@link LineIndex}), or
+   * returns null if the file must be read through a reader instead. Records
+   * are lines by default.
+   */
+  protected String records(Charset charset) {
+    return "lines " + charset.name();
+  }
+
+  /**
+   * Reads the text directly from the stream; the length of the text is not known
+   * and the total number of lines is thus not estimated.
+   */
+  @Override
+  protected void openStream(InputStream input, String fileName, Format format) {
+    fileLength = -1;
+    reader = new BufferedReader(new InputStreamReader(input));
+  }
+
+  /**
+   * Reads the next line of text, returning null at the end of the input.
+   */
+  protected String readLine() throws IOException {
+    if (lines != null) {
+      long position = lines.position();
+      String line = lines.readLine();
+      if (line != null) {
+        recordAt(position);
+        estimate(lines.position());
+      }
+      return line;
+    } else {
+      String line = reader.readLine();
+      if (line != null) {
+        recordRead(line.length() + 1);
+      }
+      return line;
+    }
+  }
+
+  /**
+   * Estimates the number of lines in the file from the number of records read
+   * and the position in the file reached, once past the start of the file from
+   * which the number of lines was first estimated.
+   */
+  protected final void estimate(long position) {
+    if (position > LineCounter.SAMPLE && fileLength > 0) {
+      estimateTotalLines = fileLength * record / position;
+    }
+  }
+
+  /**
+   * Called by subclasses reading records through the reader when a record of
+   * the specified number of characters is read: this keeps count of the records
+   * read and estimates the number of lines in the file from them.
+   */
+  protected final void recordRead(long characters) {
+    record++;
+    charactersRead += characters;
+    if (fileLength > 0) {
+      estimateTotalLines = fileLength * record / charactersRead;
+    }
+  }
+
+  /**
+   * Called by subclasses reading records directly from the file when a record
+   * starting at the specified position in the file is read: this keeps count of
+   * the records read and adds their positions to the index.
+   */
+  protected final void recordAt(long position) {
+    if (index != null) {
+      index.add(record, position);
+    }
+    record++;
+  }
+
+  /**
+   * Skips the next record without parsing it, returning false at the end of
+   * the input.
+   */
+  protected boolean skipRecord() throws IOException {
+    if (lines != null) {
+      long position = lines.position();
+      if (lines.skipLine()) {
+        recordAt(position);
+        return true;
+      }
+      return false;
+    }
+    return readLine() != null;
+  }
+
+  /**
+   * Moves the input to the record starting at the specified position of the
+   * file, which is 0 or a position recorded in the index. Text read through a
+   * reader can only be moved back to the start of the file, by reopening it.
+   */
+  protected void reposition(long position) throws IOException {
+    if (lines != null) {
+      lines.seek(position);
+    } else if (position == 0 && textFile != null && reader != null) {
+      reader.close();
+      reader = new BufferedReader(new InputStreamReader(measured(new FileInputStream(textFile))));
+    } else {
+      throw new IllegalStateException("Cannot move back in '" + fileName + "' which is read from a stream");
+    }
+  }
+
+  /**
+   * Returns true if the reader can be moved with {@link #seek(long)} and
+   * {@link #skip(long)}; this is not the case when lines are read ahead on
+   * another thread (see {@link Format#prefetch()}).
+   */
+  protected boolean seekable() {
+    return format.prefetch() == 0;
+  }
+
+  /**
+   * Moves the reader to the specified record of the text (0-based), counting
+   * header and blank lines, so that the next line returned is that one or, if
+   * it is blank and blank lines are ignored, the first non-blank one after it.
+   * Header lines are still skipped when moving to a record before the end of
+   * the header. Lines read ahead are discarded.
+   * <p>
+   * The reader moves to the closest record before the target whose position is
+   * in the index, if that is closer than the current one, and reads from there;
+   * it only moves back to the start of the text when it is not indexed, which
+   * is not possible when reading from a stream.
+   *
+   * @throws IllegalArgumentException if the record is negative.
+   * @throws IllegalStateException if the reader is closed (as it is once all
+   *                               its lines have been read) or cannot seek.
+   */
+  public void seek(long row) {
+    if (row < 0) {
+      throw new IllegalArgumentException("Cannot seek to negative row " + row + " in '" + fileName + "'");
+    }
+    checkSeekable();
+    discardReadAhead(Long.MAX_VALUE);
+    try {
+      long from = index == null ? 0 : index.floor(row);
+      if (row < record || from > record) {
+        reposition(index == null ? 0 : index.position(from));
+        record = from;
+      }
+      while (record < row && skipRecord());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    restart((int)Math.max(0, format.headerLines() - row));
+  }
+
+  /**
+   * Skips the next `n` lines. Lines already read ahead are discarded; the rest
+   * are skipped with {@link #seek(long)}, without being parsed, counting blank
+   * lines.
+   *
+   * @throws IllegalArgumentException if `n` is negative.
+   * @throws IllegalStateException if the reader is closed or cannot seek.
+   */
+  public void skip(long n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("Cannot skip a negative number of lines: " + n);
+    }
+    checkSeekable();
+    long remaining = n - discardReadAhead(n);
+    if (remaining > 0) {
+      seek(record + headerLinesPending() + remaining);
+    }
+  }
+
+  private void checkSeekable() {
+    if (closed) {
+      throw new IllegalStateException("Cannot move in '" + fileName + "' which is closed");
+    } else if (!seekable()) {
+      throw new IllegalStateException("Cannot move in '" + fileName + "' while reading ahead or in parallel");
+    }
+  }
+
+  /**
+   * Closes the input of the text read line by line.
+   */
+  private void closeLines() throws IOException {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+    if (lines != null) {
+      lines.close();
+      lines = null;
+    }
+  }
+
+  /**
+   * Close reader, saving the index of the file if it was extended.
    */
   @Override
   public void close() {
     super.close();
+    if (index != null) {
+      index.save();
+      index = null;
+    }
     try {
-      if (reader != null) {
-        reader.close();
-      }
+      closeLines();
     } catch(IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Counts the lines of the file from its bytes (see {@link LineCounter}) or,
+   * for charsets where that is not possible, by reading its characters, without
+   * splitting them into columns. Text read from a stream cannot be counted.
+   */
+  @Override
+  public long countLines() {
+    if (lineCount == -1 && textFile != null) {
+      try {
+        lineCount = LineInput.supports(Charset.defaultCharset())
+                  ? LineCounter.count(textFile)
+                  : LineCounter.count(new FileReader(textFile));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return lineCount;
+  }
+
+  /**
+   * The number of lines in the file once counted, or the current estimate.
+   */
   @Override
   public long estimateTotalLines() {
-    return estimateTotalLines;
+    return lineCount != -1 ? lineCount : estimateTotalLines;
   }
 
   /**
@@ -62,12 +324,44 @@ public abstract class TextLineReader extends AbstractLineReader {
   protected long estimateTotalLines = -1;
 
   /**
-   * The length in bytes of the file being read.
+   * The length in bytes of the file being read, or -1 if unknown.
    */
   protected long fileLength;
 
   /**
-   * File reader.
+   * The number of lines in the file, once counted with {@link #countLines()}.
+   */
+  private long lineCount = -1;
+
+  /**
+   * The number of characters read through the reader, including one for each
+   * line terminator.
+   */
+  private long charactersRead;
+
+  /**
+   * The index (0-based) of the next record to read from the input, counting
+   * header and blank lines.
+   */
+  protected long record;
+
+  /**
+   * File reader, when the text is not read from its bytes.
    */
   protected BufferedReader reader;
+
+  /**
+   * The file being read, null when reading from a stream.
+   */
+  private File textFile;
+
+  /**
+   * The lines of the file read from its bytes, when its charset allows it.
+   */
+  private LineInput lines;
+
+  /**
+   * The index of the positions of the records in the file, when kept.
+   */
+  private LineIndex index;
 }
\ No newline at end of file
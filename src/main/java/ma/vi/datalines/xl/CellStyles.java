@@ -0,0 +1,129 @@
+package ma.vi.datalines.xl;
+
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.model.StylesTable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * The number formats of the cell styles of a workbook, resolved once when the
+ * workbook is opened so that reading a numeric cell only looks up the index of
+ * its style: for each style, the index and string of its number format and
+ * whether it is a date format.
+ * <p>
+ * Styles are immutable once resolved and can be shared by sheets read
+ * concurrently. Formatting values with the format of a style is left to a
+ * `DataFormatter`, which compiles each format string once and keeps it for the
+ * cells formatted afterwards.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class CellStyles {
+  private CellStyles(short[] formatIndex, String[] formatString) {
+    this.formatIndex = formatIndex;
+    this.formatString = formatString;
+    this.date = new boolean[formatIndex.length];
+
+    /*
+     * Styles far outnumber formats: date formats are recognised once per format.
+     */
+    Map<String, Boolean> dateFormats = new HashMap<>();
+    for (int i = 0; i < formatIndex.length; i++) {
+      short index = formatIndex[i];
+      String string = formatString[i];
+      date[i] = string != null
+             && dateFormats.computeIfAbsent(index + ":" + string,
+                                            k -> DateUtil.isADateFormat(index, string));
+    }
+  }
+
+  /**
+   * Resolves the number formats of the styles of an xlsx workbook; a workbook
+   * without styles (null) has none.
+   */
+  static CellStyles of(StylesTable styles) {
+    return styles == null
+         ? of(0, i -> null)
+         : of(styles.getNumCellStyles(), styles::getStyleAt);
+  }
+
+  /**
+   * Resolves the number formats of the styles of a workbook loaded in memory.
+   */
+  static CellStyles of(Workbook workbook) {
+    return of(workbook.getNumCellStyles(), workbook::getCellStyleAt);
+  }
+
+  /**
+   * Resolves the number formats of styles from the indices of their formats, as
+   * read from the records of a workbook.
+   *
+   * @param formats Returns the format at an index, or null for built-in formats
+   *                which have not been redefined in the workbook.
+   */
+  static CellStyles of(short[] formatIndex, IntFunction<String> formats) {
+    String[] formatString = new String[formatIndex.length];
+    for (int i = 0; i < formatIndex.length; i++) {
+      String string = formats.apply(formatIndex[i]);
+      formatString[i] = string != null ? string : BuiltinFormats.getBuiltinFormat(formatIndex[i]);
+    }
+    return new CellStyles(formatIndex, formatString);
+  }
+
+  /**
+   * Resolves the number formats of the `count` styles of a workbook.
+   *
+   * @param style Returns the style at an index.
+   */
+  private static CellStyles of(int count, IntFunction<? extends CellStyle> style) {
+    short[] formatIndex = new short[count];
+    String[] formatString = new String[count];
+    for (int i = 0; i < count; i++) {
+      CellStyle s = style.apply(i);
+      if (s != null) {
+        formatIndex[i] = s.getDataFormat();
+        formatString[i] = s.getDataFormatString() != null
+                        ? s.getDataFormatString()
+                        : BuiltinFormats.getBuiltinFormat(formatIndex[i]);
+      } else {
+        formatIndex[i] = -1;
+      }
+    }
+    return new CellStyles(formatIndex, formatString);
+  }
+
+  /**
+   * Whether the number format of the style at the index is a date format. This
+   * is false for the index -1 (no style) and for indices of unknown styles, as
+   * for the methods following.
+   */
+  boolean isDate(int style) {
+    return style >= 0 && style < date.length && date[style];
+  }
+
+  /**
+   * The index of the number format of the style at the index, or -1.
+   */
+  int formatIndex(int style) {
+    return style >= 0 && style < formatIndex.length ? formatIndex[style] : -1;
+  }
+
+  /**
+   * The number format of the style at the index, or null.
+   */
+  String formatString(int style) {
+    return style >= 0 && style < formatString.length ? formatString[style] : null;
+  }
+
+  /**
+   * Number formats of styles by style index.
+   */
+  private final boolean[] date;
+  private final short[] formatIndex;
+  private final String[] formatString;
+}
\ No newline at end of file
@@ -0,0 +1,266 @@
+package ma.vi.datalines.xl;
+
+import ma.vi.datalines.Format;
+import ma.vi.datalines.RowBatch;
+import ma.vi.datalines.RowSchema;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Reads the sheets of a workbook in parallel. Each sheet is parsed on a thread
+ * of a fork-join pool into batches of lines which are queued for the consumer
+ * as they are filled, so that the sheet being returned is streamed while the
+ * following ones are parsed. Up to `parallelism` sheets are parsed in advance,
+ * each holding at most {@link #QUEUED_PARTS} batches not yet returned, after
+ * which its parsing waits for the consumer.
+ * <p>
+ * The header lines of each sheet (the first {@link Format#headerLines()} lines,
+ * not counting blank lines if these are ignored) are not converted to the types
+ * of their columns, as when the sheet is read sequentially. As converters are
+ * not thread-safe, each sheet is opened with a schema having its own converters
+ * (see {@link RowSchema#withOwnConverters()}).
+ * <p>
+ * Sheets are returned in workbook order when reading in order; otherwise, they
+ * are returned in the order in which they produce their first batch of lines.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class ConcurrentSheets implements AutoCloseable {
+  /**
+   * @param sheets Opens each sheet to read, in workbook order; sheets are opened
+   *               one at a time, on the thread parsing them.
+   */
+  ConcurrentSheets(List<Callable<Sheet>> sheets,
+                   Format                format,
+                   RowSchema             schema,
+                   int                   parallelism,
+                   boolean               ordered) {
+    this.sheets = sheets;
+    this.format = format;
+    this.schema = schema;
+    this.ordered = ordered;
+    this.window = parallelism;
+    this.pool = new ForkJoinPool(parallelism);
+    this.queues = new ArrayList<>(Collections.nCopies(sheets.size(), null));
+  }
+
+  /**
+   * Reads the next line of the current sheet into the specified line of the
+   * batch, returning false at the end of the sheet. The first sheet is started
+   * on the first call.
+   */
+  boolean next(RowBatch lines, int row) {
+    if (current == null && (delivered > 0 || !nextSheet())) {
+      return false;
+    }
+    while (part == null || cursor >= part.lines) {
+      if (sheetEnded) {
+        return false;
+      }
+      Object next;
+      try {
+        next = current.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+      if (next instanceof Part p) {
+        part = p;
+        cursor = 0;
+      } else if (next instanceof Throwable t) {
+        /*
+         * Raised again by later calls.
+         */
+        current.add(t);
+        if (t instanceof RuntimeException re) throw re;
+        if (t instanceof Error err) throw err;
+        throw new RuntimeException(t);
+      } else {
+        sheetEnded = true;
+        part = null;
+      }
+    }
+    lines.copy(part.batch, cursor++, row);
+    return true;
+  }
+
+  /**
+   * Moves to the next sheet, returning false if all sheets have been read.
+   */
+  boolean nextSheet() {
+    while (submitted < sheets.size() && submitted - delivered < window) {
+      int sheet = submitted++;
+      BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUED_PARTS);
+      queues.set(sheet, queue);
+      pool.execute(() -> parse(sheet, queue));
+    }
+    part = null;
+    sheetEnded = false;
+    if (delivered == sheets.size()) {
+      current = null;
+      return false;
+    }
+
+    int sheet;
+    if (ordered) {
+      sheet = delivered;
+    } else {
+      try {
+        sheet = ready.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+    current = queues.set(sheet, null);
+    delivered++;
+    return true;
+  }
+
+  @Override
+  public void close() {
+    pool.shutdownNow();
+  }
+
+  /**
+   * Parses the lines of the sheet into its queue, followed by {@link #END} or
+   * the error which stopped the parsing. The sheet is ready to be returned once
+   * its first part, or its end, is queued.
+   */
+  private void parse(int sheet, BlockingQueue<Object> queue) {
+    Object end = END;
+    int parts = 0;
+    try {
+      Sheet in;
+      synchronized (sheets) {
+        in = sheets.get(sheet).call();
+      }
+      try (in) {
+        RowBatch batch = null;
+        int lines = 0;
+        int headerLines = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+          if (batch == null) {
+            batch = new RowBatch(schema, BATCH_SIZE);
+          }
+          boolean header = headerLines < format.headerLines();
+          if (!in.nextRow(batch, lines, !header)) {
+            break;
+          }
+          if (header && !(format.ignoreBlankLines() && batch.isBlank(lines))) {
+            headerLines++;
+          }
+          if (++lines == BATCH_SIZE) {
+            queue.put(new Part(batch, lines));
+            if (parts++ == 0) {
+              ready.add(sheet);
+            }
+            batch = null;
+            lines = 0;
+          }
+        }
+        if (lines > 0) {
+          queue.put(new Part(batch, lines));
+          if (parts++ == 0) {
+            ready.add(sheet);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      /*
+       * Closed while waiting for the consumer.
+       */
+      Thread.currentThread().interrupt();
+      return;
+    } catch (Throwable t) {
+      end = t;
+    }
+    try {
+      queue.put(end);
+      if (parts == 0) {
+        ready.add(sheet);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * A sheet read row by row.
+   */
+  interface Sheet extends AutoCloseable {
+    /**
+     * Reads the next row of the sheet into the specified line of the batch,
+     * returning false at the end of the sheet.
+     */
+    boolean nextRow(RowBatch lines, int row, boolean convertToColumnType) throws Exception;
+
+    @Override
+    void close() throws IOException;
+  }
+
+  /**
+   * A batch of lines parsed from a sheet, holding `lines` lines.
+   */
+  private record Part(RowBatch batch, int lines) {}
+
+  /**
+   * Marks the end of the lines of a sheet in its queue.
+   */
+  private static final Object END = new Object();
+
+  /**
+   * The number of lines in the batches holding the lines of a sheet.
+   */
+  static final int BATCH_SIZE = 1024;
+
+  /**
+   * The maximum number of parts of a sheet queued and not yet returned.
+   */
+  static final int QUEUED_PARTS = 4;
+
+  private final List<Callable<Sheet>> sheets;
+  private final Format format;
+  private final RowSchema schema;
+  private final boolean ordered;
+
+  /**
+   * The maximum number of sheets submitted for parsing and not yet returned.
+   */
+  private final int window;
+
+  private final ForkJoinPool pool;
+
+  /**
+   * The queues of lines of the sheets submitted for parsing and not yet returned.
+   */
+  private final List<BlockingQueue<Object>> queues;
+
+  /**
+   * Sheets which have produced their first part (or reached their end), in that
+   * order.
+   */
+  private final LinkedBlockingQueue<Integer> ready = new LinkedBlockingQueue<>();
+
+  /**
+   * Number of sheets submitted for parsing and returned.
+   */
+  private int submitted, delivered;
+
+  /**
+   * The queue of lines of the sheet being returned, the part being returned and
+   * the next line to return in it, and whether the end of the sheet was reached.
+   */
+  private BlockingQueue<Object> current;
+  private Part part;
+  private int cursor;
+  private boolean sheetEnded;
+}
\ No newline at end of file
@@ -0,0 +1,366 @@
+package ma.vi.datalines.xl;
+
+import org.apache.poi.util.XMLHelper;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+/**
+ * The shared strings of an xlsx workbook, stored compactly for lookup by index.
+ * <p>
+ * The strings are read from the shared strings part of the package with a
+ * streaming parser and stored, encoded in UTF-8, in an arena of fixed-size
+ * chunks, recording only the offset and length of each string. The chunks are
+ * kept on the heap while the arena is not larger than the maximum specified;
+ * beyond this, the arena is spilled to a temporary file which is memory-mapped
+ * once all strings have been read, leaving the operating system to page it in
+ * as needed. Strings do not span chunks.
+ * <p>
+ * Strings are decoded on lookup; the strings of recently looked-up indices are
+ * kept in a small cache, returning the same instance for repeated indices. The
+ * store can be read concurrently once loaded.
+ * <p>
+ * The text of a shared string is the same as the one returned by POI: the text
+ * of its runs, excluding phonetic runs, with `_xHHHH_` escapes decoded.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class SharedStringsStore implements AutoCloseable {
+  private SharedStringsStore(int size, long[] offsets, int[] lengths,
+                             ByteBuffer[] buffers, int bufferSize) {
+    this.size = size;
+    this.offsets = offsets;
+    this.lengths = lengths;
+    this.buffers = buffers;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Reads the shared strings from the stream of the shared strings part of a
+   * package, keeping up to `maxInMemory` bytes of strings on the heap.
+   */
+  static SharedStringsStore read(InputStream input, long maxInMemory) throws IOException {
+    try (InputStream in = input;
+         Arena arena = new Arena(maxInMemory)) {
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+      StringBuilder text = new StringBuilder();
+      int phonetic = 0;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == START_ELEMENT) {
+          String name = reader.getLocalName();
+          if (name.equals("si")) {
+            text.setLength(0);
+          } else if (name.equals("rPh")) {
+            phonetic++;
+          } else if (name.equals("t") && phonetic == 0) {
+            text.append(reader.getElementText());
+          } else if (name.equals("sst")) {
+            String count = reader.getAttributeValue(null, "uniqueCount");
+            if (count != null) {
+              arena.expect(Integer.parseInt(count.trim()));
+            }
+          }
+        } else if (event == END_ELEMENT) {
+          String name = reader.getLocalName();
+          if (name.equals("si")) {
+            arena.add(decode(text).getBytes(UTF_8));
+          } else if (name.equals("rPh")) {
+            phonetic--;
+          }
+        }
+      }
+      reader.close();
+      return arena.store();
+    } catch (XMLStreamException | NumberFormatException e) {
+      throw new IOException("Could not read shared strings", e);
+    }
+  }
+
+  /**
+   * Stores the `count` shared strings returned by `strings` for the indices from
+   * 0, keeping up to `maxInMemory` bytes of strings on the heap.
+   */
+  static SharedStringsStore of(int count, IntFunction<String> strings, long maxInMemory) throws IOException {
+    try (Arena arena = new Arena(maxInMemory)) {
+      arena.expect(count);
+      for (int i = 0; i < count; i++) {
+        arena.add(strings.apply(i).getBytes(UTF_8));
+      }
+      return arena.store();
+    }
+  }
+
+  /**
+   * Returns the shared string at the specified index.
+   */
+  String get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Shared string " + index + " outside of the "
+                                        + size + " shared strings of the workbook");
+    }
+    int slot = index & (CACHE_SIZE - 1);
+    Cached cached = cache[slot];
+    if (cached != null && cached.index == index) {
+      return cached.value;
+    }
+
+    long offset = offsets[index];
+    ByteBuffer buffer = buffers[(int)(offset / bufferSize)];
+    int position = (int)(offset % bufferSize);
+    String value;
+    if (buffer.hasArray()) {
+      value = new String(buffer.array(), position, lengths[index], UTF_8);
+    } else {
+      byte[] bytes = new byte[lengths[index]];
+      buffer.get(position, bytes);
+      value = new String(bytes, UTF_8);
+    }
+    cache[slot] = new Cached(index, value);
+    return value;
+  }
+
+  /**
+   * The number of shared strings.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Releases the arena; the temporary file of a spilled arena has already been
+   * deleted, or will be on exit where files cannot be deleted while mapped.
+   */
+  @Override
+  public void close() {
+    Arrays.fill(buffers, null);
+    Arrays.fill(cache, null);
+  }
+
+  /**
+   * Decodes the `_xHHHH_` escapes of characters in the text, as POI does.
+   */
+  static String decode(CharSequence text) {
+    StringBuilder decoded = null;
+    int copied = 0;
+    for (int i = 0; i + 6 < text.length(); i++) {
+      if (text.charAt(i) == '_' && text.charAt(i + 1) == 'x' && text.charAt(i + 6) == '_') {
+        int code = 0;
+        for (int j = i + 2; j < i + 6 && code >= 0; j++) {
+          int digit = Character.digit(text.charAt(j), 16);
+          code = digit < 0 ? -1 : code * 16 + digit;
+        }
+        if (code >= 0) {
+          if (decoded == null) {
+            decoded = new StringBuilder(text.length());
+          }
+          decoded.append(text, copied, i).append((char)code);
+          i += 6;
+          copied = i + 1;
+        }
+      }
+    }
+    if (decoded == null) {
+      return text.toString();
+    }
+    return decoded.append(text, copied, text.length()).toString();
+  }
+
+  /**
+   * The arena into which strings are written while reading, on the heap until
+   * it spills to a temporary file.
+   */
+  private static final class Arena implements AutoCloseable {
+    Arena(long maxInMemory) {
+      this.maxInMemory = maxInMemory;
+    }
+
+    /**
+     * Sizes the index for the expected number of strings.
+     */
+    void expect(int count) {
+      if (count > offsets.length) {
+        offsets = Arrays.copyOf(offsets, count);
+        lengths = Arrays.copyOf(lengths, count);
+      }
+    }
+
+    void add(byte[] bytes) throws IOException {
+      if (bytes.length > CHUNK_SIZE) {
+        throw new IOException("Shared string " + size + " is longer than "
+                            + CHUNK_SIZE + " bytes");
+      }
+      if (chunk == null || position + bytes.length > CHUNK_SIZE) {
+        nextChunk();
+      }
+      if (size == offsets.length) {
+        expect(Math.max(16, size * 2));
+      }
+      System.arraycopy(bytes, 0, chunk, position, bytes.length);
+      offsets[size] = (long)chunks * CHUNK_SIZE + position;
+      lengths[size] = bytes.length;
+      position += bytes.length;
+      size++;
+    }
+
+    /**
+     * Returns the store of the strings written, mapping the temporary file if
+     * the arena was spilled.
+     */
+    SharedStringsStore store() throws IOException {
+      ByteBuffer[] buffers;
+      int bufferSize;
+      if (out == null) {
+        if (chunk != null) {
+          heap.add(chunk);
+        }
+        buffers = new ByteBuffer[heap.size()];
+        for (int i = 0; i < buffers.length; i++) {
+          buffers[i] = ByteBuffer.wrap(heap.get(i));
+        }
+        bufferSize = CHUNK_SIZE;
+      } else {
+        out.write(chunk, 0, position);
+        out.close();
+        out = null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+          long length = channel.size();
+          buffers = new ByteBuffer[(int)((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+          for (int i = 0; i < buffers.length; i++) {
+            long start = (long)i * SEGMENT_SIZE;
+            buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                     Math.min(SEGMENT_SIZE, length - start));
+          }
+        }
+        bufferSize = SEGMENT_SIZE;
+      }
+      return new SharedStringsStore(size, offsets, lengths, buffers, bufferSize);
+    }
+
+    /**
+     * Moves to a new chunk, spilling the arena to a temporary file once it
+     * is larger than the maximum allowed in memory.
+     */
+    private void nextChunk() throws IOException {
+      position = 0;
+      if (chunk != null) {
+        chunks++;
+        if (out == null) {
+          heap.add(chunk);
+          if ((long)heap.size() * CHUNK_SIZE > maxInMemory) {
+            file = Files.createTempFile("datalines", ".sst");
+            out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+            for (byte[] c: heap) {
+              out.write(c);
+            }
+            heap.clear();
+          }
+        } else {
+          out.write(chunk);
+        }
+        if (out != null) {
+          /*
+           * Once spilled, the chunk is reused, cleared to pad the strings
+           * written in it to the chunk size.
+           */
+          Arrays.fill(chunk, (byte)0);
+          return;
+        }
+      }
+      chunk = new byte[CHUNK_SIZE];
+    }
+
+    /**
+     * Deletes the temporary file, if any, which remains readable through its
+     * mapping on systems allowing it.
+     */
+    @Override
+    public void close() throws IOException {
+      if (out != null) {
+        out.close();
+      }
+      if (file != null) {
+        try {
+          Files.deleteIfExists(file);
+        } catch (IOException e) {
+          file.toFile().deleteOnExit();
+        }
+      }
+    }
+
+    private final long maxInMemory;
+    private final List<byte[]> heap = new ArrayList<>();
+    private Path file;
+    private OutputStream out;
+
+    /**
+     * The chunk being written, its position in the arena and the position in it.
+     */
+    private byte[] chunk;
+    private int chunks;
+    private int position;
+
+    private int size;
+    private long[] offsets = new long[0];
+    private int[] lengths = new int[0];
+  }
+
+  /**
+   * A string in the cache with its index.
+   */
+  private record Cached(int index, String value) {}
+
+  /**
+   * The default maximum number of bytes of shared strings kept on the heap.
+   */
+  static final long DEFAULT_MAX_IN_MEMORY = 64L * 1024 * 1024;
+
+  /**
+   * The size of the chunks of the arena, and of the segments in which a spilled
+   * arena is mapped (a multiple of the chunk size).
+   */
+  static final int CHUNK_SIZE = 1024 * 1024;
+  static final int SEGMENT_SIZE = 512 * CHUNK_SIZE;
+
+  /**
+   * The number of entries in the cache of looked-up strings (a power of 2).
+   */
+  static final int CACHE_SIZE = 4096;
+
+  /**
+   * Neither loads DTDs nor resolves external entities, through which a shared
+   * string could otherwise take the content of a local file or URL.
+   */
+  private static final XMLInputFactory inputFactory = XMLHelper.newXMLInputFactory();
+
+  private final int size;
+  private final long[] offsets;
+  private final int[] lengths;
+
+  /**
+   * The chunks of the arena on the heap or the mapped segments of its file, and
+   * their size.
+   */
+  private final ByteBuffer[] buffers;
+  private final int bufferSize;
+
+  private final Cached[] cache = new Cached[CACHE_SIZE];
+}
\ No newline at end of file
@@ -0,0 +1,721 @@
+package ma.vi.datalines.xl;
+
+import ma.vi.datalines.xl.XlsxSheet.CellDataType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Scans the rows and cells of the XML of a worksheet, directly from its bytes
+ * (in UTF-8, as written by Excel and other producers of xlsx files). Only the
+ * elements holding the data of the sheet are recognised: rows (`row`), cells
+ * (`c`), the values of cells, in `v` elements or, for inline strings, in the
+ * text (`t`) of `is` elements, excluding phonetic runs, and their formulas (`f`). Other elements,
+ * comments, processing instructions and text outside values are skipped, and
+ * element names are compared on their local names, ignoring namespace prefixes.
+ * <p>
+ * The column of a cell is decoded from the letters of its reference (the `r`
+ * attribute), its type and style from its `t` and `s` attributes, and entity
+ * and character references in values are decoded, without creating strings for
+ * any of these. The value of the current cell is available as bytes, viewed as
+ * characters for values in ASCII (such as numbers), or decoded as a string.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class SheetScanner implements AutoCloseable {
+  SheetScanner(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Restricts the cells whose content is read to the ones in the columns
+   * accepted by the predicate: the content of the cells of other columns is
+   * skipped up to the end of the cell, without collecting their values or
+   * formulas. The content of cells without a reference is always read.
+   */
+  void project(IntPredicate columns) {
+    this.projection = columns;
+  }
+
+  /**
+   * Moves to the next row, returning false if there are no more rows. The cells
+   * of the row are then read with {@link #nextCell()}.
+   */
+  boolean nextRow() throws IOException {
+    while (inRow) {
+      nextCell();
+    }
+    while (nextTag(false)) {
+      boolean row = is(ROW) && kind == START;
+      attributes(false);
+      if (row) {
+        inRow = kind == START;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the start of the sheet up to its first row for its dimension (see
+   * {@link #dimension()}), which is returned. This must be called before any
+   * row is read.
+   */
+  long readDimension() throws IOException {
+    while (dimension == -1 && nextTag(false)) {
+      if (is(SHEET_DATA) || is(ROW)) {
+        break;
+      }
+      attributes(false);
+    }
+    return dimension;
+  }
+
+  /**
+   * Counts the rows of the sheet left to read, from their start tags, without
+   * reading their cells.
+   */
+  long countRows() throws IOException {
+    long rows = 0;
+    while (nextTag(false)) {
+      if (kind == START && is(ROW)) {
+        rows++;
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * The number of rows in the range of cells used by the sheet, from its
+   * `dimension` element, once read (it precedes the rows of the sheet), or -1
+   * if it is not known. Rows without values in the range may not be in the
+   * sheet, so this is an upper bound of the number of rows.
+   */
+  long dimension() {
+    return dimension;
+  }
+
+  /**
+   * Moves to the next cell of the current row, reading its attributes and value,
+   * returning false at the end of the row.
+   */
+  boolean nextCell() throws IOException {
+    if (!inRow) {
+      return false;
+    }
+    while (nextTag(false)) {
+      boolean end = kind == END;
+      if (end && is(ROW)) {
+        attributes(false);
+        inRow = false;
+        return false;
+      } else if (!end && is(C)) {
+        column = -1;
+        type = CellDataType.NUMBER;
+        style = -1;
+        hasValue = false;
+        length = 0;
+        hasFormula = false;
+        formulaLength = 0;
+        attributes(true);
+        if (kind == START) {
+          if (projection == null || column < 0 || projection.test(column)) {
+            cellContent();
+          } else {
+            skipCell();
+          }
+        }
+        return true;
+      } else {
+        attributes(false);
+      }
+    }
+    inRow = false;
+    return false;
+  }
+
+  /**
+   * The column of the current cell (0-based), or -1 if the cell has no reference.
+   */
+  int column() {
+    return column;
+  }
+
+  /**
+   * The type of the current cell, from its `t` attribute.
+   */
+  CellDataType type() {
+    return type;
+  }
+
+  /**
+   * The index of the style of the current cell, or -1 if it has none.
+   */
+  int style() {
+    return style;
+  }
+
+  /**
+   * Whether the current cell has a value.
+   */
+  boolean hasValue() {
+    return hasValue;
+  }
+
+  /**
+   * The value of the current cell viewed as characters, one per byte: this is
+   * only meaningful for values in ASCII. The view is reused for every cell.
+   */
+  CharSequence text() {
+    return view;
+  }
+
+  /**
+   * The value of the current cell decoded as a string.
+   */
+  String string() {
+    return new String(value, 0, length, UTF_8);
+  }
+
+  /**
+   * Whether the current cell has a formula.
+   */
+  boolean hasFormula() {
+    return hasFormula;
+  }
+
+  /**
+   * The text of the formula of the current cell, empty for cells sharing the
+   * formula of another cell.
+   */
+  String formula() {
+    return new String(formula, 0, formulaLength, UTF_8);
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Reads the content of a cell up to the end of the cell, collecting the text
+   * of its value.
+   */
+  private void cellContent() throws IOException {
+    while (nextTag(false)) {
+      boolean start = kind == START;
+      if (!start && is(C)) {
+        attributes(false);
+        return;
+      } else if (start && is(V)) {
+        hasValue = true;
+        length = 0;
+        attributes(false);
+        if (kind == START) {
+          collect(V);
+        }
+      } else if (start && is(F)) {
+        hasFormula = true;
+        attributes(false);
+        if (kind == START) {
+          /*
+           * The text of the formula is collected in its own buffer.
+           */
+          byte[] v = value;
+          int l = length;
+          value = formula;
+          length = 0;
+          collect(F);
+          formula = value;
+          formulaLength = length;
+          value = v;
+          length = l;
+        }
+      } else if (start && is(IS)) {
+        hasValue = true;
+        length = 0;
+        attributes(false);
+        if (kind == START) {
+          inlineString();
+        }
+      } else {
+        attributes(false);
+      }
+    }
+    throw new IOException("Unexpected end of sheet in cell");
+  }
+
+  /**
+   * Moves past the end of the current cell without collecting its content.
+   */
+  private void skipCell() throws IOException {
+    while (nextTag(false)) {
+      boolean end = kind == END && is(C);
+      attributes(false);
+      if (end) {
+        return;
+      }
+    }
+    throw new IOException("Unexpected end of sheet in cell");
+  }
+
+  /**
+   * Collects the text of the `t` elements of an inline string, excluding the
+   * ones in phonetic runs, up to the end of the inline string.
+   */
+  private void inlineString() throws IOException {
+    int phonetic = 0;
+    while (nextTag(false)) {
+      boolean start = kind == START;
+      if (!start && is(IS)) {
+        attributes(false);
+        return;
+      } else if (is(RPH)) {
+        attributes(false);
+        if (kind == START) phonetic++;
+        else if (kind == END) phonetic--;
+      } else if (start && is(T) && phonetic == 0) {
+        attributes(false);
+        if (kind == START) {
+          collect(T);
+        }
+      } else {
+        attributes(false);
+      }
+    }
+    throw new IOException("Unexpected end of sheet in inline string");
+  }
+
+  /**
+   * Appends the text up to the end tag of the element to the value.
+   */
+  private void collect(byte[] element) throws IOException {
+    while (nextTag(true)) {
+      boolean end = kind == END && is(element);
+      attributes(false);
+      if (end) {
+        return;
+      }
+    }
+    throw new IOException("Unexpected end of sheet in cell value");
+  }
+
+  /**
+   * Moves past the next tag name, skipping comments, processing instructions,
+   * declarations and, unless it is collected into the value, the text before the
+   * tag. Sets the kind of the tag (START or END) and its local name; the
+   * attributes of the tag must then be read with {@link #attributes(boolean)}.
+   * Returns false at the end of the input.
+   */
+  private boolean nextTag(boolean collect) throws IOException {
+    while (true) {
+      if (collect) {
+        int b;
+        while ((b = read()) != '<') {
+          if (b < 0) {
+            return false;
+          } else if (b == '&') {
+            reference();
+          } else {
+            append(b);
+          }
+        }
+      } else {
+        /*
+         * Skip to the next tag within the buffer, refilling it as needed.
+         */
+        while (true) {
+          int i = pos;
+          byte[] buf = this.buf;
+          int limit = this.limit;
+          while (i < limit && buf[i] != '<') i++;
+          if (i < limit) {
+            pos = i + 1;
+            break;
+          }
+          pos = limit;
+          if (!fill()) {
+            return false;
+          }
+        }
+      }
+
+      int b = read();
+      if (b == '?') {
+        skipPast('?', '>');
+      } else if (b == '!') {
+        b = read();
+        if (b == '-') {
+          read();
+          skipPast('-', '-', '>');
+        } else if (b == '[') {
+          for (int i = 0; i < 6; i++) read();  // CDATA[
+          if (collect) {
+            cdata();
+          } else {
+            skipPast(']', ']', '>');
+          }
+        } else {
+          skipPast('>');
+        }
+      } else {
+        if (b == '/') {
+          kind = END;
+          b = read();
+        } else {
+          kind = START;
+        }
+        nameLength = 0;
+        while (b > ' ' && b != '>' && b != '/') {
+          if (b == ':') {
+            nameLength = 0;
+          } else if (nameLength < name.length) {
+            name[nameLength++] = (byte)b;
+          }
+          b = read();
+        }
+        next = b;
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Reads the attributes of the current tag up to its end, setting its kind to
+   * EMPTY if it is an empty-element tag. Reads the reference, type and style of
+   * the tag if it is a cell.
+   */
+  private void attributes(boolean cell) throws IOException {
+    int b = next;
+    while (true) {
+      while (b >= 0 && b <= ' ') b = read();
+      if (b == '>') {
+        return;
+      } else if (b == '/') {
+        read();
+        if (kind == START) {
+          kind = EMPTY;
+        }
+        return;
+      } else if (b < 0) {
+        throw new IOException("Unexpected end of sheet in tag");
+      }
+
+      /*
+       * Attribute name, identified by its only character if it has one.
+       */
+      int attribute = b;
+      int length = 0;
+      while (b > ' ' && b != '=') {
+        length++;
+        b = read();
+      }
+      while (b != '=') {
+        if (b < 0) throw new IOException("Unexpected end of sheet in tag");
+        b = read();
+      }
+      int quote = read();
+      while (quote >= 0 && quote <= ' ') quote = read();
+      if (quote != '"' && quote != '\'') {
+        throw new IOException("Attribute value not quoted in sheet");
+      }
+
+      if (cell && length == 1 && attribute == 'r') {
+        int col = 0;
+        while ((b = read()) != quote && b >= 0) {
+          if (b >= 'A' && b <= 'Z') col = col * 26 + (b - 'A' + 1);
+          else if (b >= 'a' && b <= 'z') col = col * 26 + (b - 'a' + 1);
+        }
+        column = col - 1;
+      } else if (cell && length == 1 && attribute == 't') {
+        int n = 0;
+        while ((b = read()) != quote && b >= 0) {
+          if (n < typeName.length) typeName[n] = (byte)b;
+          n++;
+        }
+        type = typeOf(typeName, n);
+      } else if (cell && length == 1 && attribute == 's') {
+        int s = 0;
+        while ((b = read()) != quote && b >= 0) {
+          if (b >= '0' && b <= '9') s = s * 10 + (b - '0');
+        }
+        style = s;
+      } else if (!cell && length == 3 && attribute == 'r' && is(DIMENSION)) {
+        /*
+         * The range of the dimension (ref), as A1:F100 or A1 for a single cell.
+         */
+        long first = 0, last = 0;
+        boolean second = false;
+        while ((b = read()) != quote && b >= 0) {
+          if (b == ':') {
+            second = true;
+          } else if (b >= '0' && b <= '9') {
+            if (second) last = last * 10 + (b - '0');
+            else first = first * 10 + (b - '0');
+          }
+        }
+        dimension = second ? Math.max(0, last - first + 1) : first > 0 ? 1 : -1;
+      } else {
+        while ((b = read()) != quote && b >= 0);
+      }
+      b = read();
+    }
+  }
+
+  /**
+   * Returns the type of cell named by the value of a `t` attribute.
+   */
+  private static CellDataType typeOf(byte[] name, int length) {
+    if (length == 1) {
+      switch (name[0]) {
+        case 'b': return CellDataType.BOOL;
+        case 'e': return CellDataType.ERROR;
+        case 's': return CellDataType.SSTINDEX;
+      }
+    } else if (length == 3 && name[0] == 's' && name[1] == 't' && name[2] == 'r') {
+      return CellDataType.FORMULA;
+    } else if (length == INLINE_STR.length && equals(name, length, INLINE_STR)) {
+      return CellDataType.INLINESTR;
+    }
+    return CellDataType.NUMBER;
+  }
+
+  /**
+   * Decodes an entity or character reference (after its `&`) into the value.
+   */
+  private void reference() throws IOException {
+    int n = 0;
+    int b;
+    while ((b = read()) != ';') {
+      if (b < 0 || n == reference.length) {
+        throw new IOException("Invalid reference in sheet");
+      }
+      reference[n++] = (byte)b;
+    }
+    if (n > 1 && reference[0] == '#') {
+      int code = 0;
+      boolean hex = reference[1] == 'x';
+      for (int i = hex ? 2 : 1; i < n; i++) {
+        int digit = Character.digit(reference[i], hex ? 16 : 10);
+        if (digit < 0) {
+          throw new IOException("Invalid character reference in sheet");
+        }
+        code = code * (hex ? 16 : 10) + digit;
+      }
+      appendCodePoint(code);
+    } else if (equals(reference, n, AMP))  append('&');
+      else if (equals(reference, n, LT))   append('<');
+      else if (equals(reference, n, GT))   append('>');
+      else if (equals(reference, n, QUOT)) append('"');
+      else if (equals(reference, n, APOS)) append('\'');
+      else throw new IOException("Unknown entity in sheet: &" + new String(reference, 0, n, UTF_8) + ";");
+  }
+
+  /**
+   * Appends the content of a CDATA section (after its start) to the value.
+   */
+  private void cdata() throws IOException {
+    int b;
+    while ((b = read()) >= 0) {
+      append(b);
+      if (b == '>' && length >= 3
+       && value[length - 2] == ']' && value[length - 3] == ']') {
+        length -= 3;
+        return;
+      }
+    }
+    throw new IOException("Unexpected end of sheet in CDATA section");
+  }
+
+  /**
+   * Skips past the sequence of bytes.
+   */
+  private void skipPast(int... end) throws IOException {
+    int matched = 0;
+    while (matched < end.length) {
+      int b = read();
+      if (b < 0) {
+        throw new IOException("Unexpected end of sheet");
+      } else if (b == end[matched]) {
+        matched++;
+      } else {
+        matched = b == end[0] ? 1 : 0;
+      }
+    }
+  }
+
+  private void appendCodePoint(int code) {
+    if (code < 0x80) {
+      append(code);
+    } else if (code < 0x800) {
+      append(0xC0 | (code >> 6));
+      append(0x80 | (code & 0x3F));
+    } else if (code < 0x10000) {
+      append(0xE0 | (code >> 12));
+      append(0x80 | ((code >> 6) & 0x3F));
+      append(0x80 | (code & 0x3F));
+    } else {
+      append(0xF0 | (code >> 18));
+      append(0x80 | ((code >> 12) & 0x3F));
+      append(0x80 | ((code >> 6) & 0x3F));
+      append(0x80 | (code & 0x3F));
+    }
+  }
+
+  private void append(int b) {
+    if (length == value.length) {
+      value = Arrays.copyOf(value, length * 2);
+    }
+    value[length++] = (byte)b;
+  }
+
+  private boolean is(byte[] element) {
+    return equals(name, nameLength, element);
+  }
+
+  private static boolean equals(byte[] bytes, int length, byte[] other) {
+    if (length != other.length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (bytes[i] != other[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int read() throws IOException {
+    if (pos == limit && !fill()) {
+      return -1;
+    }
+    return buf[pos++] & 0xFF;
+  }
+
+  private boolean fill() throws IOException {
+    int n = in.read(buf, 0, buf.length);
+    if (n <= 0) {
+      return false;
+    }
+    pos = 0;
+    limit = n;
+    return true;
+  }
+
+  /**
+   * A view of the value as characters, one per byte.
+   */
+  private final class Text implements CharSequence {
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char)(value[index] & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return new String(value, start, end - start, ISO_8859_1);
+    }
+
+    @Override
+    public String toString() {
+      return string();
+    }
+  }
+
+  /**
+   * Kinds of tags.
+   */
+  private static final int START = 0, END = 1, EMPTY = 2;
+
+  /**
+   * Local names of the elements recognised.
+   */
+  private static final byte[] ROW = {'r', 'o', 'w'};
+  private static final byte[] DIMENSION  = "dimension".getBytes(UTF_8);
+  private static final byte[] SHEET_DATA = "sheetData".getBytes(UTF_8);
+  private static final byte[] C   = {'c'};
+  private static final byte[] V   = {'v'};
+  private static final byte[] F   = {'f'};
+  private static final byte[] IS  = {'i', 's'};
+  private static final byte[] T   = {'t'};
+  private static final byte[] RPH = {'r', 'P', 'h'};
+
+  private static final byte[] INLINE_STR = "inlineStr".getBytes(UTF_8);
+
+  /**
+   * Predefined entities.
+   */
+  private static final byte[] AMP  = {'a', 'm', 'p'};
+  private static final byte[] LT   = {'l', 't'};
+  private static final byte[] GT   = {'g', 't'};
+  private static final byte[] QUOT = {'q', 'u', 'o', 't'};
+  private static final byte[] APOS = {'a', 'p', 'o', 's'};
+
+  private final InputStream in;
+
+  /**
+   * Buffer of bytes read from the input, and the position of the next byte to
+   * read and end of the bytes in it.
+   */
+  private final byte[] buf = new byte[64 * 1024];
+  private int pos, limit;
+
+  /**
+   * The kind and local name of the current tag, and the byte following its name.
+   */
+  private int kind;
+  private final byte[] name = new byte[16];
+  private int nameLength;
+  private int next;
+
+  /**
+   * Whether the scanner is within a row.
+   */
+  private boolean inRow;
+
+  /**
+   * Accepts the columns of the cells whose content is read, or null to read
+   * all cells.
+   */
+  private IntPredicate projection;
+
+  /**
+   * The number of rows in the dimension of the sheet, -1 until it is read.
+   */
+  private long dimension = -1;
+
+  /**
+   * The attributes of the current cell.
+   */
+  private int column;
+  private CellDataType type;
+  private int style;
+  private final byte[] typeName = new byte[16];
+
+  /**
+   * The value of the current cell, if it has one, as bytes in UTF-8.
+   */
+  private boolean hasValue;
+  private byte[] value = new byte[256];
+  private int length;
+  private final Text view = new Text();
+
+  /**
+   * The formula of the current cell, if it has one, as bytes in UTF-8.
+   */
+  private boolean hasFormula;
+  private byte[] formula = new byte[64];
+  private int formulaLength;
+
+  private final byte[] reference = new byte[12];
+}
\ No newline at end of file
@@ -1,47 +1,61 @@
 package ma.vi.datalines.xl;
 
-import ma.vi.base.util.Numbers;
 import ma.vi.datalines.AbstractLineReader;
 import ma.vi.datalines.Format;
+import ma.vi.datalines.InputType;
+import ma.vi.datalines.RowBatch;
 import org.apache.poi.hssf.usermodel.HSSFSheet;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.ss.usermodel.*;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
-import static org.apache.poi.ss.usermodel.CellType.*;
-
 /**
  * A line reader which can read pre-Excel-2007 (xls) files.
+ * <p>
+ * When all sheets of the workbook are read ({@link Format#page()} is 0 or less)
+ * and the format has a {@link Format#parallelism()} greater than 1, the sheets
+ * are parsed in parallel and returned in workbook order or, if the format is
+ * not {@link Format#ordered()}, in the order in which their parsing completes.
  *
  * @author vikash.madhow@gmail.com
  */
 public class XlsLineReader extends AbstractLineReader {
   @Override
   public boolean supports(File file, String name, Format format) {
-    try (HSSFWorkbook ignored = new HSSFWorkbook(new FileInputStream(file))) {
-      return true;
+    return InputType.of(file) == InputType.XLS;
+  }
+
+  @Override
+  public void openFile(File inputFile, String fileName, Format format) {
+    try {
+      openStream(measured(new FileInputStream(inputFile)), fileName, format);
     } catch (IOException e) {
-      return false;
+      throw new IllegalArgumentException("Could not read Excel 97 (xls) file '" + fileName + "'. Reason: " + e, e);
     }
   }
 
+  /**
+   * The workbook is loaded directly from the stream.
+   */
   @Override
-  public void openFile(File inputFile, String fileName, Format format) {
+  protected void openStream(InputStream input, String fileName, Format format) {
     try {
       applyFormatting = format == null ? false : format.applyFormatting();
+      formulas = format == null ? Format.Formulas.EVALUATE : format.formulas();
       this.fileName = fileName;
 
       /*
        * Open workbook.
        */
-      file = new FileInputStream(inputFile);
+      file = input;
       workbook = new HSSFWorkbook(file);
-      evaluator = workbook.getCreationHelper().createFormulaEvaluator();
+      styles = CellStyles.of(workbook);
 
       /*
        * Sheets to read.
@@ -56,11 +70,17 @@ public class XlsLineReader extends AbstractLineReader {
         sheetIds.add(format.page() - 1);
       }
 
+      pages = List.copyOf(sheetIds);
       if (!sheetIds.isEmpty()) {
         /*
-         * open first sheet.
+         * The first sheet is opened on the first line read, as it needs the
+         * schema of the lines.
          */
-        nextSheet();
+        estimateTotalLines = sheetAt(sheetIds.get(0)).getPhysicalNumberOfRows();
+        concurrent = format != null
+                  && format.page() <= 0
+                  && format.parallelism() > 1
+                  && sheetIds.size() > 1;
       } else {
         throw new IllegalStateException("No sheet data found in " + fileName);
       }
@@ -76,88 +96,48 @@ public class XlsLineReader extends AbstractLineReader {
     if (sheetIds.isEmpty()) {
       throw new IllegalStateException("No more sheets to read from");
     } else {
-      Integer sheetId = sheetIds.remove(0);
-      if (sheetId >= workbook.getNumberOfSheets()) {
-        throw new IllegalStateException("This workbook (" + fileName
-                                      + ") does not have a sheet at position "
-                                      + sheetId);
-      }
-      HSSFSheet sheet = workbook.getSheetAt(sheetId);
-      rows = sheet.rowIterator();
+      HSSFSheet sheet = sheetAt(sheetIds.remove(0));
+      rows = new XlsSheet(sheet, styles, schema, applyFormatting, formulas);
       estimateTotalLines = sheet.getPhysicalNumberOfRows();
     }
   }
 
+  /**
+   * Returns the sheet at the specified position in the workbook.
+   */
+  private HSSFSheet sheetAt(int sheetId) {
+    if (sheetId >= workbook.getNumberOfSheets()) {
+      throw new IllegalStateException("This workbook (" + fileName
+                                    + ") does not have a sheet at position "
+                                    + sheetId);
+    }
+    return workbook.getSheetAt(sheetId);
+  }
+
   @Override
-  protected Map<String, Object> nextLine(boolean convertToColumnType) {
-    if (rows.hasNext()) {
-      Map<String, Object> row = new LinkedHashMap<>();
-      Row cells = rows.next();
-      for (int i = 0; i < cells.getLastCellNum(); i++) {
-        Cell cell = cells.getCell(i);
-        Object contents = null;
-        if (cell != null) {
-          Object valueContainer = cell;
-          CellType type = cell.getCellType();
-          if (type == FORMULA) {
-            try {
-              CellValue value = evaluator.evaluate(cell);
-              type = value.getCellType();
-              valueContainer = value;
-            } catch (Exception e) {
-              /*
-               * Error evaluating cell value, just use formula as a normal string
-               */
-              contents = cell.getCellFormula();
-              type = null;
-            }
-          }
-
-          if (type == BOOLEAN) {
-            contents = valueContainer instanceof Cell c
-                     ? c.getBooleanCellValue()
-                     : ((CellValue)valueContainer).getBooleanValue();
-          } else if (type == ERROR) {
-            contents = "ERROR: " + (valueContainer instanceof Cell c
-                                  ? c.getErrorCellValue()
-                                  : ((CellValue)valueContainer).getErrorValue());
-          } else if (type == STRING) {
-            contents = valueContainer instanceof Cell c
-                     ? c.getStringCellValue()
-                     : ((CellValue)valueContainer).getStringValue();
-
-          } else if (type == BLANK) {
-            contents = null;
-
-          } else if (type == NUMERIC) {
-            CellStyle style = cell.getCellStyle();
-            int formatIndex = style.getDataFormat();
-            String formatString = style.getDataFormatString();
-            if (formatString == null) {
-              formatString = BuiltinFormats.getBuiltinFormat(formatIndex);
-            }
-            double cellValue = valueContainer instanceof Cell c
-                             ? c.getNumericCellValue()
-                             : ((CellValue)valueContainer).getNumberValue();
-
-            if (DateUtil.isADateFormat(formatIndex, formatString)
-             || (columnByLocations.containsKey(String.valueOf(i + 1))
-                 && columnByLocations.get(String.valueOf(i + 1)).type().contains("date"))) {
-              contents = DateUtil.getLocalDateTime(cellValue);
-            } else if (applyFormatting && formatString != null) {
-              contents = formatter.formatRawCellContents(cellValue, formatIndex, formatString);
-            } else {
-              String v = String.valueOf(cellValue);
-              if (v.endsWith(".0")) {
-                v = v.substring(0, v.length() - 2);
-              }
-              contents = Numbers.convert(v);
-            }
-          }
+  protected LineType nextLine(RowBatch lines, int row, boolean convertToColumnType) {
+    if (concurrent) {
+      if (sheets == null) {
+        List<Callable<ConcurrentSheets.Sheet>> openers = new ArrayList<>();
+        for (int sheetId: sheetIds) {
+          openers.add(() -> new XlsSheet(sheetAt(sheetId), styles, schema.withOwnConverters(),
+                                           applyFormatting, formulas));
         }
-        row.put(String.valueOf(i+1), contents);
+        sheetIds.clear();
+        sheets = new ConcurrentSheets(openers, format, schema,
+                                      format.parallelism(), format.ordered());
+      }
+      if (sheets.next(lines, row)) {
+        return LineType.LINE;
       }
-      return row;
+      return sheets.nextSheet() ? LineType.SEPARATOR : LineType.END;
+    }
+
+    if (rows == null) {
+      nextSheet();
+    }
+    if (rows.nextRow(lines, row, convertToColumnType)) {
+      return LineType.LINE;
 
     } else {
       /*
@@ -165,15 +145,31 @@ public class XlsLineReader extends AbstractLineReader {
        */
       if (!sheetIds.isEmpty()) {
         nextSheet();
-        return SEPARATOR;
+        return LineType.SEPARATOR;
       }
-      return null;
+      return LineType.END;
     }
   }
 
+  /**
+   * The physical rows (rows with cells) of the sheets read, from the workbook
+   * loaded in memory.
+   */
+  @Override
+  public long countLines() {
+    if (lineCount == -1 && workbook != null) {
+      long rows = 0;
+      for (int page: pages) {
+        rows += sheetAt(page).getPhysicalNumberOfRows();
+      }
+      lineCount = rows;
+    }
+    return lineCount;
+  }
+
   @Override
   public long estimateTotalLines() {
-    return estimateTotalLines;
+    return lineCount != -1 ? lineCount : estimateTotalLines;
   }
 
   /**
@@ -183,6 +179,10 @@ public class XlsLineReader extends AbstractLineReader {
   public void close() {
     super.close();
     try {
+      if (sheets != null) {
+        sheets.close();
+        sheets = null;
+      }
       if (file != null) {
         file.close();
         file = null;
@@ -194,10 +194,17 @@ public class XlsLineReader extends AbstractLineReader {
 
   private long estimateTotalLines = -1;
 
+  /**
+   * The positions of all the sheets read, and the number of rows in them once
+   * counted.
+   */
+  private List<Integer> pages = List.of();
+  private long lineCount = -1;
+
   /**
    * The Xls file input stream.
    */
-  private FileInputStream file;
+  private InputStream file;
 
   /**
    * The workbook.
@@ -205,14 +212,21 @@ public class XlsLineReader extends AbstractLineReader {
   private HSSFWorkbook workbook;
 
   /**
-   * Formula evaluator.
+   * Number formats of the styles of the workbook.
+   */
+  private CellStyles styles;
+
+  /**
+   * Rows in the current sheet, when reading sheets sequentially.
    */
-  private FormulaEvaluator evaluator;
+  private XlsSheet rows;
 
   /**
-   * Rows in the current sheet.
+   * The sheets read in parallel, when reading all sheets of the workbook with
+   * a parallelism greater than 1.
    */
-  private Iterator<Row> rows;
+  private boolean concurrent;
+  private ConcurrentSheets sheets;
 
   /**
    * The ids of sheets to load. If the import is for a single sheet, this will contain the
@@ -227,9 +241,9 @@ public class XlsLineReader extends AbstractLineReader {
   private boolean applyFormatting;
 
   /**
-   * Data formatter.
+   * Whether formulas are evaluated or their cached results read.
    */
-  private static final DataFormatter formatter = new DataFormatter();
+  private Format.Formulas formulas;
 
   /**
    * Logger.
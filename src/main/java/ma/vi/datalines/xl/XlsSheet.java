@@ -0,0 +1,150 @@
+package ma.vi.datalines.xl;
+
+import ma.vi.base.util.Numbers;
+import ma.vi.datalines.Format;
+import ma.vi.datalines.RowBatch;
+import ma.vi.datalines.RowSchema;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.ss.usermodel.*;
+
+import java.util.Iterator;
+
+import static org.apache.poi.ss.usermodel.CellType.*;
+
+/**
+ * Reads the rows of a sheet of an xls workbook loaded in memory. Each sheet has
+ * its own formula evaluator and formatter, so that sheets of the same workbook
+ * can be read concurrently on different threads. Xls files hold a result for
+ * every formula cell, which is read instead of evaluating the formula unless
+ * formulas are {@link Format.Formulas#EVALUATE}d. Cells of columns which are not
+ * projected are skipped before their values are read or evaluated.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class XlsSheet implements ConcurrentSheets.Sheet {
+  XlsSheet(HSSFSheet       sheet,
+           CellStyles      styles,
+           RowSchema       schema,
+           boolean         applyFormatting,
+           Format.Formulas formulas) {
+    this.rows = sheet.rowIterator();
+    this.styles = styles;
+    this.evaluator = formulas == Format.Formulas.EVALUATE
+                   ? sheet.getWorkbook().getCreationHelper().createFormulaEvaluator()
+                   : null;
+    this.schema = schema;
+    this.applyFormatting = applyFormatting;
+  }
+
+  @Override
+  public boolean nextRow(RowBatch lines, int row, boolean convertToColumnType) {
+    if (!rows.hasNext()) {
+      return false;
+    }
+    Row cells = rows.next();
+    for (int i = 0; i < cells.getLastCellNum(); i++) {
+      if (!schema.projects(i)) {
+        continue;
+      }
+      Cell cell = cells.getCell(i);
+      Object contents = null;
+      if (cell != null) {
+        Object valueContainer = cell;
+        CellType type = cell.getCellType();
+        if (type == FORMULA && evaluator == null) {
+          /*
+           * Cached result, which the cell returns as its value.
+           */
+          type = cell.getCachedFormulaResultType();
+
+        } else if (type == FORMULA) {
+          try {
+            CellValue value = evaluator.evaluate(cell);
+            type = value.getCellType();
+            valueContainer = value;
+          } catch (Exception e) {
+            /*
+             * Error evaluating cell value, just use formula as a normal string
+             */
+            contents = cell.getCellFormula();
+            type = null;
+          }
+        }
+
+        if (type == BOOLEAN) {
+          contents = valueContainer instanceof Cell c
+                   ? c.getBooleanCellValue()
+                   : ((CellValue)valueContainer).getBooleanValue();
+        } else if (type == ERROR) {
+          contents = "ERROR: " + (valueContainer instanceof Cell c
+                                ? c.getErrorCellValue()
+                                : ((CellValue)valueContainer).getErrorValue());
+        } else if (type == STRING) {
+          contents = valueContainer instanceof Cell c
+                   ? c.getStringCellValue()
+                   : ((CellValue)valueContainer).getStringValue();
+
+        } else if (type == BLANK) {
+          contents = null;
+
+        } else if (type == NUMERIC) {
+          int style = cell.getCellStyle().getIndex();
+          double cellValue = valueContainer instanceof Cell c
+                           ? c.getNumericCellValue()
+                           : ((CellValue)valueContainer).getNumberValue();
+
+          if (styles.isDate(style) || schema.isDate(i)) {
+            contents = DateUtil.getLocalDateTime(cellValue);
+          } else if (applyFormatting && styles.formatString(style) != null) {
+            contents = formatter.formatRawCellContents(cellValue,
+                                                       styles.formatIndex(style),
+                                                       styles.formatString(style));
+          } else {
+            String v = String.valueOf(cellValue);
+            if (v.endsWith(".0")) {
+              v = v.substring(0, v.length() - 2);
+            }
+            contents = Numbers.convert(v);
+          }
+        }
+      }
+      lines.set(row, i, convertToColumnType ? schema.convert(i, contents) : contents);
+    }
+    return true;
+  }
+
+  @Override
+  public void close() {
+  }
+
+  /**
+   * Rows in the sheet.
+   */
+  private final Iterator<Row> rows;
+
+  /**
+   * Number formats of the styles of the workbook.
+   */
+  private final CellStyles styles;
+
+  /**
+   * Formula evaluator, when formulas are evaluated. The evaluator caches the
+   * values of the cells it evaluates and is reused for all rows of the sheet.
+   */
+  private final FormulaEvaluator evaluator;
+
+  /**
+   * The schema of the lines read, providing the columns to convert values to.
+   */
+  private final RowSchema schema;
+
+  /**
+   * Whether to apply formatting to the contents of read cells, or not.
+   */
+  private final boolean applyFormatting;
+
+  /**
+   * Data formatter, not shared between sheets which may be read concurrently.
+   */
+  private final DataFormatter formatter = new DataFormatter();
+}
\ No newline at end of file
@@ -0,0 +1,574 @@
+package ma.vi.datalines.xl;
+
+import ma.vi.base.util.Numbers;
+import ma.vi.datalines.AbstractLineReader;
+import ma.vi.datalines.Format;
+import ma.vi.datalines.InputType;
+import ma.vi.datalines.RowBatch;
+import org.apache.poi.hssf.model.InternalWorkbook;
+import org.apache.poi.hssf.record.*;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.common.UnicodeString;
+import org.apache.poi.poifs.filesystem.DirectoryNode;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * A line reader which streams pre-Excel-2007 (xls) files from their records,
+ * instead of loading the workbook in memory as {@link XlsLineReader} does: rows
+ * are returned as their cell records are decoded, and the memory used is
+ * bounded by the width of rows, besides the shared strings of the workbook
+ * (which are decoded one at a time into a compact store spilling to a
+ * memory-mapped temporary file beyond a maximum size) and its formats. The
+ * shared strings of encrypted workbooks are however decrypted and decoded by
+ * POI as a whole before being stored.
+ * <p>
+ * The records of the sheets which are not read are skipped: the stream of
+ * records is positioned directly at the start of each sheet read, or, for
+ * encrypted workbooks which must be decrypted from their start, the records of
+ * the other sheets are skipped without being interpreted.
+ * <p>
+ * Formulas are not evaluated; their values are the results cached in the file
+ * when it was last saved. Otherwise, the values of cells are the same as the
+ * ones read by {@link XlsLineReader}. Streams are copied to a temporary file
+ * which is read as a file.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+public class XlsStreamingLineReader extends AbstractLineReader {
+  public XlsStreamingLineReader() {
+    this(SharedStringsStore.DEFAULT_MAX_IN_MEMORY);
+  }
+
+  /**
+   * @param maxSharedStringsInMemory The maximum number of bytes of shared strings
+   *                                 (encoded in UTF-8) kept on the heap, beyond
+   *                                 which they are spilled to a memory-mapped
+   *                                 temporary file. The default is 64 MB.
+   */
+  public XlsStreamingLineReader(long maxSharedStringsInMemory) {
+    this.maxSharedStringsInMemory = maxSharedStringsInMemory;
+  }
+
+  @Override
+  public boolean supports(File file, String name, Format format) {
+    return InputType.of(file) == InputType.XLS;
+  }
+
+  /**
+   * Reads the workbook globals (sheets, shared strings and formats), up to the
+   * first sheet.
+   */
+  @Override
+  public void openFile(File inputFile, String fileName, Format format) {
+    try {
+      applyFormatting = format != null && format.applyFormatting();
+      this.fileName = fileName;
+
+      filesystem = new POIFSFileSystem(inputFile, true);
+      DirectoryNode root = filesystem.getRoot();
+      for (String name: InternalWorkbook.WORKBOOK_DIR_ENTRY_NAMES) {
+        if (root.hasEntry(name)) {
+          workbookEntry = name;
+          break;
+        }
+      }
+      if (workbookEntry == null) {
+        throw new IllegalStateException("No workbook found in " + fileName
+                                      + " (files from Excel 5.0/7.0 and earlier are not supported)");
+      }
+
+      in = measured(filesystem.createDocumentInputStream(workbookEntry));
+      Globals globals = new Globals();
+      if (!readGlobals(new RecordInputStream(in), globals)) {
+        /*
+         * Encrypted records are decrypted by POI from the start of the stream,
+         * and the shared strings are then read as a whole.
+         */
+        encrypted = true;
+        in.close();
+        in = measured(filesystem.createDocumentInputStream(workbookEntry));
+        records = new RecordFactoryInputStream(in, false);
+        globals = new Globals();
+        Record record;
+        while ((record = records.nextRecord()) != null && !(record instanceof EOFRecord)) {
+          if (record instanceof SSTRecord sst) {
+            sharedStrings = SharedStringsStore.of(sst.getNumUniqueStrings(),
+                                                  i -> sst.getString(i).getString(),
+                                                  maxSharedStringsInMemory);
+          } else {
+            globals.add(record);
+          }
+        }
+      }
+      List<BoundSheetRecord> boundSheets = globals.boundSheets;
+      styles = CellStyles.of(Arrays.copyOf(globals.xfFormats, globals.xfCount), globals.formats::get);
+
+      /*
+       * Sheets to read, in the order of their records, which is their order
+       * in the workbook.
+       */
+      BoundSheetRecord[] ordered = BoundSheetRecord.orderByBofPosition(boundSheets);
+      if (format == null) {
+        sheets.add(0);
+      } else if (format.page() <= 0) {
+        for (int i = 0; i < ordered.length; i++) {
+          sheets.add(i);
+        }
+      } else {
+        sheets.add(format.page() - 1);
+      }
+      for (int sheet: sheets) {
+        if (sheet >= ordered.length) {
+          throw new IllegalStateException("This workbook (" + fileName
+                                        + ") does not have a sheet at position " + sheet);
+        }
+      }
+      sheetPositions = new int[ordered.length];
+      for (int i = 0; i < ordered.length; i++) {
+        sheetPositions[i] = ordered[i].getPositionOfBof();
+      }
+      if (sheets.isEmpty()) {
+        throw new IllegalStateException("No sheet data found in " + fileName);
+      }
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Could not read Excel 97 (xls) file '" + fileName + "'. Reason: " + e, e);
+    }
+  }
+
+  @Override
+  protected LineType nextLine(RowBatch lines, int row, boolean convertToColumnType) {
+    try {
+      if (!inSheet && (sheet >= 0 || !nextSheet())) {
+        return LineType.END;
+      }
+      if (nextRow(lines, row, convertToColumnType)) {
+        return LineType.LINE;
+      }
+      inSheet = false;
+      return nextSheet() ? LineType.SEPARATOR : LineType.END;
+    } catch (Exception e) {
+      throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads the records of the workbook globals, up to their end, from the raw
+   * stream of records, decoding the shared strings one at a time into the store
+   * as they are read from the SST record and its CONTINUE records (POI would
+   * build the whole SST record first). Returns false as soon as the workbook is
+   * found to be encrypted.
+   */
+  private boolean readGlobals(RecordInputStream in, Globals globals) throws IOException {
+    while (in.hasNextRecord()) {
+      in.nextRecord();
+      switch (in.getSid()) {
+        case FilePassRecord.sid       -> { return false; }
+        case EOFRecord.sid            -> { return true; }
+        case BoundSheetRecord.sid     -> globals.add(new BoundSheetRecord(in));
+        case FormatRecord.sid         -> globals.add(new FormatRecord(in));
+        case ExtendedFormatRecord.sid -> globals.add(new ExtendedFormatRecord(in));
+        case SSTRecord.sid            -> sharedStrings = sharedStrings(in);
+        default                       -> {}
+      }
+      if (in.remaining() > 0) {
+        in.readRemainder();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads the shared strings of the SST record at the current position of the
+   * stream, continuing into its CONTINUE records. As POI does, strings missing
+   * from a truncated SST record are empty.
+   */
+  private SharedStringsStore sharedStrings(RecordInputStream in) throws IOException {
+    in.readInt();
+    int count = in.readInt();
+    return SharedStringsStore.of(count,
+                                 i -> in.remaining() == 0
+                                   && (!in.hasNextRecord() || in.getNextSid() != ContinueRecord.sid)
+                                    ? ""
+                                    : new UnicodeString(in).getString(),
+                                 maxSharedStringsInMemory);
+  }
+
+  /**
+   * The sheets and formats of the workbook, from the records of its globals.
+   */
+  private static final class Globals {
+    void add(Record record) {
+      if (record instanceof BoundSheetRecord sheet) {
+        boundSheets.add(sheet);
+      } else if (record instanceof FormatRecord f) {
+        formats.put(f.getIndexCode(), f.getFormatString());
+      } else if (record instanceof ExtendedFormatRecord xf) {
+        if (xfCount == xfFormats.length) {
+          xfFormats = Arrays.copyOf(xfFormats, xfCount * 2);
+        }
+        xfFormats[xfCount++] = xf.getFormatIndex();
+      }
+    }
+
+    final List<BoundSheetRecord> boundSheets = new ArrayList<>();
+    final Map<Integer, String> formats = new HashMap<>();
+    short[] xfFormats = new short[64];
+    int xfCount;
+  }
+
+  /**
+   * Moves to the start of the next sheet to read, returning false if there are
+   * no more sheets.
+   */
+  private boolean nextSheet() throws IOException {
+    if (sheet + 1 >= sheets.size()) {
+      return false;
+    }
+    int position = sheets.get(++sheet);
+    if (encrypted) {
+      /*
+       * Encrypted records are decrypted from the start of the workbook stream:
+       * skip the records of the sheets before this one.
+       */
+      for (; substream <= position; substream++) {
+        Record record;
+        do {
+          record = records.nextRecord();
+          if (record == null) {
+            throw new IllegalStateException("Sheet " + position + " not found in " + fileName);
+          }
+        } while (!(record instanceof BOFRecord));
+        if (substream < position) {
+          skipSubstream();
+        }
+      }
+    } else {
+      in.close();
+      in = measured(filesystem.createDocumentInputStream(workbookEntry));
+      long skip = sheetPositions[position];
+      while (skip > 0) {
+        long skipped = in.skip(skip);
+        if (skipped <= 0) {
+          throw new IllegalStateException("Sheet " + position + " not found in " + fileName);
+        }
+        skip -= skipped;
+      }
+      records = new RecordFactoryInputStream(in, false);
+      if (!(records.nextRecord() instanceof BOFRecord)) {
+        throw new IllegalStateException("Sheet " + position + " not found in " + fileName);
+      }
+    }
+    inSheet = true;
+    sheetEnded = false;
+    pending = null;
+    depth = 0;
+    declaredRows.clear();
+    return true;
+  }
+
+  /**
+   * Skips the records of a substream, after its BOF record, up to its end.
+   */
+  private void skipSubstream() {
+    int nested = 0;
+    Record record;
+    while ((record = records.nextRecord()) != null) {
+      if (record instanceof BOFRecord) {
+        nested++;
+      } else if (record instanceof EOFRecord && nested-- == 0) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Reads the cells of the next row of the current sheet into the line of the
+   * batch, returning false at the end of the sheet. Rows are complete when a cell
+   * of another row, or the end of the sheet, is reached; the record reached is
+   * kept for the next row. Rows which are declared in the sheet but have no
+   * cells are returned as blank lines, as they are by {@link XlsLineReader}.
+   */
+  private boolean nextRow(RowBatch lines, int row, boolean convertToColumnType) {
+    int current = -1;
+    int column = 0;
+    while (true) {
+      Record record = pending;
+      pending = null;
+      if (record == null && !sheetEnded) {
+        record = records.nextRecord();
+      }
+
+      if (record == null || (record instanceof EOFRecord && depth == 0)) {
+        /*
+         * End of sheet.
+         */
+        sheetEnded = true;
+        if (current == -1 && !declaredRows.isEmpty()) {
+          declaredRows.poll();
+          return true;
+        }
+        return current != -1;
+
+      } else if (record instanceof BOFRecord) {
+        depth++;
+      } else if (record instanceof EOFRecord) {
+        depth--;
+      } else if (depth > 0) {
+        /*
+         * Records of embedded substreams (such as charts) are ignored.
+         */
+      } else if (record instanceof RowRecord r) {
+        declaredRows.add(r.getRowNumber());
+
+      } else if (record instanceof CellValueRecordInterface
+              || record instanceof MulRKRecord
+              || record instanceof MulBlankRecord) {
+        int rowNumber = rowOf(record);
+        if (current == -1) {
+          Integer declared = declaredRows.peek();
+          if (declared != null && declared < rowNumber) {
+            declaredRows.poll();
+            pending = record;
+            return true;
+          } else if (declared != null && declared == rowNumber) {
+            declaredRows.poll();
+          }
+          current = rowNumber;
+        } else if (rowNumber != current) {
+          pending = record;
+          return true;
+        }
+        column = setCells(lines, row, column, record, convertToColumnType);
+
+      } else if (record instanceof DimensionsRecord d) {
+        estimateTotalLines = d.getLastRow() - d.getFirstRow();
+      }
+    }
+  }
+
+  private static int rowOf(Record record) {
+    if (record instanceof MulRKRecord r) return r.getRow();
+    if (record instanceof MulBlankRecord r) return r.getRow();
+    return ((CellValueRecordInterface)record).getRow();
+  }
+
+  /**
+   * Sets the values of the cells in the record in the line, filling the columns
+   * between the last cell set (before `column`) and these cells with nulls.
+   * Returns the column following the cells set. Cells of columns which are not
+   * projected are skipped before their values are read.
+   */
+  private int setCells(RowBatch lines, int row, int column,
+                       Record record,
+                       boolean convertToColumnType) {
+    if (record instanceof MulRKRecord mul) {
+      for (int i = 0; i < mul.getNumColumns(); i++) {
+        int col = mul.getFirstColumn() + i;
+        if (!schema.projects(col)) {
+          continue;
+        }
+        column = set(lines, row, column, col,
+                     number(mul.getRKNumberAt(i), mul.getXFAt(i), col),
+                     convertToColumnType);
+      }
+      return column;
+    } else if (record instanceof MulBlankRecord mul) {
+      for (int i = 0; i < mul.getNumColumns(); i++) {
+        if (schema.projects(mul.getFirstColumn() + i)) {
+          column = set(lines, row, column, mul.getFirstColumn() + i, null, convertToColumnType);
+        }
+      }
+      return column;
+    }
+
+    CellValueRecordInterface cell = (CellValueRecordInterface)record;
+    int col = cell.getColumn();
+    if (!schema.projects(col)) {
+      return column;
+    }
+    Object contents = null;
+    if (record instanceof NumberRecord n) {
+      contents = number(n.getValue(), n.getXFIndex(), col);
+    } else if (record instanceof RKRecord rk) {
+      contents = number(rk.getRKNumber(), rk.getXFIndex(), col);
+    } else if (record instanceof LabelSSTRecord label) {
+      contents = sharedStrings.get(label.getSSTIndex());
+    } else if (record instanceof LabelRecord label) {
+      contents = label.getValue();
+    } else if (record instanceof BoolErrRecord b) {
+      contents = b.isBoolean() ? (Object)b.getBooleanValue() : "ERROR: " + b.getErrorValue();
+    } else if (record instanceof FormulaRecord f) {
+      contents = switch (f.getCachedResultTypeEnum()) {
+        case NUMERIC -> number(f.getValue(), f.getXFIndex(), col);
+        case STRING  -> f.hasCachedResultString() ? formulaString() : "";
+        case BOOLEAN -> f.getCachedBooleanValue();
+        case ERROR   -> "ERROR: " + (byte)f.getCachedErrorValue();
+        default      -> null;
+      };
+    }
+    return set(lines, row, column, col, contents, convertToColumnType);
+  }
+
+  /**
+   * Reads the string result of a formula, in the string record following the
+   * formula and the shared formula, array or table records it may refer to.
+   */
+  private String formulaString() {
+    Record record;
+    while ((record = records.nextRecord()) != null) {
+      if (record instanceof StringRecord s) {
+        return s.getString();
+      } else if (!(record instanceof SharedValueRecordBase)) {
+        pending = record;
+        break;
+      }
+    }
+    return "";
+  }
+
+  private int set(RowBatch lines, int row, int column, int col,
+                  Object contents, boolean convertToColumnType) {
+    for (; column < col; column++) {
+      if (schema.projects(column)) lines.setNull(row, column);
+    }
+    lines.set(row, col, convertToColumnType ? schema.convert(col, contents) : contents);
+    return Math.max(column, col + 1);
+  }
+
+  /**
+   * The value of a numeric cell, as read by {@link XlsSheet}.
+   */
+  private Object number(double cellValue, int style, int col) {
+    if (styles.isDate(style) || schema.isDate(col)) {
+      return DateUtil.getLocalDateTime(cellValue);
+    } else if (applyFormatting && styles.formatString(style) != null) {
+      return formatter.formatRawCellContents(cellValue,
+                                             styles.formatIndex(style),
+                                             styles.formatString(style));
+    } else {
+      String v = String.valueOf(cellValue);
+      if (v.endsWith(".0")) {
+        v = v.substring(0, v.length() - 2);
+      }
+      return Numbers.convert(v);
+    }
+  }
+
+  @Override
+  public long estimateTotalLines() {
+    return estimateTotalLines;
+  }
+
+  /**
+   * Close the workbook and resources.
+   */
+  @Override
+  public void close() {
+    super.close();
+    try {
+      if (in != null) {
+        in.close();
+        in = null;
+      }
+      if (filesystem != null) {
+        filesystem.close();
+        filesystem = null;
+      }
+      if (sharedStrings != null) {
+        sharedStrings.close();
+        sharedStrings = null;
+      }
+    } catch (Exception e) {
+      throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+    }
+  }
+
+  private long estimateTotalLines = -1;
+
+  /**
+   * The workbook file system and the name of the workbook stream in it.
+   */
+  private POIFSFileSystem filesystem;
+  private String workbookEntry;
+
+  /**
+   * The workbook stream and the records read from it.
+   */
+  private InputStream in;
+  private RecordFactoryInputStream records;
+
+  /**
+   * Whether the workbook is encrypted, in which case its stream is read from
+   * start to end.
+   */
+  private boolean encrypted;
+
+  /**
+   * The positions of the sheets to read (in the order of their records), the
+   * position in these of the sheet being read, and the position in the stream of
+   * the records of each sheet.
+   */
+  private final List<Integer> sheets = new ArrayList<>();
+  private int sheet = -1;
+  private int[] sheetPositions;
+
+  /**
+   * For encrypted workbooks, the number of sheets whose records have been read.
+   */
+  private int substream;
+
+  /**
+   * Whether a sheet is being read and the end of its records has been reached.
+   */
+  private boolean inSheet;
+  private boolean sheetEnded;
+
+  /**
+   * The depth of the embedded substream (such as a chart) being read in the
+   * sheet, or 0 if none.
+   */
+  private int depth;
+
+  /**
+   * A record read past the end of the last row returned, to be read first.
+   */
+  private Record pending;
+
+  /**
+   * The numbers of the rows declared by row records in the current block of
+   * rows, and not yet returned.
+   */
+  private final Deque<Integer> declaredRows = new ArrayDeque<>();
+
+  /**
+   * Shared strings of the workbook.
+   */
+  private SharedStringsStore sharedStrings;
+
+  /**
+   * The maximum number of bytes of shared strings kept on the heap.
+   */
+  private final long maxSharedStringsInMemory;
+
+  /**
+   * Number formats of the styles of the workbook.
+   */
+  private CellStyles styles;
+
+  /**
+   * Whether to apply formatting to the contents of read cells.
+   */
+  private boolean applyFormatting;
+
+  /**
+   * Data formatter.
+   */
+  private final DataFormatter formatter = new DataFormatter();
+}
\ No newline at end of file
@@ -1,49 +1,55 @@
 package ma.vi.datalines.xl;
 
-import ma.vi.base.util.Numbers;
 import ma.vi.datalines.AbstractLineReader;
 import ma.vi.datalines.Format;
+import ma.vi.datalines.InputType;
+import ma.vi.datalines.RowBatch;
 import org.apache.poi.openxml4j.opc.*;
-import org.apache.poi.ss.usermodel.BuiltinFormats;
-import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.ss.usermodel.DateUtil;
-import org.apache.poi.ss.util.CellReference;
 import org.apache.poi.xssf.eventusermodel.XSSFReader;
-import org.apache.poi.xssf.model.SharedStrings;
-import org.apache.poi.xssf.model.StylesTable;
-import org.apache.poi.xssf.usermodel.XSSFCellStyle;
-import org.apache.poi.xssf.usermodel.XSSFRichTextString;
 
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamReader;
 import java.io.File;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-
-import static javax.xml.stream.XMLStreamConstants.*;
+import java.util.concurrent.Callable;
 
 /**
  * A line reader which can read Excel 2007 (xlsx) files.
+ * <p>
+ * When all sheets of a workbook file are read ({@link Format#page()} is 0 or
+ * less) and the format has a {@link Format#parallelism()} greater than 1, the
+ * sheets are parsed in parallel, sharing the shared strings and styles of the
+ * workbook, and returned in workbook order or, if the format is not
+ * {@link Format#ordered()}, in the order in which their parsing completes.
+ * Workbooks read from streams are read sequentially.
  *
  * @author vikash.madhow@gmail.com
  */
 public class XlsxLineReader extends AbstractLineReader {
+  public XlsxLineReader() {
+    this(SharedStringsStore.DEFAULT_MAX_IN_MEMORY);
+  }
+
+  /**
+   * @param maxSharedStringsInMemory The maximum number of bytes of shared strings
+   *                                 (encoded in UTF-8) kept on the heap, beyond
+   *                                 which they are spilled to a memory-mapped
+   *                                 temporary file. The default is 64 MB.
+   */
+  public XlsxLineReader(long maxSharedStringsInMemory) {
+    this.maxSharedStringsInMemory = maxSharedStringsInMemory;
+  }
+
   @Override
   public boolean supports(File file, String name, Format format) {
-    try (OPCPackage ignored = OPCPackage.open(file, PackageAccess.READ)) {
-      return true;
-    } catch (Exception e) {
-      return false;
-    }
+    return InputType.of(file) == InputType.XLSX;
   }
 
   @Override
   public void openFile(File inputFile, String fileName, Format format) {
     try {
       applyFormatting = format != null && format.applyFormatting();
+      formulas = format == null ? Format.Formulas.EVALUATE : format.formulas();
       this.fileName = fileName;
 
       /*
@@ -72,10 +78,21 @@ public class XlsxLineReader extends AbstractLineReader {
 
       if (!sheetIds.isEmpty()) {
         xlsx = new XSSFReader(excelPackage);
-        sharedStrings = xlsx.getSharedStringsTable();
-        styles = xlsx.getStylesTable();
-        sheetIn = xlsx.getSheet(sheetIds.remove(0));
-        reader = inputFactory.createXMLStreamReader(sheetIn);
+        InputStream sharedStringsIn = xlsx.getSharedStringsData();
+        if (sharedStringsIn != null) {
+          sharedStrings = SharedStringsStore.read(sharedStringsIn, maxSharedStringsInMemory);
+        }
+        styles = CellStyles.of(xlsx.getStylesTable());
+        pages = List.copyOf(sheetIds);
+        estimateTotalLines = dimensions();
+        if (format != null
+         && format.page() <= 0
+         && format.parallelism() > 1
+         && sheetIds.size() > 1) {
+          concurrent = true;
+        } else {
+          sheetIn = measured(xlsx.getSheet(sheetIds.remove(0)));
+        }
 
       } else {
         throw new IllegalStateException("No sheet data found in " + fileName);
@@ -85,124 +102,132 @@ public class XlsxLineReader extends AbstractLineReader {
     }
   }
 
+  /**
+   * Reads the package in a single pass over the stream: the first sheet is read
+   * directly from the stream if the shared strings and styles precede it in the
+   * package; otherwise, it is kept aside until these are read.
+   */
   @Override
-  protected Map<String, Object> nextLine(boolean convertToColumnType) {
+  protected void openStream(InputStream input, String fileName, Format format) {
     try {
-      if (moveToStartOfRow()) {
-        // read columns
-        int i = 1;
-        Map<String, Object> row = new LinkedHashMap<>();
-        while (reader.nextTag() == START_ELEMENT && "c".equals(reader.getLocalName())) {
-          /*
-           * Get cell reference to determine column (this is necessary because
-           * null cells are not saved in the xml file, therefore a simple counter
-           * increment will not work).
-           */
-          String cellRef = reader.getAttributeValue(null, "r");
-          int currentCell = cellRef == null ? row.size() : new CellReference(cellRef).getCol();
-
-          /*
-           * Fill gaps with null, if any.
-           */
-          while (currentCell > row.size()) row.put(String.valueOf(i++), null);
+      applyFormatting = format != null && format.applyFormatting();
+      formulas = format == null ? Format.Formulas.EVALUATE : format.formulas();
+      this.fileName = fileName;
 
-          /*
-           * Get cell type and style.
-           */
-          Object contents = null;
-          CellDataType dataType = CellDataType.NUMBER;
-          String cellType = reader.getAttributeValue(null, "t");
-          String cellStyleStr = reader.getAttributeValue(null, "s");
-          int formatIndex = -1;
-          String formatString = null;
-          if ("b".equals(cellType)) {
-            dataType = CellDataType.BOOL;
-
-          } else if ("e".equals(cellType)) {
-            dataType = CellDataType.ERROR;
-
-          } else if ("inlineStr".equals(cellType)) {
-            dataType = CellDataType.INLINESTR;
-
-          } else if ("s".equals(cellType)) {
-            dataType = CellDataType.SSTINDEX;
-
-          } else if ("str".equals(cellType)) {
-            dataType = CellDataType.FORMULA;
-
-          } else if (cellStyleStr != null) {
-            /*
-             * A number, but almost certainly with a special style or format.
-             */
-            int styleIndex = Integer.parseInt(cellStyleStr);
-            XSSFCellStyle style = styles.getStyleAt(styleIndex);
-            formatIndex = style.getDataFormat();
-            formatString = style.getDataFormatString();
-            if (formatString == null) {
-              formatString = BuiltinFormats.getBuiltinFormat(formatIndex);
-            }
-          }
+      packageStream = new XlsxPackageStream(input, format == null ? 1 : format.page(),
+                                            maxSharedStringsInMemory);
+      sheetIn = packageStream.nextSheet();
+      if (sheetIn != null) {
+        sharedStrings = packageStream.sharedStrings();
+        styles = CellStyles.of(packageStream.styles());
+      } else {
+        throw new IllegalStateException("No sheet data found in " + fileName);
+      }
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Could not read XLSX file '" + fileName + "'. Reason: " + e, e);
+    }
+  }
 
-          /*
-           * Read cell contents, parse and format.
-           */
-          while (reader.nextTag() != END_ELEMENT
-             || !reader.getLocalName().equals("c")) {
-            String cellValue = reader.getElementText();
-            if (reader.getLocalName().equals("v")) {
-              contents = switch (dataType) {
-                case BOOL      -> cellValue.charAt(0) == '0' ? "FALSE" : "TRUE";
-                case ERROR     -> "ERROR: " + cellValue;
-                case INLINESTR -> new XSSFRichTextString(cellValue).toString();
-                case SSTINDEX  -> {
-                  int idx = Integer.parseInt(cellValue.trim());
-                  yield sharedStrings.getItemAt(idx).toString();
-                }
-                case NUMBER -> {
-                  if (DateUtil.isADateFormat(formatIndex, formatString)
-                      || (columnByLocations.containsKey(String.valueOf(currentCell + 1))
-                      && columnByLocations.get(String.valueOf(currentCell + 1)).type().contains("date"))) {
-                    yield DateUtil.getLocalDateTime(Double.parseDouble(cellValue));
-                  } else if (applyFormatting && formatString != null) {
-                    yield formatter.formatRawCellContents(Double.parseDouble(cellValue), formatIndex, formatString);
-                  } else {
-                    yield Numbers.convert(cellValue.trim());
-                  }
-                }
-                default -> cellValue;
-              };
-            }
+  @Override
+  protected LineType nextLine(RowBatch lines, int row, boolean convertToColumnType) {
+    try {
+      if (concurrent) {
+        if (sheets == null) {
+          List<Callable<ConcurrentSheets.Sheet>> openers = new ArrayList<>();
+          for (String sheetId: sheetIds) {
+            openers.add(() -> new XlsxSheet(measured(xlsx.getSheet(sheetId)), sharedStrings, styles,
+                                            schema.withOwnConverters(), applyFormatting, formulas));
           }
-          row.put(String.valueOf(i++), contents);
+          sheetIds.clear();
+          sheets = new ConcurrentSheets(openers, format, schema,
+                                        format.parallelism(), format.ordered());
         }
-        return row;
+        if (sheets.next(lines, row)) {
+          return LineType.LINE;
+        }
+        return sheets.nextSheet() ? LineType.SEPARATOR : LineType.END;
+      }
+
+      if (sheet == null) {
+        sheet = new XlsxSheet(sheetIn, sharedStrings, styles, schema, applyFormatting, formulas);
+      }
+      if (sheet.nextRow(lines, row, convertToColumnType)) {
+        return LineType.LINE;
       } else {
         /*
          * If end of current sheet, move to next, if any.
          */
-        if (!sheetIds.isEmpty()) {
-          reader.close();
-          sheetIn.close();
-
-          sheetIn = xlsx.getSheet(sheetIds.remove(0));
-          reader = inputFactory.createXMLStreamReader(sheetIn);
+        InputStream next = nextSheet();
+        if (next != null) {
+          sheetIn = next;
+          sheet = null;
 
           /*
            * Return separator so that header lines read are reset to 0 and headers
            * are read again for this sheet.
            */
-          return SEPARATOR;
+          return LineType.SEPARATOR;
         }
-        return null;
+        return LineType.END;
       }
     } catch (Exception e) {
       throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
     }
   }
 
+  /**
+   * Returns the total number of rows in the dimensions of the sheets to read,
+   * or -1 if a sheet has no dimension. Dimensions are at the start of sheets,
+   * so only these are read.
+   */
+  private long dimensions() throws Exception {
+    long rows = 0;
+    for (String page: pages) {
+      try (SheetScanner scanner = new SheetScanner(xlsx.getSheet(page))) {
+        long dimension = scanner.readDimension();
+        if (dimension == -1) {
+          return -1;
+        }
+        rows += dimension;
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Counts the rows in the XML of the sheets to read, from their start tags.
+   */
+  @Override
+  public long countLines() {
+    if (lineCount == -1 && xlsx != null) {
+      try {
+        long rows = 0;
+        for (String page: pages) {
+          try (SheetScanner scanner = new SheetScanner(xlsx.getSheet(page))) {
+            rows += scanner.countRows();
+          }
+        }
+        lineCount = rows;
+      } catch (Exception e) {
+        throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+      }
+    }
+    return lineCount;
+  }
+
+  /**
+   * The number of rows counted, or the rows in the dimensions of the sheets. When
+   * reading from a stream, these are the dimensions of the sheets read so far,
+   * known once each sheet is reached.
+   */
   @Override
   public long estimateTotalLines() {
-    return -1;
+    if (lineCount != -1) {
+      return lineCount;
+    } else if (packageStream != null && sheet != null && sheet.dimension() != -1) {
+      return previousDimensions + sheet.dimension();
+    }
+    return estimateTotalLines;
   }
 
   /**
@@ -212,75 +237,71 @@ public class XlsxLineReader extends AbstractLineReader {
   public void close() {
     super.close();
     try {
-      if (reader != null) {
-        reader.close();
-        reader = null;
+      if (sheets != null) {
+        sheets.close();
+        sheets = null;
+      }
+      if (sheet != null) {
+        sheet.close();
+        sheet = null;
       }
       if (sheetIn != null) {
         sheetIn.close();
         sheetIn = null;
       }
+      if (sharedStrings != null) {
+        sharedStrings.close();
+        sharedStrings = null;
+      }
       if (excelPackage != null) {
         excelPackage.close();
         excelPackage = null;
       }
+      if (packageStream != null) {
+        packageStream.close();
+        packageStream = null;
+      }
     } catch (Exception e) {
       throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
     }
   }
 
   /**
-   * Moves the reader to the next row or stays at the same position if already on a row.
-   * Returns true if a row was found, false otherwise.
+   * Closes the current sheet and returns the next one to read, if any.
    */
-  private boolean moveToStartOfRow() {
-    return moveToStartOf("row");
-  }
-
-  /**
-   * Moves to the start of the tag element or stays at the same position if already on one.
-   * Returns true if on the tag element, false otherwise.
-   */
-  private boolean moveToStartOf(String tag) {
-    try {
-      if (!reader.hasNext()) {
-        return false;
-      } else {
-        int event = reader.getEventType();
-        while (event != START_ELEMENT || !reader.getLocalName().equals(tag)) {
-          event = reader.next();
-          if (event == END_DOCUMENT) {
-            return false;
-          }
-        }
-        return true;
+  private InputStream nextSheet() throws Exception {
+    if (packageStream != null) {
+      sheet.close();
+      InputStream next = packageStream.nextSheet();
+      if (next != null) {
+        previousDimensions += Math.max(0, sheet.dimension());
       }
-    } catch (Exception e) {
-      throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+      return next;
+    } else if (!sheetIds.isEmpty()) {
+      sheet.close();
+      return measured(xlsx.getSheet(sheetIds.remove(0)));
+    } else {
+      return null;
     }
   }
 
-  /**
-   * Cell data types.
-   */
-  enum CellDataType {
-    BOOL, ERROR, FORMULA, INLINESTR, SSTINDEX, NUMBER,
-  }
-
   /**
    * The Excel reader.
    */
   private XSSFReader xlsx;
 
   /**
-   * XML streaming reader factory.
+   * The sheet being read sequentially, created on the first line read from the
+   * sheet as it needs the schema of the lines.
    */
-  private final XMLInputFactory inputFactory = XMLInputFactory.newFactory();
+  private XlsxSheet sheet;
 
   /**
-   * Streaming reader for the XML sheet.
+   * The sheets read in parallel, when reading all sheets of a workbook file with
+   * a parallelism greater than 1.
    */
-  private XMLStreamReader reader;
+  private boolean concurrent;
+  private ConcurrentSheets sheets;
 
   /**
    * The ids of sheets to load. If the import is for a single sheet, this will
@@ -289,20 +310,42 @@ public class XlsxLineReader extends AbstractLineReader {
    */
   private final List<String> sheetIds = new ArrayList<>();
 
+  /**
+   * The ids of all the sheets read, when reading from a file.
+   */
+  private List<String> pages = List.of();
+
+  /**
+   * The rows in the dimensions of the sheets read, -1 if unknown; when reading
+   * from a stream, the rows in the dimensions of the sheets already read.
+   */
+  private long estimateTotalLines = -1;
+  private long previousDimensions;
+
+  /**
+   * The number of rows in the sheets read, once counted.
+   */
+  private long lineCount = -1;
+
   /**
    * The sheet input stream.
    */
   private InputStream sheetIn;
 
   /**
-   * Shared strings table of Excel.
+   * Shared strings of the workbook.
    */
-  private SharedStrings sharedStrings;
+  private SharedStringsStore sharedStrings;
 
   /**
-   * Styles table.
+   * The maximum number of bytes of shared strings kept on the heap.
    */
-  private StylesTable styles;
+  private final long maxSharedStringsInMemory;
+
+  /**
+   * Number formats of the styles of the workbook.
+   */
+  private CellStyles styles;
 
   /**
    * Whether to apply formatting to the contents of read cells.
@@ -310,15 +353,22 @@ public class XlsxLineReader extends AbstractLineReader {
   private boolean applyFormatting;
 
   /**
-   * Data formatter.
+   * The values read for formula cells; formulas are not evaluated but, unless
+   * only cached results are read, the text of formulas without cached results
+   * is read.
    */
-  private static final DataFormatter formatter = new DataFormatter();
+  private Format.Formulas formulas;
 
   /**
    * The Excel package object.
    */
   private OPCPackage excelPackage;
 
+  /**
+   * The package when reading from a stream.
+   */
+  private XlsxPackageStream packageStream;
+
   /**
    * Relationship type for Excel worksheets.
    */
@@ -0,0 +1,409 @@
+package ma.vi.datalines.xl;
+
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.model.StylesTable;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.*;
+
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+/**
+ * Reads the sheets of an xlsx package in a single pass over a zip stream, without
+ * first copying the package to a file. The package relationships are read as they
+ * are encountered to find the sheets to read, the shared strings and the styles;
+ * a sheet is then read directly from the zip stream if the shared strings and
+ * styles it refers to have already been read.
+ * <p>
+ * Parts needed later (such as sheets appearing in the package before the shared
+ * strings, as saved by Excel, or before the relationships identifying them) are
+ * kept in memory if small, or spilled, compressed, to temporary files which
+ * are deleted when the stream is closed. Other parts are skipped.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class XlsxPackageStream implements AutoCloseable {
+  /**
+   * Creates a stream over the xlsx package.
+   *
+   * @param input The stream of the package.
+   * @param page The position (1-based) of the sheet to read, in the same order as
+   *             when reading from a file, or 0 or less to read all sheets.
+   * @param maxSharedStringsInMemory The maximum number of bytes of shared strings
+   *                                 kept on the heap.
+   */
+  XlsxPackageStream(InputStream input, int page, long maxSharedStringsInMemory) {
+    this.zip = new ZipInputStream(new BufferedInputStream(input));
+    this.page = page;
+    this.maxSharedStringsInMemory = maxSharedStringsInMemory;
+  }
+
+  /**
+   * Returns the next sheet to read, or null if there are no more sheets. The
+   * stream returned must be closed before calling this method again.
+   */
+  InputStream nextSheet() throws IOException {
+    while (true) {
+      resolve();
+      String sheet = null;
+      if (sheetPaths != null) {
+        if (nextSheet >= sheetPaths.size()) {
+          return null;
+        }
+        sheet = sheetPaths.get(nextSheet);
+        if (ready() && parts.containsKey(sheet)) {
+          nextSheet++;
+          return parts.remove(sheet).open();
+        }
+      }
+
+      ZipEntry entry = exhausted ? null : zip.getNextEntry();
+      if (entry == null) {
+        exhausted = true;
+        if (sheetPaths == null) {
+          throw new IOException("Workbook not found in package");
+        } else if (!ready()) {
+          /*
+           * Shared strings or styles referred to but missing from the package.
+           */
+          if (sharedStrings == null) sharedStringsPath = null;
+          if (styles == null) stylesPath = null;
+        } else {
+          throw new IOException("Sheet " + sheet + " not found in package");
+        }
+      } else if (entry.getName().equals(sheet) && ready()) {
+        nextSheet++;
+        return entryStream();
+      } else if (entry.getName().equals(sharedStringsPath) && sharedStrings == null) {
+        loadSharedStrings(entryStream());
+      } else if (entry.getName().equals(stylesPath) && styles == null) {
+        loadStyles(entryStream());
+      } else if (!entry.isDirectory() && isNeeded(entry.getName())) {
+        parts.put(entry.getName(), Part.of(zip));
+      }
+    }
+  }
+
+  /**
+   * The shared strings of the workbook, available once a sheet has been
+   * returned; null if the workbook has none.
+   */
+  SharedStringsStore sharedStrings() {
+    return sharedStrings;
+  }
+
+  /**
+   * The styles of the workbook, available once a sheet has been returned; null
+   * if the workbook has none.
+   */
+  StylesTable styles() {
+    return styles;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Part part: parts.values()) {
+      part.delete();
+    }
+    parts.clear();
+    zip.close();
+  }
+
+  /**
+   * Whether the shared strings and styles referred to by the workbook have been
+   * read.
+   */
+  private boolean ready() {
+    return (sharedStringsPath == null || sharedStrings != null)
+        && (stylesPath == null || styles != null);
+  }
+
+  /**
+   * Returns true if the part could be needed for reading the selected sheets:
+   * before the workbook relationships are read, this is any XML part.
+   */
+  private boolean isNeeded(String name) {
+    if (sheetPaths == null) {
+      return name.endsWith(".xml") || name.endsWith(".rels");
+    } else {
+      return sheetPaths.subList(nextSheet, sheetPaths.size()).contains(name)
+          || name.equals(sharedStringsPath)
+          || name.equals(stylesPath);
+    }
+  }
+
+  /**
+   * Reads the relationships, shared strings and styles from the parts read so far,
+   * as far as possible.
+   */
+  private void resolve() throws IOException {
+    if (workbookPath == null && parts.containsKey(ROOT_RELS)) {
+      for (Relationship rel: relationships(parts.remove(ROOT_RELS), "")) {
+        if (rel.type().endsWith(OFFICE_DOCUMENT_REL)) {
+          workbookPath = rel.target();
+          break;
+        }
+      }
+      if (workbookPath == null) {
+        throw new IOException("Workbook not found in package");
+      }
+    }
+
+    String workbookRels = workbookPath == null ? null : relationshipsPath(workbookPath);
+    if (sheetPaths == null && workbookRels != null && parts.containsKey(workbookRels)) {
+      String dir = workbookPath.substring(0, workbookPath.lastIndexOf('/') + 1);
+      List<Relationship> rels = relationships(parts.remove(workbookRels), dir);
+
+      /*
+       * Sheets are numbered in the order of their relationship ids, as when
+       * reading from a file.
+       */
+      rels.sort(Comparator.comparing(Relationship::id));
+      List<String> sheets = new ArrayList<>();
+      int sheetNumber = 1;
+      for (Relationship rel: rels) {
+        if (rel.type().endsWith(WORKSHEET_REL)) {
+          if (page <= 0 || sheetNumber == page) {
+            sheets.add(rel.target());
+          }
+          sheetNumber++;
+        } else if (rel.type().endsWith(SHARED_STRINGS_REL)) {
+          sharedStringsPath = rel.target();
+        } else if (rel.type().endsWith(STYLES_REL)) {
+          stylesPath = rel.target();
+        }
+      }
+      sheetPaths = sheets;
+
+      /*
+       * Discard the parts kept before knowing which ones are needed.
+       */
+      for (Iterator<Map.Entry<String, Part>> i = parts.entrySet().iterator(); i.hasNext();) {
+        Map.Entry<String, Part> part = i.next();
+        if (!isNeeded(part.getKey())) {
+          part.getValue().delete();
+          i.remove();
+        }
+      }
+    }
+
+    if (sharedStrings == null && sharedStringsPath != null && parts.containsKey(sharedStringsPath)) {
+      loadSharedStrings(parts.remove(sharedStringsPath).open());
+    }
+    if (styles == null && stylesPath != null && parts.containsKey(stylesPath)) {
+      loadStyles(parts.remove(stylesPath).open());
+    }
+  }
+
+  private void loadSharedStrings(InputStream input) throws IOException {
+    sharedStrings = SharedStringsStore.read(input, maxSharedStringsInMemory);
+  }
+
+  private void loadStyles(InputStream input) throws IOException {
+    try (InputStream in = input) {
+      styles = new StylesTable(in);
+    }
+  }
+
+  /**
+   * A stream over the current entry of the zip stream, which does not close the
+   * zip stream when closed.
+   */
+  private InputStream entryStream() {
+    return new FilterInputStream(zip) {
+      @Override
+      public void close() {
+        /*
+         * The rest of the entry is skipped when moving to the next entry.
+         */
+      }
+    };
+  }
+
+  /**
+   * Reads the relationships in the part, resolving their targets relative to the
+   * directory of the source part of the relationships.
+   */
+  private static List<Relationship> relationships(Part part, String dir) throws IOException {
+    List<Relationship> rels = new ArrayList<>();
+    try (InputStream in = part.open()) {
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+      while (reader.hasNext()) {
+        if (reader.next() == START_ELEMENT
+         && reader.getLocalName().equals("Relationship")
+         && !"External".equals(reader.getAttributeValue(null, "TargetMode"))) {
+          rels.add(new Relationship(reader.getAttributeValue(null, "Id"),
+                                    reader.getAttributeValue(null, "Type"),
+                                    resolve(dir, reader.getAttributeValue(null, "Target"))));
+        }
+      }
+      reader.close();
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Could not read package relationships", e);
+    }
+    return rels;
+  }
+
+  /**
+   * Returns the name of the zip entry of the relationship target.
+   */
+  private static String resolve(String dir, String target) {
+    Deque<String> path = new ArrayDeque<>();
+    for (String segment: (target.startsWith("/") ? target : dir + target).split("/")) {
+      if (segment.equals("..")) {
+        path.pollLast();
+      } else if (!segment.isEmpty() && !segment.equals(".")) {
+        path.addLast(segment);
+      }
+    }
+    return String.join("/", path);
+  }
+
+  /**
+   * Returns the name of the relationships part of a part (e.g. xl/_rels/workbook.xml.rels
+   * for xl/workbook.xml).
+   */
+  private static String relationshipsPath(String part) {
+    int pos = part.lastIndexOf('/');
+    return part.substring(0, pos + 1) + "_rels/" + part.substring(pos + 1) + ".rels";
+  }
+
+  /**
+   * A relationship from a package part.
+   */
+  private record Relationship(String id, String type, String target) {}
+
+  /**
+   * A part read from the zip stream and kept for later, in memory or in a
+   * compressed temporary file.
+   */
+  private static final class Part {
+    private Part(byte[] bytes, Path file) {
+      this.bytes = bytes;
+      this.file = file;
+    }
+
+    /**
+     * Reads the current entry of the zip stream, keeping it in memory if it is
+     * not larger than {@link #MAX_IN_MEMORY} bytes, or spilling it to a temporary
+     * file otherwise.
+     */
+    static Part of(InputStream in) throws IOException {
+      byte[] bytes = in.readNBytes(MAX_IN_MEMORY + 1);
+      if (bytes.length <= MAX_IN_MEMORY) {
+        return new Part(bytes, null);
+      } else {
+        Path file = Files.createTempFile("datalines", ".part");
+        try (OutputStream out = new DeflaterOutputStream(
+                                  new BufferedOutputStream(Files.newOutputStream(file)),
+                                  new Deflater(Deflater.BEST_SPEED), 64 * 1024)) {
+          out.write(bytes);
+          in.transferTo(out);
+        } catch (IOException e) {
+          Files.deleteIfExists(file);
+          throw e;
+        }
+        return new Part(null, file);
+      }
+    }
+
+    /**
+     * Opens the part for reading; a spilled part is deleted when its stream is
+     * closed.
+     */
+    InputStream open() throws IOException {
+      if (bytes != null) {
+        return new ByteArrayInputStream(bytes);
+      } else {
+        return new InflaterInputStream(new BufferedInputStream(Files.newInputStream(file)),
+                                       new Inflater(), 64 * 1024) {
+          @Override
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              delete();
+            }
+          }
+        };
+      }
+    }
+
+    void delete() throws IOException {
+      if (file != null) {
+        Files.deleteIfExists(file);
+      }
+    }
+
+    private final byte[] bytes;
+    private final Path file;
+  }
+
+  /**
+   * Parts larger than this are spilled to temporary files.
+   */
+  static final int MAX_IN_MEMORY = 1024 * 1024;
+
+  private static final String ROOT_RELS = "_rels/.rels";
+
+  /**
+   * Suffixes of the types of relationships (which are different in transitional
+   * and strict packages).
+   */
+  private static final String OFFICE_DOCUMENT_REL = "/officeDocument";
+  private static final String WORKSHEET_REL = "/worksheet";
+  private static final String SHARED_STRINGS_REL = "/sharedStrings";
+  private static final String STYLES_REL = "/styles";
+
+  /**
+   * Parses the relationships as POI does, without resolving DTDs or external
+   * entities which would let a package read local files or URLs.
+   */
+  private static final XMLInputFactory inputFactory = XMLHelper.newXMLInputFactory();
+
+  private final ZipInputStream zip;
+
+  /**
+   * The sheet to read (1-based), or 0 or less for all sheets.
+   */
+  private final int page;
+
+  /**
+   * The maximum number of bytes of shared strings kept on the heap.
+   */
+  private final long maxSharedStringsInMemory;
+
+  /**
+   * Parts kept for later by entry name.
+   */
+  private final Map<String, Part> parts = new HashMap<>();
+
+  /**
+   * Entry names of the workbook, the sheets to read (once the workbook
+   * relationships have been read) and the shared strings and styles.
+   */
+  private String workbookPath;
+  private List<String> sheetPaths;
+  private String sharedStringsPath;
+  private String stylesPath;
+
+  /**
+   * The index in sheetPaths of the next sheet to return.
+   */
+  private int nextSheet;
+
+  private SharedStringsStore sharedStrings;
+  private StylesTable styles;
+
+  /**
+   * Set when the end of the zip stream has been reached.
+   */
+  private boolean exhausted;
+}
\ No newline at end of file
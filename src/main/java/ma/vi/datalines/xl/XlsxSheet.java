@@ -0,0 +1,188 @@
+package ma.vi.datalines.xl;
+
+import ma.vi.base.util.Numbers;
+import ma.vi.datalines.ColumnConverter;
+import ma.vi.datalines.Format;
+import ma.vi.datalines.RowBatch;
+import ma.vi.datalines.RowSchema;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the rows of a sheet of an xlsx workbook from the XML of the sheet, which
+ * is scanned directly by a {@link SheetScanner}. The
+ * shared strings and styles of the workbook are only read from, and can be
+ * shared by sheets read concurrently on different threads. The cells of columns
+ * which are not projected are skipped by the scanner, without reading their
+ * values or resolving their shared strings.
+ *
+ * @author vikash.madhow@gmail.com
+ */
+final class XlsxSheet implements ConcurrentSheets.Sheet {
+  XlsxSheet(InputStream        sheetIn,
+            SharedStringsStore sharedStrings,
+            CellStyles         styles,
+            RowSchema          schema,
+            boolean            applyFormatting,
+            Format.Formulas    formulas) {
+    this.scanner = new SheetScanner(sheetIn);
+    if (schema.isProjected()) {
+      scanner.project(schema::projects);
+    }
+    this.sharedStrings = sharedStrings;
+    this.styles = styles;
+    this.schema = schema;
+    this.applyFormatting = applyFormatting;
+    this.formulas = formulas;
+  }
+
+  /**
+   * The number of rows in the dimension of the sheet, once read, or -1.
+   */
+  long dimension() {
+    return scanner.dimension();
+  }
+
+  @Override
+  public boolean nextRow(RowBatch lines, int row, boolean convertToColumnType) throws IOException {
+    if (!scanner.nextRow()) {
+      return false;
+    }
+    int i = 0;
+    while (scanner.nextCell()) {
+      /*
+       * The column of the cell is taken from its reference, as null cells are
+       * not saved in the xml file and a simple counter will not work.
+       */
+      int currentCell = scanner.column() < 0 ? i : scanner.column();
+
+      /*
+       * Fill gaps with null, if any.
+       */
+      for (; i < currentCell; i++) {
+        if (schema.projects(i)) lines.setNull(row, i);
+      }
+      if (!schema.projects(currentCell)) {
+        i++;
+        continue;
+      }
+
+      /*
+       * Read cell contents, parse and format.
+       */
+      Object contents = null;
+      if (scanner.hasValue()) {
+        CharSequence cellValue = scanner.text();
+        contents = switch (scanner.type()) {
+          case BOOL      -> cellValue.length() > 0 && cellValue.charAt(0) == '0' ? "FALSE" : "TRUE";
+          case ERROR     -> "ERROR: " + scanner.string();
+          case INLINESTR -> SharedStringsStore.decode(scanner.string());
+          case SSTINDEX  -> sharedStrings.get(index(cellValue));
+          case NUMBER    -> number(currentCell, cellValue);
+          default        -> scanner.string();
+        };
+      } else if (scanner.hasFormula() && formulas != Format.Formulas.CACHED) {
+        /*
+         * A formula without a cached result, which cannot be evaluated when
+         * streaming the sheet: the text of the formula is read instead.
+         */
+        String formula = scanner.formula();
+        contents = formula.isEmpty() ? null : formula;
+      }
+      lines.set(row, i++, convertToColumnType ? schema.convert(currentCell, contents) : contents);
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    scanner.close();
+  }
+
+  /**
+   * Converts the value of a numeric cell, according to its style or the type of
+   * its column.
+   */
+  private Object number(int currentCell, CharSequence cellValue) {
+    /*
+     * A number with a style almost certainly has a special format.
+     */
+    int style = scanner.style();
+    if (styles.isDate(style) || schema.isDate(currentCell)) {
+      return DateUtil.getLocalDateTime(parseDouble(cellValue));
+    } else if (applyFormatting && styles.formatString(style) != null) {
+      return formatter.formatRawCellContents(parseDouble(cellValue),
+                                             styles.formatIndex(style),
+                                             styles.formatString(style));
+    } else {
+      int from = 0, to = cellValue.length();
+      while (from < to && cellValue.charAt(from) <= ' ') from++;
+      while (to > from && cellValue.charAt(to - 1) <= ' ') to--;
+      long value = ColumnConverter.parseLong(cellValue, from, to);
+      return value != ColumnConverter.NOT_A_LONG
+           ? Long.valueOf(value)
+           : Numbers.convert(scanner.string().trim());
+    }
+  }
+
+  private double parseDouble(CharSequence cellValue) {
+    double value = ColumnConverter.parseDouble(cellValue, 0, cellValue.length());
+    return Double.isNaN(value) ? Double.parseDouble(scanner.string()) : value;
+  }
+
+  /**
+   * Parses the index of a shared string.
+   */
+  private int index(CharSequence cellValue) {
+    long index = ColumnConverter.parseLong(cellValue, 0, cellValue.length());
+    return index >= 0 && index <= Integer.MAX_VALUE
+         ? (int)index
+         : Integer.parseInt(scanner.string().trim());
+  }
+
+  /**
+   * Cell data types.
+   */
+  enum CellDataType {
+    BOOL, ERROR, FORMULA, INLINESTR, SSTINDEX, NUMBER,
+  }
+
+  /**
+   * The scanner over the XML of the sheet.
+   */
+  private final SheetScanner scanner;
+
+  /**
+   * Shared strings table of the workbook.
+   */
+  private final SharedStringsStore sharedStrings;
+
+  /**
+   * Number formats of the styles of the workbook.
+   */
+  private final CellStyles styles;
+
+  /**
+   * The schema of the lines read, providing the columns to convert values to.
+   */
+  private final RowSchema schema;
+
+  /**
+   * Whether to apply formatting to the contents of read cells.
+   */
+  private final boolean applyFormatting;
+
+  /**
+   * Whether to read the text of formulas without a cached result.
+   */
+  private final Format.Formulas formulas;
+
+  /**
+   * Data formatter; formatters cache the formats they have parsed and are thus
+   * not shared between sheets, which may be read concurrently.
+   */
+  private final DataFormatter formatter = new DataFormatter();
+}
\ No newline at end of file
@@ -0,0 +1,195 @@
+package ma.vi.datalines;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import ma.vi.datalines.text.DelimitedTextLineReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AbstractLineReaderTest {
+  @Test
+  public void prefetchLines() {
+    Format direct = Format.newBuilder().headerLines(1).footerLines(2).build();
+    Format prefetch = Format.newBuilder().headerLines(1).footerLines(2).prefetch(2).build();
+    List<Object> expected = readLines(direct);
+    assertEquals(3 * 297, expected.size());
+    assertEquals(expected, readLines(prefetch));
+    for (int batchSize: new int[]{1, 50, 1000, Integer.MAX_VALUE}) {
+      assertEquals(expected, readBatches(direct, batchSize));
+      assertEquals(expected, readBatches(prefetch, batchSize));
+    }
+  }
+
+  @Test
+  public void prefetchErrors() {
+    try (PagedLineReader r = new PagedLineReader(3, 300, 500)) {
+      r.open((File)null, "paged", Format.newBuilder().prefetch(2).build());
+      RuntimeException e = assertThrows(RuntimeException.class, () -> r.forEachRemaining(l -> {}));
+      assertEquals("Error at line 500", e.getMessage());
+      assertThrows(RuntimeException.class, r::hasNext);
+    }
+  }
+
+  @Test
+  public void closeStopsPrefetch() throws Exception {
+    PagedLineReader r = new PagedLineReader(1000, 1000, -1);
+    r.open((File)null, "paged", Format.newBuilder().prefetch(1).build());
+    assertTrue(r.hasNext());
+    r.close();
+    assertFalse(r.hasNext());
+    long read = r.read;
+    Thread.sleep(50);
+    assertEquals(read, r.read);
+    assertTrue(read < 1000 * 1000);
+  }
+
+  @Test
+  public void readerMetrics(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("metrics.csv").toFile();
+    Files.writeString(file.toPath(), "Id,Amount\n1,10\n\n2,abc\n3,30\n0,40\n");
+    Format.Build format = Format.newBuilder()
+                                .columnSeparatorChars(',')
+                                .footerLines(1)
+                                .column(new Column("id", "long"))
+                                .column(new Column("amount", "long"));
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(file, file.getName(), format.build());
+      r.forEachRemaining(l -> {});
+      assertNull(r.metrics());
+    }
+
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(file, file.getName(), format.metrics(true).build());
+      List<Object> ids = new ArrayList<>();
+      r.forEachRemaining(l -> ids.add(l.get("1")));
+      assertEquals(List.of(1L, 2L, 3L), ids);
+
+      ReaderMetrics metrics = r.metrics();
+      assertEquals(file.length(), metrics.bytesRead());
+      assertEquals(3, metrics.linesRead());
+      assertEquals(1, metrics.headerLines());
+      assertEquals(1, metrics.footerLines());
+      assertEquals(1, metrics.blankLines());
+      assertEquals(1, metrics.pages());
+      assertEquals(1, metrics.conversionFailures());
+      assertTrue(metrics.conversionNanos() > 0);
+      assertTrue(metrics.lineLatency().count() >= 6);
+      assertTrue(metrics.lineLatency().percentile(0.5) <= metrics.lineLatency().max());
+      assertEquals(metrics.readNanos(), metrics.parseNanos() + metrics.ioNanos() + metrics.conversionNanos());
+    }
+
+    /*
+     * Events are emitted for the opening, each page and the closing of readers.
+     */
+    Path events = dir.resolve("events.jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("ma.vi.datalines.Open");
+      recording.enable("ma.vi.datalines.Page");
+      recording.enable("ma.vi.datalines.Close");
+      recording.start();
+      try (PagedLineReader r = new PagedLineReader(3, 300, -1)) {
+        r.open((File)null, "paged", Format.newBuilder().footerLines(2).metrics(true).build());
+        r.forEachRemaining(l -> {});
+        assertEquals(3, r.metrics().pages());
+        assertEquals(3, r.metrics().headerLines());
+        assertEquals(6, r.metrics().footerLines());
+        assertEquals(3 * 297, r.metrics().linesRead());
+      }
+      recording.stop();
+      recording.dump(events);
+    }
+    Map<String, List<RecordedEvent>> recorded = new HashMap<>();
+    for (RecordedEvent event: RecordingFile.readAllEvents(events)) {
+      recorded.computeIfAbsent(event.getEventType().getName(), k -> new ArrayList<>()).add(event);
+    }
+    assertEquals(1, recorded.get("ma.vi.datalines.Open").size());
+    assertEquals(List.of(300L, 300L, 300L),
+                 recorded.get("ma.vi.datalines.Page").stream().map(e -> e.getLong("lines")).toList());
+    assertEquals(3 * 297, recorded.get("ma.vi.datalines.Close").get(0).getLong("lines"));
+  }
+
+  private static List<Object> readLines(Format format) {
+    List<Object> lines = new ArrayList<>();
+    try (PagedLineReader r = new PagedLineReader(3, 300, -1)) {
+      r.open((File)null, "paged", format);
+      for (Map<String, Object> line: r) {
+        lines.add(line.get("1"));
+      }
+    }
+    return lines;
+  }
+
+  private static List<Object> readBatches(Format format, int batchSize) {
+    List<Object> lines = new ArrayList<>();
+    try (PagedLineReader r = new PagedLineReader(3, 300, -1)) {
+      r.open((File)null, "paged", format);
+      for (RowBatch batch = r.nextBatch(batchSize); batch != null; batch = r.nextBatch(batchSize)) {
+        assertTrue(batch.size() <= batchSize);
+        for (int i = 0; i < batch.size(); i++) {
+          lines.add(batch.get(i, 0));
+        }
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Reads pages of lines numbered from 0 in each page, separated by
+   * {@link LineType#SEPARATOR}, failing at the specified line if not -1.
+   */
+  private static class PagedLineReader extends AbstractLineReader {
+    PagedLineReader(int pages, int linesPerPage, int failAt) {
+      this.pages = pages;
+      this.linesPerPage = linesPerPage;
+      this.failAt = failAt;
+    }
+
+    @Override
+    public boolean supports(File file, String name, Format format) {
+      return true;
+    }
+
+    @Override
+    protected void openFile(File inputFile, String fileName, Format format) {
+    }
+
+    @Override
+    protected LineType nextLine(RowBatch lines, int row, boolean convertToColumnType) {
+      if (read == failAt) {
+        throw new IllegalStateException("Error at line " + read);
+      } else if (page == pages) {
+        return LineType.END;
+      } else if (line == linesPerPage) {
+        page++;
+        line = 0;
+        return LineType.SEPARATOR;
+      }
+      read++;
+      lines.set(row, 0, page + ":" + line++);
+      return LineType.LINE;
+    }
+
+    @Override
+    public long estimateTotalLines() {
+      return pages * linesPerPage;
+    }
+
+    private final int pages;
+    private final int linesPerPage;
+    private final int failAt;
+    private int page;
+    private int line;
+    volatile long read;
+  }
+}
\ No newline at end of file
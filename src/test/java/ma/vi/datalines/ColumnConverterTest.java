@@ -0,0 +1,107 @@
+package ma.vi.datalines;
+
+import ma.vi.base.util.Convert;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+
+import static java.util.Collections.emptyMap;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ColumnConverterTest {
+  @Test
+  public void convertNumbers() {
+    ColumnConverter longs = ColumnConverter.of(new Column("a", "long"));
+    assertEquals(42L, longs.convert(" 42 "));
+    assertEquals(-42L, longs.convert("-42"));
+    assertEquals(Long.MIN_VALUE, longs.convert(String.valueOf(Long.MIN_VALUE)));
+    assertEquals(Long.MAX_VALUE, longs.convert(String.valueOf(Long.MAX_VALUE)));
+    assertEquals("x12", longs.convert("x12"));
+    assertEquals("9223372036854775808", longs.convert("9223372036854775808"));
+
+    ColumnConverter ints = ColumnConverter.of(new Column("a", "int"));
+    assertEquals(7, ints.convert("7"));
+
+    ColumnConverter doubles = ColumnConverter.of(new Column("a", "double"));
+    for (String d: new String[]{"0.1", "-2.5e-3", "1e22", "123456789.123456789", "4.9e-324", "-0", ".5", "5."}) {
+      assertEquals(Double.parseDouble(d), doubles.convert(d), d);
+    }
+    assertEquals("1.2.3", doubles.convert("1.2.3"));
+
+    ColumnConverter decimals = ColumnConverter.of(new Column("a", "decimal"));
+    assertEquals(new BigDecimal("-12.50"), decimals.convert("-12.50"));
+
+    ColumnConverter booleans = ColumnConverter.of(new Column("a", "boolean"));
+    assertEquals(true, booleans.convert("TRUE"));
+    assertEquals(false, booleans.convert(" false"));
+
+    assertNull(ColumnConverter.of(new Column("a", null)));
+    assertTrue(ColumnConverter.of(new Column("a", "string")).isText());
+  }
+
+  @Test
+  public void convertDates() {
+    ColumnConverter dates = ColumnConverter.of(new Column("a", "date"));
+    String[] values = {"17 05 1977", "1 02 2001", "11 08 2002", "22 08 1978", "1 01 2010",
+                       "15 09 2018", "5 09 2019", "10 05 2019", "1 01 2018", "5 12 2021",
+                       " 29 02 2020 ", "17 05 1977", "not a date", "30 02 2020"};
+    for (int i = 0; i < 3; i++) {
+      for (String value: values) {
+        Object expected = Convert.convertDate(value);
+        assertEquals(expected == null ? value : expected, dates.convert(value), value);
+      }
+    }
+  }
+
+  @Test
+  public void countDateFailures() {
+    ReaderMetrics metrics = new ReaderMetrics();
+    ColumnConverter dates = ColumnConverter.of(new Column("a", "date")).measured(metrics);
+    for (int i = 0; i < 3; i++) {
+      assertEquals("not a date", dates.convert("not a date"));
+      assertEquals(Convert.convertDate("17 05 1977"), dates.convert("17 05 1977"));
+    }
+    RowBatch batch = new RowBatch(RowSchema.positional(null), 1);
+    dates.set(batch, 0, 0, "[not a date]", 1, 11);
+    assertEquals("not a date", batch.get(0, 0));
+    assertEquals(4, metrics.conversionFailures());
+  }
+
+  @Test
+  public void setFromRange() {
+    Format format = new Format.Build()
+        .column(new Column("a", "long"))
+        .column(new Column("b", "double"))
+        .column(new Column("c", "string"))
+        .build();
+    RowSchema schema = RowSchema.positional(format);
+    RowBatch batch = new RowBatch(schema, 1);
+    String line = "[123][4.5][text][12a]";
+    ColumnConverter.of(format.columns().get(0)).set(batch, 0, 0, line, 1, 4);
+    ColumnConverter.of(format.columns().get(1)).set(batch, 0, 1, line, 6, 9);
+    ColumnConverter.of(format.columns().get(2)).set(batch, 0, 2, line, 11, 15);
+    ColumnConverter.of(format.columns().get(0)).set(batch, 0, 3, line, 17, 20);
+    assertEquals(RowBatch.Kind.LONG, batch.kind(0));
+    assertEquals(123L, batch.getLong(0, 0));
+    assertEquals(4.5, batch.getDouble(0, 1));
+    assertEquals("text", batch.get(0, 2));
+    assertEquals("12a", batch.get(0, 3));
+  }
+
+  @Test
+  public void compileOwnConverters() {
+    Format format = new Format.Build()
+        .column(new Column("paid", "date", "1", null, emptyMap()))
+        .column(new Column("amount", "double", "2", null, emptyMap()))
+        .build();
+    RowSchema schema = RowSchema.positional(format);
+    RowSchema own = schema.withOwnConverters();
+    for (int i = 0; i < 2; i++) {
+      assertNotSame(schema.converter(i), own.converter(i));
+      assertSame(schema.converter(i).column(), own.converter(i).column());
+      assertEquals(schema.key(i), own.key(i));
+    }
+    assertEquals(schema.convert(0, "17 05 1977"), own.convert(0, "17 05 1977"));
+    assertEquals(4.5, own.convert(1, "4.5"));
+  }
+}
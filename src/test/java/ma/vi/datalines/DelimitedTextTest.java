@@ -2,16 +2,35 @@ package ma.vi.datalines;
 
 import ma.vi.base.util.Convert;
 import ma.vi.datalines.text.DelimitedTextLineReader;
+import ma.vi.datalines.text.FixedLengthTextLineReader;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import static java.util.Collections.emptyMap;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class DelimitedTextTest {
   @Test
@@ -108,6 +127,538 @@ public class DelimitedTextTest {
     }
   }
 
+  @Test
+  public void readDelimitedTextInBatches() throws Exception {
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(new File(DelimitedTextTest.class.getResource("/data/test_data.csv").toURI()),
+             "test_data.csv",
+             Format.newBuilder()
+                   .columnSeparatorChars('\t')
+                   .footerLines(2)
+                   .column(new Column("id",      "long"))
+                   .column(new Column("name" ,   "string"))
+                   .column(new Column("phone",   "string"))
+                   .column(new Column("address", "string"))
+                   .column(new Column("dob",     "date"))
+                   .build());
+
+      long id = 1;
+      for (int size: new int[] {5, 5, 4}) {
+        RowBatch batch = r.nextBatch(5);
+        assertEquals(size, batch.size());
+        assertEquals(RowBatch.Kind.LONG,   batch.kind(0));
+        assertEquals(RowBatch.Kind.STRING, batch.kind(1));
+        for (int i = 0; i < batch.size(); i++, id++) {
+          assertEquals(id, batch.getLong(i, 0));
+          assertEquals(id, batch.row(i).get("1"));
+        }
+      }
+      assertNull(r.nextBatch(5));
+      assertFalse(r.hasNext());
+    }
+  }
+
+  @Test
+  public void readDelimitedTextAsRows() throws Exception {
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(new File(DelimitedTextTest.class.getResource("/data/test_data.csv").toURI()),
+             "test_data.csv", Format.TabSeparated());
+
+      List<Map<String, Object>> lines = new ArrayList<>();
+      r.forEachRemaining(lines::add);
+      assertEquals(16, lines.size());
+
+      /*
+       * Rows are copies which are not affected by reading further lines.
+       */
+      Row first = (Row)lines.get(0);
+      assertEquals(asMap(Arrays.asList("1", "Vikash Madhow", "1234567", "59, Avenue Telfair, Quatre Bornes", "17 05 1977")), first);
+      assertEquals("Vikash Madhow", first.get(1));
+      assertSame(first.schema(), ((Row)lines.get(15)).schema());
+
+      first.put("extra", 1);
+      assertEquals(1, first.get("extra"));
+      assertEquals(6, first.size());
+    }
+  }
+
+  @Test
+  public void readDelimitedTextFromStream() throws Exception {
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(DelimitedTextTest.class.getResourceAsStream("/data/test_data.csv"),
+             "test_data.csv", Format.TabSeparated());
+
+      List<Map<String, Object>> lines = new ArrayList<>();
+      r.forEachRemaining(lines::add);
+      assertEquals(16, lines.size());
+      assertEquals(asMap(Arrays.asList("16", "Solero Madhow", "121-2126", "59, Avenue Telfair, Quatre Bornes", "5 10 2021")), lines.get(15));
+      assertEquals(-1, r.estimateTotalLines());
+    }
+  }
+
+  @Test
+  public void readDelimitedTextQuotes(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("quotes.csv").toFile();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.print("1,\"a, b\",c\"d,  \"e\",\"\"\r\n");
+      out.print("2,\"f\"g,\"h\"\r");
+      out.print("\r\n");
+      out.print("3,\"i\r\nj\",\"k \"\"l\"\"\"\n");
+      out.print("4");
+    }
+    Format format = Format.newBuilder().headerLines(0).columnSeparatorChars(',').build();
+    for (boolean stream: new boolean[]{false, true}) {
+      try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+        if (stream) {
+          r.open(new FileInputStream(file), "quotes.csv", format);
+        } else {
+          r.open(file, "quotes.csv", format);
+        }
+        assertEquals(asMap(Arrays.asList("1", "a, b", "c\"d", "  e")),  r.next());
+        assertEquals(asMap(Arrays.asList("2", "fg", "h")),              r.next());
+        assertEquals(asMap(Arrays.asList("3", "i\r\nj", "k \"l\"")),    r.next());
+        assertEquals(asMap(Arrays.asList("4")),                         r.next());
+        assertFalse(r.hasNext());
+      }
+    }
+  }
+
+  @Test
+  public void readDelimitedTextUnterminatedQuote(@TempDir Path dir) throws Exception {
+    /*
+     * A quote which is never closed extends its value to the end of the file,
+     * unless the record would then be longer than the maximum length.
+     */
+    File file = dir.resolve("unterminated.csv").toFile();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.print("1,a\n");
+      out.print("2,\"b\n");
+      for (int i = 3; i <= 1000; i++) {
+        out.print(i + ",x\n");
+      }
+    }
+    String rest = Files.readString(file.toPath()).substring(7);
+    for (int maxRecordLength: new int[]{0, 1000}) {
+      Format format = Format.newBuilder()
+                            .headerLines(0)
+                            .columnSeparatorChars(',')
+                            .maxRecordLength(maxRecordLength)
+                            .build();
+      for (boolean stream: new boolean[]{false, true}) {
+        try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+          if (stream) {
+            r.open(new FileInputStream(file), "unterminated.csv", format);
+          } else {
+            r.open(file, "unterminated.csv", format);
+          }
+          if (maxRecordLength == 0) {
+            assertEquals(asMap(Arrays.asList("1", "a")),  r.next());
+            assertEquals(asMap(Arrays.asList("2", rest)), r.next());
+            assertFalse(r.hasNext());
+          } else {
+            RuntimeException e = assertThrows(RuntimeException.class, () -> r.forEachRemaining(l -> {}));
+            assertTrue(e.getMessage().contains("Record longer than 1000 " + (stream ? "characters" : "bytes")
+                                             + " at position 4"), e.getMessage());
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void readDelimitedTextMultiLineRecords(@TempDir Path dir) throws Exception {
+    int count = 5000;
+    File file = dir.resolve("records.csv").toFile();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.print("Id,Note,Size\n");
+      for (int i = 1; i <= count; i++) {
+        out.print(i + ",\"Line " + i + "\nsaid \"\"" + i + "\"\", again\"," + i + "\" screen\n");
+      }
+    }
+    Format format = Format.newBuilder().columnSeparatorChars(',').lineIndex(100).build();
+    for (boolean stream: new boolean[]{false, true}) {
+      try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+        if (stream) {
+          r.open(new FileInputStream(file), "records.csv", format);
+        } else {
+          r.open(file, "records.csv", format);
+        }
+        assertTrue(r.dialect().quoted());
+        int i = 0;
+        while (r.hasNext()) {
+          Map<String, Object> line = r.next();
+          i++;
+          assertEquals(asMap(Arrays.asList(String.valueOf(i),
+                                           "Line " + i + "\nsaid \"" + i + "\", again",
+                                           i + "\" screen")), line);
+        }
+        assertEquals(count, i);
+      }
+    }
+
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(file, "records.csv", format);
+      assertEquals(count + 1, r.countLines());
+      r.seek(4000);
+      assertEquals("4000", r.next().get("1"));
+      r.seek(12);
+      assertEquals("12", r.next().get("1"));
+    }
+  }
+
+  @Test
+  public void readDelimitedTextInParallel(@TempDir Path dir) throws Exception {
+    /*
+     * Large enough to be split in several chunks, with CRLF line terminators and
+     * quoted separators.
+     */
+    int count = 40_000;
+    File file = dir.resolve("large.csv").toFile();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.print("Id,Name,Address\r\n");
+      for (int i = 1; i <= count; i++) {
+        out.print(i + ",Name " + i + ",\"" + i + ", Avenue Telfair\"\r\n");
+      }
+      out.print("Total," + count + "\r\n");
+    }
+
+    for (boolean ordered: new boolean[] {true, false}) {
+      try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+        r.open(file, "large.csv",
+               Format.newBuilder()
+                     .columnSeparatorChars(',')
+                     .footerLines(1)
+                     .parallelism(4)
+                     .ordered(ordered)
+                     .column(new Column("id",      "long"))
+                     .column(new Column("name" ,   "string"))
+                     .column(new Column("address", "string"))
+                     .build());
+
+        Set<Long> ids = new HashSet<>();
+        long expected = 1;
+        while (r.hasNext()) {
+          Map<String, Object> line = r.next();
+          long id = (Long)line.get("1");
+          assertEquals("Name " + id, line.get("2"));
+          assertEquals(id + ", Avenue Telfair", line.get("3"));
+          if (ordered) {
+            assertEquals(expected++, id);
+          }
+          ids.add(id);
+        }
+        assertEquals(count, ids.size());
+        assertTrue(ids.contains(1L));
+        assertTrue(ids.contains((long)count));
+      }
+    }
+  }
+
+  @Test
+  public void readDelimitedTextInParallelWithMultilineValues(@TempDir Path dir) throws Exception {
+    /*
+     * No quotes in the first lines, then a quoted value spanning the ranges of
+     * several chunks, with lines looking like records and escaped quotes, and
+     * more quoted values spanning a few lines each.
+     */
+    File file = dir.resolve("multiline.csv").toFile();
+    StringBuilder value = new StringBuilder();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.print("Id,Name\n");
+      for (int i = 1; i <= 300; i++) {
+        out.print(i + ",N" + i + "\n");
+      }
+      for (int i = 1; i <= 30_000; i++) {
+        value.append(i == 1 ? "" : "\n").append(i).append(",\"\"N").append(i).append("\"\"");
+      }
+      out.print("301,\"" + value + "\"\n");
+      for (int i = 302; i <= 20_301; i++) {
+        out.print(i + (i % 100 == 0 ? ",\"N\n" + i + "\"\n" : ",N" + i + "\n"));
+      }
+    }
+    Map<Long, Object> expected = new HashMap<>();
+    for (int parallelism: new int[] {1, 4}) {
+      for (boolean ordered: new boolean[] {true, false}) {
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+          try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+            r.open(file, "multiline.csv",
+                   Format.newBuilder()
+                         .columnSeparatorChars(',')
+                         .parallelism(parallelism)
+                         .ordered(ordered)
+                         .metrics(true)
+                         .column(new Column("id",   "long"))
+                         .column(new Column("name", "string"))
+                         .build());
+            Map<Long, Object> lines = new HashMap<>();
+            long previous = 0;
+            while (r.hasNext()) {
+              Map<String, Object> line = r.next();
+              long id = (Long)line.get("1");
+              if (ordered) {
+                assertEquals(previous + 1, id);
+              }
+              previous = id;
+              assertNull(lines.put(id, line.get("2")));
+            }
+            assertEquals(20_301, lines.size());
+            assertEquals(value.toString().replace("\"\"", "\""), lines.get(301L));
+            assertEquals("N\n400", lines.get(400L));
+            assertEquals(0, r.metrics().conversionFailures());
+            if (expected.isEmpty()) {
+              expected.putAll(lines);
+            } else {
+              assertEquals(expected, lines);
+            }
+          }
+        });
+      }
+    }
+  }
+
+  @Test
+  public void readDelimitedTextInParallelWithLongLastLine(@TempDir Path dir) throws Exception {
+    /*
+     * The last line spans the ranges of the last chunks, which all reach the
+     * end of the file, and outnumber the chunks parsed in advance.
+     */
+    int count = 30_000;
+    File file = dir.resolve("long.csv").toFile();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.print("Id,Name\n");
+      for (int i = 1; i <= count; i++) {
+        out.print(i + ",N" + i + "\n");
+      }
+      out.print("0," + "x".repeat(800_000) + "\n");
+    }
+
+    for (boolean ordered: new boolean[] {true, false}) {
+      assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+        try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+          r.open(file, "long.csv",
+                 Format.newBuilder()
+                       .columnSeparatorChars(',')
+                       .footerLines(1)
+                       .parallelism(2)
+                       .ordered(ordered)
+                       .metrics(true)
+                       .column(new Column("id",   "long"))
+                       .column(new Column("name", "string"))
+                       .build());
+
+          Set<Long> ids = new HashSet<>();
+          while (r.hasNext()) {
+            Map<String, Object> line = r.next();
+            long id = (Long)line.get("1");
+            assertEquals("N" + id, line.get("2"));
+            ids.add(id);
+          }
+          assertEquals(count, ids.size());
+          assertTrue(ids.contains((long)count));
+          assertFalse(ids.contains(0L));
+
+          /*
+           * The header line is not converted.
+           */
+          assertEquals(0, r.metrics().conversionFailures());
+        }
+      });
+    }
+  }
+
+  @Test
+  public void seekDelimitedText(@TempDir Path dir) throws Exception {
+    int count = 10_000;
+    File file = dir.resolve("seek.csv").toFile();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.print("Id,Name\r\n");
+      for (int i = 1; i <= count; i++) {
+        out.print(String.format("%05d,Name %d\r\n", i, i));
+      }
+    }
+    Format format = Format.newBuilder()
+                          .columnSeparatorChars(',')
+                          .lineIndex(100)
+                          .build();
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(file, "seek.csv", format);
+      assertEquals("00001", r.next().get("1"));
+      r.seek(5000);
+      assertEquals("05000", r.next().get("1"));
+      r.skip(9);
+      assertEquals("05010", r.next().get("1"));
+      r.seek(10);
+      assertEquals("00010", r.next().get("1"));
+      r.seek(0);
+      assertEquals("00001", r.next().get("1"));
+    }
+    assertTrue(new File(dir.toFile(), "seek.csv.lidx").isFile());
+
+    /*
+     * Later readers seek from the index saved with the file.
+     */
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(file, "seek.csv", format);
+      r.seek(4999);
+      RowBatch batch = r.nextBatch(2);
+      assertEquals("04999", batch.get(0, 0));
+      assertEquals("05000", batch.get(1, 0));
+      r.seek(count);
+      assertEquals("10000", r.next().get("1"));
+      assertFalse(r.hasNext());
+    }
+
+    try (FixedLengthTextLineReader r = new FixedLengthTextLineReader()) {
+      r.open(file, "seek.csv", Format.newBuilder()
+                                     .lineIndex(100)
+                                     .column(new Column("id", "string", "[1-5]", null, emptyMap()))
+                                     .build());
+      r.seek(7777);
+      assertEquals("07777", r.next().get("[1-5]"));
+      r.skip(2);
+      assertEquals("07780", r.next().get("[1-5]"));
+    }
+  }
+
+  @Test
+  public void countDelimitedTextLines(@TempDir Path dir) throws Exception {
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(new File(DelimitedTextTest.class.getResource("/data/test_data.csv").toURI()),
+             "test_data.csv", new Format());
+      assertEquals(17, r.estimateTotalLines());
+      assertEquals(17, r.countLines());
+    }
+
+    /*
+     * Mixed line terminators, including \r\n split over two words, blank lines
+     * and a last line without terminator.
+     */
+    int count = 20_000;
+    File file = dir.resolve("count.csv").toFile();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      String[] terminators = {"\n", "\r\n", "\r", "\r\n\r\n"};
+      for (int i = 1; i < count; i++) {
+        String terminator = terminators[i % terminators.length];
+        out.print(i + ",Name " + "x".repeat(i % 7) + terminator);
+      }
+      out.print(count + ",Last");
+    }
+    long expected = count + count / 4;
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(file, "count.csv", Format.newBuilder().columnSeparatorChars(',').build());
+      long estimate = r.estimateTotalLines();
+      assertTrue(Math.abs(estimate - expected) < expected / 10, "Estimate " + estimate);
+      assertEquals(expected, r.countLines());
+      assertEquals(expected, r.estimateTotalLines());
+      assertEquals("2", r.next().get("1"));
+    }
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(new FileInputStream(file), "count.csv", Format.newBuilder().columnSeparatorChars(',').build());
+      assertEquals(-1, r.countLines());
+    }
+  }
+
+  @Test
+  public void inferDelimitedTextTypes(@TempDir Path dir) throws Exception {
+    int count = TypeInference.SAMPLE + 500;
+    File file = dir.resolve("infer.csv").toFile();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.print("Id,Name,Amount,Paid,Joined,Code,Ratio\n");
+      for (int i = 1; i <= count; i++) {
+        out.print(i + ",Name " + i + "," + (i % 100) + "." + (i % 10) + "5," + (i % 3 == 0)
+                + "," + (1 + i % 28) + " 0" + (1 + i % 9) + " 2001,0" + (i % 50) + ","
+                + (i == 10 ? "1e3" : String.valueOf(i)) + "\n");
+        if (i == 20) {
+          out.print("\n");
+        }
+      }
+    }
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(file, "infer.csv", null);
+      assertEquals(List.of("id", "name", "amount", "paid", "joined", "code", "ratio"), r.format.columnNames());
+      assertEquals(List.of("long", "string", "decimal", "boolean", "date", "string", "double"),
+                   r.format.columns().stream().map(Column::type).toList());
+      assertEquals("d M uuuu", r.format.columns().get(4).attribute("pattern"));
+
+      List<Map<String, Object>> lines = new ArrayList<>();
+      r.forEachRemaining(lines::add);
+      assertEquals(count, lines.size());
+      for (int i: new int[]{0, 9, count - 1}) {
+        Map<String, Object> line = lines.get(i);
+        long id = i + 1;
+        assertEquals(asMap(Arrays.asList(id, "Name " + id, new BigDecimal((id % 100) + "." + (id % 10) + "5"),
+                                         id % 3 == 0, Convert.convertDate((1 + id % 28) + " 0" + (1 + id % 9) + " 2001"),
+                                         "0" + (id % 50), id == 10 ? 1000.0 : (double)id)), line);
+      }
+    }
+  }
+
+  @Test
+  public void sniffDelimitedTextDialect(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("dialect.txt").toFile();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.print("Address, line 1\tId\tSize\n");
+      for (int i = 1; i <= 300; i++) {
+        out.print((i == 250 ? "\"Royal\tRoad, " + i + '"' : i + ", Royal Road") + '\t' + i + '\t' + i + "\" screen\n");
+      }
+    }
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(file, "dialect.txt", Format.TabSeparated());
+      assertEquals('\t', r.dialect().separator());
+      assertTrue(r.dialect().header());
+      assertFalse(r.dialect().quoted());
+      assertEquals(1, r.format.columnSeparatorChars().length);
+
+      List<Map<String, Object>> lines = new ArrayList<>();
+      r.forEachRemaining(lines::add);
+      assertEquals(300, lines.size());
+      assertEquals(asMap(Arrays.asList("1, Royal Road", "1", "1\" screen")), lines.get(0));
+      assertEquals(asMap(Arrays.asList("Royal\tRoad, 250", "250", "250\" screen")), lines.get(249));
+    }
+
+    file = dir.resolve("dialect.csv").toFile();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      for (int i = 1; i <= 10; i++) {
+        out.print(i + "," + i + ".5,'" + i + ", " + i + "'\n");
+      }
+    }
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(file, "dialect.csv", null);
+      assertEquals(',', r.dialect().separator());
+      assertEquals('\'', r.dialect().quote());
+      assertFalse(r.dialect().header());
+      assertTrue(r.dialect().quoted());
+      assertEquals(0, r.format.headerLines());
+      assertEquals(List.of("1", "2", "3"), r.format.columnNames());
+      assertEquals(List.of("long", "decimal", "string"),
+                   r.format.columns().stream().map(Column::type).toList());
+      Map<String, Object> line = r.next();
+      assertEquals(asMap(Arrays.asList(1L, new BigDecimal("1.5"), "1, 1")), line);
+    }
+  }
+
+  @Test
+  public void projectDelimitedText(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("projection.csv").toFile();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.print("id,name,phone\n");
+      out.print("1,\"Madhow, Vikash\",1234567\n");
+      out.print("2,,\n");
+    }
+    Format format = Format.newBuilder()
+                          .column(new Column("id",    "long",   "1", null,      emptyMap()))
+                          .column(new Column("name",  "string", "2", "none",    emptyMap()))
+                          .column(new Column("phone", "string", "3", "unknown", emptyMap()))
+                          .projection("id", "3")
+                          .build();
+    try (DelimitedTextLineReader r = new DelimitedTextLineReader()) {
+      r.open(file, "projection.csv", format);
+      assertEquals(Map.of("1", 1L, "3", "1234567"), r.next());
+      assertEquals(Map.of("1", 2L, "3", "unknown"), r.next());
+      assertFalse(r.hasNext());
+    }
+  }
+
   public static Map<String, Object> asMap(List<Object> line) {
     int i = 1;
     Map<String, Object> l = new LinkedHashMap<>();
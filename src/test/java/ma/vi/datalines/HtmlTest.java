@@ -0,0 +1,93 @@
+package ma.vi.datalines;
+
+import ma.vi.datalines.html.HtmlTableLineReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class HtmlTest {
+  @Test
+  public void readHtmlTableStreaming(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("report.html").toFile();
+    Files.writeString(file.toPath(), """
+        <!DOCTYPE html>
+        <html><head><title>Report &amp; more</title>
+        <script>document.write('<table><tr><td>no</td></tr></table>');</script>
+        </head><body>
+        <p>Not in a table</p>
+        <table>
+          <thead><tr><th>Id</th><th>Name</th><th>Link</th></tr></thead>
+          <tbody>
+          <tr><td>1</td><td>  Vikash
+              Madhow </td><td><a href="http://example.com/a?x=1&amp;y=2">a</a></td></tr>
+          <tr><td>2<td>A&lt;B &amp; C<br>D</td><td><!-- none --></td>
+          <tr><td>3</td><td><span>x</span> <a href="http://example.com/b">y</a></td><td></td></tr>
+          <tr><td>4</td><td><div>one</div>two<td><pre> a  b </pre></td></tr>
+          </tbody>
+        </table>
+        </body></html>""");
+
+    List<List<Object>> expected = List.of(
+        Arrays.asList("Id", "Name", "Link"),
+        Arrays.asList("1", "Vikash Madhow", "http://example.com/a?x=1&y=2"),
+        Arrays.asList("2", "A<B & C D", ""),
+        Arrays.asList("3", "x y", null),
+        Arrays.asList("4", "one two", "a  b"));
+
+    for (boolean stream: new boolean[] {false, true}) {
+      try (HtmlTableLineReader r = new HtmlTableLineReader()) {
+        Format format = Format.newBuilder().headerLines(0).build();
+        if (stream) {
+          r.open(new FileInputStream(file), file.getName(), format);
+        } else {
+          r.open(file, file.getName(), format);
+        }
+        List<List<Object>> lines = new ArrayList<>();
+        r.forEachRemaining(l -> lines.add(new ArrayList<>(l.values())));
+        assertEquals(expected, lines);
+      }
+    }
+  }
+
+  @Test
+  public void readHtmlTablesAsPages(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("tables.html").toFile();
+    Files.writeString(file.toPath(), """
+        <html><body>
+        <table><tr><th>a</th></tr><tr><td>1</td></tr><tr><td>2</td></tr></table>
+        <table><tr><th>b</th></tr>
+          <tr><td>3</td></tr>
+          <tr><td><table><tr><td>nested</td></tr></table></td></tr>
+        </table>
+        <table><tr><th>c</th></tr></table>
+        <table><tr><th>d</th><tr><td>4</td>
+        <table><tr><th>e</th><tr><td>5</td></table>
+        </body></html>""");
+
+    assertEquals(List.of("3", "nested"), read(file, Format.newBuilder().page(2).build()));
+    assertEquals(List.of("5"), read(file, Format.newBuilder().page(5).build()));
+    assertEquals(List.of(), read(file, Format.newBuilder().page(6).build()));
+    assertEquals(List.of("1", "2", "3", "nested", "4", "5"),
+                 read(file, Format.newBuilder().page(0).build()));
+    assertEquals(List.of("1", "3"),
+                 read(file, Format.newBuilder().page(0).footerLines(1).build()));
+  }
+
+  private static List<String> read(File file, Format format) {
+    try (HtmlTableLineReader r = new HtmlTableLineReader()) {
+      r.open(file, file.getName(), format);
+      List<String> values = new ArrayList<>();
+      r.forEachRemaining(l -> values.add((String)l.get("1")));
+      return values;
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package ma.vi.datalines;
+
+import ma.vi.datalines.text.DelimitedTextLineReader;
+import ma.vi.datalines.xl.XlsLineReader;
+import ma.vi.datalines.xl.XlsxLineReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+public class LineReaderFactoryTest {
+  @Test
+  public void detectInputType() throws Exception {
+    assertEquals(InputType.XLSX,   InputType.of(resource("/data/test_data.xlsx")));
+    assertEquals(InputType.XLS,    InputType.of(resource("/data/test_data_err.xls")));
+    assertEquals(InputType.TEXT,   InputType.of(resource("/data/test_data.csv")));
+    assertEquals(InputType.HTML,   type("\n  <!DOCTYPE html>\n<html><body><table></table></body></html>"));
+    assertEquals(InputType.HTML,   type("<HTML>"));
+    assertEquals(InputType.TEXT,   type("a,b,c\n<html>"));
+    assertEquals(InputType.BINARY, type("\u0089PNG\r\n\u001a\n\u0000\u0000"));
+  }
+
+  @Test
+  public void readerForFile() throws Exception {
+    try (LineReader r = LineReaderFactory.get(resource("/data/test_data.xlsx"), "test_data.xlsx", new Format())) {
+      assertInstanceOf(XlsxLineReader.class, r);
+    }
+    try (LineReader r = LineReaderFactory.get(resource("/data/test_data_err.xls"), "test_data_err.xls", new Format())) {
+      assertInstanceOf(XlsLineReader.class, r);
+    }
+  }
+
+  @Test
+  public void readerForStream() throws Exception {
+    try (InputStream in = LineReaderFactoryTest.class.getResourceAsStream("/data/test_data.csv");
+         LineReader r = LineReaderFactory.get(in, "test_data.csv", Format.TabSeparated())) {
+      assertInstanceOf(DelimitedTextLineReader.class, r);
+      assertEquals("Vikash Madhow", r.next().get("2"));
+    }
+    try (InputStream in = LineReaderFactoryTest.class.getResourceAsStream("/data/test_data.xlsx");
+         LineReader r = LineReaderFactory.get(in, "test_data.xlsx", new Format())) {
+      assertInstanceOf(XlsxLineReader.class, r);
+      assertEquals("Vikash Madhow", r.next().get("2"));
+    }
+  }
+
+  private static File resource(String name) throws Exception {
+    return new File(LineReaderFactoryTest.class.getResource(name).toURI());
+  }
+
+  private static InputType type(String content) {
+    byte[] head = content.getBytes(StandardCharsets.ISO_8859_1);
+    return InputType.of(head, head.length);
+  }
+}
\ No newline at end of file
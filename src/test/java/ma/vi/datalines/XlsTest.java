@@ -3,13 +3,27 @@ package ma.vi.datalines;
 import ma.vi.base.util.Convert;
 import ma.vi.datalines.xl.XlsLineReader;
 import ma.vi.datalines.xl.XlsxLineReader;
+import ma.vi.datalines.xl.XlsStreamingLineReader;
+import org.apache.poi.hssf.record.crypto.Biff8EncryptionKey;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
+import static java.util.Collections.emptyMap;
 import static ma.vi.datalines.DelimitedTextTest.asMap;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -48,4 +62,126 @@ public class XlsTest {
       assertFalse(r.hasNext());
     }
   }
+
+  @Test
+  public void readXlsSheetsConcurrently(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("sheets.xls").toFile();
+    try (HSSFWorkbook workbook = new HSSFWorkbook();
+         FileOutputStream out = new FileOutputStream(file)) {
+      XlsxTest.writeSheets(workbook);
+      workbook.write(out);
+    }
+    XlsxTest.assertSheetsReadConcurrently(XlsLineReader::new, file);
+  }
+
+  @Test
+  public void readXlsStreaming(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("streamed.xls").toFile();
+    File encrypted = dir.resolve("encrypted.xls").toFile();
+    try (HSSFWorkbook workbook = new HSSFWorkbook()) {
+      CellStyle date = workbook.createCellStyle();
+      date.setDataFormat(workbook.createDataFormat().getFormat("dd/mm/yyyy"));
+      CellStyle amount = workbook.createCellStyle();
+      amount.setDataFormat(workbook.createDataFormat().getFormat("#,##0.00"));
+      for (int s = 0; s < 3; s++) {
+        Sheet sheet = workbook.createSheet();
+        sheet.createRow(0).createCell(0).setCellValue("Header " + s);
+        for (int i = 1; i < 200; i++) {
+          Row row = sheet.createRow(i + i / 50);  // gaps between rows
+          if (i % 40 == 0) {
+            continue;                            // declared row without cells
+          }
+          row.createCell(0).setCellValue(s * 1000 + i);
+          row.createCell(1).setCellValue("Name " + i % 30);
+          row.createCell(2).setCellValue("Label " + s + "-" + i + " \u65e5\u672c " + "x".repeat(i)); // SST continued
+          row.createCell(3).setCellValue(40000 + i);
+          row.getCell(3).setCellStyle(date);
+          row.createCell(4).setCellValue(i * 1.25);
+          row.getCell(4).setCellStyle(amount);
+          row.createCell(5).setCellValue(i % 2 == 0);
+          row.createCell(6).setCellErrorValue(FormulaError.DIV0.getCode());
+          row.createCell(7).setCellFormula("A" + (row.getRowNum() + 1) + "*2");
+          row.createCell(8).setCellFormula("B" + (row.getRowNum() + 1) + "&\"!\"");
+          row.createCell(9).setCellFormula("A" + (row.getRowNum() + 1) + ">100");
+          row.createCell(10).setCellFormula("1/0");
+          row.createCell(11).setBlank();
+        }
+      }
+      workbook.getCreationHelper().createFormulaEvaluator().evaluateAll();
+      try (FileOutputStream out = new FileOutputStream(file)) {
+        workbook.write(out);
+      }
+      Biff8EncryptionKey.setCurrentUserPassword("secret");
+      try (FileOutputStream out = new FileOutputStream(encrypted)) {
+        workbook.write(out);
+      } finally {
+        Biff8EncryptionKey.setCurrentUserPassword(null);
+      }
+    }
+
+    File data = new File(XlsTest.class.getResource("/data/test_data_err.xls").toURI());
+    Format structured = Format.newBuilder()
+                              .column(new Column("id",  "long"))
+                              .column(new Column("dob", "date", "5", null, emptyMap()))
+                              .build();
+    for (Format format: new Format[] {
+        null,
+        new Format(),
+        structured,
+        Format.newBuilder().applyFormatting(true).headerLines(0).ignoreBlankLines(false).build(),
+        Format.newBuilder().page(0).footerLines(1).build(),
+        Format.newBuilder().page(2).build()}) {
+      File[] files = format != null && format.page() > 1
+                   ? new File[] {file, encrypted}
+                   : new File[] {data, file, encrypted};
+      for (File f: files) {
+        Biff8EncryptionKey.setCurrentUserPassword(f == encrypted ? "secret" : null);
+        try {
+          List<Map<String, Object>> expected = new ArrayList<>();
+          try (XlsLineReader r = new XlsLineReader()) {
+            r.open(f, f.getName(), format);
+            r.forEachRemaining(expected::add);
+          }
+          List<Map<String, Object>> lines = new ArrayList<>();
+          try (XlsStreamingLineReader r = new XlsStreamingLineReader(f == data ? 0 : Long.MAX_VALUE)) {
+            r.open(f, f.getName(), format);
+            r.forEachRemaining(lines::add);
+          }
+          assertFalse(expected.isEmpty());
+          assertEquals(expected, lines);
+        } finally {
+          Biff8EncryptionKey.setCurrentUserPassword(null);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void readXlsFormulas(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("formulas.xls").toFile();
+    try (HSSFWorkbook workbook = new HSSFWorkbook();
+         FileOutputStream out = new FileOutputStream(file)) {
+      Row row = workbook.createSheet().createRow(0);
+      row.createCell(0).setCellValue(21);
+      row.createCell(1).setCellFormula("A1*2");
+      row.createCell(2).setCellFormula("\"x\"&A1");
+      workbook.getCreationHelper().createFormulaEvaluator().evaluateAll();
+
+      /*
+       * Change the value referred to without updating the cached results.
+       */
+      row.getCell(0).setCellValue(50);
+      workbook.write(out);
+    }
+
+    for (Format.Formulas formulas: Format.Formulas.values()) {
+      try (XlsLineReader r = new XlsLineReader()) {
+        r.open(file, file.getName(), Format.newBuilder().headerLines(0).formulas(formulas).build());
+        Map<String, Object> line = r.next();
+        boolean evaluated = formulas == Format.Formulas.EVALUATE;
+        assertEquals(evaluated ? 100L : 42L, line.get("2"));
+        assertEquals(evaluated ? "x50" : "x21", line.get("3"));
+      }
+    }
+  }
 }
\ No newline at end of file
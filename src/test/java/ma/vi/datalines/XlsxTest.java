@@ -2,17 +2,38 @@ package ma.vi.datalines;
 
 import ma.vi.base.util.Convert;
 import ma.vi.datalines.xl.XlsxLineReader;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
-import java.util.Arrays;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static java.util.Collections.emptyMap;
 import static ma.vi.datalines.DelimitedTextTest.asMap;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 
 public class XlsxTest {
   @Test
@@ -160,4 +181,431 @@ public class XlsxTest {
       assertFalse(r.hasNext());
     }
   }
+
+  @Test
+  public void readXlsxFromStream(@TempDir Path dir) throws Exception {
+    File file = new File(XlsxTest.class.getResource("/data/test_data_err.xlsx").toURI());
+    List<Map<String, Object>> expected = new ArrayList<>();
+    try (XlsxLineReader r = new XlsxLineReader()) {
+      r.open(file, "test_data_err.xlsx", new Format());
+      r.forEachRemaining(expected::add);
+    }
+
+    /*
+     * Sheet before the shared strings and styles (as saved by Excel), and after.
+     */
+    File reordered = dir.resolve("reordered.xlsx").toFile();
+    try (ZipFile in = new ZipFile(file);
+         ZipOutputStream out = new ZipOutputStream(new FileOutputStream(reordered))) {
+      List<ZipEntry> entries = new ArrayList<>(Collections.list(in.entries()));
+      entries.sort(Comparator.comparing(e -> !e.getName().matches("xl/(styles|sharedStrings).xml")));
+      for (ZipEntry entry: entries) {
+        out.putNextEntry(new ZipEntry(entry.getName()));
+        in.getInputStream(entry).transferTo(out);
+        out.closeEntry();
+      }
+    }
+
+    for (File f: new File[] {file, reordered}) {
+      try (XlsxLineReader r = new XlsxLineReader()) {
+        r.open(new FileInputStream(f), f.getName(), new Format());
+        List<Map<String, Object>> lines = new ArrayList<>();
+        r.forEachRemaining(lines::add);
+        assertEquals(expected, lines);
+      }
+    }
+  }
+
+  @Test
+  public void countXlsxLines(@TempDir Path dir) throws Exception {
+    File data = new File(XlsxTest.class.getResource("/data/test_data.xlsx").toURI());
+    try (XlsxLineReader r = new XlsxLineReader()) {
+      r.open(data, "test_data.xlsx", new Format());
+      assertEquals(17, r.estimateTotalLines());
+      assertEquals(17, r.countLines());
+    }
+    try (XlsxLineReader r = new XlsxLineReader()) {
+      r.open(new FileInputStream(data), "test_data.xlsx", new Format());
+      assertEquals(-1, r.countLines());
+      r.next();
+      assertEquals(17, r.estimateTotalLines());
+    }
+
+    /*
+     * Rows without cells are not in the sheet: the dimension is an upper bound.
+     */
+    File file = dir.resolve("sparse.xlsx").toFile();
+    try (XSSFWorkbook workbook = new XSSFWorkbook();
+         FileOutputStream out = new FileOutputStream(file)) {
+      for (int s = 0; s < 2; s++) {
+        Sheet sheet = workbook.createSheet();
+        for (int i = 0; i <= 100; i += 10) {
+          sheet.createRow(i).createCell(0).setCellValue(i);
+        }
+      }
+      workbook.write(out);
+    }
+    try (XlsxLineReader r = new XlsxLineReader()) {
+      r.open(file, file.getName(), Format.newBuilder().page(0).build());
+      assertEquals(202, r.estimateTotalLines());
+      assertEquals(22, r.countLines());
+      assertEquals(22, r.estimateTotalLines());
+    }
+  }
+
+  @Test
+  public void readXlsxSharedStringsSpilled(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("strings.xlsx").toFile();
+    int count = 30000;
+    try (XSSFWorkbook workbook = new XSSFWorkbook();
+         FileOutputStream out = new FileOutputStream(file)) {
+      Sheet sheet = workbook.createSheet();
+      sheet.createRow(0).createCell(0).setCellValue("text");
+      XSSFRichTextString rich = new XSSFRichTextString("Bold and plain");
+      XSSFFont bold = workbook.createFont();
+      bold.setBold(true);
+      rich.applyFont(0, 4, bold);
+      sheet.createRow(1).createCell(0).setCellValue(rich);
+      sheet.createRow(2).createCell(0).setCellValue("Escaped _x0041_ and _x00e9_");
+      for (int i = 3; i <= count; i++) {
+        sheet.createRow(i).createCell(0).setCellValue("Name " + i + " (\u00e9t\u00e9, \u20ac" + i % 100 + ") from the shared strings");
+      }
+      sheet.createRow(count + 1).createCell(0).setCellValue("Name 3 (\u00e9t\u00e9, \u20ac3) from the shared strings");
+      workbook.write(out);
+    }
+
+    List<Object> expected = new ArrayList<>();
+    try (XSSFWorkbook workbook = new XSSFWorkbook(file)) {
+      Sheet sheet = workbook.getSheetAt(0);
+      for (int i = 1; i <= count + 1; i++) {
+        expected.add(sheet.getRow(i).getCell(0).getStringCellValue());
+      }
+    }
+    assertEquals("Bold and plain", expected.get(0));
+    assertEquals("Escaped A and \u00e9", expected.get(1));
+
+    /*
+     * Kept in memory, and spilled to a file, read from the file and from a stream.
+     */
+    for (long maxInMemory: new long[] {Long.MAX_VALUE, 0}) {
+      for (boolean stream: new boolean[] {false, true}) {
+        try (XlsxLineReader r = new XlsxLineReader(maxInMemory)) {
+          if (stream) {
+            r.open(new FileInputStream(file), file.getName(), new Format());
+          } else {
+            r.open(file, file.getName(), new Format());
+          }
+          List<Object> lines = new ArrayList<>();
+          r.forEachRemaining(l -> lines.add(l.get("1")));
+          assertEquals(expected, lines);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void readXlsxNumberFormats(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("formats.xlsx").toFile();
+    try (XSSFWorkbook workbook = new XSSFWorkbook();
+         FileOutputStream out = new FileOutputStream(file)) {
+      CellStyle date = workbook.createCellStyle();
+      date.setDataFormat(workbook.createDataFormat().getFormat("dd/mm/yyyy"));
+      CellStyle amount = workbook.createCellStyle();
+      amount.setDataFormat(workbook.createDataFormat().getFormat("#,##0.00"));
+      Row row = workbook.createSheet().createRow(0);
+      row.createCell(0).setCellValue(44197);
+      row.getCell(0).setCellStyle(date);
+      row.createCell(1).setCellValue(44198);
+      row.createCell(2).setCellValue(1234.5);
+      row.getCell(2).setCellStyle(amount);
+      row.createCell(3).setCellValue(1234.5);
+      workbook.write(out);
+    }
+
+    /*
+     * Numbers with a date format, or in a date column, are dates.
+     */
+    for (boolean applyFormatting: new boolean[] {false, true}) {
+      try (XlsxLineReader r = new XlsxLineReader()) {
+        r.open(file, file.getName(),
+               Format.newBuilder()
+                     .headerLines(0)
+                     .applyFormatting(applyFormatting)
+                     .column(new Column("paid", "date", "2", null, emptyMap()))
+                     .build());
+        Map<String, Object> line = r.next();
+        assertEquals(LocalDateTime.of(2021, 1, 1, 0, 0), line.get("1"));
+        assertEquals(LocalDateTime.of(2021, 1, 2, 0, 0), line.get("2"));
+        assertEquals(applyFormatting ? "1,234.50" : 1234.5, line.get("3"));
+        assertEquals(1234.5, line.get("4"));
+      }
+    }
+  }
+
+  @Test
+  public void readXlsxFormulas(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("formulas.xlsx").toFile();
+    try (XSSFWorkbook workbook = new XSSFWorkbook();
+         FileOutputStream out = new FileOutputStream(file)) {
+      Sheet sheet = workbook.createSheet();
+      Row row = sheet.createRow(0);
+      row.createCell(0).setCellValue(21);
+      row.createCell(1).setCellFormula("A1*2");
+      row.createCell(2).setCellFormula("\"x\"&A1");
+      workbook.getCreationHelper().createFormulaEvaluator().evaluateAll();
+
+      /*
+       * A formula without a cached result.
+       */
+      sheet.createRow(1).createCell(0).setCellFormula("SUM(A1:B1)");
+      workbook.write(out);
+    }
+
+    for (Format.Formulas formulas: Format.Formulas.values()) {
+      try (XlsxLineReader r = new XlsxLineReader()) {
+        r.open(file, file.getName(), Format.newBuilder().headerLines(0).formulas(formulas).build());
+        Map<String, Object> line = r.next();
+        assertEquals(42, ((Number)line.get("2")).intValue());
+        assertEquals("x21", line.get("3"));
+        if (formulas == Format.Formulas.CACHED) {
+          assertFalse(r.hasNext());
+        } else {
+          assertEquals("SUM(A1:B1)", r.next().get("1"));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void readXlsxSheetXml(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("sheet.xlsx").toFile();
+    try (XSSFWorkbook workbook = new XSSFWorkbook();
+         FileOutputStream out = new FileOutputStream(file)) {
+      workbook.createSheet().createRow(0).createCell(0).setCellValue("shared");
+      workbook.write(out);
+    }
+
+    /*
+     * Replace the sheet with one using prefixed element names, comments, inline
+     * strings, entity and character references, CDATA sections, cells without
+     * references and empty elements.
+     */
+    String sheet = """
+        <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
+        <!-- written by hand -->
+        <x:worksheet xmlns:x="http://schemas.openxmlformats.org/spreadsheetml/2006/main">
+          <x:sheetData>
+            <x:row r="1" spans="1:3">
+              <x:c r="A1" t="s"><x:v>0</x:v></x:c>
+              <x:c r="C1" t="inlineStr"><x:is><x:r><x:t>Rich </x:t></x:r><x:r><x:rPr><x:b/></x:rPr><x:t xml:space="preserve">&amp; bold</x:t></x:r><x:rPh sb="0" eb="1"><x:t>ignored</x:t></x:rPh></x:is></x:c>
+            </x:row>
+            <x:row r='2'>
+              <x:c t='b'><x:v>1</x:v></x:c>
+              <x:c t="b"><x:v>0</x:v></x:c>
+              <x:c t="e"><x:v>#DIV/0!</x:v></x:c>
+              <x:c t="str"><x:f>A1&amp;"!"</x:f><x:v>shared&#33;&#x20ac;</x:v></x:c>
+            </x:row>
+            <x:row r="3"/>
+            <x:row r="4">
+              <x:c r="B4"/>
+              <x:c r="c4"><x:v> 42 </x:v></x:c>
+            </x:row>
+            <x:row>
+              <x:c r="AB5"><x:v><![CDATA[2.5]]></x:v></x:c>
+              <x:c t="inlineStr"><x:is><x:t>&lt;&#233;t&#xe9;&gt; _x0041_</x:t></x:is></x:c>
+            </x:row>
+          </x:sheetData>
+        </x:worksheet>""";
+    File rewritten = dir.resolve("rewritten.xlsx").toFile();
+    try (ZipFile in = new ZipFile(file);
+         ZipOutputStream out = new ZipOutputStream(new FileOutputStream(rewritten))) {
+      for (ZipEntry entry: Collections.list(in.entries())) {
+        out.putNextEntry(new ZipEntry(entry.getName()));
+        if (entry.getName().equals("xl/worksheets/sheet1.xml")) {
+          out.write(sheet.getBytes(StandardCharsets.UTF_8));
+        } else {
+          in.getInputStream(entry).transferTo(out);
+        }
+        out.closeEntry();
+      }
+    }
+
+    List<Object> wide = new ArrayList<>(Collections.nCopies(27, null));
+    wide.addAll(List.of(2.5, "<\u00e9t\u00e9> A"));
+    List<List<Object>> expected = List.of(
+        Arrays.asList("shared", null, "Rich & bold"),
+        Arrays.asList("TRUE", "FALSE", "ERROR: #DIV/0!", "shared!\u20ac"),
+        Arrays.asList(null, null, 42L),
+        wide);
+    Format format = Format.newBuilder().headerLines(0).build();
+    for (boolean stream: new boolean[] {false, true}) {
+      try (XlsxLineReader r = new XlsxLineReader()) {
+        if (stream) {
+          r.open(new FileInputStream(rewritten), rewritten.getName(), format);
+        } else {
+          r.open(rewritten, rewritten.getName(), format);
+        }
+        List<List<Object>> lines = new ArrayList<>();
+        r.forEachRemaining(l -> lines.add(new ArrayList<>(l.values())));
+        assertEquals(expected, lines);
+      }
+    }
+  }
+
+  @Test
+  public void rejectXlsxExternalEntities(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("entities.xlsx").toFile();
+    try (XSSFWorkbook workbook = new XSSFWorkbook();
+         FileOutputStream out = new FileOutputStream(file)) {
+      workbook.createSheet().createRow(0).createCell(0).setCellValue("shared");
+      workbook.write(out);
+    }
+    File dtd = dir.resolve("sheet.dtd").toFile();
+    Files.writeString(dtd.toPath(), "<!ENTITY sheet \"worksheets/sheet1.xml\">");
+
+    /*
+     * The target of the sheet is only found if the external DTD is read.
+     */
+    File rewritten = rewrite(file, dir.resolve("rels.xlsx").toFile(), "xl/_rels/workbook.xml.rels",
+                             rels -> rels.replace("<Relationships",
+                                                  "<!DOCTYPE Relationships SYSTEM \"" + dtd.toURI() + "\"><Relationships")
+                                         .replace("worksheets/sheet1.xml", "&sheet;"));
+    try (XlsxLineReader r = new XlsxLineReader()) {
+      assertThrows(RuntimeException.class, () -> {
+        r.open(new FileInputStream(rewritten), rewritten.getName(), Format.newBuilder().headerLines(0).build());
+        r.forEachRemaining(l -> {});
+      });
+    }
+  }
+
+  @Test
+  public void rejectXlsxSharedStringEntities(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("strings.xlsx").toFile();
+    try (XSSFWorkbook workbook = new XSSFWorkbook();
+         FileOutputStream out = new FileOutputStream(file)) {
+      workbook.createSheet().createRow(0).createCell(0).setCellValue("shared");
+      workbook.write(out);
+    }
+    File secret = dir.resolve("secret.txt").toFile();
+    Files.writeString(secret.toPath(), "leaked");
+    File rewritten = rewrite(file, dir.resolve("entities.xlsx").toFile(), "xl/sharedStrings.xml",
+                             sst -> sst.replace("<sst",
+                                                "<!DOCTYPE sst [<!ENTITY secret SYSTEM \"" + secret.toURI() + "\">]><sst")
+                                       .replace(">shared<", ">&secret;<"));
+
+    /*
+     * The entity is either rejected or left unresolved, in a file or a stream.
+     */
+    for (boolean stream: new boolean[] {false, true}) {
+      List<Map<String, Object>> lines = new ArrayList<>();
+      try (XlsxLineReader r = new XlsxLineReader()) {
+        Format format = Format.newBuilder().headerLines(0).build();
+        if (stream) {
+          r.open(new FileInputStream(rewritten), rewritten.getName(), format);
+        } else {
+          r.open(rewritten, rewritten.getName(), format);
+        }
+        r.forEachRemaining(lines::add);
+      } catch (RuntimeException e) {
+        continue;
+      }
+      assertFalse(lines.toString().contains("leaked"), lines.toString());
+    }
+  }
+
+  /**
+   * Copies the package to the specified file, editing the content of the named
+   * entry.
+   */
+  private static File rewrite(File file, File rewritten, String name, UnaryOperator<String> edit) throws Exception {
+    try (ZipFile in = new ZipFile(file);
+         ZipOutputStream out = new ZipOutputStream(new FileOutputStream(rewritten))) {
+      for (ZipEntry entry: Collections.list(in.entries())) {
+        out.putNextEntry(new ZipEntry(entry.getName()));
+        if (entry.getName().equals(name)) {
+          String content = new String(in.getInputStream(entry).readAllBytes(), StandardCharsets.UTF_8);
+          out.write(edit.apply(content).getBytes(StandardCharsets.UTF_8));
+        } else {
+          in.getInputStream(entry).transferTo(out);
+        }
+        out.closeEntry();
+      }
+    }
+    return rewritten;
+  }
+
+  @Test
+  public void readXlsxSheetsConcurrently(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("sheets.xlsx").toFile();
+    try (XSSFWorkbook workbook = new XSSFWorkbook();
+         FileOutputStream out = new FileOutputStream(file)) {
+      writeSheets(workbook);
+      workbook.write(out);
+    }
+    assertSheetsReadConcurrently(XlsxLineReader::new, file);
+  }
+
+  /**
+   * Writes sheets of different lengths, each starting with a header line and
+   * ending with a footer line. The first and fourth sheets hold more lines than
+   * can be queued for the consumer.
+   */
+  static void writeSheets(Workbook workbook) {
+    int[] lengths = {6000, 10, 0, 5000, 300};
+    for (int s = 0; s < lengths.length; s++) {
+      Sheet sheet = workbook.createSheet("Sheet " + (s + 1));
+      Row header = sheet.createRow(0);
+      header.createCell(0).setCellValue("id");
+      header.createCell(1).setCellValue("name");
+      for (int i = 1; i <= lengths[s]; i++) {
+        Row row = sheet.createRow(i);
+        row.createCell(0).setCellValue(String.valueOf(s * 10000 + i));
+        row.createCell(1).setCellValue("Name " + i);
+      }
+      sheet.createRow(lengths[s] + 1).createCell(0).setCellValue("Total");
+    }
+  }
+
+  /**
+   * Checks that the lines read from the sheets in parallel are the same as the
+   * ones read sequentially, in the same order when reading in order.
+   */
+  static void assertSheetsReadConcurrently(Supplier<LineReader> readers, File file) {
+    List<Map<String, Object>> expected = new ArrayList<>();
+    try (LineReader r = readers.get()) {
+      r.open(file, file.getName(), sheetsFormat(1, true));
+      r.forEachRemaining(expected::add);
+    }
+    assertEquals(6000 + 10 + 5000 + 300, expected.size());
+    assertEquals(1L, expected.get(0).get("1"));
+    assertEquals("Name 1", expected.get(0).get("2"));
+
+    for (boolean ordered: new boolean[] {true, false}) {
+      try (LineReader r = readers.get()) {
+        r.open(file, file.getName(), sheetsFormat(3, ordered));
+        List<Map<String, Object>> lines = new ArrayList<>();
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> r.forEachRemaining(lines::add));
+        if (ordered) {
+          assertEquals(expected, lines);
+        } else {
+          Comparator<Map<String, Object>> byId = Comparator.comparing(l -> (Long)l.get("1"));
+          lines.sort(byId);
+          List<Map<String, Object>> sorted = new ArrayList<>(expected);
+          sorted.sort(byId);
+          assertEquals(sorted, lines);
+        }
+      }
+    }
+  }
+
+  private static Format sheetsFormat(int parallelism, boolean ordered) {
+    return Format.newBuilder()
+                 .footerLines(1)
+                 .page(0)
+                 .parallelism(parallelism)
+                 .ordered(ordered)
+                 .column(new Column("id",   "long",   "1", null, emptyMap()))
+                 .column(new Column("name", "string", "2", null, emptyMap()))
+                 .build();
+  }
 }
\ No newline at end of file
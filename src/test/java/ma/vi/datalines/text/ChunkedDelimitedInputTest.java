@@ -0,0 +1,62 @@
+package ma.vi.datalines.text;
+
+import ma.vi.datalines.Format;
+import ma.vi.datalines.RowBatch;
+import ma.vi.datalines.RowSchema;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChunkedDelimitedInputTest {
+  @Test
+  public void heapBoundedByBytesAhead(@TempDir Path dir) throws Exception {
+    /*
+     * A 64 MB file read with 1 MB parsed in advance: without the bound, the
+     * window of 16 chunks would cover half the file, taking a few hundred MB
+     * once parsed.
+     */
+    int count = 4_000_000;
+    File file = dir.resolve("large.csv").toFile();
+    try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+      for (int i = 1; i <= count; i++) {
+        out.print(i + ",Name " + i + "\n");
+      }
+    }
+    assertTrue(file.length() > 64 * 1024 * 1024);
+
+    Format format = Format.newBuilder().columnSeparatorChars(',').build();
+    RowSchema schema = RowSchema.positional(format);
+    RowBatch lines = new RowBatch(schema, 1);
+    Runtime runtime = Runtime.getRuntime();
+    assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+      System.gc();
+      long baseline = runtime.totalMemory() - runtime.freeMemory();
+      long peak = 0;
+      try (ChunkedDelimitedInput chunks = new ChunkedDelimitedInput(file, StandardCharsets.UTF_8, ',', '"',
+                                                                    format, schema, 8, false, false,
+                                                                    null, 1024 * 1024)) {
+        int read = 0;
+        while (chunks.next(lines, 0)) {
+          read++;
+          if (read % 250_000 == 0) {
+            System.gc();
+            peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory() - baseline);
+          }
+        }
+        assertEquals(count, read);
+      }
+      assertTrue(peak < 48 * 1024 * 1024, "Heap grew by " + peak + " bytes");
+    });
+  }
+}